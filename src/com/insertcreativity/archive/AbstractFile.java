@@ -2,21 +2,44 @@
 package com.insertcreativity.archive;
 
 import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Base class containing all the required functionality of a file the archive manager requires. Classes that inherit from this one allow one to interface with archives stored within the media they implement.
 **/
 public abstract class AbstractFile
 {
+    /**Cleaner that releases the resources of files that are garbage collected without being closed.**/
+    private static final Cleaner CLEANER = Cleaner.create();
+    /**The largest gap between two ranges of a vectored read that's read through instead of being read separately.**/
+    private static final int MERGE_GAP = 4096;
+    /**The largest span of merged ranges that's read in one go.**/
+    private static final int MAX_MERGED_LENGTH = 1 << 20;
+
     /**
-     * Resolves the file object at the specified address.
+     * Resolves the file object at the specified address, with whichever implementation the address belongs to: striped addresses (see StripedFile) and HTTP or HTTPS addresses (see RemoteFile) are recognized by their prefix, and anything else is treated as a local path.
      * @param address String encoding of the file's address.
-     * @return The file at the specified address, or null if it doesn't exist.
+     * @return The file at the specified address.
      * @throws IOException If an exception occurs while resolving the address.
     **/
     public static AbstractFile resolve(String address) throws IOException
     {
-        throw new UnsupportedOperationException("Only implementations of AbstractFile can resolve addresses.");
+        if(address.startsWith(StripedFile.ADDRESS_PREFIX))
+        {
+            return StripedFile.resolve(address);
+        }
+        String lower = address.toLowerCase(Locale.ROOT);
+        if(lower.startsWith("http://") || lower.startsWith("https://"))
+        {
+            return RemoteFile.resolve(address);
+        }
+        return LocalFile.resolve(address);
     }
 
     /**
@@ -48,6 +71,31 @@ public abstract class AbstractFile
      */
     public abstract AbstractFile getChild(String name) throws IOException;
 
+    /**
+     * Lists the files in this directory. Implementations should enumerate the directory in a single batched call, and hand back children whose attributes are already cached.
+     * @return The files in this directory, or an empty list if this isn't a directory.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public List<AbstractFile> listChildren() throws IOException
+    {
+        if(!isDirectory())
+        {
+            return Collections.emptyList();
+        }
+        throw new IOException("Listing directories isn't supported.");
+    }
+
+    /**
+     * Gets the file's name, type, size and modification time all at once. Implementations should cache the attributes until the file is written to, so repeated calls don't touch the underlying storage.
+     * @return The file's attributes.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public FileAttributes getAttributes() throws IOException
+    {
+        boolean directory = isDirectory();
+        return new FileAttributes(getName(), directory, (directory? 0 : length()), 0);
+    }
+
     /**
      * Returns the name of the file.
      * @return The name of the file.
@@ -142,22 +190,173 @@ public abstract class AbstractFile
     public abstract int writeBytes(byte[] data, int offset, int length) throws IOException;
 
     /**
-     * Closes the file, flushing and saving any changes made to it, and releasing any resources it was using.
-     * @throws IOException If the file encountered an error while closing.
+     * Reads a consecutive series of bytes from the file into the buffer starting from the current file-pointer position. Bytes are stored from the buffer's position up to it's limit, and the buffer's position is advanced past them.
+     * Implementations backed by channels should override this, so direct buffers are read into without being copied.
+     * @param buffer The buffer to read bytes into.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+     * @throws IOException If the operation fails or is unsupported.
     **/
-    public abstract void close() throws IOException;
+    public int readBytes(ByteBuffer buffer) throws IOException
+    {
+        if(buffer.hasArray())
+        {
+            int count = readBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if(count > 0)
+            {
+                buffer.position(buffer.position() + count);
+            }
+            return count;
+        }
+        byte[] staging = new byte[buffer.remaining()];
+        int count = readBytes(staging, 0, staging.length);
+        if(count > 0)
+        {
+            buffer.put(staging, 0, count);
+        }
+        return count;
+    }
 
     /**
-     * Ensure that the file gets closed before it's garbage collected.
+     * Writes the bytes remaining in a buffer into the file in order starting at the file-pointer's current position, and advances the buffer's position past them.
+     * Implementations backed by channels should override this, so direct buffers are written from without being copied.
+     * @param data The buffer to write bytes from.
+     * @return The number of bytes successfully written into the file.
+     * @throws IOException If the operation fails or is unsupported.
     **/
-    protected void finalize()
+    public int writeBytes(ByteBuffer data) throws IOException
     {
+        int count;
+        if(data.hasArray())
+        {
+            count = writeBytes(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else{
+            byte[] staging = new byte[data.remaining()];
+            data.duplicate().get(staging);
+            count = writeBytes(staging, 0, staging.length);
+        }
+        data.position(data.position() + count);
+        return count;
+    }
+
+    /**
+     * Reads several regions of the file at once. Ranges are sorted by position, and ranges that overlap or are separated by small gaps are merged, so they're read with a single I/O.
+     * The file-pointer's position is the same afterwards as it was before. Each range records how many bytes were read into it, which is only less than it's length if it runs past EOF.
+     * @param ranges The regions of the file to read, in any order.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public void readRanges(List<ReadRange> ranges) throws IOException
+    {
+        if(ranges.isEmpty())
+        {
+            return;
+        }
+        ReadRange[] sorted = ranges.toArray(new ReadRange[ranges.size()]);
+        Arrays.sort(sorted, Comparator.comparingLong(ReadRange::getPosition));
+
+        long saved = getPosition();
+        byte[] scratch = null;
         try
         {
-            close();
-        } catch(Exception exception)
+            for(int first = 0; first < sorted.length;)
+            {
+                //Find the run of ranges that can be read together.
+                long start = sorted[first].getPosition();
+                long end = start + sorted[first].getLength();
+                int last = first + 1;
+                while(last < sorted.length)
+                {
+                    long nextEnd = Math.max(end, sorted[last].getPosition() + sorted[last].getLength());
+                    if((sorted[last].getPosition() - end > MERGE_GAP) || (nextEnd - start > MAX_MERGED_LENGTH))
+                    {
+                        break;
+                    }
+                    end = nextEnd;
+                    last++;
+                }
+
+                if(last - first == 1)
+                {
+                    //Lone ranges are read straight into their own buffer.
+                    ReadRange range = sorted[first];
+                    range.setCount(readAt(range.getPosition(), range.getBuffer(), range.getOffset(), range.getLength()));
+                } else{
+                    int span = (int)(end - start);
+                    if((scratch == null) || (scratch.length < span))
+                    {
+                        scratch = new byte[span];
+                    }
+                    int read = readAt(start, scratch, 0, span);
+                    for(int i = first; i < last; i++)
+                    {
+                        ReadRange range = sorted[i];
+                        int from = (int)(range.getPosition() - start);
+                        int count = Math.max(0, Math.min(range.getLength(), read - from));
+                        System.arraycopy(scratch, from, range.getBuffer(), range.getOffset(), count);
+                        range.setCount(count);
+                    }
+                }
+                first = last;
+            }
+        } finally{
+            if(getPosition() != saved)
+            {
+                seek(saved);
+            }
+        }
+    }
+
+    /**
+     * Reads a region of the file, for vectored reads. Implementations that support positional reads should override this so the file-pointer isn't moved; the default seeks to the region and reads it,
+     * and leaves the file-pointer for readRanges to restore.
+     * @param position The position in the file to start reading at.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes to read.
+     * @return The number of bytes read, which is only less than the length requested if EOF was reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    protected int readAt(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        seek(position);
+        int count = 0;
+        while(count < length)
         {
-            exception.printStackTrace();
+            int read = readBytes(buffer, offset + count, length - count);
+            if(read <= 0)
+            {
+                break;
+            }
+            count += read;
         }
+        return count;
+    }
+
+    /**
+     * Truncates or extends the file to the specified length. If the file is extended, the contents of the extended portion are undefined.
+     * @param length The new length of the file, in bytes.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public abstract void setLength(long length) throws IOException;
+
+    /**
+     * Forces any data written into the file out onto the underlying storage medium, blocking until it's durable.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public abstract void sync() throws IOException;
+
+    /**
+     * Closes the file, flushing and saving any changes made to it, and releasing any resources it was using.
+     * @throws IOException If the file encountered an error while closing.
+    **/
+    public abstract void close() throws IOException;
+
+    /**
+     * Registers an action to release this file's resources if it's garbage collected without being closed. The action must not reference the file, or the file will never become unreachable.
+     * @param action The action that releases the file's resources.
+     * @return The registration, which implementations should clean when they're closed so the action runs at most once.
+    **/
+    protected final Cleaner.Cleanable registerCleanup(Runnable action)
+    {
+        return CLEANER.register(this, action);
     }
 }
@@ -0,0 +1,134 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Regression check for the lookups that mustn't allocate, since they're called for every file an archive operation touches. Each lookup is warmed up first, so the JIT has compiled it and every lazily allocated scratch buffer exists,
+ * and then the bytes the thread allocates while repeating it are measured, which must be 0. The measurement's repeated a few times and the smallest is kept, since the JVM itself occasionally allocates a few bytes on the thread,
+ * while a lookup that allocates does so on every call.
+ * Run it with "java com.insertcreativity.archive.AllocationCheck", it exits with 1 if any lookup allocated.
+**/
+final class AllocationCheck
+{
+    /**The number of times each lookup is called before it's measured.**/
+    private static final int WARMUP_ITERATIONS = 50000;
+    /**The number of times each lookup is called while it's measured.**/
+    private static final int MEASURED_ITERATIONS = 10000;
+    /**The number of times each lookup is measured.**/
+    private static final int MEASUREMENTS = 5;
+    /**The number of entries written into each file, so lookups have to search past other entries.**/
+    private static final int ENTRIES = 32;
+
+    /**
+     * A lookup to measure.
+    **/
+    private static interface Lookup
+    {
+        /**
+         * Performs the lookup once.
+         * @throws IOException If the lookup failed.
+        **/
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if(!threads.isThreadAllocatedMemorySupported())
+        {
+            System.err.println("The platform can't measure thread allocations.");
+            System.exit(1);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] key = new byte[16];
+        byte[] iv = new byte[16];
+        File hashPath = File.createTempFile("hashes", ".tmp");
+        File metadataPath = File.createTempFile("metadata", ".tmp");
+        File logPath = File.createTempFile("log", ".tmp");
+        LocalFile hashFile = new LocalFile(hashPath, "rw");
+        LocalFile metadataFile = new LocalFile(metadataPath, "rw");
+        LocalFile logFile = new LocalFile(logPath, "rw");
+        try
+        {
+            HashFileManager hashes = new HashFileManager(hashFile, key.clone(), iv.clone());
+            MetadataFileManager metadata = new MetadataFileManager(metadataFile, key.clone(), iv.clone());
+            LogFileManager log = new LogFileManager(logFile, key.clone(), iv.clone());
+            hashes.initialize();
+
+            //Fill each file with entries, and leave matching updates pending in the log. Entries are encrypted in place as they're written, so copies are written.
+            byte[] identifier = new byte[12];
+            byte[] metadataKey = null;
+            for(int i = 0; i < ENTRIES; i++)
+            {
+                identifier = new byte[12];
+                identifier[0] = (byte)i;
+                metadataKey = ("key-" + i).getBytes(StandardCharsets.UTF_16LE);
+                hashes.writeHash(identifier.clone(), new byte[][] {new byte[16], new byte[16]});
+                metadata.updateMetadata(metadataKey.clone(), new byte[8]);
+                log.appendHash(identifier, new byte[][] {new byte[16], new byte[16]});
+                log.appendMetadata(metadataKey, new byte[8]);
+            }
+
+            //The last entry of each file is looked up, so the whole file is searched.
+            byte[] lastIdentifier = identifier;
+            byte[] lastKey = metadataKey;
+            byte[] plainHash = new byte[16];
+            byte[] cipherHash = new byte[16];
+            byte[] value = new byte[8];
+            //Make sure the hits are measured, rather than the cheaper misses.
+            if(!hashes.getHash(lastIdentifier, plainHash, cipherHash) || (metadata.getMetadata(lastKey, value, 0) != value.length) || !log.getPendingHash(lastIdentifier, plainHash, cipherHash) || (log.getPendingMetadata(lastKey, value, 0) != value.length))
+            {
+                System.err.println("The entries looked up weren't found.");
+                System.exit(1);
+            }
+            boolean passed = true;
+            passed &= check(threads, "HashFileManager.getHash(identifier, plain, cipher)", () -> hashes.getHash(lastIdentifier, plainHash, cipherHash));
+            passed &= check(threads, "MetadataFileManager.getMetadata(key, value, offset)", () -> metadata.getMetadata(lastKey, value, 0));
+            passed &= check(threads, "LogFileManager.getPendingHash(identifier, plain, cipher)", () -> log.getPendingHash(lastIdentifier, plainHash, cipherHash));
+            passed &= check(threads, "LogFileManager.getPendingMetadata(key, value, offset)", () -> log.getPendingMetadata(lastKey, value, 0));
+            if(!passed)
+            {
+                System.exit(1);
+            }
+        } finally{
+            hashFile.close();
+            metadataFile.close();
+            logFile.close();
+            hashPath.delete();
+            metadataPath.delete();
+            logPath.delete();
+        }
+    }
+
+    /**
+     * Measures the fewest bytes a lookup allocates over a run of calls, after warming it up.
+     * @param threads The bean to measure the thread's allocations with.
+     * @param name The name of the lookup, for reporting.
+     * @param lookup The lookup to measure.
+     * @return True if the lookup didn't allocate.
+     * @throws IOException If the lookup failed.
+    **/
+    private static final boolean check(com.sun.management.ThreadMXBean threads, String name, Lookup lookup) throws IOException
+    {
+        for(int i = 0; i < WARMUP_ITERATIONS; i++)
+        {
+            lookup.run();
+        }
+        long allocated = Long.MAX_VALUE;
+        for(int measurement = 0; (measurement < MEASUREMENTS) && (allocated != 0); measurement++)
+        {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for(int i = 0; i < MEASURED_ITERATIONS; i++)
+            {
+                lookup.run();
+            }
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+        }
+        System.out.println(name + ": " + allocated + " bytes allocated over " + MEASURED_ITERATIONS + " calls");
+        return allocated == 0;
+    }
+}
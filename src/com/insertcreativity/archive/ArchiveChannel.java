@@ -0,0 +1,265 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.InvalidKeyException;
+
+/**
+ * Class for accessing the content of an encrypted archive file as a seekable byte channel. Data is decrypted as it's read and encrypted as it's written, so only the parts of the file actually being used are ever processed.
+ * The channel is safe for use by multiple threads, but like any channel with a single position, threads that read or write concurrently need to coordinate where they're reading from.
+ * ArchiveInputStream and ArchiveOutputStream provide stream views over a channel.
+**/
+public final class ArchiveChannel implements SeekableByteChannel
+{
+    /**The size of the buffers data is transferred through.**/
+    static final int TRANSFER_BUFFER_SIZE = 65536;
+
+    /**The underlying file.**/
+    private final AbstractFile file;
+    /**Manager for encrypting and decrypting the file's content.**/
+    final FileManager manager;
+    /**Flag for whether the channel is open.**/
+    private boolean open;
+
+    /**
+     * Opens a channel over an encrypted file.
+     * @param file The file to access. It's closed when the channel is.
+     * @param key The key the file is encrypted with. The array is erased once the key's been set up.
+     * @param iv The initialization vector the file is encrypted with, of which only the first 16 bytes are used. The array is erased once it's been set up.
+     * @return A channel positioned at the start of the file's content.
+     * @throws InvalidKeyException If the key isn't valid.
+     * @throws IOException If the file couldn't be positioned.
+    **/
+    public static ArchiveChannel open(AbstractFile file, byte[] key, byte[] iv) throws InvalidKeyException, IOException
+    {
+        return new ArchiveChannel(file, new FileManager(file, key, iv));
+    }
+
+    /**
+     * Creates a new channel over a file that's already managed.
+     * @param file The underlying file, which is closed when the channel is.
+     * @param manager The manager to encrypt and decrypt the file's content with.
+     * @throws IOException If the file couldn't be positioned.
+    **/
+    ArchiveChannel(AbstractFile file, FileManager manager) throws IOException
+    {
+        this.file = file;
+        this.manager = manager;
+        open = true;
+        //The file-pointer has to start at the manager's position.
+        manager.seek(manager.getPosition());
+    }
+
+    /**
+     * Checks that the channel hasn't been closed.
+     * @throws ClosedChannelException If the channel's closed.
+    **/
+    final void ensureOpen() throws ClosedChannelException
+    {
+        if(!open)
+        {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Turns read-ahead on or off (see FileManager.setPrefetching). It's worth turning on when the channel's going to be read sequentially, like when it's content is being streamed.
+     * @param prefetching True to read ahead once the channel is being read sequentially.
+     * @throws IOException If the channel is closed, or the file couldn't be repositioned.
+    **/
+    public synchronized void setPrefetching(boolean prefetching) throws IOException
+    {
+        ensureOpen();
+        manager.setPrefetching(prefetching);
+    }
+
+    /**
+     * Reads and decrypts a sequence of bytes into a buffer, from the channel's position up to the buffer's limit.
+     * @param dst The buffer to read into.
+     * @return The number of bytes read, or -1 if the channel is at the end of the file.
+     * @throws IOException If the channel is closed, or the file couldn't be read.
+    **/
+    public synchronized int read(ByteBuffer dst) throws IOException
+    {
+        ensureOpen();
+        if(!dst.hasRemaining())
+        {
+            return 0;
+        }
+        return manager.readBytes(dst);
+    }
+
+    /**
+     * Encrypts and writes a sequence of bytes from a buffer at the channel's position. The buffer's content is left untouched, it's copied before being encrypted.
+     * @param src The buffer to write from.
+     * @return The number of bytes written.
+     * @throws IOException If the channel is closed, or the file couldn't be written.
+    **/
+    public synchronized int write(ByteBuffer src) throws IOException
+    {
+        ensureOpen();
+        int total = 0;
+        try(BufferPool.Buffer pooled = BufferPool.SHARED.acquire(Math.min(src.remaining(), TRANSFER_BUFFER_SIZE)))
+        {
+            ByteBuffer staging = pooled.get();
+            while(src.hasRemaining())
+            {
+                staging.clear();
+                int count = Math.min(src.remaining(), staging.capacity());
+                staging.put(staging.position(), src, src.position(), count);
+                staging.limit(count);
+                int written = manager.writeBytes(staging);
+                src.position(src.position() + written);
+                total += written;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the channel's position in the file's content.
+     * @return The channel's position.
+     * @throws IOException If the channel is closed.
+    **/
+    public synchronized long position() throws IOException
+    {
+        ensureOpen();
+        return manager.getPosition();
+    }
+
+    /**
+     * Moves the channel to a new position in the file's content. Positions past the end of the file are allowed, reading there returns EOF and writing there extends the file.
+     * @param newPosition The new position.
+     * @return This channel.
+     * @throws IOException If the channel is closed, or the file couldn't be repositioned.
+    **/
+    public synchronized ArchiveChannel position(long newPosition) throws IOException
+    {
+        ensureOpen();
+        if(newPosition < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        manager.seek(newPosition);
+        return this;
+    }
+
+    /**
+     * Returns the size of the file's content.
+     * @return The size of the file, in bytes.
+     * @throws IOException If the channel is closed, or the file's length couldn't be read.
+    **/
+    public synchronized long size() throws IOException
+    {
+        ensureOpen();
+        return manager.length();
+    }
+
+    /**
+     * Truncates the file to the given size. Files that are already that size or smaller are left alone. If the channel's position is past the new end of the file, it's moved to the end.
+     * @param size The new size of the file.
+     * @return This channel.
+     * @throws IOException If the channel is closed, or the file couldn't be truncated.
+    **/
+    public synchronized ArchiveChannel truncate(long size) throws IOException
+    {
+        ensureOpen();
+        if(size < 0)
+        {
+            throw new IllegalArgumentException("Negative size " + size);
+        }
+        if(size < manager.length())
+        {
+            manager.truncate(size);
+        } else if(manager.getPosition() > size)
+        {
+            manager.seek(size);
+        }
+        return this;
+    }
+
+    /**
+     * Decrypts part of the file straight into another channel, like FileChannel.transferTo. The channel's own position isn't changed. Data flows through a single pooled off-heap buffer,
+     * so sockets and file channels are written without any further copying, and nothing larger than the buffer is ever held in memory.
+     * @param position The position in the file's content to start transferring from.
+     * @param count The largest number of bytes to transfer.
+     * @param target The channel to transfer the data into.
+     * @return The number of bytes transferred, which is only less than the count if the end of the file was reached.
+     * @throws IOException If the channel is closed, or the data couldn't be read or written.
+    **/
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException
+    {
+        ensureOpen();
+        if((position < 0) || (count < 0))
+        {
+            throw new IllegalArgumentException("Negative position or count.");
+        }
+        long saved = manager.getPosition();
+        long total = 0;
+        try(BufferPool.Buffer pooled = BufferPool.SHARED.acquire(TRANSFER_BUFFER_SIZE))
+        {
+            ByteBuffer buffer = pooled.get();
+            manager.seek(position);
+            while(total < count)
+            {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), count - total));
+                int read = manager.readBytes(buffer);
+                if(read <= 0)
+                {
+                    break;
+                }
+                buffer.flip();
+                while(buffer.hasRemaining())
+                {
+                    target.write(buffer);
+                }
+                total += read;
+            }
+        } finally{
+            manager.seek(saved);
+        }
+        return total;
+    }
+
+    /**
+     * Forces any data written through the channel out onto the file's storage medium, blocking until it's durable.
+     * @throws IOException If the channel is closed, or the file couldn't be synced.
+    **/
+    public synchronized void force() throws IOException
+    {
+        ensureOpen();
+        manager.sync();
+    }
+
+    /**
+     * Returns whether the channel is open.
+     * @return True if the channel hasn't been closed.
+    **/
+    public synchronized boolean isOpen()
+    {
+        return open;
+    }
+
+    /**
+     * Closes the channel and it's underlying file. Closing a channel more than once does nothing.
+     * @throws IOException If the file couldn't be closed.
+    **/
+    public synchronized void close() throws IOException
+    {
+        if(!open)
+        {
+            return;
+        }
+        open = false;
+        try
+        {
+            manager.setPrefetching(false);
+        } finally{
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * Class for reading the content of an encrypted archive file as a stream. Data is decrypted as it's consumed, and the underlying channel reads ahead while the stream is read sequentially.
+ * The stream supports marking, since it's channel can seek back to any position, and it can transfer it's remaining content straight into other streams and channels.
+**/
+public final class ArchiveInputStream extends InputStream
+{
+    /**The channel the stream reads from.**/
+    private final ArchiveChannel channel;
+    /**The position the stream was marked at, or -1 if it hasn't been marked.**/
+    private long mark;
+
+    /**
+     * Creates a new stream that reads from a channel, starting at the channel's current position. The channel's read-ahead is turned on.
+     * @param channel The channel to read from. It's closed when the stream is.
+     * @throws IOException If the channel is closed.
+    **/
+    public ArchiveInputStream(ArchiveChannel channel) throws IOException
+    {
+        this.channel = channel;
+        mark = -1;
+        channel.setPrefetching(true);
+    }
+
+    /**
+     * Reads and decrypts a single byte from the stream.
+     * @return The byte read, as a value between 0 and 255, or -1 if the end of the file was reached.
+     * @throws IOException If the stream is closed, or the file couldn't be read.
+    **/
+    public int read() throws IOException
+    {
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            if(channel.manager.getPosition() >= channel.manager.length())
+            {
+                return -1;
+            }
+            return channel.manager.readByte() & 0xff;
+        }
+    }
+
+    /**
+     * Reads and decrypts a sequence of bytes from the stream into an array.
+     * @param buffer The array to read bytes into.
+     * @param offset The index to start storing bytes at in the array.
+     * @param length The largest number of bytes to read.
+     * @return The number of bytes read, or -1 if the end of the file was reached.
+     * @throws IOException If the stream is closed, or the file couldn't be read.
+    **/
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        Objects.checkFromIndexSize(offset, length, buffer.length);
+        if(length == 0)
+        {
+            return 0;
+        }
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            return channel.manager.readBytes(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Skips over bytes in the stream without decrypting them.
+     * @param count The number of bytes to skip.
+     * @return The number of bytes skipped, which is only less than the count if the end of the file was reached.
+     * @throws IOException If the stream is closed, or the file couldn't be repositioned.
+    **/
+    public long skip(long count) throws IOException
+    {
+        if(count <= 0)
+        {
+            return 0;
+        }
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            long position = channel.manager.getPosition();
+            long skipped = Math.max(0, Math.min(count, channel.manager.length() - position));
+            channel.manager.seek(position + skipped);
+            return skipped;
+        }
+    }
+
+    /**
+     * Returns the number of bytes left in the file after the stream's position. Reading them doesn't block for anything but the disk.
+     * @return The number of bytes left in the file.
+     * @throws IOException If the stream is closed, or the file's length couldn't be read.
+    **/
+    public int available() throws IOException
+    {
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            return (int)Math.min(Integer.MAX_VALUE, Math.max(0, channel.manager.length() - channel.manager.getPosition()));
+        }
+    }
+
+    /**
+     * Returns whether the stream supports marking, which it does.
+     * @return True.
+    **/
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    /**
+     * Marks the stream's current position, so it can be returned to with reset. Since the stream can seek, the mark never expires.
+     * @param readLimit Ignored, any number of bytes can be read before resetting.
+    **/
+    public void mark(int readLimit)
+    {
+        synchronized(channel)
+        {
+            mark = channel.manager.getPosition();
+        }
+    }
+
+    /**
+     * Moves the stream back to the position it was last marked at.
+     * @throws IOException If the stream is closed, hasn't been marked, or the file couldn't be repositioned.
+    **/
+    public void reset() throws IOException
+    {
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            if(mark < 0)
+            {
+                throw new IOException("The stream hasn't been marked.");
+            }
+            channel.manager.seek(mark);
+        }
+    }
+
+    /**
+     * Decrypts the rest of the stream into an output stream, a buffer at a time.
+     * @param out The stream to write the data into.
+     * @return The number of bytes transferred.
+     * @throws IOException If the stream is closed, or the data couldn't be read or written.
+    **/
+    public long transferTo(OutputStream out) throws IOException
+    {
+        Objects.requireNonNull(out);
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            byte[] buffer = new byte[ArchiveChannel.TRANSFER_BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while((read = channel.manager.readBytes(buffer, 0, buffer.length)) > 0)
+            {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Decrypts the rest of the stream straight into a channel, like a socket or a file, through a single pooled off-heap buffer.
+     * @param target The channel to write the data into.
+     * @return The number of bytes transferred.
+     * @throws IOException If the stream is closed, or the data couldn't be read or written.
+    **/
+    public long transferTo(WritableByteChannel target) throws IOException
+    {
+        Objects.requireNonNull(target);
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            long total = 0;
+            try(BufferPool.Buffer pooled = BufferPool.SHARED.acquire(ArchiveChannel.TRANSFER_BUFFER_SIZE))
+            {
+                ByteBuffer buffer = pooled.get();
+                while(true)
+                {
+                    buffer.clear().limit(ArchiveChannel.TRANSFER_BUFFER_SIZE);
+                    int read = channel.manager.readBytes(buffer);
+                    if(read <= 0)
+                    {
+                        break;
+                    }
+                    buffer.flip();
+                    while(buffer.hasRemaining())
+                    {
+                        target.write(buffer);
+                    }
+                    total += read;
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Closes the stream and it's underlying channel.
+     * @throws IOException If the file couldn't be closed.
+    **/
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
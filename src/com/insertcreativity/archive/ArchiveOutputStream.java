@@ -0,0 +1,124 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Class for writing the content of an encrypted archive file as a stream. Data is collected in a buffer, and encrypted and written out whenever the buffer fills up or the stream is flushed.
+ * The caller's arrays are never encrypted in place, only the stream's own buffer is.
+**/
+public final class ArchiveOutputStream extends OutputStream
+{
+    /**The channel the stream writes to.**/
+    private final ArchiveChannel channel;
+    /**Buffer holding data that hasn't been written yet.**/
+    private final byte[] buffer;
+    /**The number of bytes in the buffer.**/
+    private int count;
+
+    /**
+     * Creates a new stream that writes into a channel, starting at the channel's current position.
+     * @param channel The channel to write into. It's closed when the stream is.
+    **/
+    public ArchiveOutputStream(ArchiveChannel channel)
+    {
+        this.channel = channel;
+        buffer = new byte[ArchiveChannel.TRANSFER_BUFFER_SIZE];
+        count = 0;
+    }
+
+    /**
+     * Writes a single byte into the stream.
+     * @param data The byte to write, of which only the lowest 8 bits are used.
+     * @throws IOException If the stream is closed, or the buffer couldn't be written out.
+    **/
+    public void write(int data) throws IOException
+    {
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            if(count == buffer.length)
+            {
+                drain();
+            }
+            buffer[count++] = (byte)data;
+        }
+    }
+
+    /**
+     * Writes a sequence of bytes into the stream. Writes larger than the stream's buffer are passed through it in chunks.
+     * @param data The array to write bytes from, which is left untouched.
+     * @param offset The index to start writing bytes from in the array.
+     * @param length The number of bytes to write.
+     * @throws IOException If the stream is closed, or the buffer couldn't be written out.
+    **/
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            while(length > 0)
+            {
+                if(count == buffer.length)
+                {
+                    drain();
+                }
+                int chunk = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, chunk);
+                count += chunk;
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+    }
+
+    /**
+     * Encrypts and writes out any buffered data.
+     * @throws IOException If the stream is closed, or the data couldn't be written.
+    **/
+    public void flush() throws IOException
+    {
+        synchronized(channel)
+        {
+            channel.ensureOpen();
+            drain();
+        }
+    }
+
+    /**
+     * Encrypts and writes out the buffer's content, leaving it empty.
+     * @throws IOException If the data couldn't be written.
+    **/
+    private void drain() throws IOException
+    {
+        if(count > 0)
+        {
+            int length = count;
+            count = 0;
+            channel.manager.writeBytes(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Flushes any buffered data, then closes the stream and it's underlying channel. Closing a stream more than once does nothing.
+     * @throws IOException If the data couldn't be written, or the file couldn't be closed.
+    **/
+    public void close() throws IOException
+    {
+        synchronized(channel)
+        {
+            if(!channel.isOpen())
+            {
+                return;
+            }
+            try
+            {
+                drain();
+            } finally{
+                channel.close();
+            }
+        }
+    }
+}
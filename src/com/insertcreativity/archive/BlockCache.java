@@ -0,0 +1,381 @@
+package com.insertcreativity.archive;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class for caching fixed size blocks of remote files on local disk. Each block is stored in it's own file in the cache's folder, named after the key of the remote file it's from and it's index in that file.
+ * The cache's total size is capped, and once it's reached the least recently used blocks are evicted. Blocks are written into a temporary file and then moved into place, so a crash never leaves a torn block behind,
+ * and blocks left in the folder by an earlier run are picked back up (in order of when they were last used) when the cache is created.
+ * Handles of recently read blocks are kept open, and only the cache's bookkeeping is done under it's lock, so hits from different threads never wait on each other's disk reads.
+**/
+final class BlockCache
+{
+    /**The default size of each block.**/
+    static final int DEFAULT_BLOCK_SIZE = 65536;
+    /**The extension of block files.**/
+    private static final String EXTENSION = ".blk";
+    /**The most block files kept open at once.**/
+    private static final int MAX_OPEN_HANDLES = 64;
+    /**How long a block's file can go without it's modification time being refreshed, in milliseconds.**/
+    private static final long TOUCH_INTERVAL = 60000;
+
+    /**The folder the blocks are stored in.**/
+    private final File folder;
+    /**The size of each block, in bytes.**/
+    private final int blockSize;
+    /**The limit on the total size of the cached blocks, in bytes.**/
+    private final long capacity;
+    /**Every cached block, keyed by it's file name and kept in least recently used order.**/
+    private final LinkedHashMap<String, Block> blocks;
+    /**Handles of recently read blocks, kept open so reading them again doesn't have to reopen their files, and in least recently used order.**/
+    private final LinkedHashMap<String, FileChannel> handles;
+    /**The total size of the cached blocks, in bytes.**/
+    private long size;
+
+    /**
+     * Creates a new block cache, picking up any blocks already in the folder.
+     * @param folder The folder to store blocks in, which is created if it doesn't exist.
+     * @param blockSize The size of each block, in bytes. It must be the same every time the folder is used.
+     * @param capacity The limit on the total size of the cached blocks, in bytes.
+     * @throws IOException If the folder couldn't be created or listed.
+    **/
+    BlockCache(File folder, int blockSize, long capacity) throws IOException
+    {
+        if((blockSize < 1) || (capacity < blockSize))
+        {
+            throw new IllegalArgumentException("Block caches need room for at least one block.");
+        }
+        this.folder = folder;
+        this.blockSize = blockSize;
+        this.capacity = capacity;
+        blocks = new LinkedHashMap<>(16, 0.75f, true);
+        handles = new LinkedHashMap<String, FileChannel>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest)
+            {
+                if(size() > MAX_OPEN_HANDLES)
+                {
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        size = 0;
+
+        if(!folder.mkdirs() && !folder.isDirectory())
+        {
+            throw new IOException("Failed to create cache folder " + folder);
+        }
+        File[] files = folder.listFiles();
+        if(files == null)
+        {
+            throw new IOException("Failed to list cache folder " + folder);
+        }
+        //Oldest first, so the most recently used blocks end up at the back of the LRU order.
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for(File file : files)
+        {
+            if(file.getName().endsWith(EXTENSION) && (file.length() <= blockSize))
+            {
+                blocks.put(file.getName(), new Block((int)file.length(), file.lastModified()));
+                size += file.length();
+            } else if(file.getName().endsWith(".tmp"))
+            {
+                //Left over from a block that was being written when the last run stopped.
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        ArrayList<String> evicted = new ArrayList<>();
+        evict(0, evicted);
+        delete(evicted);
+    }
+
+    /**
+     * Gets the size of the cache's blocks.
+     * @return The size of each block, in bytes.
+    **/
+    final int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Gets the limit on the total size of the cached blocks.
+     * @return The cache's capacity, in bytes.
+    **/
+    final long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Gets the total size of the cached blocks.
+     * @return The number of bytes cached.
+    **/
+    final synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the name of the file a block is stored in.
+     * @param key The key of the remote file the block is from.
+     * @param index The index of the block in the remote file.
+     * @return The block's file name.
+    **/
+    private static final String name(String key, long index)
+    {
+        return key + '-' + Long.toHexString(index) + EXTENSION;
+    }
+
+    /**
+     * Checks whether a block is cached, without counting as a use of it.
+     * @param key The key of the remote file the block is from.
+     * @param index The index of the block in the remote file.
+     * @return True if the block is cached.
+    **/
+    final synchronized boolean contains(String key, long index)
+    {
+        //containsKey doesn't change the access order.
+        return blocks.containsKey(name(key, index));
+    }
+
+    /**
+     * Reads a cached block. Only the cache's bookkeeping is done under it's lock, the block itself is read through a handle that's kept open for the next hit.
+     * @param key The key of the remote file the block is from.
+     * @param index The index of the block in the remote file.
+     * @param buffer The buffer to read the block into, which must be at least a block long.
+     * @return The length of the block, or -1 if it isn't cached.
+    **/
+    final int get(String key, long index, byte[] buffer)
+    {
+        String name = name(key, index);
+        Block entry;
+        FileChannel handle;
+        boolean touch;
+        long now = System.currentTimeMillis();
+        synchronized(this)
+        {
+            entry = blocks.get(name);
+            if(entry == null)
+            {
+                return -1;
+            }
+            //The file's modification time keeps the LRU order for the next time the cache is created, so it only needs refreshing now and then.
+            touch = (now - entry.touched >= TOUCH_INTERVAL);
+            if(touch)
+            {
+                entry.touched = now;
+            }
+            handle = handles.get(name);
+        }
+
+        File file = new File(folder, name);
+        try
+        {
+            if(handle == null)
+            {
+                handle = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                handle = keepOpen(name, entry, handle);
+            }
+            ByteBuffer destination = ByteBuffer.wrap(buffer, 0, entry.length);
+            while(destination.hasRemaining())
+            {
+                if(handle.read(destination, destination.position()) == -1)
+                {
+                    throw new EOFException("Block " + name + " is shorter than it should be.");
+                }
+            }
+        } catch(ClosedChannelException closedException)
+        {
+            //The handle was closed by an eviction while it was being read, so the block's gone or about to be.
+            return -1;
+        } catch(IOException ioException)
+        {
+            //Drop blocks that were deleted or damaged behind the cache's back, so they're fetched again.
+            synchronized(this)
+            {
+                if(blocks.get(name) == entry)
+                {
+                    blocks.remove(name);
+                    size -= entry.length;
+                    close(handles.remove(name));
+                }
+            }
+            return -1;
+        }
+        if(touch)
+        {
+            file.setLastModified(now);
+        }
+        return entry.length;
+    }
+
+    /**
+     * Keeps a block's handle open for later reads, unless another thread already opened one or the block has been replaced or evicted.
+     * @param name The name of the block's file.
+     * @param entry The block the handle was opened for.
+     * @param handle The newly opened handle.
+     * @return The handle to read the block with. If it's not the new handle, the new one has been closed.
+     * @throws IOException If the block was evicted, in which case the new handle has been closed.
+    **/
+    private final synchronized FileChannel keepOpen(String name, Block entry, FileChannel handle) throws IOException
+    {
+        if(blocks.get(name) != entry)
+        {
+            close(handle);
+            throw new ClosedChannelException();
+        }
+        FileChannel existing = handles.get(name);
+        if(existing != null)
+        {
+            close(handle);
+            return existing;
+        }
+        handles.put(name, handle);
+        return handle;
+    }
+
+    /**
+     * Stores a block, evicting the least recently used blocks to make room for it. The block is written and moved into place outside of the cache's lock, so other blocks can still be read meanwhile.
+     * @param key The key of the remote file the block is from.
+     * @param index The index of the block in the remote file.
+     * @param data The block's data.
+     * @param offset The offset of the block in the array.
+     * @param length The length of the block, which is only less than the block size at the end of the remote file.
+     * @throws IOException If the block couldn't be written.
+    **/
+    final void put(String key, long index, byte[] data, int offset, int length) throws IOException
+    {
+        String name = name(key, index);
+        File temporary = File.createTempFile("block", ".tmp", folder);
+        try
+        {
+            try(RandomAccessFile raf = new RandomAccessFile(temporary, "rw"))
+            {
+                raf.write(data, offset, length);
+            }
+            Files.move(temporary.toPath(), new File(folder, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally{
+            Files.deleteIfExists(temporary.toPath());
+        }
+
+        ArrayList<String> evicted = new ArrayList<>();
+        synchronized(this)
+        {
+            Block previous = blocks.remove(name);
+            if(previous != null)
+            {
+                size -= previous.length;
+                //The old handle still points at the replaced file.
+                close(handles.remove(name));
+            }
+            evict(length, evicted);
+            blocks.put(name, new Block(length, System.currentTimeMillis()));
+            size += length;
+        }
+        delete(evicted);
+    }
+
+    /**
+     * Evicts the least recently used blocks until there's room for another block. The caller must hold the cache's lock, and delete the evicted blocks' files once it's released it.
+     * @param needed The number of bytes that need to fit in the cache.
+     * @param evicted List that the names of the evicted blocks are added to.
+    **/
+    private final void evict(long needed, List<String> evicted)
+    {
+        Iterator<Map.Entry<String, Block>> iterator = blocks.entrySet().iterator();
+        while((size + needed > capacity) && iterator.hasNext())
+        {
+            Map.Entry<String, Block> eldest = iterator.next();
+            evicted.add(eldest.getKey());
+            close(handles.remove(eldest.getKey()));
+            size -= eldest.getValue().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Deletes the files of evicted blocks.
+     * @param evicted The names of the evicted blocks.
+     * @throws IOException If a block's file couldn't be deleted.
+    **/
+    private final void delete(List<String> evicted) throws IOException
+    {
+        for(String name : evicted)
+        {
+            Files.deleteIfExists(new File(folder, name).toPath());
+        }
+    }
+
+    /**
+     * Closes a block's handle, ignoring any failure since nothing was ever written through it.
+     * @param handle The handle to close, or null.
+    **/
+    private static final void close(FileChannel handle)
+    {
+        if(handle != null)
+        {
+            try
+            {
+                handle.close();
+            } catch(IOException ioException)
+            {
+                //Read-only handles have nothing to lose by failing to close.
+            }
+        }
+    }
+
+    /**
+     * Closes every open block handle. The cache can still be used afterwards, and reopens handles as blocks are read.
+    **/
+    final synchronized void close()
+    {
+        for(FileChannel handle : handles.values())
+        {
+            close(handle);
+        }
+        handles.clear();
+    }
+
+    /**
+     * Bookkeeping for a single cached block.
+    **/
+    private static final class Block
+    {
+        /**The length of the block, in bytes.**/
+        final int length;
+        /**The time the block's file was last marked as used, in milliseconds.**/
+        long touched;
+
+        /**
+         * Creates the bookkeeping for a cached block.
+         * @param length The length of the block, in bytes.
+         * @param touched The time the block's file was last marked as used, in milliseconds.
+        **/
+        Block(int length, long touched)
+        {
+            this.length = length;
+            this.touched = touched;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.insertcreativity.archive;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class for sharing off-heap buffers between bulk I/O, encryption and hashing jobs. Buffers are direct ByteBuffers, which can be read into and written from by channels without any copying,
+ * and are handed out in power-of-two size classes so they can be reused by any job that needs a buffer of about the same size.
+ * Every platform thread keeps a small cache of released buffers, so most acquires and releases never touch shared state (virtual threads are too short lived to be worth caching for, so they always use the shared free lists). The total memory held by the pool is capped, and once it's reached acquiring threads wait for a buffer to be released.
+ * Buffers that are garbage collected without being released are reported as leaks, and their memory is given back to the pool.
+**/
+final class BufferPool
+{
+    /**The default limit on the memory held by a pool, in bytes.**/
+    static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+    /**The pool shared by every bulk I/O path.**/
+    static final BufferPool SHARED = new BufferPool(DEFAULT_CAPACITY);
+    /**Log2 of the smallest size class.**/
+    private static final int MIN_CLASS = 12;
+    /**Log2 of the largest size class.**/
+    private static final int MAX_CLASS = 20;
+    /**The number of released buffers each thread keeps per size class.**/
+    private static final int THREAD_CACHE_SIZE = 2;
+    /**Cleaner that detects leaked buffers and dead threads' caches.**/
+    private static final Cleaner CLEANER = Cleaner.create();
+    /**Handle for Thread.isVirtual, or null if the platform doesn't have virtual threads.**/
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    /**The limit on the memory held by the pool, in bytes.**/
+    private final long capacity;
+    /**The memory currently held by the pool, whether it's lent out, cached, or free.**/
+    private final AtomicLong allocated;
+    /**The number of buffers that were garbage collected without being released.**/
+    private final AtomicLong leaked;
+    /**Shared free lists of released buffers, one per size class.**/
+    private final ConcurrentLinkedDeque<ByteBuffer>[] free;
+    /**Each thread's cache of released buffers.**/
+    private final ThreadLocal<ThreadCache> caches;
+    /**Every thread's cache, so buffers sitting in them can be reclaimed when the pool runs out of room. Caches are only weakly referenced, so dead threads' caches are still cleaned up.**/
+    private final Set<ThreadCache> threadCaches;
+    /**Lock guarding allocation, held while waiting for room. It's a lock rather than a monitor, so virtual threads waiting on it don't pin their carriers.**/
+    private final ReentrantLock lock;
+    /**Condition that threads wait on when the pool is at capacity, signalled whenever a buffer is given back.**/
+    private final Condition released;
+
+    /**
+     * Creates a new buffer pool.
+     * @param capacity The limit on the memory held by the pool, in bytes.
+    **/
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(long capacity)
+    {
+        this.capacity = capacity;
+        allocated = new AtomicLong();
+        leaked = new AtomicLong();
+        free = new ConcurrentLinkedDeque[MAX_CLASS - MIN_CLASS + 1];
+        for(int i = 0; i < free.length; i++)
+        {
+            free[i] = new ConcurrentLinkedDeque<>();
+        }
+        threadCaches = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ThreadCache, Boolean>()));
+        caches = new ThreadLocal<ThreadCache>()
+        {
+            protected ThreadCache initialValue()
+            {
+                ThreadCache cache = new ThreadCache();
+                threadCaches.add(cache);
+                return cache;
+            }
+        };
+        lock = new ReentrantLock();
+        released = lock.newCondition();
+    }
+
+    /**
+     * Looks up Thread.isVirtual. It's looked up reflectively so the pool still runs on platforms that don't have virtual threads.
+     * @return A handle taking a thread and returning whether it's virtual, or null if the platform doesn't have virtual threads.
+    **/
+    private static final MethodHandle findIsVirtual()
+    {
+        try
+        {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch(NoSuchMethodException|IllegalAccessException lookupException)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the calling thread's cache. Virtual threads are cheap and short lived, usually one per job, so caching buffers for them would just strand buffers in caches that are never used again.
+     * @return The calling thread's cache, or null if the thread is virtual and buffers should go straight to the shared free lists.
+    **/
+    private final ThreadCache getCache()
+    {
+        if(IS_VIRTUAL != null)
+        {
+            try
+            {
+                if((boolean)IS_VIRTUAL.invokeExact(Thread.currentThread()))
+                {
+                    return null;
+                }
+            } catch(Throwable throwable)
+            {
+                throw new IllegalStateException("Failed to check whether the thread is virtual.", throwable);
+            }
+        }
+        return caches.get();
+    }
+
+    /**
+     * Acquires a buffer with at least the requested capacity, waiting for one to be released if the pool is at capacity. The buffer is cleared, and it's limit is set to the requested size.
+     * @param size The number of bytes needed, at most 1MB.
+     * @return The acquired buffer, which must be released once it's no longer needed.
+     * @throws IllegalStateException If the thread was interrupted while waiting for a buffer.
+    **/
+    final Buffer acquire(int size)
+    {
+        if(size > (1 << MAX_CLASS))
+        {
+            throw new IllegalArgumentException("Buffers can't be larger than " + (1 << MAX_CLASS) + " bytes.");
+        }
+        int sizeClass = Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        int index = sizeClass - MIN_CLASS;
+
+        //Try the thread's own cache, then the shared free list, then allocate a new buffer if there's room.
+        ThreadCache cache = getCache();
+        ByteBuffer buffer = null;
+        if(cache != null)
+        {
+            //The cache is only contended when another thread is reclaiming it's buffers.
+            synchronized(cache)
+            {
+                buffer = cache.lists[index].pollFirst();
+            }
+        }
+        if(buffer == null)
+        {
+            buffer = take(index, 1 << sizeClass);
+        }
+        buffer.clear().limit(size);
+        return new Buffer(this, buffer, index);
+    }
+
+    /**
+     * Takes a buffer from the shared free list, or allocates a new one, waiting until one is released if the pool is at capacity.
+     * @param index The index of the buffer's size class.
+     * @param bytes The size of the buffer.
+     * @return The buffer.
+    **/
+    private final ByteBuffer take(int index, int bytes)
+    {
+        lock.lock();
+        try
+        {
+            while(true)
+            {
+                ByteBuffer buffer = free[index].pollFirst();
+                if(buffer != null)
+                {
+                    return buffer;
+                }
+                if(allocated.get() + bytes <= capacity)
+                {
+                    allocated.addAndGet(bytes);
+                    return ByteBuffer.allocateDirect(bytes);
+                }
+                //Drop free and cached buffers of other sizes to make room.
+                if(trim(bytes))
+                {
+                    continue;
+                }
+                try
+                {
+                    released.await();
+                } catch(InterruptedException interruptedException)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a buffer.", interruptedException);
+                }
+            }
+        } finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees shared buffers of any size until there's room to allocate a new buffer. If that isn't enough, the buffers cached by every thread are moved back to the shared free lists and freed too,
+     * so buffers idling in other threads' caches can't keep the pool at capacity. The caller must hold the pool's lock.
+     * @param bytes The size of the buffer that needs room.
+     * @return True if there's now room, or a buffer was reclaimed into the shared free lists.
+    **/
+    private final boolean trim(int bytes)
+    {
+        if(dropFree(bytes))
+        {
+            return true;
+        }
+        //Buffers idling in threads' caches count against the capacity too, so move them back to the shared free lists and try again.
+        if(!reclaimCaches())
+        {
+            return false;
+        }
+        dropFree(bytes);
+        return true;
+    }
+
+    /**
+     * Frees shared buffers of any size until there's room to allocate a new buffer.
+     * @param bytes The size of the buffer that needs room.
+     * @return True if there's now room.
+    **/
+    private final boolean dropFree(int bytes)
+    {
+        for(int i = free.length - 1; (i >= 0) && (allocated.get() + bytes > capacity); i--)
+        {
+            while((allocated.get() + bytes > capacity) && (free[i].pollFirst() != null))
+            {
+                //The dropped buffer's memory is reclaimed when it's garbage collected.
+                allocated.addAndGet(-(1L << (i + MIN_CLASS)));
+            }
+        }
+        return allocated.get() + bytes <= capacity;
+    }
+
+    /**
+     * Moves the buffers cached by every thread back to the shared free lists.
+     * @return True if any buffers were moved.
+    **/
+    private final boolean reclaimCaches()
+    {
+        ThreadCache[] registered;
+        synchronized(threadCaches)
+        {
+            registered = threadCaches.toArray(new ThreadCache[0]);
+        }
+        boolean reclaimed = false;
+        for(ThreadCache cache : registered)
+        {
+            synchronized(cache)
+            {
+                for(int i = 0; i < cache.lists.length; i++)
+                {
+                    ByteBuffer buffer;
+                    while((buffer = cache.lists[i].pollFirst()) != null)
+                    {
+                        free[i].addFirst(buffer);
+                        reclaimed = true;
+                    }
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Returns a buffer to the calling thread's cache, or to the shared free list if the cache is full or the thread is virtual.
+     * @param buffer The buffer being returned.
+     * @param index The index of the buffer's size class.
+    **/
+    private final void release(ByteBuffer buffer, int index)
+    {
+        ThreadCache cache = getCache();
+        if(cache != null)
+        {
+            synchronized(cache)
+            {
+                ArrayDeque<ByteBuffer> list = cache.lists[index];
+                if(list.size() < THREAD_CACHE_SIZE)
+                {
+                    list.addFirst(buffer);
+                    return;
+                }
+            }
+        }
+        give(buffer, index);
+    }
+
+    /**
+     * Returns a buffer to the shared free list, and wakes any threads waiting for one.
+     * @param buffer The buffer being returned.
+     * @param index The index of the buffer's size class.
+    **/
+    private final void give(ByteBuffer buffer, int index)
+    {
+        free[index].addFirst(buffer);
+        lock.lock();
+        try
+        {
+            released.signalAll();
+        } finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the memory currently held by the pool.
+     * @return The number of bytes allocated by the pool, whether they're lent out, cached, or free.
+    **/
+    final long getAllocated()
+    {
+        return allocated.get();
+    }
+
+    /**
+     * Gets the number of buffers that were garbage collected without being released.
+     * @return The number of leaked buffers.
+    **/
+    final long getLeaked()
+    {
+        return leaked.get();
+    }
+
+    /**
+     * A buffer lent out by a pool. Buffers must be released exactly once, after which they must not be used again; try-with-resources is the easiest way to guarantee it.
+    **/
+    static final class Buffer implements AutoCloseable
+    {
+        /**The underlying direct buffer.**/
+        private final ByteBuffer buffer;
+        /**Tracker that returns the buffer to it's pool, either when it's released or when it's found to have leaked.**/
+        private final Lease lease;
+        /**Handle for releasing the buffer through the cleaner.**/
+        private final Cleaner.Cleanable cleanable;
+
+        /**
+         * Lends out a buffer.
+         * @param pool The pool the buffer belongs to.
+         * @param buffer The underlying direct buffer.
+         * @param index The index of the buffer's size class.
+        **/
+        private Buffer(BufferPool pool, ByteBuffer buffer, int index)
+        {
+            this.buffer = buffer;
+            lease = new Lease(pool, buffer, index);
+            cleanable = CLEANER.register(this, lease);
+        }
+
+        /**
+         * Gets the underlying direct buffer.
+         * @return The buffer, which must not be used after it's released.
+        **/
+        final ByteBuffer get()
+        {
+            return buffer;
+        }
+
+        /**
+         * Releases the buffer back to it's pool. Releasing a buffer more than once does nothing.
+        **/
+        public final void close()
+        {
+            lease.closed = true;
+            cleanable.clean();
+        }
+    }
+
+    /**
+     * Action that returns a lent out buffer to it's pool. It doesn't reference the Buffer lending it out, so that the Buffer can be garbage collected if it's leaked.
+    **/
+    private static final class Lease implements Runnable
+    {
+        /**The pool the buffer belongs to.**/
+        private final BufferPool pool;
+        /**The underlying direct buffer.**/
+        private final ByteBuffer buffer;
+        /**The index of the buffer's size class.**/
+        private final int index;
+        /**Flag for whether the buffer was released properly, instead of being found by the cleaner.**/
+        volatile boolean closed;
+
+        /**
+         * Creates a new lease.
+         * @param pool The pool the buffer belongs to.
+         * @param buffer The underlying direct buffer.
+         * @param index The index of the buffer's size class.
+        **/
+        Lease(BufferPool pool, ByteBuffer buffer, int index)
+        {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.index = index;
+        }
+
+        /**
+         * Returns the buffer to the pool. Leaked buffers are found on the cleaner's thread, so they go straight to the shared free list.
+        **/
+        public void run()
+        {
+            if(closed)
+            {
+                pool.release(buffer, index);
+            } else{
+                pool.leaked.incrementAndGet();
+                System.err.println("BufferPool: a " + buffer.capacity() + " byte buffer was garbage collected without being released.");
+                pool.give(buffer, index);
+            }
+        }
+    }
+
+    /**
+     * A single thread's cache of released buffers. When the thread dies, the cached buffers are handed back to the shared free lists.
+    **/
+    private final class ThreadCache
+    {
+        /**The thread's released buffers, one list per size class.**/
+        final ArrayDeque<ByteBuffer>[] lists;
+
+        /**
+         * Creates a new thread cache.
+        **/
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ThreadCache()
+        {
+            lists = new ArrayDeque[free.length];
+            for(int i = 0; i < lists.length; i++)
+            {
+                lists[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            ArrayDeque<ByteBuffer>[] orphans = lists;
+            BufferPool pool = BufferPool.this;
+            CLEANER.register(this, () ->
+            {
+                for(int i = 0; i < orphans.length; i++)
+                {
+                    ByteBuffer buffer;
+                    while((buffer = orphans[i].pollFirst()) != null)
+                    {
+                        pool.give(buffer, i);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class for storing files as deduplicated chunks. File content is split into variable length chunks at content-defined boundaries (found with a rolling gear hash), so inserting or removing data only changes the chunks around the edit.
+ * Every chunk is identified by the SHA-256 hash of it's content, and is encrypted and stored only once no matter how many files (or how many places in a file) it appears in.
+ * Each file is recorded in the index as the list of it's chunks. Chunks are stored in a two level tree of folders named after the leading bytes of their hashes.
+ * The store is only used as a library for now, none of the archive's commands store files into it.
+**/
+final class ChunkStore
+{
+    /**The smallest chunk that will be cut, except at the end of a file.**/
+    static final int MIN_CHUNK_SIZE = 2048;
+    /**The largest chunk that will be cut.**/
+    static final int MAX_CHUNK_SIZE = 65536;
+    /**Mask applied to the rolling hash to find chunk boundaries, 13 bits gives an average chunk size of about 8KB.
+     * It selects the hash's highest bits, since each shift pushes older bytes towards the top: the lowest 13 bits only depend on the last 13 bytes, while the highest depend on the last 64.**/
+    private static final long BOUNDARY_MASK = -1L << (64 - 13);
+    /**The number of bytes each chunk takes up in a chunk list (32 for the hash, 4 for the length).**/
+    private static final int CHUNK_REFERENCE_LENGTH = 36;
+    /**The context chunks' key is derived with.**/
+    private static final byte[] KEY_CONTEXT = "chunks".getBytes(StandardCharsets.US_ASCII);
+    /**Table of random values the rolling hash mixes in for each byte value. It's generated from a fixed seed, since boundaries must be the same every run for chunks to be shared.**/
+    private static final long[] GEAR;
+
+    static
+    {
+        GEAR = new long[256];
+        Random random = new Random(0x41726368697665L);
+        for(int i = 0; i < GEAR.length; i++)
+        {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**The folder that chunks are stored in.**/
+    private final File directory;
+    /**The keyring chunks' keys are derived from.**/
+    private final Keyring keyring;
+    /**The index that files' chunk lists are recorded in.**/
+    private final IndexFileManager index;
+    /**Hashes of chunks that are known to already be stored.**/
+    private final Set<ByteBuffer> stored;
+
+    /**
+     * Creates a new chunk store.
+     * @param directory The folder that chunks are stored in.
+     * @param keyring The keyring chunks' keys are derived from.
+     * @param index The index that files' chunk lists are recorded in.
+    **/
+    ChunkStore(File directory, Keyring keyring, IndexFileManager index)
+    {
+        this.directory = directory;
+        this.keyring = keyring;
+        this.index = index;
+        stored = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Splits a file's content into chunks, stores any chunks that aren't already stored, and records the file's chunk list in the index.
+     * @param identifier The identifier of the file being stored, only the first 12 bytes are used.
+     * @param input Stream of the file's content, which is read until EOF but not closed.
+     * @return The number of bytes of new chunks that had to be stored.
+     * @throws IOException If the content couldn't be read, or a chunk couldn't be stored.
+    **/
+    final long store(byte[] identifier, InputStream input) throws IOException
+    {
+        byte[] buffer = new byte[MAX_CHUNK_SIZE * 2];
+        ByteBuffer chunkList = ByteBuffer.allocate(CHUNK_REFERENCE_LENGTH * 64);
+        long written = 0;
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+
+        while(true)
+        {
+            //Top up the buffer so there's always a whole maximum sized chunk available.
+            if(!eof && (end - start < MAX_CHUNK_SIZE))
+            {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                int count;
+                while((end < buffer.length) && ((count = input.read(buffer, end, buffer.length - end)) != -1))
+                {
+                    end += count;
+                }
+                eof = (end < buffer.length);
+            }
+            if(start == end)
+            {
+                break;
+            }
+
+            //Cut the next chunk, and store it.
+            int length = findBoundary(buffer, start, end - start);
+            byte[] hash = hashChunk(buffer, start, length);
+            written += storeChunk(hash, buffer, start, length);
+
+            //Append the chunk to the file's chunk list.
+            if(chunkList.remaining() < CHUNK_REFERENCE_LENGTH)
+            {
+                ByteBuffer grown = ByteBuffer.allocate(chunkList.capacity() * 2);
+                chunkList.flip();
+                grown.put(chunkList);
+                chunkList = grown;
+            }
+            chunkList.put(hash);
+            chunkList.putInt(length);
+            start += length;
+        }
+
+        index.putEntry(IndexFileManager.CHUNK_LIST, identifier, Arrays.copyOf(chunkList.array(), chunkList.position()));
+        return written;
+    }
+
+    /**
+     * Finds the end of the next chunk using the rolling gear hash. A boundary is placed where the hash's high bits are all 0, as long as the chunk is within the size limits.
+     * @param data The array containing the data to chunk.
+     * @param offset The offset the chunk starts at in the array.
+     * @param length The number of bytes available to chunk.
+     * @return The length of the chunk.
+    **/
+    private static final int findBoundary(byte[] data, int offset, int length)
+    {
+        if(length <= MIN_CHUNK_SIZE)
+        {
+            return length;
+        }
+        int limit = Math.min(length, MAX_CHUNK_SIZE);
+        long hash = 0;
+        for(int i = MIN_CHUNK_SIZE; i < limit; i++)
+        {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if((hash & BOUNDARY_MASK) == 0)
+            {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Computes the hash that identifies a chunk.
+     * @param data The array containing the chunk.
+     * @param offset The offset the chunk starts at in the array.
+     * @param length The length of the chunk.
+     * @return The SHA-256 hash of the chunk's content.
+    **/
+    private static final byte[] hashChunk(byte[] data, int offset, int length)
+    {
+        int engine = HashEnginePool.reserveEngine(true);
+        HashEnginePool.update(engine, data, offset, length);
+        return HashEnginePool.digest(engine);
+    }
+
+    /**
+     * Gets the file a chunk is stored in.
+     * @param hash The hash of the chunk.
+     * @return The chunk's file.
+    **/
+    private final File getChunkFile(byte[] hash)
+    {
+        StringBuilder name = new StringBuilder(hash.length * 2);
+        for(byte b : hash)
+        {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(new File(new File(directory, name.substring(0, 2)), name.substring(2, 4)), name.toString());
+    }
+
+    /**
+     * Encrypts and stores a chunk, unless it's already stored. Each chunk is encrypted with a vector derived from it's hash, and written to a temporary file that's then moved into place, so a chunk is never visible half-written.
+     * @param hash The hash of the chunk.
+     * @param data The array containing the chunk. Note that the chunk is encrypted in place if it needs to be stored.
+     * @param offset The offset the chunk starts at in the array.
+     * @param length The length of the chunk.
+     * @return The number of bytes that had to be stored, which is 0 if the chunk was already stored.
+     * @throws IOException If the chunk couldn't be stored.
+    **/
+    private final long storeChunk(byte[] hash, byte[] data, int offset, int length) throws IOException
+    {
+        ByteBuffer id = ByteBuffer.wrap(hash);
+        if(stored.contains(id))
+        {
+            return 0;
+        }
+        File chunkFile = getChunkFile(hash);
+        if(chunkFile.isFile())
+        {
+            stored.add(id);
+            return 0;
+        }
+
+        File folder = chunkFile.getParentFile();
+        if(!folder.mkdirs() && !folder.isDirectory())
+        {
+            throw new IOException("Failed to create chunk folder " + folder);
+        }
+        File temporary = File.createTempFile("chunk", ".tmp", folder);
+        try
+        {
+            LocalFile file = new LocalFile(temporary, "rw");
+            try
+            {
+                FileManager manager = new FileManager(file, keyring.getCipher(KEY_CONTEXT), Arrays.copyOf(hash, 16));
+                manager.writeBytes(data, offset, length);
+                manager.sync();
+            } finally{
+                file.close();
+            }
+            Files.move(temporary.toPath(), chunkFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(InvalidKeyException invalidKeyException)
+        {
+            throw new IOException("Invalid chunk key.", invalidKeyException);
+        } finally{
+            Files.deleteIfExists(temporary.toPath());
+        }
+
+        stored.add(id);
+        return length;
+    }
+
+    /**
+     * Reassembles a file from it's chunks, verifying each chunk against it's hash.
+     * @param identifier The identifier of the file to restore, only the first 12 bytes are used.
+     * @param output Stream the file's content is written into, which isn't closed.
+     * @return The number of bytes restored, or -1 if the file isn't in the store.
+     * @throws IOException If the file's chunk list is malformed, or a chunk couldn't be read or doesn't match it's hash.
+    **/
+    final long restore(byte[] identifier, OutputStream output) throws IOException
+    {
+        byte[] chunkList = index.getEntry(IndexFileManager.CHUNK_LIST, identifier);
+        if(chunkList == null)
+        {
+            return -1;
+        }
+        if(chunkList.length % CHUNK_REFERENCE_LENGTH != 0)
+        {
+            throw new IOException("Malformed chunk list.");
+        }
+
+        byte[] buffer = new byte[MAX_CHUNK_SIZE];
+        byte[] hash = new byte[32];
+        long total = 0;
+        for(int i = 0; i < chunkList.length; i += CHUNK_REFERENCE_LENGTH)
+        {
+            System.arraycopy(chunkList, i, hash, 0, 32);
+            int length = LogFileManager.getInt(chunkList, i + 32);
+            if((length < 0) || (length > MAX_CHUNK_SIZE))
+            {
+                throw new IOException("Invalid chunk length " + length);
+            }
+
+            LocalFile file = new LocalFile(getChunkFile(hash), "r");
+            try
+            {
+                FileManager manager = new FileManager(file, keyring.getCipher(KEY_CONTEXT), Arrays.copyOf(hash, 16));
+                if(manager.readBytes(buffer, 0, length) != length)
+                {
+                    throw new IOException("Failed to read in chunk completely.");
+                }
+            } catch(InvalidKeyException invalidKeyException)
+            {
+                throw new IOException("Invalid chunk key.", invalidKeyException);
+            } finally{
+                file.close();
+            }
+
+            if(!Arrays.equals(hash, hashChunk(buffer, 0, length)))
+            {
+                throw new IOException("Chunk doesn't match it's hash.");
+            }
+            output.write(buffer, 0, length);
+            total += length;
+        }
+        return total;
+    }
+}
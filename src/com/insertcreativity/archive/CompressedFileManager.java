@@ -0,0 +1,386 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.crypto.Cipher;
+
+/**
+ * Class for reading and writing compressed archive files. The plain text is split into fixed size frames which are each compressed independently before being encrypted, so any part of the file can be read by only decompressing the frames it's in.
+ * Compressed files have the following structure:
+ *      - The compressed frames, one after another
+ *      - The frame table, with 8 bytes for the position of each frame followed by 4 bytes for it's length. If a frame didn't shrink when compressed it's stored as is, and the highest bit of it's length is set.
+ *      - 28 byte trailer, containing 4 bytes for the frame size, 4 bytes for the number of frames, 8 bytes for the length of the plain text, 8 bytes for the position of the frame table, and the 4 magic bytes "ACZ1".
+**/
+final class CompressedFileManager extends FileManager
+{
+    /**The default number of plain text bytes in each frame.**/
+    static final int DEFAULT_FRAME_SIZE = 65536;
+    /**The number of bytes in the trailer.**/
+    private static final int TRAILER_LENGTH = 28;
+    /**The number of bytes each frame takes up in the frame table.**/
+    private static final int TABLE_ENTRY_LENGTH = 12;
+    /**Magic bytes marking the end of a compressed file.**/
+    private static final int MAGIC = 0x41435a31;
+    /**Flag set in a frame's length if it's stored uncompressed.**/
+    private static final int STORED = 0x80000000;
+
+    /**The number of plain text bytes in each frame, or 0 if the frame table hasn't been loaded yet.**/
+    private int frameSize;
+    /**The length of the plain text.**/
+    private long plainLength;
+    /**The position of each frame in the file.**/
+    private long[] framePositions;
+    /**The stored length of each frame, with the highest bit set if it's stored uncompressed.**/
+    private int[] frameLengths;
+    /**The index of the frame currently held in the frame buffer, or -1 if there isn't one.**/
+    private int cachedFrame;
+    /**Buffer holding the most recently decompressed frame.**/
+    private byte[] frameBuffer;
+    /**Buffer for reading compressed frames into.**/
+    private byte[] compressedBuffer;
+    /**Engine for decompressing frames.**/
+    private Inflater inflater;
+
+    /**
+     * Creates a new manager for interacting with compressed files.
+     * @param abstractFile Reference to the actual file.
+     * @param key The key used to encrypt the file.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+     * @throws InvalidKeyException If the provided key isn't valid
+    **/
+    CompressedFileManager(AbstractFile abstractFile, byte[] key, byte[] iv) throws InvalidKeyException
+    {
+        super(abstractFile, key, iv);
+        frameSize = 0;
+        cachedFrame = -1;
+    }
+
+    /**
+     * Creates a new manager for interacting with compressed files, using an already initialized encryption engine.
+     * @param abstractFile Reference to the actual file.
+     * @param engine An AES/ECB/NoPadding cipher initialized for encryption with the file's key (see Keyring). It must not be used by any other thread while this manager is in use.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+    **/
+    CompressedFileManager(AbstractFile abstractFile, Cipher engine, byte[] iv)
+    {
+        super(abstractFile, engine, iv);
+        frameSize = 0;
+        cachedFrame = -1;
+    }
+
+    /**
+     * Compresses and encrypts the content of a stream into the file, replacing anything already in it.
+     * @param input Stream of the plain text, which is read until EOF but not closed.
+     * @param size The number of plain text bytes in each frame.
+     * @param level The compression level to use, from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), or Deflater.DEFAULT_COMPRESSION (-1).
+     * @return The length of the plain text.
+     * @throws IOException If the stream couldn't be read, or the file couldn't be written.
+    **/
+    final long write(InputStream input, int size, int level) throws IOException
+    {
+        truncate(0);
+        seek(0);
+
+        byte[] plain = new byte[size];
+        byte[] compressed = new byte[size];
+        int[] lengths = new int[16];
+        long length = 0;
+        int frames = 0;
+
+        Deflater deflater = new Deflater(level, true);
+        try
+        {
+            int count;
+            while((count = readFully(input, plain)) > 0)
+            {
+                //Compress the frame on it's own.
+                deflater.reset();
+                deflater.setInput(plain, 0, count);
+                deflater.finish();
+                int compressedLength = 0;
+                while(!deflater.finished() && (compressedLength < compressed.length))
+                {
+                    compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+                }
+
+                //Store the frame as is if compressing it didn't shrink it.
+                if(!deflater.finished() || (compressedLength >= count))
+                {
+                    writeBytes(plain, 0, count);
+                    compressedLength = count | STORED;
+                } else{
+                    writeBytes(compressed, 0, compressedLength);
+                }
+
+                if(frames == lengths.length)
+                {
+                    int[] grown = new int[lengths.length * 2];
+                    System.arraycopy(lengths, 0, grown, 0, frames);
+                    lengths = grown;
+                }
+                lengths[frames++] = compressedLength;
+                length += count;
+            }
+        } finally{
+            deflater.end();
+        }
+
+        //Write the frame table and trailer.
+        long tablePosition = getPosition();
+        byte[] table = new byte[(frames * TABLE_ENTRY_LENGTH) + TRAILER_LENGTH];
+        long position = 0;
+        for(int i = 0; i < frames; i++)
+        {
+            LogFileManager.putLong(table, i * TABLE_ENTRY_LENGTH, position);
+            LogFileManager.putInt(table, (i * TABLE_ENTRY_LENGTH) + 8, lengths[i]);
+            position += lengths[i] & ~STORED;
+        }
+        int trailer = frames * TABLE_ENTRY_LENGTH;
+        LogFileManager.putInt(table, trailer, size);
+        LogFileManager.putInt(table, trailer + 4, frames);
+        LogFileManager.putLong(table, trailer + 8, length);
+        LogFileManager.putLong(table, trailer + 16, tablePosition);
+        LogFileManager.putInt(table, trailer + 24, MAGIC);
+        writeBytes(table);
+
+        frameSize = 0;
+        cachedFrame = -1;
+        return length;
+    }
+
+    /**
+     * Reads from a stream until the buffer is full or EOF is reached.
+     * @param input The stream to read from.
+     * @param buffer The buffer to read into.
+     * @return The number of bytes read, which is only less than the buffer's length at EOF.
+     * @throws IOException If the stream couldn't be read.
+    **/
+    private static final int readFully(InputStream input, byte[] buffer) throws IOException
+    {
+        int total = 0;
+        int count;
+        while((total < buffer.length) && ((count = input.read(buffer, total, buffer.length - total)) != -1))
+        {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Reads from the file at the current position until the requested number of bytes are read or EOF is reached, since a single read may legally return fewer bytes.
+     * @param buffer The buffer to read into.
+     * @param length The number of bytes to read into the start of the buffer.
+     * @return The number of bytes read, which is only less than the length at EOF.
+     * @throws IOException If the file couldn't be read.
+    **/
+    private final int readFully(byte[] buffer, int length) throws IOException
+    {
+        int total = 0;
+        int count;
+        while((total < length) && ((count = readBytes(buffer, total, length - total)) > 0))
+        {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Loads the frame table from the end of the file, if it hasn't been loaded already.
+     * @throws IOException If the file isn't a valid compressed file, or couldn't be read.
+    **/
+    private final void loadTable() throws IOException
+    {
+        if(frameSize != 0)
+        {
+            return;
+        }
+
+        long fileLength = length();
+        if(fileLength < TRAILER_LENGTH)
+        {
+            throw new IOException("File is too short to be a compressed file.");
+        }
+        byte[] trailer = new byte[TRAILER_LENGTH];
+        seek(fileLength - TRAILER_LENGTH);
+        if((readFully(trailer, TRAILER_LENGTH) != TRAILER_LENGTH) || (LogFileManager.getInt(trailer, 24) != MAGIC))
+        {
+            throw new IOException("File isn't a compressed file.");
+        }
+        int size = LogFileManager.getInt(trailer, 0);
+        int frames = LogFileManager.getInt(trailer, 4);
+        long tablePosition = LogFileManager.getLong(trailer, 16);
+        if((size <= 0) || (frames < 0) || (tablePosition + ((long)frames * TABLE_ENTRY_LENGTH) != fileLength - TRAILER_LENGTH))
+        {
+            throw new IOException("Compressed file's trailer is corrupt.");
+        }
+
+        byte[] table = new byte[frames * TABLE_ENTRY_LENGTH];
+        seek(tablePosition);
+        if(readFully(table, table.length) != table.length)
+        {
+            throw new IOException("Failed to read in frame table completely.");
+        }
+        framePositions = new long[frames];
+        frameLengths = new int[frames];
+        for(int i = 0; i < frames; i++)
+        {
+            framePositions[i] = LogFileManager.getLong(table, i * TABLE_ENTRY_LENGTH);
+            frameLengths[i] = LogFileManager.getInt(table, (i * TABLE_ENTRY_LENGTH) + 8);
+        }
+
+        plainLength = LogFileManager.getLong(trailer, 8);
+        frameBuffer = new byte[size];
+        compressedBuffer = new byte[size];
+        if(inflater == null)
+        {
+            inflater = new Inflater(true);
+        }
+        cachedFrame = -1;
+        frameSize = size;
+    }
+
+    /**
+     * Gets the length of the file's plain text.
+     * @return The number of bytes of plain text stored in the file.
+     * @throws IOException If the file isn't a valid compressed file, or couldn't be read.
+    **/
+    final long plainLength() throws IOException
+    {
+        loadTable();
+        return plainLength;
+    }
+
+    /**
+     * Reads plain text from any position in the file, only decompressing the frames that are needed.
+     * @param position The position in the plain text to start reading from.
+     * @param buffer The buffer to read the plain text into.
+     * @param offset The offset to start storing bytes in the buffer at.
+     * @param length The number of bytes to read.
+     * @return The number of bytes read, or -1 if the position is at or past the end of the plain text.
+     * @throws IOException If the file isn't a valid compressed file, or couldn't be read.
+    **/
+    final int read(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        loadTable();
+        if(position >= plainLength)
+        {
+            return -1;
+        }
+
+        int total = 0;
+        while((total < length) && (position < plainLength))
+        {
+            int frame = (int)(position / frameSize);
+            int frameLength = loadFrame(frame);
+            int start = (int)(position - ((long)frame * frameSize));
+            int count = Math.min(length - total, frameLength - start);
+            System.arraycopy(frameBuffer, start, buffer, offset + total, count);
+            total += count;
+            position += count;
+        }
+        return total;
+    }
+
+    /**
+     * Reads plain text from any position in the file into a buffer, only decompressing the frames that are needed. Bytes are stored from the buffer's position up to it's limit, and the buffer's position is advanced past them.
+     * @param position The position in the plain text to start reading from.
+     * @param buffer The buffer to read the plain text into.
+     * @return The number of bytes read, or -1 if the position is at or past the end of the plain text.
+     * @throws IOException If the file isn't a valid compressed file, or couldn't be read.
+    **/
+    final int read(long position, ByteBuffer buffer) throws IOException
+    {
+        loadTable();
+        if(position >= plainLength)
+        {
+            return -1;
+        }
+
+        int total = 0;
+        while(buffer.hasRemaining() && (position < plainLength))
+        {
+            int frame = (int)(position / frameSize);
+            int frameLength = loadFrame(frame);
+            int start = (int)(position - ((long)frame * frameSize));
+            int count = Math.min(buffer.remaining(), frameLength - start);
+            buffer.put(frameBuffer, start, count);
+            total += count;
+            position += count;
+        }
+        return total;
+    }
+
+    /**
+     * Decompresses a frame into the frame buffer, unless it's already there.
+     * @param frame The index of the frame to load.
+     * @return The number of plain text bytes in the frame.
+     * @throws IOException If the frame couldn't be read or decompressed.
+    **/
+    private final int loadFrame(int frame) throws IOException
+    {
+        int plainFrameLength = (int)Math.min(frameSize, plainLength - ((long)frame * frameSize));
+        if(cachedFrame == frame)
+        {
+            return plainFrameLength;
+        }
+
+        int storedLength = frameLengths[frame] & ~STORED;
+        seek(framePositions[frame]);
+        if((frameLengths[frame] & STORED) != 0)
+        {
+            if(readFully(frameBuffer, storedLength) != storedLength)
+            {
+                throw new IOException("Failed to read in frame completely.");
+            }
+        } else{
+            if(readFully(compressedBuffer, storedLength) != storedLength)
+            {
+                throw new IOException("Failed to read in frame completely.");
+            }
+            try
+            {
+                inflater.reset();
+                inflater.setInput(compressedBuffer, 0, storedLength);
+                int count = 0;
+                while((count < plainFrameLength) && !inflater.finished())
+                {
+                    int inflated = inflater.inflate(frameBuffer, count, plainFrameLength - count);
+                    if((inflated == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                    {
+                        break;
+                    }
+                    count += inflated;
+                }
+                if(count != plainFrameLength)
+                {
+                    throw new IOException("Frame decompressed to the wrong length.");
+                }
+            } catch(DataFormatException dataFormatException)
+            {
+                throw new IOException("Frame is corrupt.", dataFormatException);
+            }
+        }
+
+        cachedFrame = frame;
+        return plainFrameLength;
+    }
+
+    /**
+     * Releases the manager's decompression engine.
+    **/
+    final void close()
+    {
+        if(inflater != null)
+        {
+            inflater.end();
+            inflater = null;
+        }
+        frameSize = 0;
+        cachedFrame = -1;
+    }
+}
@@ -0,0 +1,512 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+
+/**
+ * Class for updating encrypted files in place when their source changes. Since the content is encrypted in CTR mode, any 16 byte block can be re-encrypted on it's own, so only the parts of a file that actually changed need to be rewritten.
+ * Files are compared in fixed size blocks. The SHA-256 hash of each block is recorded in the index, so unchanged blocks are recognized from the source alone, and only changed blocks are read back from the encrypted file,
+ * to narrow the change down to the 16 byte units that differ. Files with no recorded hashes are compared block by block against their decrypted content instead.
+ * A file's block hashes are invalidated in the index before any of it is written, so a patch that's interrupted part way through is never mistaken for a finished one, and they're overwritten in place once the patch is done.
+ * If a hash file is given, the hashes of each file's whole plain and cipher text are updated in it too. They're computed from the source as it's read, by encrypting every block in memory, so unchanged blocks are never read back from the encrypted file.
+ * Files can either be managed by a FileManager, or be tree archive files encrypted with a standard AES/CTR cipher (see Main.encryptContent), whose counter is re-derived from the file's IV for each write.
+**/
+final class ContentPatcher
+{
+    /**The size of the blocks files are compared in. This must be a multiple of the cipher's 16 byte block size.**/
+    static final int BLOCK_SIZE = 65536;
+    /**The size of the cipher blocks that changes are rewritten in.**/
+    private static final int UNIT_SIZE = 16;
+    /**The length of each block's hash.**/
+    private static final int HASH_LENGTH = 32;
+
+    /**The index that block hashes are recorded in, or null if they aren't recorded.**/
+    private final IndexFileManager index;
+    /**The hash file that the hashes of each patched file's plain and cipher text are updated in, or null if they aren't recorded.**/
+    private final HashFileManager hashFile;
+    /**The block hashes of every file that has them, keyed by the file's identifier.**/
+    private final Map<ByteBuffer, byte[]> hashes;
+
+    /**
+     * Creates a new patcher.
+     * @param index The index to record block hashes in, or null to always compare files against their decrypted content.
+     * @throws IOException If the block hashes couldn't be loaded from the index.
+    **/
+    ContentPatcher(IndexFileManager index) throws IOException
+    {
+        this(index, null);
+    }
+
+    /**
+     * Creates a new patcher that keeps the hashes in a hash file up to date.
+     * @param index The index to record block hashes in, or null to always compare files against their decrypted content.
+     * @param hashFile The hash file to update each patched file's hashes in, or null to leave them as they are.
+     * @throws IOException If the block hashes couldn't be loaded from the index.
+    **/
+    ContentPatcher(IndexFileManager index, HashFileManager hashFile) throws IOException
+    {
+        this.index = index;
+        this.hashFile = hashFile;
+        hashes = new ConcurrentHashMap<>();
+        if(index != null)
+        {
+            hashes.putAll(index.getEntries(IndexFileManager.BLOCK_HASHES));
+        }
+    }
+
+    /**
+     * Derives an identifier for a file from it's path.
+     * @param path The path to identify the file by, which must stay the same between patches.
+     * @param hasher The hash engine to use, this must be SHA-256 and not in use by any other thread.
+     * @return The file's 12 byte identifier.
+    **/
+    static final byte[] identify(String path, MessageDigest hasher)
+    {
+        return Arrays.copyOf(hasher.digest(path.getBytes(StandardCharsets.UTF_8)), 12);
+    }
+
+    /**
+     * Updates an encrypted file so it's content matches it's source. Only the 16 byte units that changed are re-encrypted and written, data appended to the source is encrypted onto the end of the file,
+     * and the file is truncated if the source got shorter. The file's block hashes are recorded in the index afterwards, and it's plain and cipher text hashes in the hash file.
+     * @param source The source file to read the new content from.
+     * @param archived The manager for the encrypted file to update, positioned anywhere.
+     * @param identifier The identifier the file's hashes are recorded under, only the first 12 bytes are used. Ignored if the patcher has no index or hash file.
+     * @param hasher The hash engine to hash blocks with, this must be SHA-256 and not in use by any other thread.
+     * @return The number of bytes that were written into the encrypted file.
+     * @throws IOException If either file couldn't be read, or the encrypted file couldn't be written.
+    **/
+    final long patch(File source, FileManager archived, byte[] identifier, MessageDigest hasher) throws IOException
+    {
+        return patch(source, new ManagerTarget(archived), identifier, hasher);
+    }
+
+    /**
+     * Updates a tree archive file so it's content matches it's source (see patch(File, FileManager, byte[], MessageDigest)).
+     * @param source The source file to read the new content from.
+     * @param archived The encrypted file to update.
+     * @param cipher The cipher to encrypt with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key the file is encrypted with.
+     * @param iv The initialization vector the file is encrypted with.
+     * @param identifier The identifier the file's hashes are recorded under, only the first 12 bytes are used. Ignored if the patcher has no index or hash file.
+     * @param hasher The hash engine to hash blocks with, this must be SHA-256 and not in use by any other thread.
+     * @return The number of bytes that were written into the encrypted file.
+     * @throws IOException If either file couldn't be read, or the encrypted file couldn't be written.
+    **/
+    final long patch(File source, File archived, Cipher cipher, Key key, byte[] iv, byte[] identifier, MessageDigest hasher) throws IOException
+    {
+        try(CipherTarget target = new CipherTarget(archived, cipher, key, iv))
+        {
+            return patch(source, target, identifier, hasher);
+        }
+    }
+
+    /**
+     * Updates an encrypted file so it's content matches it's source.
+     * @param source The source file to read the new content from.
+     * @param archived The encrypted file to update.
+     * @param identifier The identifier the file's hashes are recorded under. Ignored if the patcher has no index or hash file.
+     * @param hasher The hash engine to hash blocks with.
+     * @return The number of bytes that were written into the encrypted file.
+     * @throws IOException If either file couldn't be read, or the encrypted file couldn't be written.
+    **/
+    private final long patch(File source, Target archived, byte[] identifier, MessageDigest hasher) throws IOException
+    {
+        long oldLength = archived.length();
+        ByteBuffer key = ByteBuffer.wrap(Arrays.copyOf(identifier, 12));
+        byte[] recorded = ((index == null)? null : hashes.get(key));
+        byte[] stored = recorded;
+        //Hashes that don't cover the whole file are out of date, and can't be trusted.
+        if((stored != null) && ((stored.length < 4) || (LogFileManager.getInt(stored, 0) != BLOCK_SIZE) || ((stored.length - 4) / HASH_LENGTH != (oldLength + BLOCK_SIZE - 1) / BLOCK_SIZE)))
+        {
+            stored = null;
+        }
+
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] old = new byte[BLOCK_SIZE];
+        byte[] encrypted = ((hashFile == null)? null : new byte[BLOCK_SIZE]);
+        //The new hashes are preceded by the block size they were computed with.
+        byte[] blockHashes = new byte[4 + (int)((source.length() / BLOCK_SIZE) + 1) * HASH_LENGTH];
+        LogFileManager.putInt(blockHashes, 0, BLOCK_SIZE);
+        int hashesLength = 4;
+        long written = 0;
+        long length = 0;
+        //The recorded block hashes only need invalidating if there are any, and only before the first write.
+        boolean invalidated = (recorded == null);
+        MessageDigest plainHasher = null;
+        MessageDigest cipherHasher = null;
+        if(hashFile != null)
+        {
+            try
+            {
+                plainHasher = MessageDigest.getInstance("SHA-256");
+                cipherHasher = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException noSuchAlgorithmException)
+            {
+                throw new IllegalStateException("256bit SHA not supported on this platform", noSuchAlgorithmException);
+            }
+        }
+
+        try(FileChannel input = FileChannel.open(source.toPath(), StandardOpenOption.READ))
+        {
+            for(int blockIndex = 0; ; blockIndex++)
+            {
+                int count = readFully(input, block);
+                if(count == 0)
+                {
+                    break;
+                }
+                long position = length;
+                length += count;
+                hasher.update(block, 0, count);
+                byte[] digest = hasher.digest();
+                if(hashesLength + HASH_LENGTH > blockHashes.length)
+                {
+                    //The source grew since it's length was read.
+                    blockHashes = Arrays.copyOf(blockHashes, blockHashes.length * 2);
+                }
+                System.arraycopy(digest, 0, blockHashes, hashesLength, HASH_LENGTH);
+                hashesLength += HASH_LENGTH;
+                if(hashFile != null)
+                {
+                    //The cipher text is what the block encrypts to, whether or not it's written.
+                    plainHasher.update(block, 0, count);
+                    System.arraycopy(block, 0, encrypted, 0, count);
+                    archived.encrypt(position, encrypted, 0, count);
+                    cipherHasher.update(encrypted, 0, count);
+                }
+
+                //Blocks whose hash and length match the recorded ones haven't changed.
+                int oldCount = (int)Math.max(0, Math.min(BLOCK_SIZE, oldLength - position));
+                if((stored != null) && (oldCount == count) && Arrays.equals(stored, 4 + (blockIndex * HASH_LENGTH), 4 + ((blockIndex + 1) * HASH_LENGTH), digest, 0, HASH_LENGTH))
+                {
+                    continue;
+                }
+
+                if(!invalidated)
+                {
+                    invalidate(key, recorded);
+                    invalidated = true;
+                }
+                //Read the block's current content back, so only the units that differ are written.
+                int oldRead = ((oldCount > 0)? archived.read(position, old, oldCount) : 0);
+                written += writeChanges(archived, position, block, count, old, oldRead);
+            }
+
+            //Cut off anything past the end of the source.
+            if(oldLength > length)
+            {
+                if(!invalidated)
+                {
+                    invalidate(key, recorded);
+                    invalidated = true;
+                }
+                archived.truncate(length);
+            }
+
+            if(index != null)
+            {
+                byte[] payload = Arrays.copyOf(blockHashes, hashesLength);
+                if(!Arrays.equals(payload, hashes.get(key)))
+                {
+                    //The entry is overwritten in place whenever the file's block count didn't change, so patching doesn't grow the index.
+                    if(!index.replaceEntry(IndexFileManager.BLOCK_HASHES, identifier, payload))
+                    {
+                        index.putEntry(IndexFileManager.BLOCK_HASHES, identifier, payload);
+                    }
+                    hashes.put(key, payload);
+                }
+            }
+
+            if(hashFile != null)
+            {
+                //The hash file stores the leading 16 bytes of each digest.
+                byte[][] fileHashes = {Arrays.copyOf(plainHasher.digest(), 16), Arrays.copyOf(cipherHasher.digest(), 16)};
+                byte[][] current = hashFile.getHash(key.array());
+                if((current == null) || !Arrays.equals(current[0], fileHashes[0]) || !Arrays.equals(current[1], fileHashes[1]))
+                {
+                    hashFile.updateHash(key.array(), fileHashes);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Invalidates a file's recorded block hashes before it's written to, so if the patch is interrupted the file is compared against it's decrypted content next time, instead of trusting hashes of blocks that were never written.
+     * The entry's block size is zeroed in place, which no patch will accept, and the index is synced so the invalidation is durable before any of the file changes.
+     * @param key The file's identifier.
+     * @param recorded The file's recorded block hashes.
+     * @throws IOException If the index couldn't be written.
+    **/
+    private final void invalidate(ByteBuffer key, byte[] recorded) throws IOException
+    {
+        byte[] invalid = recorded.clone();
+        Arrays.fill(invalid, 0, Math.min(4, invalid.length), (byte)0);
+        if(!index.replaceEntry(IndexFileManager.BLOCK_HASHES, key.array(), invalid))
+        {
+            index.removeEntry(IndexFileManager.BLOCK_HASHES, key.array());
+        }
+        synchronized(index)
+        {
+            index.sync();
+        }
+        hashes.put(key, invalid);
+    }
+
+    /**
+     * Writes the 16 byte units of a block that differ from it's old content, merging consecutive changed units into a single write.
+     * @param archived The encrypted file.
+     * @param position The position of the block in the file.
+     * @param block The new content of the block. Changed units are encrypted in place.
+     * @param count The number of bytes in the new block.
+     * @param old The decrypted old content of the block.
+     * @param oldCount The number of bytes in the old block, anything past this is always written.
+     * @return The number of bytes written.
+     * @throws IOException If the file couldn't be written.
+    **/
+    private static final long writeChanges(Target archived, long position, byte[] block, int count, byte[] old, int oldCount) throws IOException
+    {
+        long written = 0;
+        int start = -1;
+        for(int unit = 0; unit <= count; unit += UNIT_SIZE)
+        {
+            int end = Math.min(unit + UNIT_SIZE, count);
+            boolean changed = (unit < count) && ((end > oldCount) || !Arrays.equals(block, unit, end, old, unit, end));
+            if(changed && (start < 0))
+            {
+                start = unit;
+            } else if(!changed && (start >= 0))
+            {
+                written += archived.write(position + start, block, start, unit - start);
+                start = -1;
+            }
+        }
+        if(start >= 0)
+        {
+            written += archived.write(position + start, block, start, count - start);
+        }
+        return written;
+    }
+
+    /**
+     * Reads from a channel until an array is full or EOF is reached.
+     * @param input The channel to read from.
+     * @param buffer The array to fill.
+     * @return The number of bytes read, which is only less than the array's length at EOF.
+     * @throws IOException If the channel couldn't be read.
+    **/
+    private static final int readFully(FileChannel input, byte[] buffer) throws IOException
+    {
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        while(wrapped.hasRemaining() && (input.read(wrapped) >= 0));
+        return wrapped.position();
+    }
+
+    /**
+     * An encrypted file that's being patched. Reads and writes always start on a 16 byte boundary.
+    **/
+    private abstract static class Target
+    {
+        /**
+         * Gets the length of the encrypted file.
+         * @return The length of the file, in bytes.
+         * @throws IOException If the file's length couldn't be read.
+        **/
+        abstract long length() throws IOException;
+
+        /**
+         * Reads and decrypts part of the file.
+         * @param position The position to start reading at.
+         * @param buffer The array to read into, starting at index 0.
+         * @param length The number of bytes to read.
+         * @return The number of bytes read, which is only less than the length if EOF was reached.
+         * @throws IOException If the file couldn't be read.
+        **/
+        abstract int read(long position, byte[] buffer, int length) throws IOException;
+
+        /**
+         * Encrypts and writes part of the file.
+         * @param position The position to start writing at.
+         * @param data The array to write from. The data is encrypted in place.
+         * @param offset The index to start writing from in the array.
+         * @param length The number of bytes to write.
+         * @return The number of bytes written.
+         * @throws IOException If the file couldn't be written.
+        **/
+        abstract int write(long position, byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * Encrypts data in place as it would be written at a position in the file, without writing it.
+         * @param position The position the data would be written at.
+         * @param data The array holding the data.
+         * @param offset The index the data starts at in the array.
+         * @param length The number of bytes to encrypt.
+         * @throws IOException If the data couldn't be encrypted.
+        **/
+        abstract void encrypt(long position, byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * Truncates the file.
+         * @param length The new length of the file.
+         * @throws IOException If the file couldn't be truncated.
+        **/
+        abstract void truncate(long length) throws IOException;
+    }
+
+    /**
+     * An encrypted file that's managed by a FileManager.
+    **/
+    private static final class ManagerTarget extends Target
+    {
+        /**The manager for the file.**/
+        private final FileManager manager;
+
+        /**
+         * Creates a new target for a managed file.
+         * @param manager The manager for the file.
+        **/
+        ManagerTarget(FileManager manager)
+        {
+            this.manager = manager;
+        }
+
+        long length() throws IOException
+        {
+            return manager.length();
+        }
+
+        int read(long position, byte[] buffer, int length) throws IOException
+        {
+            manager.seek(position);
+            int count = 0;
+            while(count < length)
+            {
+                int read = manager.readBytes(buffer, count, length - count);
+                if(read <= 0)
+                {
+                    break;
+                }
+                count += read;
+            }
+            return count;
+        }
+
+        int write(long position, byte[] data, int offset, int length) throws IOException
+        {
+            manager.seek(position);
+            return manager.writeBytes(data, offset, length);
+        }
+
+        void encrypt(long position, byte[] data, int offset, int length)
+        {
+            manager.processAt(position, data, offset, length);
+        }
+
+        void truncate(long length) throws IOException
+        {
+            manager.truncate(length);
+        }
+    }
+
+    /**
+     * A tree archive file encrypted with a standard AES/CTR cipher. The cipher's counter is big-endian and starts at the file's IV, so the counter for any block is the IV plus the block's number.
+    **/
+    private static final class CipherTarget extends Target implements AutoCloseable
+    {
+        /**Channel for reading and writing the file.**/
+        private final FileChannel channel;
+        /**The cipher to encrypt and decrypt with.**/
+        private final Cipher cipher;
+        /**The key the file is encrypted with.**/
+        private final Key key;
+        /**The initialization vector the file is encrypted with.**/
+        private final byte[] iv;
+
+        /**
+         * Creates a new target for a tree archive file.
+         * @param file The encrypted file.
+         * @param cipher The cipher to encrypt with, this must be AES/CTR/NoPadding.
+         * @param key The key the file is encrypted with.
+         * @param iv The initialization vector the file is encrypted with.
+         * @throws IOException If the file couldn't be opened.
+        **/
+        CipherTarget(File file, Cipher cipher, Key key, byte[] iv) throws IOException
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.cipher = cipher;
+            this.key = key;
+            this.iv = iv;
+        }
+
+        /**
+         * Encrypts or decrypts data in place, starting at a position in the file.
+         * @param position The position of the data in the file, which must be a multiple of 16.
+         * @param data The array holding the data.
+         * @param offset The index the data starts at in the array.
+         * @param length The number of bytes to process.
+         * @throws IOException If the cipher couldn't be initialized.
+        **/
+        private void process(long position, byte[] data, int offset, int length) throws IOException
+        {
+            try
+            {
+                Main.processAt(cipher, key, iv, position, data, offset, length);
+            } catch(GeneralSecurityException cipherException)
+            {
+                throw new IOException("Failed to initialize the cipher.", cipherException);
+            }
+        }
+
+        long length() throws IOException
+        {
+            return channel.size();
+        }
+
+        int read(long position, byte[] buffer, int length) throws IOException
+        {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+            while(wrapped.hasRemaining() && (channel.read(wrapped, position + wrapped.position()) >= 0));
+            int count = wrapped.position();
+            process(position, buffer, 0, count);
+            return count;
+        }
+
+        int write(long position, byte[] data, int offset, int length) throws IOException
+        {
+            process(position, data, offset, length);
+            ByteBuffer wrapped = ByteBuffer.wrap(data, offset, length);
+            while(wrapped.hasRemaining())
+            {
+                channel.write(wrapped, position + (wrapped.position() - offset));
+            }
+            return length;
+        }
+
+        void encrypt(long position, byte[] data, int offset, int length) throws IOException
+        {
+            process(position, data, offset, length);
+        }
+
+        void truncate(long length) throws IOException
+        {
+            channel.truncate(length);
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
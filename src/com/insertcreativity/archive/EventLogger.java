@@ -0,0 +1,277 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class for keeping an audit trail of archive operations without stalling the threads that perform them. Events are serialized straight into a pre-allocated ring buffer without any locking or allocation,
+ * and a single consumer thread drains them in batches and appends each batch into the write-ahead log as one encrypted record.
+ * Closing the logger seals the ring buffer once every claimed slot has been drained, so events are either appended into the log or rejected, and never left behind in the buffer.
+ * Each event is serialized with the following structure:
+ *      - 1 byte for the type of the event
+ *      - 8 bytes for the time the event occurred at (in milliseconds since the epoch)
+ *      - 12 bytes containing the identifier of the archive file the event concerns
+ *      - 8 bytes for an event specific argument (such as the number of bytes processed)
+**/
+final class EventLogger
+{
+    /**Event type for a file being encrypted into the archive.**/
+    static final byte ENCRYPT = 1;
+    /**Event type for a file being decrypted out of the archive.**/
+    static final byte DECRYPT = 2;
+    /**Event type for a file being verified against it's stored hashes.**/
+    static final byte VERIFY = 3;
+    /**Event type for a file's metadata being changed.**/
+    static final byte METADATA = 4;
+    /**Event type for a file failing verification against it's stored hashes.**/
+    static final byte CORRUPT = 5;
+    /**Event type for a file that couldn't be opened or read while verifying it against it's stored hashes.**/
+    static final byte UNREADABLE = 6;
+    /**The number of bytes in a serialized event.**/
+    static final int EVENT_LENGTH = 29;
+    /**Offset added to the claimed sequence number once the ring buffer is sealed, any sequence number at or past it was claimed after the consumer stopped.**/
+    private static final long SEALED = 1L << 62;
+
+    /**
+     * Policies for what producers should do when the ring buffer is full.
+    **/
+    enum OverflowPolicy
+    {
+        /**Discard the event and return immediately.**/
+        DROP,
+        /**Wait for the consumer to free up space in the buffer.**/
+        BLOCK
+    }
+
+    /**The log that batches of events are appended into.**/
+    private final LogFileManager log;
+    /**What producers do when the ring buffer is full.**/
+    private final OverflowPolicy policy;
+    /**Mask for converting sequence numbers into slot indexes, the capacity of the ring buffer minus 1.**/
+    private final int mask;
+    /**The serialized event stored in each slot, EVENT_LENGTH bytes per slot.**/
+    private final byte[] slots;
+    /**The sequence number of the event last published into each slot, or -1 if the slot has never been used.**/
+    private final AtomicLongArray published;
+    /**The sequence number that will be claimed by the next producer, plus SEALED once the consumer has stopped.**/
+    private final AtomicLong claimed;
+    /**The number of events that were dropped because the buffer was full.**/
+    private final AtomicLong dropped;
+    /**Buffer the consumer copies batches of events into.**/
+    private final byte[] batch;
+    /**The longest time (in nanoseconds) the consumer waits for more events before checking again.**/
+    private final long flushDelay;
+    /**Thread that drains events from the buffer and appends them into the log.**/
+    private final Thread consumer;
+    /**The sequence number of the next event the consumer will drain, every slot before it is free.**/
+    private volatile long consumed;
+    /**Flag for whether the consumer is parked waiting for events.**/
+    private volatile boolean consumerWaiting;
+    /**Flag for whether the logger is still accepting events.**/
+    private volatile boolean running;
+    /**The first exception thrown while appending events into the log, or null if none have occurred.**/
+    private volatile IOException failure;
+
+    /**
+     * Creates a new event logger and starts it's consumer thread.
+     * @param logFile The log that batches of events are appended into.
+     * @param capacity The number of events the ring buffer can hold, rounded up to a power of 2.
+     * @param batchSize The largest number of events appended into the log as a single record.
+     * @param overflowPolicy What producers do when the ring buffer is full.
+     * @param flushDelay The longest time (in milliseconds) the consumer waits for more events before checking again.
+    **/
+    EventLogger(LogFileManager logFile, int capacity, int batchSize, OverflowPolicy overflowPolicy, long flushDelay)
+    {
+        if((capacity < 1) || (capacity > (1 << 30)))
+        {
+            throw new IllegalArgumentException("The ring buffer's capacity must be between 1 and 2^30 events.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+        {
+            size <<= 1;
+        }
+
+        log = logFile;
+        policy = overflowPolicy;
+        mask = size - 1;
+        slots = new byte[size * EVENT_LENGTH];
+        published = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++)
+        {
+            published.set(i, -1);
+        }
+        claimed = new AtomicLong(0);
+        dropped = new AtomicLong(0);
+        batch = new byte[Math.max(1, batchSize) * EVENT_LENGTH];
+        this.flushDelay = Math.max(1, flushDelay) * 1000000;
+        consumed = 0;
+        consumerWaiting = false;
+        running = true;
+
+        consumer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                runConsumer();
+            }
+        }, "archive-event-logger");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Records an event. This never locks or allocates, and only blocks if the buffer is full and the overflow policy is to block.
+     * Events recorded while the logger is being closed are either appended into the log before close returns, or rejected.
+     * @param type The type of the event.
+     * @param identifier The identifier of the archive file the event concerns, only the first 12 bytes are used.
+     * @param argument An event specific argument.
+     * @return True if the event was recorded, false if it was dropped.
+    **/
+    final boolean log(byte type, byte[] identifier, long argument)
+    {
+        if(!running)
+        {
+            return false;
+        }
+
+        //Claim a slot in the buffer.
+        long sequence;
+        if(policy == OverflowPolicy.DROP)
+        {
+            do
+            {
+                sequence = claimed.get();
+                if(sequence >= SEALED)
+                {
+                    return false;
+                }
+                if(sequence - consumed > mask)
+                {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            } while(!claimed.compareAndSet(sequence, sequence + 1));
+        } else{
+            sequence = claimed.getAndIncrement();
+            //Re-check the logger's still running now the slot's claimed, the consumer has already stopped if the buffer's been sealed.
+            if(sequence >= SEALED)
+            {
+                return false;
+            }
+            //The consumer can't stop until this slot's been drained, so it always frees up space eventually.
+            while(sequence - consumed > mask)
+            {
+                LockSupport.parkNanos(1000);
+            }
+        }
+
+        //Serialize the event into the slot and publish it.
+        int slot = (int)(sequence & mask);
+        int offset = slot * EVENT_LENGTH;
+        slots[offset] = type;
+        LogFileManager.putLong(slots, offset + 1, System.currentTimeMillis());
+        System.arraycopy(identifier, 0, slots, offset + 9, 12);
+        LogFileManager.putLong(slots, offset + 21, argument);
+        published.lazySet(slot, sequence);
+
+        if(consumerWaiting)
+        {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of events that have been dropped because the buffer was full.
+     * @return The number of dropped events.
+    **/
+    final long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Body of the consumer thread. Drains published events in order, copying them into batches that are appended into the log.
+     * Once the logger's closed, the consumer only stops after atomically sealing the ring buffer while every claimed slot has been drained, so no producer can publish an event after it's gone.
+    **/
+    private final void runConsumer()
+    {
+        int batchEvents = batch.length / EVENT_LENGTH;
+        while(true)
+        {
+            //Collect as many consecutive published events as fit in a batch.
+            long first = consumed;
+            long next = first;
+            int count = 0;
+            while((count < batchEvents) && (published.get((int)(next & mask)) == next))
+            {
+                next++;
+                count++;
+            }
+
+            if(count == 0)
+            {
+                //Nothing's been claimed past the drained events if the seal succeeds, otherwise a producer claimed a slot first and it has to be drained.
+                if(!running && claimed.compareAndSet(next, next + SEALED))
+                {
+                    return;
+                }
+                //Wait for more events to be published.
+                consumerWaiting = true;
+                if(published.get((int)(next & mask)) != next)
+                {
+                    LockSupport.parkNanos(flushDelay);
+                }
+                consumerWaiting = false;
+                continue;
+            }
+
+            //Copy the events into the batch (in two parts if they wrap around the end of the buffer), and free the slots before writing, so producers aren't held up by the log.
+            int start = (int)(first & mask);
+            int leading = Math.min(count, mask + 1 - start);
+            System.arraycopy(slots, start * EVENT_LENGTH, batch, 0, leading * EVENT_LENGTH);
+            System.arraycopy(slots, 0, batch, leading * EVENT_LENGTH, (count - leading) * EVENT_LENGTH);
+            consumed = next;
+            if(failure == null)
+            {
+                try
+                {
+                    log.commit(log.appendEvents(Arrays.copyOf(batch, count * EVENT_LENGTH)));
+                } catch(IOException ioException)
+                {
+                    failure = ioException;
+                    ioException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting events, and waits for the consumer to append every event already recorded into the log, including events from producers that claimed a slot before the buffer was sealed.
+     * @throws InterruptedIOException If the thread was interrupted while waiting, the consumer keeps draining events in the background.
+     * @throws IOException If any events couldn't be appended into the log.
+    **/
+    final void close() throws IOException
+    {
+        running = false;
+        LockSupport.unpark(consumer);
+        try
+        {
+            consumer.join();
+        } catch(InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for events to be appended into the log.");
+        }
+
+        if(failure != null)
+        {
+            throw new IOException("Failed to append events into the log.", failure);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.insertcreativity.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+
+/**
+ * Class for archive files stored as extents in an ExtentStore. Reads go to whichever extents the file's layout refers to, and writes go through the store's copy-on-write,
+ * so writing to a file never changes any snapshot of it. Holes in the layout (parts of the file that were never written) read as zeros.
+ * Each extent is encrypted by the store under it's own nonce, so extent files read and write plain text, and don't need a FileManager over them.
+ * Extent files are opened with ExtentStore.open, and their layout is recorded in the store's index whenever they're synced or closed.
+**/
+public class ExtentFile extends AbstractFile
+{
+    /**The prefix of an extent file's address.**/
+    public static final String ADDRESS_PREFIX = "extent:";
+
+    /**The store the file's extents are in.**/
+    private final ExtentStore store;
+    /**The file's identifier.**/
+    private final byte[] identifier;
+    /**The file's layout, which is shared with every other open copy of the file.**/
+    private final ExtentStore.Layout layout;
+    /**Handles to the extents that have been used, keyed by extent number.**/
+    private final HashMap<Long, FileHandlePool.Handle> handles;
+    /**Registration that closes the file's handles if it's garbage collected without being closed.**/
+    private final Cleaner.Cleanable cleanable;
+    /**The position of the file-pointer.**/
+    private long position;
+    /**Scratch space data is encrypted into before it's written, allocated the first time the file is written to. It's only used with the store locked.**/
+    private byte[] writeScratch;
+
+    /**
+     * Creates a new extent file. Extent files are opened with ExtentStore.open.
+     * @param store The store the file's extents are in.
+     * @param identifier The file's identifier.
+     * @param layout The file's layout.
+    **/
+    ExtentFile(ExtentStore store, byte[] identifier, ExtentStore.Layout layout)
+    {
+        this.store = store;
+        this.identifier = identifier;
+        this.layout = layout;
+        handles = new HashMap<>();
+        HashMap<Long, FileHandlePool.Handle> opened = handles;
+        cleanable = registerCleanup(() -> closeHandles(opened));
+        position = 0;
+        writeScratch = null;
+    }
+
+    /**
+     * Closes every handle in a map, ignoring any errors.
+     * @param handles The handles to close.
+    **/
+    private static final void closeHandles(HashMap<Long, FileHandlePool.Handle> handles)
+    {
+        synchronized(handles)
+        {
+            for(FileHandlePool.Handle handle : handles.values())
+            {
+                handle.closeQuietly();
+            }
+            handles.clear();
+        }
+    }
+
+    /**
+     * Gets the handle for an extent, registering it with the shared pool the first time it's used. Handles to extents the layout no longer refers to are closed, since they were replaced by copies.
+     * @param extent The number of the extent.
+     * @return The extent's handle.
+    **/
+    private final FileHandlePool.Handle handle(long extent)
+    {
+        synchronized(handles)
+        {
+            FileHandlePool.Handle handle = handles.get(extent);
+            if(handle == null)
+            {
+                if(handles.size() >= 64)
+                {
+                    //Drop handles to extents that were copied away from.
+                    handles.entrySet().removeIf(entry ->
+                    {
+                        for(long used : layout.extents)
+                        {
+                            if(used == entry.getKey())
+                            {
+                                return false;
+                            }
+                        }
+                        entry.getValue().closeQuietly();
+                        return true;
+                    });
+                }
+                handle = FileHandlePool.SHARED.register(store.getFile(extent), "rw");
+                handles.put(extent, handle);
+            }
+            return handle;
+        }
+    }
+
+    /**
+     * Gets the file's identifier in it's store.
+     * @return A copy of the file's 12 byte identifier.
+    **/
+    public byte[] getIdentifier()
+    {
+        return identifier.clone();
+    }
+
+    /**
+     * Returns whether or not there is more data to read from the file.
+     * @return False if the file-pointer is at the end of the file, true otherwise.
+    **/
+    public boolean hasNext()
+    {
+        return (position < length());
+    }
+
+    /**
+     * Extent files are never directories.
+     * @return False.
+    **/
+    public boolean isDirectory()
+    {
+        return false;
+    }
+
+    /**
+     * Extent files live in a store rather than a folder, so they have no parent.
+     * @return Null.
+    **/
+    public AbstractFile getParent()
+    {
+        return null;
+    }
+
+    /**
+     * Extent files aren't directories, so they have no children.
+     * @param name The name of the file to find in this directory.
+     * @return Null.
+    **/
+    public AbstractFile getChild(String name)
+    {
+        return null;
+    }
+
+    /**
+     * Returns the name of the file, which is it's identifier in hex.
+     * @return The name of the file.
+    **/
+    public String getName()
+    {
+        return HexFormat.of().formatHex(identifier);
+    }
+
+    /**
+     * Returns the address of the file, which is it's name prefixed with "extent:".
+     * @return The address of the file.
+    **/
+    public String getAddress()
+    {
+        return ADDRESS_PREFIX + getName();
+    }
+
+    /**
+     * Gets the current size of the file, in bytes.
+     * @return The total number of bytes currently in the file.
+    **/
+    public long length()
+    {
+        synchronized(store)
+        {
+            return layout.length;
+        }
+    }
+
+    /**
+     * Returns the current position of the file-pointer.
+     * @return The current position of the file-pointer.
+    **/
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Moves the file-pointer to the specified position.
+     * @param position The position to move the file-pointer to in the file, measured from the start of the file.
+    **/
+    public void seek(long position)
+    {
+        if(position < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        this.position = position;
+    }
+
+    /**
+     * Reads a single byte from the file at the file-pointer's current position (and shifts the pointer forward by 1).
+     * @return The value of the byte read from the file.
+     * @throws EOFException If EOF has been reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public byte readByte() throws IOException
+    {
+        byte[] data = new byte[1];
+        if(readBytes(data, 0, 1) != 1)
+        {
+            throw new EOFException();
+        }
+        return data[0];
+    }
+
+    /**
+     * Reads a consecutive series of bytes from the file into the buffer starting from the current file-pointer position. Reads spanning several extents are split between them.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes that should be read into the buffer.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int readBytes(byte[] buffer, int offset, int length) throws IOException
+    {
+        int count = readAt(position, buffer, offset, length);
+        if(count > 0)
+        {
+            position += count;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a region of the file without moving the file-pointer, and decrypts it. The store is only locked while the extents to read are looked up, and they're pinned so they can't be collected until the read is done.
+     * @param position The position in the file to start reading at.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes to read.
+     * @return The number of bytes read, or -1 if the position is at or past EOF.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    protected int readAt(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        if(length == 0)
+        {
+            return 0;
+        }
+        int count;
+        int firstSlot = (int)(position / ExtentStore.EXTENT_SIZE);
+        long[] extents;
+        long[] nonces;
+        synchronized(store)
+        {
+            if(position >= layout.length)
+            {
+                return -1;
+            }
+            count = (int)Math.min(length, layout.length - position);
+            int lastSlot = (int)((position + count - 1) / ExtentStore.EXTENT_SIZE);
+            extents = new long[lastSlot - firstSlot + 1];
+            nonces = new long[extents.length];
+            for(int slot = firstSlot; (slot <= lastSlot) && (slot < layout.extents.length); slot++)
+            {
+                extents[slot - firstSlot] = layout.extents[slot];
+                nonces[slot - firstSlot] = layout.nonces[slot];
+            }
+            store.pin(extents);
+        }
+
+        try
+        {
+            int done = 0;
+            while(done < count)
+            {
+                long at = position + done;
+                int slot = (int)(at / ExtentStore.EXTENT_SIZE);
+                int extentOffset = (int)(at % ExtentStore.EXTENT_SIZE);
+                int chunk = Math.min(count - done, ExtentStore.EXTENT_SIZE - extentOffset);
+                long extent = extents[slot - firstSlot];
+                int read = 0;
+                if(extent != 0)
+                {
+                    FileHandlePool.Handle handle = handle(extent);
+                    RandomAccessFile raf = handle.acquire();
+                    try
+                    {
+                        raf.seek(extentOffset);
+                        while(read < chunk)
+                        {
+                            int result = raf.read(buffer, offset + done + read, chunk - read);
+                            if(result <= 0)
+                            {
+                                break;
+                            }
+                            read += result;
+                        }
+                    } finally{
+                        handle.release();
+                    }
+                    store.applyKeyStream(nonces[slot - firstSlot], extentOffset, buffer, offset + done, read);
+                }
+                //Holes, and anything past the end of a short extent, read as zeros.
+                Arrays.fill(buffer, offset + done + read, offset + done + chunk, (byte)0);
+                done += chunk;
+            }
+            return count;
+        } finally{
+            synchronized(store)
+            {
+                store.unpin(extents);
+            }
+        }
+    }
+
+    /**
+     * Writes a single byte into the file at the file-pointer's current position (and shifts the pointer forward by 1).
+     * @param data The byte to write into the file.
+     * @return The number of bytes successfully written to the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int writeByte(byte data) throws IOException
+    {
+        return writeBytes(new byte[] {data}, 0, 1);
+    }
+
+    /**
+     * Writes an array of bytes into the file in order starting at the file-pointer's current position, encrypting a copy of them. Shared extents are copied before they're written to, and holes are filled with new extents.
+     * @param data The array to write bytes from.
+     * @param offset The index offset to starting writing bytes from the buffer at.
+     * @param length The number of bytes that should be written into the file.
+     * @return The number of bytes successfully written into the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int writeBytes(byte[] data, int offset, int length) throws IOException
+    {
+        //The store stays locked for the whole write, so a snapshot can never share an extent that's half written.
+        synchronized(store)
+        {
+            if(writeScratch == null)
+            {
+                writeScratch = new byte[65536];
+            }
+            int done = 0;
+            while(done < length)
+            {
+                long at = position + done;
+                int slot = (int)(at / ExtentStore.EXTENT_SIZE);
+                int extentOffset = (int)(at % ExtentStore.EXTENT_SIZE);
+                int chunk = Math.min(length - done, ExtentStore.EXTENT_SIZE - extentOffset);
+                FileHandlePool.Handle handle = handle(store.writable(layout, slot));
+                long nonce = layout.nonces[slot];
+                RandomAccessFile raf = handle.acquire();
+                try
+                {
+                    //A gap left before the write has to read back as zeros, so it's filled with encrypted zeros rather than left for the file system to fill with raw ones.
+                    long extentLength = raf.length();
+                    while(extentLength < extentOffset)
+                    {
+                        int count = (int)Math.min(writeScratch.length, extentOffset - extentLength);
+                        Arrays.fill(writeScratch, 0, count, (byte)0);
+                        store.applyKeyStream(nonce, extentLength, writeScratch, 0, count);
+                        raf.seek(extentLength);
+                        raf.write(writeScratch, 0, count);
+                        extentLength += count;
+                    }
+                    raf.seek(extentOffset);
+                    for(int written = 0; written < chunk;)
+                    {
+                        int count = Math.min(writeScratch.length, chunk - written);
+                        System.arraycopy(data, offset + done + written, writeScratch, 0, count);
+                        store.applyKeyStream(nonce, extentOffset + written, writeScratch, 0, count);
+                        raf.write(writeScratch, 0, count);
+                        written += count;
+                    }
+                } finally{
+                    handle.release();
+                }
+                done += chunk;
+                if(at + chunk > layout.length)
+                {
+                    layout.length = at + chunk;
+                    layout.dirty = true;
+                }
+            }
+            position += length;
+            return length;
+        }
+    }
+
+    /**
+     * Truncates or extends the file to the specified length. Extents past the new end of the file are released, and extending the file leaves a hole.
+     * @param length The new length of the file, in bytes.
+    **/
+    public void setLength(long length)
+    {
+        if(length < 0)
+        {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        store.resize(layout, length);
+    }
+
+    /**
+     * Forces the extents written through this file out onto their storage medium, and records the file's layout in the store's index.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public void sync() throws IOException
+    {
+        FileHandlePool.Handle[] used;
+        synchronized(handles)
+        {
+            used = handles.values().toArray(new FileHandlePool.Handle[handles.size()]);
+        }
+        for(FileHandlePool.Handle handle : used)
+        {
+            RandomAccessFile raf = handle.acquire();
+            try
+            {
+                raf.getChannel().force(false);
+            } finally{
+                handle.release();
+            }
+        }
+        store.save(identifier, layout);
+        store.syncIndex();
+    }
+
+    /**
+     * Closes the file, recording it's layout in the store's index and releasing it's handles.
+     * @throws IOException If the layout couldn't be recorded.
+    **/
+    public void close() throws IOException
+    {
+        try
+        {
+            store.save(identifier, layout);
+        } finally{
+            cleanable.clean();
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Class for storing archive files as lists of fixed size extents, so files can be snapshotted without being copied. Each extent holds the encrypted content of one region of a file, and is stored on it's own,
+ * in a folder named after the lowest byte of it's number. A file's layout (it's length, and the number and nonce of each extent that makes it up) is recorded in the index, so a snapshot is just a new layout that refers to the same extents.
+ * Every extent is encrypted with the store's key in CTR mode, under a random nonce of it's own, so no two extents ever share a key-stream, and ExtentFiles read and write plain text.
+ * Extents are copied on write: writing into an extent that's shared by more than one layout first copies it to a new extent, re-encrypted under the new extent's nonce, so snapshots never change,
+ * the old and new cipher text of a region are never under the same key-stream, and storage only grows with the data that's changed since.
+ * The number of layouts referring to each extent is counted as layouts are loaded and updated, and extents that nothing refers to any more are deleted by collectGarbage, once every layout has been durably recorded.
+ * Reads only lock the store long enough to look up which extents they need, and pin them so they aren't collected while they're being read.
+**/
+final class ExtentStore
+{
+    /**The size of each extent. Writing into a shared extent copies all of it, so smaller extents copy less, but need more files.**/
+    static final int EXTENT_SIZE = 1 << 20;
+    /**The number of bytes of key-stream computed at a time, which is also how much of an extent is re-encrypted at a time when it's copied.**/
+    private static final int KEY_STREAM_CHUNK = 65536;
+    /**The context extents' key is derived with.**/
+    private static final byte[] KEY_CONTEXT = "extent".getBytes(StandardCharsets.US_ASCII);
+    /**Each thread's scratch space for computing key-streams.**/
+    private static final ThreadLocal<KeyStream> KEY_STREAMS = ThreadLocal.withInitial(KeyStream::new);
+
+    /**The folder that extents are stored in.**/
+    private final File directory;
+    /**The keyring extents' key is derived from.**/
+    private final Keyring keyring;
+    /**Source of the nonces new extents are encrypted under.**/
+    private final SecureRandom random;
+    /**The index that layouts are recorded in.**/
+    private final IndexFileManager index;
+    /**The layout of every file in the store, keyed by the file's identifier.**/
+    private final HashMap<ByteBuffer, Layout> layouts;
+    /**The number of layouts referring to each extent.**/
+    private final HashMap<Long, Integer> references;
+    /**The number of reads in progress from each extent. Extents are read without the store locked, so they mustn't be collected until their reads finish.**/
+    private final HashMap<Long, Integer> reading;
+    /**The number to give the next new extent. Extent 0 is never used, it marks holes in a layout.**/
+    private long nextExtent;
+
+    /**
+     * Creates a new extent store, loading every file's layout from the index.
+     * @param directory The folder that extents are stored in.
+     * @param keyring The keyring extents' key is derived from.
+     * @param index The index that layouts are recorded in.
+     * @throws IOException If the layouts couldn't be loaded, or the folder couldn't be listed.
+    **/
+    ExtentStore(File directory, Keyring keyring, IndexFileManager index) throws IOException
+    {
+        this.directory = directory;
+        this.keyring = keyring;
+        this.index = index;
+        random = new SecureRandom();
+        layouts = new HashMap<>();
+        references = new HashMap<>();
+        reading = new HashMap<>();
+
+        long newest = 0;
+        for(Map.Entry<ByteBuffer, byte[]> entry : index.getEntries(IndexFileManager.EXTENT_MAP).entrySet())
+        {
+            Layout layout = new Layout(entry.getValue());
+            layouts.put(entry.getKey(), layout);
+            for(long extent : layout.extents)
+            {
+                reference(extent);
+                newest = Math.max(newest, extent);
+            }
+        }
+        //Extents written after the index was last updated can still be on disk, and their numbers mustn't be reused until they're collected.
+        for(long extent : listExtents())
+        {
+            newest = Math.max(newest, extent);
+        }
+        nextExtent = newest + 1;
+    }
+
+    /**
+     * Wraps a file identifier for use as a key.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return The wrapped identifier.
+    **/
+    private static final ByteBuffer wrap(byte[] identifier)
+    {
+        return ByteBuffer.wrap(Arrays.copyOf(identifier, 12));
+    }
+
+    /**
+     * Gets the file an extent is stored in.
+     * @param extent The number of the extent.
+     * @return The extent's file.
+    **/
+    final File getFile(long extent)
+    {
+        return new File(new File(directory, String.format("%02x", extent & 0xff)), String.format("%016x", extent));
+    }
+
+    /**
+     * Encrypts or decrypts part of an extent, by XORing it with the extent's key-stream. Each counter block is the extent's nonce, followed by the index of the block within the extent.
+     * @param nonce The nonce of the extent.
+     * @param position The position of the data within the extent.
+     * @param data The array holding the data, which is processed in place.
+     * @param offset The offset of the data in the array.
+     * @param length The number of bytes to process.
+     * @throws IOException If the keyring has been destroyed.
+    **/
+    final void applyKeyStream(long nonce, long position, byte[] data, int offset, int length) throws IOException
+    {
+        Cipher cipher;
+        try
+        {
+            cipher = keyring.getCipher(KEY_CONTEXT);
+        } catch(InvalidKeyException invalidKeyException)
+        {
+            throw new IOException("Extent key is unavailable.", invalidKeyException);
+        }
+        KeyStream keyStream = KEY_STREAMS.get();
+        long block = position / 16;
+        int skip = (int)(position % 16);
+        int done = 0;
+        while(done < length)
+        {
+            int blocks = Math.min(KEY_STREAM_CHUNK / 16, (skip + (length - done) + 15) / 16);
+            for(int i = 0; i < blocks; i++)
+            {
+                LogFileManager.putLong(keyStream.counters, i * 16, nonce);
+                LogFileManager.putLong(keyStream.counters, (i * 16) + 8, block + i);
+            }
+            try
+            {
+                cipher.update(keyStream.counters, 0, blocks * 16, keyStream.stream, 0);
+            } catch(ShortBufferException shortBufferException)
+            {
+                throw new IllegalStateException("Key-stream buffer is too small.", shortBufferException);
+            }
+            int count = Math.min(length - done, (blocks * 16) - skip);
+            for(int i = 0; i < count; i++)
+            {
+                data[offset + done + i] ^= keyStream.stream[skip + i];
+            }
+            done += count;
+            block += blocks;
+            skip = 0;
+        }
+    }
+
+    /**
+     * Lists the numbers of every extent stored on disk.
+     * @return The extents' numbers.
+     * @throws IOException If the folder couldn't be listed.
+    **/
+    private final long[] listExtents() throws IOException
+    {
+        File[] folders = directory.listFiles(File::isDirectory);
+        if(folders == null)
+        {
+            throw new IOException("Failed to list extent folder " + directory);
+        }
+        long[] extents = new long[0];
+        int count = 0;
+        for(File folder : folders)
+        {
+            String[] names = folder.list();
+            if(names == null)
+            {
+                continue;
+            }
+            for(String name : names)
+            {
+                try
+                {
+                    long extent = Long.parseUnsignedLong(name, 16);
+                    if(count == extents.length)
+                    {
+                        extents = Arrays.copyOf(extents, Math.max(16, count * 2));
+                    }
+                    extents[count++] = extent;
+                } catch(NumberFormatException numberFormatException)
+                {
+                    //Anything that isn't named like an extent isn't one.
+                }
+            }
+        }
+        return Arrays.copyOf(extents, count);
+    }
+
+    /**
+     * Adds a reference to an extent.
+     * @param extent The number of the extent, or 0 for a hole.
+    **/
+    private final void reference(long extent)
+    {
+        if(extent != 0)
+        {
+            references.merge(extent, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Removes a reference to an extent. Extents that are no longer referenced are left on disk until they're collected.
+     * @param extent The number of the extent, or 0 for a hole.
+    **/
+    private final void release(long extent)
+    {
+        if(extent != 0)
+        {
+            references.computeIfPresent(extent, (key, count) -> ((count > 1)? count - 1 : null));
+        }
+    }
+
+    /**
+     * Pins extents while they're read without the store locked, so they aren't collected until they're unpinned.
+     * @param extents The numbers of the extents, where 0 marks a hole.
+    **/
+    final synchronized void pin(long[] extents)
+    {
+        for(long extent : extents)
+        {
+            if(extent != 0)
+            {
+                reading.merge(extent, 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Unpins extents once they've been read.
+     * @param extents The numbers of the extents, exactly as they were pinned.
+    **/
+    final synchronized void unpin(long[] extents)
+    {
+        for(long extent : extents)
+        {
+            if(extent != 0)
+            {
+                reading.computeIfPresent(extent, (key, count) -> ((count > 1)? count - 1 : null));
+            }
+        }
+    }
+
+    /**
+     * Gets the number of layouts that refer to an extent.
+     * @param extent The number of the extent.
+     * @return The extent's reference count.
+    **/
+    final synchronized int getReferences(long extent)
+    {
+        return references.getOrDefault(extent, 0);
+    }
+
+    /**
+     * Returns whether the store has a file.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return True if the file has a layout.
+    **/
+    final synchronized boolean contains(byte[] identifier)
+    {
+        return layouts.containsKey(wrap(identifier));
+    }
+
+    /**
+     * Opens a file in the store, creating an empty one if it doesn't exist yet. Every file opened with the same identifier shares the same layout.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return The opened file.
+    **/
+    final synchronized ExtentFile open(byte[] identifier)
+    {
+        ByteBuffer id = wrap(identifier);
+        Layout layout = layouts.get(id);
+        if(layout == null)
+        {
+            layout = new Layout(0, new long[0], new long[0]);
+            layout.dirty = true;
+            layouts.put(id, layout);
+        }
+        return new ExtentFile(this, id.array(), layout);
+    }
+
+    /**
+     * Snapshots a file, by recording a copy of it's current layout under a new identifier. No data is copied, the snapshot shares every extent with the file until one of them is written to.
+     * Writes are made under the store's lock, so a snapshot always sees whole writes. Any existing file with the snapshot's identifier is replaced.
+     * @param source The identifier of the file to snapshot, only the first 12 bytes are used.
+     * @param snapshot The identifier to record the snapshot under, only the first 12 bytes are used.
+     * @throws IOException If the file doesn't exist, or the layouts couldn't be recorded.
+    **/
+    final synchronized void snapshot(byte[] source, byte[] snapshot) throws IOException
+    {
+        ByteBuffer sourceId = wrap(source);
+        ByteBuffer snapshotId = wrap(snapshot);
+        Layout layout = layouts.get(sourceId);
+        if(layout == null)
+        {
+            throw new IOException("No such file to snapshot.");
+        }
+        if(sourceId.equals(snapshotId))
+        {
+            return;
+        }
+        Layout copy = new Layout(layout.length, layout.extents.clone(), layout.nonces.clone());
+        copy.dirty = true;
+        for(long extent : copy.extents)
+        {
+            reference(extent);
+        }
+        Layout replaced = layouts.put(snapshotId, copy);
+        if(replaced != null)
+        {
+            for(long extent : replaced.extents)
+            {
+                release(extent);
+            }
+        }
+        //Both layouts are recorded, so the snapshot matches what the file's layout was when it was taken.
+        save(sourceId.array(), layout);
+        save(snapshotId.array(), copy);
+    }
+
+    /**
+     * Deletes a file (or snapshot) from the store. Extents that only it referred to are deleted by the next garbage collection. Files that are still open with the identifier are left empty, and can't be written to any more.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return True if the file was deleted, false if it didn't exist.
+     * @throws IOException If the file's removal couldn't be recorded.
+    **/
+    final synchronized boolean delete(byte[] identifier) throws IOException
+    {
+        ByteBuffer id = wrap(identifier);
+        Layout layout = layouts.remove(id);
+        if(layout == null)
+        {
+            return false;
+        }
+        for(long extent : layout.extents)
+        {
+            release(extent);
+        }
+        //Open files mustn't write into extents that might be reused, so they're given a detached layout of holes.
+        Arrays.fill(layout.extents, 0);
+        layout.length = 0;
+        layout.dirty = false;
+        layout.deleted = true;
+        index.removeEntry(IndexFileManager.EXTENT_MAP, id.array());
+        return true;
+    }
+
+    /**
+     * Deletes every extent that no layout refers to, including any that were written but never recorded because of a crash.
+     * Layouts that changed since they were recorded are recorded first, and the index is synced, so an extent is never deleted while a layout in the index still refers to it.
+     * @return The number of extents deleted.
+     * @throws IOException If the layouts couldn't be recorded, the folder couldn't be listed, or an extent couldn't be deleted.
+    **/
+    final synchronized int collectGarbage() throws IOException
+    {
+        for(Map.Entry<ByteBuffer, Layout> entry : layouts.entrySet())
+        {
+            save(entry.getKey().array(), entry.getValue());
+        }
+        syncIndex();
+
+        int deleted = 0;
+        for(long extent : listExtents())
+        {
+            if(!references.containsKey(extent) && !reading.containsKey(extent))
+            {
+                Files.deleteIfExists(getFile(extent).toPath());
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Makes sure an extent in a layout is safe to write into, copying it to a new extent if it's shared, or creating one if it's a hole. Must be called with the store locked, and the write must be made before it's released.
+     * Every new extent gets a new nonce, so a copy is re-encrypted under it's own key-stream rather than copied byte for byte. The new extent's nonce is left in the layout.
+     * @param layout The layout being written to.
+     * @param slot The index of the extent in the layout.
+     * @return The number of the extent to write into.
+     * @throws IOException If the file was deleted, or the extent couldn't be copied or created.
+    **/
+    final long writable(Layout layout, int slot) throws IOException
+    {
+        if(layout.deleted)
+        {
+            //Extents written into a deleted layout would never be recorded or released, so they could never be collected.
+            throw new IOException("File was deleted from the store.");
+        }
+        if(slot >= layout.extents.length)
+        {
+            layout.extents = Arrays.copyOf(layout.extents, Math.max(slot + 1, layout.extents.length * 2));
+            layout.nonces = Arrays.copyOf(layout.nonces, layout.extents.length);
+        }
+        long extent = layout.extents[slot];
+        if((extent != 0) && (getReferences(extent) == 1))
+        {
+            return extent;
+        }
+
+        long copy = nextExtent++;
+        File file = getFile(copy);
+        File folder = file.getParentFile();
+        if(!folder.isDirectory() && !folder.mkdirs())
+        {
+            throw new IOException("Failed to create extent folder " + folder);
+        }
+        long nonce = random.nextLong();
+        if(extent != 0)
+        {
+            reencrypt(extent, layout.nonces[slot], file, nonce);
+            release(extent);
+        } else if(!file.createNewFile())
+        {
+            throw new IOException("Failed to create extent " + file);
+        }
+        reference(copy);
+        layout.extents[slot] = copy;
+        layout.nonces[slot] = nonce;
+        layout.dirty = true;
+        return copy;
+    }
+
+    /**
+     * Copies an extent into a new extent's file, decrypting it with it's own key-stream and encrypting it with the new extent's.
+     * @param extent The number of the extent to copy.
+     * @param nonce The nonce of the extent to copy.
+     * @param target The new extent's file, which any leftover content is cleared from.
+     * @param targetNonce The new extent's nonce.
+     * @throws IOException If the extent couldn't be read, or the copy couldn't be written.
+    **/
+    private final void reencrypt(long extent, long nonce, File target, long targetNonce) throws IOException
+    {
+        byte[] buffer = new byte[KEY_STREAM_CHUNK];
+        try(RandomAccessFile source = new RandomAccessFile(getFile(extent), "r");
+            RandomAccessFile copy = new RandomAccessFile(target, "rw"))
+        {
+            copy.setLength(0);
+            long position = 0;
+            int read;
+            while((read = source.read(buffer, 0, buffer.length)) > 0)
+            {
+                applyKeyStream(nonce, position, buffer, 0, read);
+                applyKeyStream(targetNonce, position, buffer, 0, read);
+                copy.write(buffer, 0, read);
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Changes the length of a layout, releasing the extents that are entirely past it's new end.
+     * @param layout The layout to resize.
+     * @param length The new length of the file.
+    **/
+    final synchronized void resize(Layout layout, long length)
+    {
+        int needed = (int)((length + EXTENT_SIZE - 1) / EXTENT_SIZE);
+        for(int slot = needed; slot < layout.extents.length; slot++)
+        {
+            release(layout.extents[slot]);
+            layout.extents[slot] = 0;
+            layout.nonces[slot] = 0;
+        }
+        layout.length = length;
+        layout.dirty = true;
+    }
+
+    /**
+     * Records a layout in the index, if it's changed since it was last recorded.
+     * @param identifier The identifier of the file the layout belongs to.
+     * @param layout The layout to record.
+     * @throws IOException If the layout couldn't be recorded.
+    **/
+    final synchronized void save(byte[] identifier, Layout layout) throws IOException
+    {
+        if(layout.dirty && layouts.containsKey(wrap(identifier)))
+        {
+            index.putEntry(IndexFileManager.EXTENT_MAP, identifier, layout.encode());
+            layout.dirty = false;
+        }
+    }
+
+    /**
+     * Forces the index out onto it's storage medium, so recorded layouts are durable.
+     * @throws IOException If the index couldn't be synced.
+    **/
+    final void syncIndex() throws IOException
+    {
+        index.sync();
+    }
+
+    /**
+     * The length of a file and the extents that make it up. Layouts are only read or changed with their store locked.
+    **/
+    static final class Layout
+    {
+        /**The length of the file.**/
+        long length;
+        /**The number of each extent in the file, in order, or 0 for holes. The array can be longer than the file needs.**/
+        long[] extents;
+        /**The nonce each extent is encrypted under, in the same order as the extents.**/
+        long[] nonces;
+        /**Flag for whether the layout has changed since it was recorded.**/
+        boolean dirty;
+        /**Flag for whether the layout's file was deleted from the store.**/
+        boolean deleted;
+
+        /**
+         * Creates a new layout.
+         * @param length The length of the file.
+         * @param extents The file's extents.
+         * @param nonces The nonces of the file's extents.
+        **/
+        Layout(long length, long[] extents, long[] nonces)
+        {
+            this.length = length;
+            this.extents = extents;
+            this.nonces = nonces;
+            dirty = false;
+            deleted = false;
+        }
+
+        /**
+         * Creates a layout from an index entry's payload.
+         * @param payload The payload of the file's extent map entry.
+        **/
+        Layout(byte[] payload)
+        {
+            this(LogFileManager.getLong(payload, 0), new long[(payload.length - 8) / 16], new long[(payload.length - 8) / 16]);
+            for(int i = 0; i < extents.length; i++)
+            {
+                extents[i] = LogFileManager.getLong(payload, 8 + (i * 16));
+                nonces[i] = LogFileManager.getLong(payload, 16 + (i * 16));
+            }
+        }
+
+        /**
+         * Encodes the layout as an index entry's payload.
+         * @return The payload for the file's extent map entry.
+        **/
+        byte[] encode()
+        {
+            int count = (int)((length + EXTENT_SIZE - 1) / EXTENT_SIZE);
+            byte[] payload = new byte[8 + (count * 16)];
+            LogFileManager.putLong(payload, 0, length);
+            for(int i = 0; (i < count) && (i < extents.length); i++)
+            {
+                LogFileManager.putLong(payload, 8 + (i * 16), extents[i]);
+                LogFileManager.putLong(payload, 16 + (i * 16), nonces[i]);
+            }
+            return payload;
+        }
+    }
+
+    /**
+     * A thread's scratch space for computing key-streams, so they're computed without allocating.
+    **/
+    private static final class KeyStream
+    {
+        /**The counter blocks being encrypted.**/
+        final byte[] counters = new byte[KEY_STREAM_CHUNK];
+        /**The key-stream the counter blocks were encrypted into.**/
+        final byte[] stream = new byte[KEY_STREAM_CHUNK];
+    }
+}
@@ -0,0 +1,108 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class holding a snapshot of a file's basic attributes: it's name, type, size and modification time. Attributes are read all at once, so callers that need several of them don't stat the file once for each.
+**/
+public final class FileAttributes
+{
+    /**The name of the file.**/
+    private final String name;
+    /**Flag for whether the file is a directory.**/
+    private final boolean directory;
+    /**The size of the file, in bytes.**/
+    private final long size;
+    /**The time the file was last modified, in milliseconds since the epoch.**/
+    private final long lastModified;
+
+    /**
+     * Creates a new set of file attributes.
+     * @param name The name of the file.
+     * @param directory Flag for whether the file is a directory.
+     * @param size The size of the file, in bytes.
+     * @param lastModified The time the file was last modified, in milliseconds since the epoch, or 0 if it isn't known.
+    **/
+    public FileAttributes(String name, boolean directory, long size, long lastModified)
+    {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Reads the attributes of a local file.
+     * @param path The path of the file.
+     * @return The file's attributes.
+     * @throws IOException If the file's attributes couldn't be read.
+    **/
+    static final FileAttributes read(Path path) throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Path name = path.getFileName();
+        return new FileAttributes(((name == null)? "" : name.toString()), attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Lists the contents of a local folder, along with their attributes. The folder is enumerated with a single directory stream, and each entry is only stat'd once.
+     * @param folder The folder to list.
+     * @return The attributes of every file in the folder.
+     * @throws IOException If the folder couldn't be listed, or an entry's attributes couldn't be read.
+    **/
+    static final List<FileAttributes> list(File folder) throws IOException
+    {
+        ArrayList<FileAttributes> entries = new ArrayList<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath()))
+        {
+            for(Path entry : stream)
+            {
+                entries.add(read(entry));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the name of the file.
+     * @return The name of the file.
+    **/
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns whether or not the file is a directory.
+     * @return True if the file is a directory.
+    **/
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Gets the size of the file.
+     * @return The size of the file, in bytes.
+    **/
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the time the file was last modified.
+     * @return The time the file was last modified, in milliseconds since the epoch, or 0 if it isn't known.
+    **/
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+}
@@ -0,0 +1,342 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Class for capping the number of file descriptors held open by local files. Every handle in the pool refers to a file, but only the most recently used handles keep a RandomAccessFile open for it;
+ * once the cap is reached the least recently used handles are closed, and they're transparently reopened (at the same file-pointer position) the next time they're used.
+ * Handles are pinned while they're in use, and pinned handles are never evicted, so the pool can briefly hold more files open than it's cap when more files than that are in use at once.
+ * Using a handle that's already open only locks the handle itself; recency is tracked with a reference flag that eviction checks (the CLOCK algorithm), so the pool's lock is only taken to open, evict or close files.
+**/
+final class FileHandlePool
+{
+    /**The default limit on the number of files held open by a pool.**/
+    static final int DEFAULT_CAPACITY = 256;
+    /**The pool shared by every local file.**/
+    static final FileHandlePool SHARED = new FileHandlePool(DEFAULT_CAPACITY);
+
+    /**The handles that currently hold their file open, in the order they're checked for eviction.**/
+    private final LinkedHashSet<Handle> open;
+    /**The limit on the number of files held open by the pool.**/
+    private int capacity;
+    /**The number of times a handle has been evicted.**/
+    private long evictions;
+    /**Flag for whether the pool holds more files open than it's cap, because every handle was pinned the last time it was trimmed.**/
+    private volatile boolean overCapacity;
+
+    /**
+     * Creates a new handle pool.
+     * @param capacity The limit on the number of files held open by the pool.
+    **/
+    FileHandlePool(int capacity)
+    {
+        open = new LinkedHashSet<>();
+        setCapacity(capacity);
+        evictions = 0;
+        overCapacity = false;
+    }
+
+    /**
+     * Changes the limit on the number of files held open by the pool, evicting handles if it's now over the limit.
+     * @param capacity The new limit on the number of files held open by the pool.
+    **/
+    final synchronized void setCapacity(int capacity)
+    {
+        if(capacity < 1)
+        {
+            throw new IllegalArgumentException("Handle pools must be able to hold at least one file open.");
+        }
+        this.capacity = capacity;
+        trim();
+    }
+
+    /**
+     * Gets the limit on the number of files held open by the pool.
+     * @return The pool's capacity.
+    **/
+    final synchronized int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of files currently held open by the pool.
+     * @return The number of open files.
+    **/
+    final synchronized int getOpenCount()
+    {
+        return open.size();
+    }
+
+    /**
+     * Gets the number of times a handle has had it's file closed to make room for another, and will have to reopen it the next time it's used.
+     * @return The number of evictions.
+    **/
+    final synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * Opens a file through the pool. The file is opened immediately, so any error opening it is reported here rather than on first use.
+     * @param file The file to open.
+     * @param mode The mode to open the file in, as for RandomAccessFile.
+     * @return A handle to the file.
+     * @throws FileNotFoundException If the file couldn't be opened.
+    **/
+    final Handle open(File file, String mode) throws FileNotFoundException
+    {
+        Handle handle = new Handle(this, file, mode);
+        //The file's opened before taking the pool's lock, so a slow open doesn't hold up every other file.
+        handle.raf = new RandomAccessFile(file, mode);
+        handle.referenced = true;
+        synchronized(this)
+        {
+            open.add(handle);
+            trim();
+        }
+        return handle;
+    }
+
+    /**
+     * Adds a file to the pool without opening it. The file is opened the first time it's used, so files that are never used (like most of a directory listing) never take up a descriptor.
+     * @param file The file to add.
+     * @param mode The mode to open the file in, as for RandomAccessFile.
+     * @return A handle to the file.
+    **/
+    final Handle register(File file, String mode)
+    {
+        return new Handle(this, file, mode);
+    }
+
+    /**
+     * Evicts handles that aren't pinned until the pool is within it's cap. Handles that have been used since they were last checked get a second chance:
+     * their reference flag is cleared and they're moved to the back of the order, so the handles evicted are the ones that have gone unused the longest.
+     * This must be called while holding the pool's lock.
+    **/
+    private final void trim()
+    {
+        int excess = open.size() - capacity;
+        //Every handle's reference flag is cleared on the first pass, so a second pass is enough to find any handle that isn't pinned.
+        for(int pass = 0; (excess > 0) && (pass < 2); pass++)
+        {
+            ArrayList<Handle> spared = new ArrayList<>();
+            Iterator<Handle> iterator = open.iterator();
+            while((excess > 0) && iterator.hasNext())
+            {
+                Handle handle = iterator.next();
+                synchronized(handle)
+                {
+                    if(handle.pins != 0)
+                    {
+                        continue;
+                    }
+                    iterator.remove();
+                    if(handle.referenced)
+                    {
+                        handle.referenced = false;
+                        spared.add(handle);
+                    } else{
+                        handle.evict();
+                        evictions++;
+                        excess--;
+                    }
+                }
+            }
+            open.addAll(spared);
+        }
+        overCapacity = (excess > 0);
+    }
+
+    /**
+     * A file opened through a pool. Every use of the underlying RandomAccessFile must be bracketed by acquire and release, so the handle isn't evicted while it's in use.
+     * Handles aren't safe for use by multiple threads at once, the same as the RandomAccessFiles they wrap. A handle's state is guarded by it's own lock, which is only ever taken after the pool's lock.
+    **/
+    static final class Handle
+    {
+        /**The pool the handle belongs to.**/
+        private final FileHandlePool pool;
+        /**The file the handle refers to.**/
+        private final File file;
+        /**The mode the file's opened in.**/
+        private final String mode;
+        /**The open file, or null if the handle's been evicted or closed.**/
+        private RandomAccessFile raf;
+        /**The position of the file-pointer when the handle was evicted.**/
+        private long position;
+        /**The number of times the handle's currently acquired.**/
+        private int pins;
+        /**Flag for whether the handle's been used since the pool last checked it for eviction.**/
+        private boolean referenced;
+        /**Flag for whether the handle's been closed.**/
+        private boolean closed;
+
+        /**
+         * Creates a new handle, without opening it's file.
+         * @param pool The pool the handle belongs to.
+         * @param file The file the handle refers to.
+         * @param mode The mode to open the file in.
+        **/
+        private Handle(FileHandlePool pool, File file, String mode)
+        {
+            this.pool = pool;
+            this.file = file;
+            this.mode = mode;
+            raf = null;
+            position = 0;
+            pins = 0;
+            referenced = false;
+            closed = false;
+        }
+
+        /**
+         * Acquires the handle's open file, reopening it at it's saved position if it was evicted. The handle can't be evicted until it's released.
+         * @return The open file.
+         * @throws IOException If the handle's closed, or the file couldn't be reopened.
+        **/
+        final RandomAccessFile acquire() throws IOException
+        {
+            long reopenAt;
+            synchronized(this)
+            {
+                if(closed)
+                {
+                    throw new IOException("File " + file + " is closed.");
+                }
+                if(raf != null)
+                {
+                    pins++;
+                    referenced = true;
+                    return raf;
+                }
+                reopenAt = position;
+            }
+
+            //The file's reopened without holding any locks, and only added to the pool once it's open.
+            RandomAccessFile opened = new RandomAccessFile(file, mode);
+            try
+            {
+                opened.seek(reopenAt);
+            } catch(IOException ioException)
+            {
+                opened.close();
+                throw ioException;
+            }
+            RandomAccessFile extra = null;
+            try
+            {
+                synchronized(pool)
+                {
+                    synchronized(this)
+                    {
+                        if(closed)
+                        {
+                            extra = opened;
+                            throw new IOException("File " + file + " is closed.");
+                        }
+                        pins++;
+                        referenced = true;
+                        if(raf != null)
+                        {
+                            //Another thread reopened the file first.
+                            extra = opened;
+                            return raf;
+                        }
+                        raf = opened;
+                    }
+                    pool.open.add(this);
+                    pool.trim();
+                    return opened;
+                }
+            } finally{
+                if(extra != null)
+                {
+                    extra.close();
+                }
+            }
+        }
+
+        /**
+         * Releases the handle's open file after it's been used.
+        **/
+        final void release()
+        {
+            boolean idle;
+            synchronized(this)
+            {
+                pins--;
+                idle = (pins == 0);
+            }
+            if(idle && pool.overCapacity)
+            {
+                synchronized(pool)
+                {
+                    pool.trim();
+                }
+            }
+        }
+
+        /**
+         * Closes the handle's file, saving the position of it's file-pointer so it can be reopened later. Errors closing the file are ignored, since it's reopened afresh anyway.
+        **/
+        private final void evict()
+        {
+            try
+            {
+                position = raf.getFilePointer();
+                raf.close();
+            } catch(IOException ioException)
+            {
+                //The handle's position is left where it was last saved.
+            }
+            raf = null;
+        }
+
+        /**
+         * Closes the handle and removes it from it's pool. Closing a handle more than once does nothing.
+         * @throws IOException If the file couldn't be closed.
+        **/
+        final void close() throws IOException
+        {
+            RandomAccessFile closing;
+            synchronized(pool)
+            {
+                synchronized(this)
+                {
+                    if(closed)
+                    {
+                        return;
+                    }
+                    closed = true;
+                    closing = raf;
+                    raf = null;
+                }
+                pool.open.remove(this);
+            }
+            if(closing != null)
+            {
+                closing.close();
+            }
+        }
+
+        /**
+         * Closes the handle, ignoring any errors. This is what's run when a local file is garbage collected without being closed.
+        **/
+        final void closeQuietly()
+        {
+            try
+            {
+                close();
+            } catch(IOException ioException)
+            {
+                ioException.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,14 +1,26 @@
 
 package com.insertcreativity.archive;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 //TODO check that AES/ECB/NoPadding is alright before initialization ends
@@ -22,16 +34,67 @@ import javax.crypto.spec.SecretKeySpec;
 **/
 class FileManager
 {
+    /**The number of blocks of key-stream computed at once for a range.**/
+    private static final int RANGE_BLOCKS = 256;
+    /**The number of sequential reads in a row it takes to start prefetching.**/
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+    /**The size of each prefetched block.**/
+    private static final int PREFETCH_BLOCK_SIZE = 65536;
+    /**The fewest blocks a prefetcher keeps ready.**/
+    private static final int MIN_PREFETCH_WINDOW = 2;
+    /**The most blocks a prefetcher keeps ready.**/
+    private static final int MAX_PREFETCH_WINDOW = 16;
+    /**How long a prefetcher waits for it's reader to make room before giving up, in nanoseconds.**/
+    private static final long PREFETCH_IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    /**Pool of threads that prefetch for managers, shared by every manager.**/
+    private static final ExecutorService prefetchers = Executors.newCachedThreadPool(task ->
+    {
+        Thread thread = new Thread(task, "Archive-Prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**Listener that every read and write is reported to, or null if nothing's listening.**/
+    private static volatile ActivityListener activityListener = null;
+
+    /**
+     * Listener for the reads and writes done through managers, like a background task that backs off while foreground work is using the disk.
+    **/
+    static interface ActivityListener
+    {
+        /**
+         * Called on the reading or writing thread before every read and write, so it has to be cheap.
+        **/
+        void onActivity();
+    }
+
     /**Reference to the file that this is managing.**/
     private final AbstractFile file;
     /**Engine used for encrypting and decrypting data.**/
     private final Cipher cryptoEngine;
+    /**Engine used only by the prefetcher, so it never shares a cipher with another thread, or null if one hasn't been created or provided yet.**/
+    private Cipher prefetchEngine;
+    /**The key the prefetcher's engine is created from the first time prefetching is turned on, or null if the manager was created from an already initialized engine.**/
+    private final SecretKeySpec prefetchKey;
     /**Internal counter used by the encryption engine.**/
     private final byte[] counter;
     /**The key-stream values for the current block.**/
     private final byte[] keyStream;
     /**The current offset being read within the file (in bytes).**/
     private long currentPosition;
+    /**Counter blocks for computing a range's key-stream directly, allocated the first time a range is processed.**/
+    private byte[] rangeCounters;
+    /**The key-stream computed for a range.**/
+    private byte[] rangeKeyStream;
+    /**Scratch space that sections of buffers are copied into to be processed in bulk, allocated the first time a buffer is processed.**/
+    private byte[] bufferScratch;
+    /**Flag for whether sequential reads should be prefetched.**/
+    private boolean prefetching;
+    /**The position the last read ended at, for detecting sequential reads.**/
+    private long lastReadEnd;
+    /**The number of sequential reads in a row.**/
+    private int sequentialReads;
+    /**The prefetcher reading ahead of the manager, or null if nothing is being prefetched.**/
+    private Prefetcher prefetcher;
 
     /**
      * Creates a new manager for interacting with the file.
@@ -44,9 +107,12 @@ class FileManager
     {
         try
         {
-            //Initialize the crypto engine, and erase the key.
+            //Initialize the crypto engine, and erase the key. The prefetcher's engine is only created if prefetching is turned on, since most managers never prefetch.
+            SecretKeySpec keySpec = new SecretKeySpec(HashEnginePool.digest(key), "AES");
             cryptoEngine = Cipher.getInstance("AES/ECB/NoPadding");
-            cryptoEngine.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(HashEnginePool.digest(key), "AES"));
+            cryptoEngine.init(Cipher.ENCRYPT_MODE, keySpec);
+            prefetchEngine = null;
+            prefetchKey = keySpec;
             Arrays.fill(key, (byte)255);
 
             //Initialize the counter with the provided IV, and erase the IV.
@@ -57,6 +123,15 @@ class FileManager
             file = abstractFile;
             keyStream = new byte[16];
             currentPosition = 0;
+            rangeCounters = null;
+            rangeKeyStream = null;
+            bufferScratch = null;
+            prefetching = false;
+            lastReadEnd = -1;
+            sequentialReads = 0;
+            prefetcher = null;
+            //Calculate the key-stream for the first block.
+            calculateKeystream();
         } catch(NoSuchAlgorithmException|NoSuchPaddingException cipherException)
         {
             throw new IllegalStateException("Platform doesn't support AES/ECB/NoPadding", cipherException);
@@ -67,6 +142,42 @@ class FileManager
         }
     }
 
+    /**
+     * Creates a new manager for interacting with the file, using an already initialized encryption engine. This skips setting up the engine, so it's far cheaper than deriving it from a key.
+     * @param abstractFile Reference to the actual file.
+     * @param engine An AES/ECB/NoPadding cipher initialized for encryption with the file's key (see Keyring). It must not be used by any other thread while this manager is in use.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+    **/
+    FileManager(AbstractFile abstractFile, Cipher engine, byte[] iv)
+    {
+        try
+        {
+            cryptoEngine = engine;
+            prefetchEngine = null;
+            prefetchKey = null;
+
+            //Initialize the counter with the provided IV, and erase the IV.
+            counter = new byte[16];
+            System.arraycopy(iv, 0, counter, 0, 16);
+
+            file = abstractFile;
+            keyStream = new byte[16];
+            currentPosition = 0;
+            rangeCounters = null;
+            rangeKeyStream = null;
+            bufferScratch = null;
+            prefetching = false;
+            lastReadEnd = -1;
+            sequentialReads = 0;
+            prefetcher = null;
+            //Calculate the key-stream for the first block.
+            calculateKeystream();
+        } finally{
+            //Ensure that the provided IV was erased.
+            Arrays.fill(iv, (byte)255);
+        }
+    }
+
     /**
      * Encrypts or decrypts a single byte of data.
      * @param data The byte to be processed.
@@ -104,13 +215,19 @@ class FileManager
     final int process(byte[] data, int offset, int length)
     {
         int count = 0;
-        for(;count < length; count++)
+        while(count < length)
         {
-            //XOR the byte with the key-stream.
-            data[count + offset] ^= keyStream[(int)(currentPosition++ % 16)];
+            //XOR the rest of the current key-stream block into the data.
+            int start = (int)(currentPosition % 16);
+            int end = Math.min(16, start + (length - count));
+            for(int i = start; i < end; i++)
+            {
+                data[offset + count++] ^= keyStream[i];
+            }
+            currentPosition += end - start;
 
             //Calculate the next key-stream block if the current one has been used up.
-            if(currentPosition % 16 == 0)
+            if(end == 16)
             {
                 incrementCounter();
             }
@@ -119,49 +236,168 @@ class FileManager
     }
 
     /**
-     * Shifts the counter forward or backwards by the specified amount.
-     * @param offset The amount to shift the counter by relatively, positive for forwards, negative for backwards.
+     * Encrypts or decrypts the provided section of a buffer in place, without moving the buffer's position.
+     * @param data Buffer of bytes to be processed. Note that the new values are directly written back into the provided buffer.
+     * @param offset The absolute index to begin processing within the buffer.
+     * @param length The number of bytes to process from the buffer.
+     * @return The number of bytes successfully processed.
     **/
-    private final void shiftCounter(long offset)
+    final int process(ByteBuffer data, int offset, int length)
     {
-        if(offset == 1)
+        if(bufferScratch == null)
         {
-            //Increment the counter.
-            incrementCounter();
-        } else{
-            //Convert the offset from a long to a byte array.
-            byte[] b = new byte[8];
-            for(int i = 0; i < 8; i++)
+            bufferScratch = new byte[RANGE_BLOCKS * 16];
+        }
+        //Copy the section onto the heap in bulk a chunk at a time, instead of getting and putting each byte through the buffer.
+        for(int count = 0; count < length;)
+        {
+            int chunk = Math.min(bufferScratch.length, length - count);
+            data.get(offset + count, bufferScratch, 0, chunk);
+            process(bufferScratch, 0, chunk);
+            data.put(offset + count, bufferScratch, 0, chunk);
+            count += chunk;
+        }
+        return length;
+    }
+
+    /**
+     * Encrypts or decrypts data from an arbitrary position in the file. The key-stream for the data is computed directly from it's position, a batch of blocks at a time, so the manager's own position and counter are left as they are.
+     * @param position The position in the file the data is from.
+     * @param data Array of bytes to be processed. Note that the new values are directly written back into the provided array.
+     * @param offset The offset to begin processing within the data array.
+     * @param length The number of bytes to process from the array.
+     * @return The number of bytes successfully processed.
+    **/
+    final int processAt(long position, byte[] data, int offset, int length)
+    {
+        if(rangeCounters == null)
+        {
+            rangeCounters = new byte[RANGE_BLOCKS * 16];
+            rangeKeyStream = new byte[RANGE_BLOCKS * 16];
+        }
+        applyKeyStream(cryptoEngine, counter, currentPosition / 16, position, data, offset, length, rangeCounters, rangeKeyStream);
+        return length;
+    }
+
+    /**
+     * XORs data from an arbitrary position in the file with it's key-stream, computing the key-stream directly from a known counter.
+     * @param engine The engine to compute the key-stream with.
+     * @param base The counter for a known block.
+     * @param baseBlock The index of the block the base counter is for.
+     * @param position The position in the file the data is from.
+     * @param data Array of bytes to be processed, which are written back into the array.
+     * @param offset The offset to begin processing within the data array.
+     * @param length The number of bytes to process from the array.
+     * @param counters Scratch space for laying out counter blocks, RANGE_BLOCKS blocks long.
+     * @param keyStream Scratch space for the computed key-stream, RANGE_BLOCKS blocks long.
+    **/
+    private static final void applyKeyStream(Cipher engine, byte[] base, long baseBlock, long position, byte[] data, int offset, int length, byte[] counters, byte[] keyStream)
+    {
+        long block = position / 16;
+        int skip = (int)(position % 16);
+        int done = 0;
+        while(done < length)
+        {
+            int blocks = Math.min(RANGE_BLOCKS, (skip + (length - done) + 15) / 16);
+            //Lay out the counter for each block, starting from the known counter.
+            offsetCounter(base, counters, block - baseBlock);
+            for(int i = 1; i < blocks; i++)
             {
-                b[i] = (byte)((offset >> (8 * i)) & 0xff);
+                System.arraycopy(counters, (i - 1) * 16, counters, i * 16, 16);
+                increment(counters, i * 16);
+            }
+            try
+            {
+                engine.doFinal(counters, 0, blocks * 16, keyStream, 0);
+            } catch(IllegalBlockSizeException|BadPaddingException|ShortBufferException blockException)
+            {
+                throw new IllegalStateException("Illegal counter size!", blockException);
             }
-            //Ignore the sign bit.
-            b[7] &= 0b01111111;
 
-            //Shift the counter.
-            if(offset > 0)
+            //XOR the data with the key-stream.
+            int chunk = Math.min(length - done, (blocks * 16) - skip);
+            for(int i = 0; i < chunk; i++)
             {
-                add(b);
+                data[offset + done + i] ^= keyStream[skip + i];
+            }
+            done += chunk;
+            block += blocks;
+            skip = 0;
+        }
+    }
+
+    /**
+     * Computes the counter a number of blocks away from another counter.
+     * @param source The counter to start from.
+     * @param target The array to store the new counter in, at index 0.
+     * @param amount The number of blocks to move the counter by, positive for forwards, negative for backwards.
+    **/
+    private static final void offsetCounter(byte[] source, byte[] target, long amount)
+    {
+        //Add the amount one byte at a time as a 128bit number, so negative amounts borrow through every byte.
+        int carry = 0;
+        for(int i = 0; i < 16; i++)
+        {
+            int temp = (source[i] & 0xff) + ((i < 8)? (int)((amount >>> (8 * i)) & 0xff) : ((amount < 0)? 0xff : 0)) + carry;
+            target[i] = (byte)temp;
+            carry = (temp >>> 8);
+        }
+    }
+
+    /**
+     * Moves a counter forward by one block.
+     * @param counter The array holding the counter.
+     * @param offset The index the counter starts at in the array.
+    **/
+    private static final void increment(byte[] counter, int offset)
+    {
+        for(int i = offset; i < offset + 16; i++)
+        {
+            if(counter[i] == -1)
+            {
+                counter[i] = 0;
             } else{
-                subtract(b);
+                counter[i] = (byte)((counter[i] & 0xff) + 1);
+                break;
             }
         }
     }
 
+    /**
+     * Shifts the counter forward or backwards by the specified amount.
+     * @param offset The amount to shift the counter by relatively, positive for forwards, negative for backwards.
+    **/
+    private final void shiftCounter(long offset)
+    {
+        if(offset == 1)
+        {
+            //Increment the counter.
+            incrementCounter();
+        } else if(offset > 0)
+        {
+            add(offset);
+        } else if(offset < 0)
+        {
+            subtract(-offset);
+        }
+        //Seeking within the current block leaves the key-stream as it is.
+    }
+
     /**
      * Shifts the counter forward by the specified amount.
-     * @param b Byte array containing a base 256 number to shift the counter forward by. The length of this array must not be greater than 16 (length of the counter array).
+     * @param amount The number of blocks to shift the counter forward by, must not be negative.
     **/
-    private final void add(byte[] b)
+    private final void add(long amount)
     {
         boolean carry = false;
         int temp;
 
-        for(int i = 0; i < b.length; i++)
+        //Add the amount one byte at a time, carrying into the bytes past the end of the amount if needed.
+        for(int i = 0; (i < counter.length) && ((i < 8) || carry); i++)
         {
-            temp = (counter[i] & 0xff) + (b[i] & 0xff) + (carry? 1 : 0);
+            temp = (counter[i] & 0xff) + ((i < 8)? (int)((amount >>> (8 * i)) & 0xff) : 0) + (carry? 1 : 0);
             carry = (temp > 255);
-            counter[i] = (byte)(temp % 256);
+            counter[i] = (byte)temp;
         }
 
         //Calculate and store the key-stream for the new counter position.
@@ -170,18 +406,19 @@ class FileManager
 
     /**
      * Shifts the counter backwards by the specified amount.
-     * @param b Byte array containing a base 256 number to shift the counter backwards by. The length of this array must not be greater than 16 (length of the counter array).
+     * @param amount The number of blocks to shift the counter backwards by, must not be negative.
     **/
-    private final void subtract(byte[] b)
+    private final void subtract(long amount)
     {
         boolean carry = false;
         int temp;
 
-        for(int i = 0; i < b.length; i++)
+        //Subtract the amount one byte at a time, borrowing from the bytes past the end of the amount if needed.
+        for(int i = 0; (i < counter.length) && ((i < 8) || carry); i++)
         {
-            temp = (counter[i] & 0xff) - (b[i] & 0xff) - (carry? 1 : 0);
+            temp = (counter[i] & 0xff) - ((i < 8)? (int)((amount >>> (8 * i)) & 0xff) : 0) - (carry? 1 : 0);
             carry = (temp < 0);
-            counter[i] = (byte)(temp % 256);
+            counter[i] = (byte)temp;
         }
 
         //Calculate and store the key-stream for the new counter position.
@@ -194,16 +431,7 @@ class FileManager
     private final void incrementCounter()
     {
         //Move the counter forward by 1.
-        for(int i = 0; i < counter.length; i++)
-        {
-            if(counter[i] == -128)
-            {
-                counter[i] = 0;
-            } else{
-                counter[i] = (byte)((counter[i] & 0xff) + 1);
-                break;
-            }
-        }
+        increment(counter, 0);
 
         //Calculate and store the key-stream for the new counter position.
         calculateKeystream();
@@ -216,13 +444,129 @@ class FileManager
     {
         try
         {
-            System.arraycopy(cryptoEngine.doFinal(counter), 0, keyStream, 0, 16);
-        } catch(IllegalBlockSizeException|BadPaddingException blockException)
+            //Encrypt straight into the key-stream buffer, so no arrays are allocated.
+            cryptoEngine.doFinal(counter, 0, 16, keyStream, 0);
+        } catch(IllegalBlockSizeException|BadPaddingException|ShortBufferException blockException)
         {
             throw new IllegalStateException("Illegal counter size!", blockException);
         }
     }
 
+    /**
+     * Sets the listener that every read and write done through any manager is reported to. Only one listener can be set at a time.
+     * @param listener The listener to report reads and writes to, or null to stop reporting them.
+    **/
+    static final void setActivityListener(ActivityListener listener)
+    {
+        activityListener = listener;
+    }
+
+    /**
+     * Reports a read or write to the activity listener, if one's been set. Work that reads or writes archive files without going through a manager reports itself with this too.
+    **/
+    static final void reportActivity()
+    {
+        ActivityListener listener = activityListener;
+        if(listener != null)
+        {
+            listener.onActivity();
+        }
+    }
+
+    /**
+     * Turns prefetching on or off. Once it's on, and the file has been read sequentially a few times in a row, the blocks after the manager's position are read and decrypted on a background thread,
+     * so sequential readers find their data ready instead of waiting for the disk and the decryption. Seeking anywhere but forwards into prefetched data, or doing anything other than reading, stops it until reads are sequential again.
+     * The file mustn't be changed by anything else while it's being prefetched. Managers created from a key create the prefetcher's cipher the first time prefetching is turned on,
+     * but managers created from an already initialized engine have to be given a cipher of their own to prefetch with first (see setPrefetching(Cipher)).
+     * @param prefetching True to prefetch sequential reads.
+     * @throws IOException If prefetching was turned off and the file couldn't be repositioned.
+     * @throws IllegalStateException If prefetching was turned on, but the manager doesn't have a cipher to prefetch with.
+    **/
+    final void setPrefetching(boolean prefetching) throws IOException
+    {
+        if(!prefetching)
+        {
+            stopPrefetching();
+        } else if(prefetchEngine == null)
+        {
+            if(prefetchKey == null)
+            {
+                throw new IllegalStateException("Prefetching needs a cipher of it's own, since the manager's engine can be shared with other managers on it's thread.");
+            }
+            try
+            {
+                Cipher engine = Cipher.getInstance("AES/ECB/NoPadding");
+                engine.init(Cipher.ENCRYPT_MODE, prefetchKey);
+                prefetchEngine = engine;
+            } catch(NoSuchAlgorithmException|NoSuchPaddingException cipherException)
+            {
+                throw new IllegalStateException("Platform doesn't support AES/ECB/NoPadding", cipherException);
+            } catch(InvalidKeyException invalidKeyException)
+            {
+                throw new IllegalStateException("The manager's key was already accepted by it's own engine.", invalidKeyException);
+            }
+        }
+        this.prefetching = prefetching;
+    }
+
+    /**
+     * Turns prefetching on, with a cipher that's only used by the prefetcher. The manager's own engine can't be used on the prefetcher's thread when it was handed out by a Keyring, since the same cipher is cached for every manager on the calling thread.
+     * @param engine An AES/ECB/NoPadding cipher initialized for encryption with the file's key, that isn't used by anything else (see Keyring.createCipher).
+     * @throws IOException If the file couldn't be repositioned.
+    **/
+    final void setPrefetching(Cipher engine) throws IOException
+    {
+        stopPrefetching();
+        prefetchEngine = engine;
+        prefetching = true;
+    }
+
+    /**
+     * Counts a read at the current position towards the run of sequential reads, starting the prefetcher once the run is long enough.
+     * @throws IOException If the file's length couldn't be read.
+    **/
+    private final void trackRead() throws IOException
+    {
+        sequentialReads = ((currentPosition == lastReadEnd)? sequentialReads + 1 : 1);
+        if(prefetching && (sequentialReads >= SEQUENTIAL_THRESHOLD))
+        {
+            long length = file.length();
+            if(currentPosition < length)
+            {
+                prefetcher = new Prefetcher(length);
+                prefetchers.execute(prefetcher);
+            }
+        }
+    }
+
+    /**
+     * Stops the prefetcher if one is running, and moves the counter and the file-pointer back to the manager's position, since neither moves while the prefetcher's serving reads.
+     * @throws IOException If the file couldn't be repositioned.
+    **/
+    private final void stopPrefetching() throws IOException
+    {
+        sequentialReads = 0;
+        if(prefetcher == null)
+        {
+            return;
+        }
+        Prefetcher stopped = prefetcher;
+        prefetcher = null;
+        stopped.stop();
+        offsetCounter(stopped.baseCounter, counter, (currentPosition / 16) - stopped.baseBlock);
+        calculateKeystream();
+        file.seek(currentPosition);
+    }
+
+    /**
+     * Gets the file this manager is managing.
+     * @return The underlying file.
+    **/
+    final AbstractFile getFile()
+    {
+        return file;
+    }
+
     /**
      * Returns the file-pointer's current position in the file.
      * @return The current position the manager is at in the file.
@@ -234,14 +578,14 @@ class FileManager
 
     /**
      * Moves the manager to the specified position(in bytes).
-     * @param position The new position to move to in the file. Positive positions are measured from the start of the file, and negative positions are measured from the end.
+     * @param position The new position to move to in the file. Positive positions are measured from the start of the file, and negative positions are measured from the end (so -1 is EOF).
      * @throws IOException If the operation fails unexpectedly or is unsupported.
     **/
     final void seek(long position) throws IOException
     {
         if(position < 0)
         {
-            position = file.length() - position;
+            position = length() + 1 + position;
         }
         seekRelative(position - currentPosition);
     }
@@ -253,6 +597,17 @@ class FileManager
     **/
     final void seekRelative(long offset) throws IOException
     {
+        if(prefetcher != null)
+        {
+            //Skipping forward over data that's already prefetched doesn't break the sequence, anything else does.
+            if((offset >= 0) && prefetcher.skip(currentPosition + offset))
+            {
+                currentPosition += offset;
+                lastReadEnd = currentPosition;
+                return;
+            }
+            stopPrefetching();
+        }
         file.seek(currentPosition + offset);
         //Reposition the counter to the new offset.
         shiftCounter(((offset + currentPosition) / 16) - (currentPosition / 16));
@@ -267,7 +622,24 @@ class FileManager
     **/
     final byte readByte() throws IOException
     {
-        return process(file.readByte());
+        if(prefetcher != null)
+        {
+            int value = prefetcher.readByte();
+            if(value == -1)
+            {
+                throw new EOFException();
+            } else if(value != Prefetcher.MISS)
+            {
+                currentPosition++;
+                lastReadEnd = currentPosition;
+                return (byte)value;
+            }
+            //The prefetcher gave up, so carry on reading directly.
+            stopPrefetching();
+        }
+        byte data = process(file.readByte());
+        lastReadEnd = currentPosition;
+        return data;
     }
 
     /**
@@ -291,12 +663,85 @@ class FileManager
     **/
     final int readBytes(byte[] buffer, int offset, int length) throws IOException
     {
+        reportActivity();
+        if(prefetcher == null)
+        {
+            trackRead();
+        }
+        if(prefetcher != null)
+        {
+            int count = prefetcher.read(buffer, offset, length, null);
+            if(count != Prefetcher.MISS)
+            {
+                currentPosition += Math.max(count, 0);
+                lastReadEnd = currentPosition;
+                return count;
+            }
+            //The prefetcher gave up, so carry on reading directly.
+            stopPrefetching();
+        }
+
         //Read data from the file into the buffer.
         int count = file.readBytes(buffer, offset, length);
         //Decrypt the data.
-        process(buffer, 0, count);
+        process(buffer, offset, count);
+        lastReadEnd = currentPosition;
         return count;
+    }
 
+    /**
+     * Reads data from the file at the current position into the provided buffer and decrypts it. Bytes are stored from the buffer's position up to it's limit, and the buffer's position is advanced past them.
+     * @param buffer The buffer to read data into, which should be direct (see BufferPool) so the file's channel can fill it without copying.
+     * @return The number of bytes successfully read from the file, or -1 if the file is at EOF.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final int readBytes(ByteBuffer buffer) throws IOException
+    {
+        reportActivity();
+        if(prefetcher == null)
+        {
+            trackRead();
+        }
+        if(prefetcher != null)
+        {
+            int count = prefetcher.read(null, 0, buffer.remaining(), buffer);
+            if(count != Prefetcher.MISS)
+            {
+                currentPosition += Math.max(count, 0);
+                lastReadEnd = currentPosition;
+                return count;
+            }
+            //The prefetcher gave up, so carry on reading directly.
+            stopPrefetching();
+        }
+
+        int start = buffer.position();
+        //Read data from the file into the buffer.
+        int count = file.readBytes(buffer);
+        //Decrypt the data.
+        if(count > 0)
+        {
+            process(buffer, start, count);
+        }
+        lastReadEnd = currentPosition;
+        return count;
+    }
+
+    /**
+     * Reads several regions of the file at once and decrypts them (see AbstractFile.readRanges). Nearby ranges are read with a single I/O, and each range is decrypted with a key-stream computed directly from it's position,
+     * so neither the manager's position nor it's counter are moved, however scattered the ranges are.
+     * @param ranges The regions of the file to read, in any order. Each records how many bytes were read into it.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final void readRanges(List<ReadRange> ranges) throws IOException
+    {
+        reportActivity();
+        stopPrefetching();
+        file.readRanges(ranges);
+        for(ReadRange range : ranges)
+        {
+            processAt(range.getPosition(), range.getBuffer(), range.getOffset(), range.getCount());
+        }
     }
 
     /**
@@ -307,6 +752,7 @@ class FileManager
     **/
     final int writeByte(byte data) throws IOException
     {
+        stopPrefetching();
         return file.writeByte(process(data));
     }
 
@@ -331,12 +777,70 @@ class FileManager
     **/
     final int writeBytes(byte[] data, int offset, int length) throws IOException
     {
+        reportActivity();
+        stopPrefetching();
         //Encrypt the data.
         int count = process(data, offset, length);
         //Write the data to the file.
         return file.writeBytes(data, offset, count);
     }
 
+    /**
+     * Writes the bytes remaining in a buffer into the file at the current position, encrypting them first, and advances the buffer's position past them.
+     * @param data Buffer of bytes to write into the file. Note that encryption takes place in the provided buffer, so after the method returns the buffer will of been encrypted.
+     * @return The number of bytes successfully written to the file.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final int writeBytes(ByteBuffer data) throws IOException
+    {
+        reportActivity();
+        stopPrefetching();
+        //Encrypt the data.
+        process(data, data.position(), data.remaining());
+        //Write the data to the file.
+        return file.writeBytes(data);
+    }
+
+    /**
+     * Gets the current size of the underlying file, in bytes.
+     * @return The total number of bytes currently in the file.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final long length() throws IOException
+    {
+        if(prefetcher != null)
+        {
+            //The file can't change while it's being prefetched, and the prefetcher's the only thing allowed to touch it.
+            return prefetcher.fileLength;
+        }
+        return file.length();
+    }
+
+    /**
+     * Truncates or extends the underlying file to the specified length. If the manager is past the new end of the file, it's moved to EOF.
+     * @param length The new length of the file, in bytes.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final void truncate(long length) throws IOException
+    {
+        stopPrefetching();
+        file.setLength(length);
+        if(currentPosition > length)
+        {
+            seek(length);
+        }
+    }
+
+    /**
+     * Forces any data written through the manager out onto the file's storage medium, blocking until it's durable.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final void sync() throws IOException
+    {
+        stopPrefetching();
+        file.sync();
+    }
+
     /**
      * Computes a hash of the plain and cipher text of the file.
      * @return An array of hashes. The first hash is the file's unprocessed data, the second is the data after processing.
@@ -344,33 +848,120 @@ class FileManager
     **/
     final byte[][] hash() throws IOException
     {
+        stopPrefetching();
         //Reserve hash engines for the plain and cipher text of the file.
         int hash1 = HashEnginePool.reserveEngine(true);
         int hash2 = HashEnginePool.reserveEngine(true);
 
-        try
+        //Stage the file's data in a pooled off-heap buffer.
+        try(BufferPool.Buffer pooled = BufferPool.SHARED.acquire(65536))
         {
             //Move to the start of the file.
             seek(hashStart());
 
-            byte[] buffer = new byte[65536];
+            ByteBuffer buffer = pooled.get();
             int count;
             while(file.hasNext())
             {
                 //Read in the file's data.
+                buffer.clear();
                 count = file.readBytes(buffer);
+                if(count <= 0)
+                {
+                    break;
+                }
+                buffer.flip();
                 //Hash the cipher text.
-                HashEnginePool.update(hash1, buffer, 0, count);
+                HashEnginePool.update(hash1, buffer);
                 //Decrypt the data.
                 process(buffer, 0, count);
                 //Hash the plain text.
-                HashEnginePool.update(hash2, buffer, 0, count);
+                buffer.rewind();
+                HashEnginePool.update(hash2, buffer);
             }
 
+            //Finalizing the hashes releases their engines.
             return new byte[][] {HashEnginePool.digest(hash1), HashEnginePool.digest(hash2)};
-        } finally{
+        } catch(IOException|RuntimeException exception)
+        {
             HashEnginePool.releaseEngine(hash1);
             HashEnginePool.releaseEngine(hash2);
+            throw exception;
+        }
+    }
+
+    /**
+     * Computes a hash of the plain and cipher text of the file, handing the hashing and decryption off to a scheduler's CPU pool while the calling thread reads the next block.
+     * Engines are reserved from the HashEnginePool by blocking on a monitor, which would pin a virtual thread to it's carrier, so this creates it's own engines instead.
+     * @param scheduler The scheduler to run the hashing and decryption on.
+     * @return An array of hashes. The first hash is the file's unprocessed data, the second is the data after processing.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    final byte[][] hash(IoScheduler scheduler) throws IOException
+    {
+        stopPrefetching();
+        MessageDigest hash1;
+        MessageDigest hash2;
+        try
+        {
+            hash1 = MessageDigest.getInstance("SHA-256");
+            hash2 = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException noSuchAlgorithmException)
+        {
+            throw new IllegalStateException("256bit SHA not supported on this platform", noSuchAlgorithmException);
+        }
+
+        try(BufferPool.Buffer pooled = BufferPool.SHARED.acquire(65536);
+            BufferPool.Buffer nextPooled = BufferPool.SHARED.acquire(65536))
+        {
+            //Move to the start of the file.
+            seek(hashStart());
+
+            //One buffer is read into while the other is being hashed and decrypted.
+            ByteBuffer[] buffers = {pooled.get(), nextPooled.get()};
+            Future<Void> processing = null;
+            try
+            {
+                int current = 0;
+                while(file.hasNext())
+                {
+                    //Read in the file's data.
+                    ByteBuffer buffer = buffers[current];
+                    buffer.clear();
+                    int count = file.readBytes(buffer);
+                    if(count <= 0)
+                    {
+                        break;
+                    }
+                    buffer.flip();
+                    //Only one buffer is handed off at a time, so the engines are never used by two threads at once.
+                    if(processing != null)
+                    {
+                        IoScheduler.await(processing);
+                    }
+                    processing = scheduler.start(() ->
+                    {
+                        hash1.update(buffer);
+                        process(buffer, 0, count);
+                        buffer.rewind();
+                        hash2.update(buffer);
+                        return null;
+                    });
+                    current ^= 1;
+                }
+                if(processing != null)
+                {
+                    IoScheduler.await(processing);
+                }
+            } finally{
+                //The buffers go back to the pool once this block ends, so the CPU pool must be done with them even if reading failed.
+                IoScheduler.settle(processing);
+            }
+
+            return new byte[][] {hash1.digest(), hash2.digest()};
+        } catch(GeneralSecurityException securityException)
+        {
+            throw new IOException("Failed to hash file.", securityException);
         }
     }
 
@@ -382,4 +973,319 @@ class FileManager
     {
         return 0;
     }
+
+    /**
+     * Task that reads and decrypts the blocks after the manager's position on a background thread, into a small ring of ready blocks that reads are served from.
+     * The number of blocks kept ready adapts to the reader: it doubles whenever the reader has to wait for a block, and shrinks by one whenever the reader finds the ring already full,
+     * so fast readers stop waiting and slow ones don't hold onto memory (or waste reads when they seek away). While it's running, the prefetcher is the only thing that uses the file.
+     * Ready blocks are held in buffers from the shared BufferPool, so every prefetcher's memory counts towards the pool's cap, and each block is given back as soon as it's been read.
+    **/
+    private final class Prefetcher implements Runnable
+    {
+        /**Value returned by reads when the prefetcher stopped before reaching EOF, so the data has to be read directly.**/
+        static final int MISS = -2;
+
+        /**The counter for the block the prefetcher started at.**/
+        final byte[] baseCounter;
+        /**The index of the block the prefetcher started at.**/
+        final long baseBlock;
+        /**The length of the file.**/
+        final long fileLength;
+        /**The engine the prefetcher computes it's key-stream with.**/
+        private final Cipher engine;
+        /**Blocks that have been read and decrypted, in order.**/
+        private final ArrayDeque<Block> ready;
+        /**Buffer that each block is read and decrypted in, before it's copied into a pooled buffer.**/
+        private final byte[] scratch;
+        /**Counter blocks for computing the key-stream.**/
+        private final byte[] counters;
+        /**The computed key-stream.**/
+        private final byte[] keyStream;
+        /**Buffer for serving single byte reads.**/
+        private final byte[] single;
+        /**The position of the next block to read.**/
+        private long nextPosition;
+        /**The position the ready blocks end at.**/
+        private long readyEnd;
+        /**The number of blocks to keep ready.**/
+        private int window;
+        /**Flag for whether the prefetcher's been told to stop.**/
+        private boolean stopped;
+        /**Flag for whether the prefetcher's finished running.**/
+        private boolean finished;
+        /**Flag for whether the prefetcher reached EOF.**/
+        private boolean reachedEnd;
+        /**The error the prefetcher stopped with, if any.**/
+        private IOException failure;
+
+        /**
+         * Creates a new prefetcher starting at the manager's position.
+         * @param length The length of the file.
+        **/
+        Prefetcher(long length)
+        {
+            baseCounter = counter.clone();
+            baseBlock = currentPosition / 16;
+            fileLength = length;
+            engine = prefetchEngine;
+            ready = new ArrayDeque<>();
+            scratch = new byte[PREFETCH_BLOCK_SIZE];
+            counters = new byte[RANGE_BLOCKS * 16];
+            keyStream = new byte[RANGE_BLOCKS * 16];
+            single = new byte[1];
+            nextPosition = currentPosition;
+            readyEnd = currentPosition;
+            window = MIN_PREFETCH_WINDOW;
+            stopped = false;
+            finished = false;
+            reachedEnd = false;
+            failure = null;
+        }
+
+        /**
+         * Reads and decrypts blocks until the prefetcher's stopped, reaches EOF, or it's reader stops making room for long enough that it's presumed abandoned.
+        **/
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    synchronized(this)
+                    {
+                        long deadline = System.nanoTime() + PREFETCH_IDLE_TIMEOUT;
+                        while(!stopped && (ready.size() >= window))
+                        {
+                            long remaining = deadline - System.nanoTime();
+                            if(remaining <= 0)
+                            {
+                                return;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        }
+                        if(stopped)
+                        {
+                            return;
+                        }
+                    }
+
+                    int wanted = (int)Math.min(PREFETCH_BLOCK_SIZE, fileLength - nextPosition);
+                    int count = file.readAt(nextPosition, scratch, 0, wanted);
+                    applyKeyStream(engine, baseCounter, baseBlock, nextPosition, scratch, 0, count, counters, keyStream);
+                    BufferPool.Buffer pooled = BufferPool.SHARED.acquire(PREFETCH_BLOCK_SIZE);
+                    pooled.get().put(0, scratch, 0, count);
+
+                    synchronized(this)
+                    {
+                        if(stopped)
+                        {
+                            pooled.close();
+                            return;
+                        }
+                        ready.add(new Block(pooled, count));
+                        nextPosition += count;
+                        readyEnd = nextPosition;
+                        notifyAll();
+                        if((count < wanted) || (nextPosition >= fileLength))
+                        {
+                            reachedEnd = true;
+                            return;
+                        }
+                    }
+                }
+            } catch(IOException ioException)
+            {
+                synchronized(this)
+                {
+                    failure = ioException;
+                }
+            } catch(RuntimeException runtimeException)
+            {
+                synchronized(this)
+                {
+                    failure = new IOException("Prefetching failed.", runtimeException);
+                }
+            } catch(InterruptedException interruptedException)
+            {
+                //Stop, and let the reader carry on directly.
+            } finally{
+                synchronized(this)
+                {
+                    finished = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Copies prefetched data out of the ring, waiting for blocks that haven't been read yet. Exactly one of the array or the buffer is used.
+         * @param array The array to copy data into, or null to copy into the buffer.
+         * @param offset The offset to start copying into the array at.
+         * @param length The number of bytes to copy.
+         * @param buffer The buffer to copy data into, or null to copy into the array.
+         * @return The number of bytes copied, -1 if the reader's at EOF, or MISS if the prefetcher stopped before the reader's position.
+         * @throws IOException If the prefetcher failed to read or decrypt the data.
+        **/
+        final synchronized int read(byte[] array, int offset, int length, ByteBuffer buffer) throws IOException
+        {
+            if(length == 0)
+            {
+                return 0;
+            }
+            //A full ring means the prefetcher's been waiting on the reader, so it doesn't need to read as far ahead.
+            if(ready.size() >= window)
+            {
+                window = Math.max(MIN_PREFETCH_WINDOW, window - 1);
+            }
+
+            int total = 0;
+            boolean waited = false;
+            while(total < length)
+            {
+                Block head = ready.peek();
+                if(head == null)
+                {
+                    if(finished)
+                    {
+                        if(total > 0)
+                        {
+                            return total;
+                        }
+                        if(failure != null)
+                        {
+                            throw failure;
+                        }
+                        return (reachedEnd? -1 : MISS);
+                    }
+                    //The reader caught up with the prefetcher, so it needs to read further ahead.
+                    if(!waited)
+                    {
+                        window = Math.min(MAX_PREFETCH_WINDOW, window * 2);
+                        waited = true;
+                        notifyAll();
+                    }
+                    try
+                    {
+                        wait();
+                    } catch(InterruptedException interruptedException)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for prefetched data.");
+                    }
+                    continue;
+                }
+
+                int count = Math.min(length - total, head.end - head.start);
+                if(array != null)
+                {
+                    head.pooled.get().get(head.start, array, offset + total, count);
+                } else{
+                    buffer.put(buffer.position(), head.pooled.get(), head.start, count);
+                    buffer.position(buffer.position() + count);
+                }
+                head.start += count;
+                total += count;
+                if(head.start == head.end)
+                {
+                    ready.poll();
+                    head.pooled.close();
+                    notifyAll();
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Reads a single prefetched byte.
+         * @return The value of the byte read (from 0 to 255), -1 if the reader's at EOF, or MISS if the prefetcher stopped before the reader's position.
+         * @throws IOException If the prefetcher failed to read or decrypt the data.
+        **/
+        final synchronized int readByte() throws IOException
+        {
+            int count = read(single, 0, 1, null);
+            return ((count == 1)? (single[0] & 0xff) : count);
+        }
+
+        /**
+         * Skips forward over prefetched data, if the target position has already been prefetched.
+         * @param target The position the reader's moving to.
+         * @return True if the data before the target was skipped, false if the target hasn't been prefetched.
+        **/
+        final synchronized boolean skip(long target)
+        {
+            if(target > readyEnd)
+            {
+                return false;
+            }
+            long remaining = target - currentPosition;
+            while(remaining > 0)
+            {
+                Block head = ready.peek();
+                int count = (int)Math.min(remaining, head.end - head.start);
+                head.start += count;
+                remaining -= count;
+                if(head.start == head.end)
+                {
+                    ready.poll();
+                    head.pooled.close();
+                }
+            }
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Stops the prefetcher, waiting for it to finish any block it's in the middle of reading, and gives the blocks it had ready back to the pool.
+        **/
+        final synchronized void stop()
+        {
+            stopped = true;
+            notifyAll();
+            boolean interrupted = false;
+            while(!finished)
+            {
+                try
+                {
+                    wait();
+                } catch(InterruptedException interruptedException)
+                {
+                    interrupted = true;
+                }
+            }
+            for(Block block : ready)
+            {
+                block.pooled.close();
+            }
+            ready.clear();
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A prefetched block of decrypted data.
+    **/
+    private static final class Block
+    {
+        /**The pooled buffer holding the block's data.**/
+        final BufferPool.Buffer pooled;
+        /**The index of the first byte that hasn't been read yet.**/
+        int start;
+        /**The index the block's data ends at.**/
+        final int end;
+
+        /**
+         * Creates a new block.
+         * @param pooled The pooled buffer holding the block's data.
+         * @param end The number of bytes in the block.
+        **/
+        Block(BufferPool.Buffer pooled, int end)
+        {
+            this.pooled = pooled;
+            start = 0;
+            this.end = end;
+        }
+    }
 }
@@ -1,6 +1,7 @@
 
 package com.insertcreativity.archive;
 
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -80,10 +81,11 @@ final class HashEnginePool
     {
         synchronized(hashPool)
         {
-            if(available[engine])
+            if(!available[engine])
             {
-                available[engine] = false;
+                available[engine] = true;
                 hashPool[engine].reset();
+                hashPool.notifyAll();
             } else{
                 throw new IllegalStateException("The specified engine is already available.");
             }
@@ -121,6 +123,16 @@ final class HashEnginePool
         hashPool[engine].update(data, offset, length);
     }
 
+    /**
+     * Updates the specified engine's hash computation with the bytes remaining in a buffer, and advances the buffer's position to it's limit.
+     * @param engine The index of the engine to update.
+     * @param data Buffer of bytes to update the engine with.
+    **/
+    static final void update(int engine, ByteBuffer data)
+    {
+        hashPool[engine].update(data);
+    }
+
     /**
      * Completes the hash computation and resets the engine.
      * @param engine The index of the engine to finalize.
@@ -160,12 +172,7 @@ final class HashEnginePool
     static final byte[] digest(byte[] data)
     {
         int engine = reserveEngine(true);
-        try
-        {
-            return digest(engine, data);
-        } finally{
-            releaseEngine(engine);
-        }
+        return digest(engine, data);
     }
 
     /**
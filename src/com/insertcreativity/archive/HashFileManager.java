@@ -2,7 +2,13 @@
 package com.insertcreativity.archive;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Cipher;
 
 /**
  * Class for reading and updating hash tables of various archive files. Hash files are formatted as a list of hash entries.
@@ -14,6 +20,11 @@ import java.security.InvalidKeyException;
 **/
 final class HashFileManager extends FileManager
 {
+    /**The write-ahead log that updates are routed through, or null if updates are written directly.**/
+    private LogFileManager log;
+    /**Scratch buffer identifiers are read into while searching, so lookups don't allocate.**/
+    private final byte[] identifierBuffer;
+
     /**
      * Creates a new manager for interacting with hash files.
      * @param abstractFile Reference to the actual file.
@@ -24,6 +35,32 @@ final class HashFileManager extends FileManager
     HashFileManager(AbstractFile abstractFile, byte[] key, byte[] iv) throws InvalidKeyException
     {
         super(abstractFile, key, iv);
+        identifierBuffer = new byte[12];
+    }
+
+    /**
+     * Creates a new manager for interacting with hash files, using an already initialized encryption engine.
+     * @param abstractFile Reference to the actual file.
+     * @param engine An AES/ECB/NoPadding cipher initialized for encryption with the file's key (see Keyring). It must not be used by any other thread while this manager is in use.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+    **/
+    HashFileManager(AbstractFile abstractFile, Cipher engine, byte[] iv)
+    {
+        super(abstractFile, engine, iv);
+        identifierBuffer = new byte[12];
+    }
+
+    /**
+     * Writes the file's own entry into a new hash file, so the entries appended after it start where they're expected. Files that already have content are left as they are.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized void initialize() throws IOException
+    {
+        if(getFile().length() == 0)
+        {
+            seek(0);
+            writeBytes(new byte[32]);
+        }
     }
 
     /**
@@ -49,8 +86,8 @@ final class HashFileManager extends FileManager
         //Seek to where the hash entries begin
         seek(32);
 
-        //Allocate a buffer for reading identifiers in
-        byte[] buffer = new byte[12];
+        //Reuse the manager's buffer for reading identifiers in
+        byte[] buffer = identifierBuffer;
         int i;
 
         //Start reading through identifiers.
@@ -77,20 +114,94 @@ final class HashFileManager extends FileManager
     }
 
     /**
-     * Gets the hashes for a specified archive file.
+     * Lists the identifiers of every archive file that has an entry written in the file. Entries that are still waiting in the log aren't included until they're applied.
+     * @return The identifiers, in the order their entries appear in the file.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized List<byte[]> getIdentifiers() throws IOException
+    {
+        //Seek to where the hash entries begin
+        seek(32);
+
+        ArrayList<byte[]> identifiers = new ArrayList<>();
+        byte[] identifier = new byte[12];
+        while(readBytes(identifier) == 12)
+        {
+            identifiers.add(identifier.clone());
+            //Skip over the hash values.
+            seekRelative(32);
+        }
+        return identifiers;
+    }
+
+    /**
+     * Routes all future hash updates through a write-ahead log instead of writing them directly into the file. The log applies the updates to this file lazily.
+     * @param logFile The log to append hash updates into.
+    **/
+    final synchronized void attachLog(LogFileManager logFile)
+    {
+        log = logFile;
+    }
+
+    /**
+     * Gets the hashes for a specified archive file, including any updates that are still waiting in the log.
      * @param identifier The identifier of the file to retrieve hashes for.
      * @return The plain text hash and cipher text hash, stored together in a single array, or null if no hash entry exists for the specified identifier.
      * @throws IOException If the operation unexpectedly failed or is unsupported.
     **/
-    final byte[][] getHash(byte[] identifier) throws IOException
+    final synchronized byte[][] getHash(byte[] identifier) throws IOException
+    {
+        if(log != null)
+        {
+            byte[][] pendingHashes = log.getPendingHash(identifier);
+            if(pendingHashes != null)
+            {
+                return pendingHashes;
+            }
+        }
+        return readHash(identifier);
+    }
+
+    /**
+     * Gets the hashes for a specified archive file without allocating, including any updates that are still waiting in the log.
+     * @param identifier The identifier of the file to retrieve hashes for.
+     * @param plainHash Buffer to read the plain text hash into, must be at least 16 bytes.
+     * @param cipherHash Buffer to read the cipher text hash into, must be at least 16 bytes.
+     * @return True if the hashes were found, false if no hash entry exists for the specified identifier (in which case the buffers are left untouched).
+     * @throws IOException If the operation unexpectedly failed or is unsupported.
+    **/
+    final synchronized boolean getHash(byte[] identifier, byte[] plainHash, byte[] cipherHash) throws IOException
+    {
+        if((log != null) && log.getPendingHash(identifier, plainHash, cipherHash))
+        {
+            return true;
+        }
+        if(seekIdentifier(identifier))
+        {
+            if((readBytes(plainHash, 0, 16) != 16) || (readBytes(cipherHash, 0, 16) != 16))
+            {
+                throw new IOException("Failed to read in hash values completely.");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the hashes for a specified archive file that are currently written in the file.
+     * @param identifier The identifier of the file to retrieve hashes for.
+     * @return The plain text hash and cipher text hash, stored together in a single array, or null if no hash entry exists for the specified identifier.
+     * @throws IOException If the operation unexpectedly failed or is unsupported.
+    **/
+    private final byte[][] readHash(byte[] identifier) throws IOException
     {
         //If the identifier was found in the file.
         if(seekIdentifier(identifier))
         {
             //Read and return the hashes.
-            byte[] plainHash = new byte[12];
-            byte[] cipherHash = new byte[12];
-            if((readBytes(plainHash) != 12) || (readBytes(cipherHash) != 12))
+            byte[] plainHash = new byte[16];
+            byte[] cipherHash = new byte[16];
+            if((readBytes(plainHash) != 16) || (readBytes(cipherHash) != 16))
             {
                 throw new IOException("Failed to read in hash values completely.");
             }
@@ -102,20 +213,50 @@ final class HashFileManager extends FileManager
 
     /**
      * Updates the hash values for an archive file, or adds it's hashes into the file if it isn't currently listed.
+     * If a log is attached, the update is committed into the log and applied to the file later.
      * @param identifier The identifier of the file to update the hashes of.
      * @param hashes Array of the file's plain and cipher text hashes in that order.
      * @return An array of the previous hash values (plain and cipher in order), or null if there wasn't previously an entry for the file.
      * @throws IOException If the operation unexpectedly failed or is unsupported.
     **/
     final byte[][] updateHash(byte[] identifier, byte[][] hashes) throws IOException
+    {
+        byte[][] previousHashes;
+        long sequence;
+        synchronized(this)
+        {
+            if(log == null)
+            {
+                return writeHash(identifier, hashes);
+            }
+            previousHashes = getHash(identifier);
+            sequence = log.appendHash(identifier, hashes);
+        }
+        //Wait for the update to be durable outside the lock, so concurrent updates can be committed together.
+        log.commit(sequence);
+
+        return previousHashes;
+    }
+
+    /**
+     * Writes the hash values for an archive file directly into the file, or appends an entry for it if it isn't currently listed.
+     * @param identifier The identifier of the file to update the hashes of.
+     * @param hashes Array of the file's plain and cipher text hashes in that order.
+     * @return An array of the previous hash values (plain and cipher in order), or null if there wasn't previously an entry for the file.
+     * @throws IOException If the operation unexpectedly failed or is unsupported.
+    **/
+    final byte[][] writeHash(byte[] identifier, byte[][] hashes) throws IOException
     {
         //Get the previous hashes for the identifier.
-        byte[][] previousHashes = getHash(identifier);
+        byte[][] previousHashes = readHash(identifier);
         //Append the identifier at EOF if there isn't an entry for it already.
         if(previousHashes == null)
         {
             seek(-1);
             writeBytes(identifier);
+        } else{
+            //Move back over the hashes that were just read, so they're overwritten.
+            seekRelative(-32);
         }
         //Write the hashes into the entry.
         writeBytes(hashes[0]);
@@ -124,6 +265,50 @@ final class HashFileManager extends FileManager
         return previousHashes;
     }
 
+    /**
+     * Writes the hash values for many archive files directly into the file at once. Existing entries are found with a single pass over the file and overwritten in place, and the rest are appended.
+     * @param hashes Map of each file's plain and cipher text hashes in that order, keyed by the file's 12 byte identifier. The hash arrays are encrypted in place as they're written.
+     * @return Map of the position each file's hashes were written at, keyed by the file's identifier.
+     * @throws IOException If the operation unexpectedly failed or is unsupported.
+    **/
+    final synchronized HashMap<ByteBuffer, Long> writeHashes(Map<ByteBuffer, byte[][]> hashes) throws IOException
+    {
+        HashMap<ByteBuffer, Long> positions = new HashMap<>();
+
+        //Find the entries that already exist.
+        seek(32);
+        byte[] identifier = identifierBuffer;
+        while(readBytes(identifier) == 12)
+        {
+            ByteBuffer key = ByteBuffer.wrap(identifier);
+            if(hashes.containsKey(key) && !positions.containsKey(key))
+            {
+                positions.put(ByteBuffer.wrap(identifier.clone()), getPosition());
+            }
+            seekRelative(32);
+        }
+
+        for(Map.Entry<ByteBuffer, byte[][]> entry : hashes.entrySet())
+        {
+            Long position = positions.get(entry.getKey());
+            if(position == null)
+            {
+                //Append the identifier at EOF if there isn't an entry for it already.
+                byte[] appended = new byte[12];
+                entry.getKey().duplicate().get(appended);
+                seek(-1);
+                writeBytes(appended);
+                positions.put(entry.getKey(), getPosition());
+            } else{
+                seek(position);
+            }
+            writeBytes(entry.getValue()[0]);
+            writeBytes(entry.getValue()[1]);
+        }
+
+        return positions;
+    }
+
     /**
      * Returns the position directly after the hash file's own entry to avoid self-referencing hashing loops.
      * @return The position to start hashing the hash file at.
@@ -1,12 +1,218 @@
-
 package com.insertcreativity.archive;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.crypto.Cipher;
 
+/**
+ * Class for reading and updating index files, which record how archived files are laid out in storage. Index files are formatted as a list of entries.
+ * Each entry has the following structure:
+ *      - 1 byte for the type of the entry
+ *      - 12 bytes containing the generated archive file identifier for the file
+ *      - 4 bytes for the length of the payload
+ *      - The payload, whose format depends on the type of the entry
+ * A later entry replaces any earlier entry with the same type and identifier, and an entry with an empty payload removes the file's entry of that type. Entries are appended, except when a payload is replaced by one of the same length, which is overwritten in place.
+ * Chunk list payloads are a list of the file's chunks in order, each with 32 bytes for the chunk's hash, followed by 4 bytes for it's length.
+ * Pack extent payloads have 4 bytes for the number of the segment the file is packed into, 8 bytes for the file's offset in the segment, and 4 bytes for it's length.
+ * Block hash payloads have 4 bytes for the size of the blocks the file was hashed in, followed by the 32 byte SHA-256 hash of each block's plain text in order (see ContentPatcher).
+ * Pack segment payloads have 4 bytes for the number the pack store's next new segment will be given, and are recorded under an all-zero identifier.
+ * Extent map payloads have 8 bytes for the file's length, followed by 8 bytes for the number and 8 bytes for the nonce of each of the file's extents in order, where extent 0 marks a hole (see ExtentStore).
+**/
 final class IndexFileManager extends FileManager
 {
+    /**Entry type for the list of chunks that make up a deduplicated file.**/
+    static final byte CHUNK_LIST = 1;
+    /**Entry type for where a small file is packed into a segment file.**/
+    static final byte PACK_EXTENT = 2;
+    /**Entry type for the hashes of an encrypted file's blocks, which let it be patched in place.**/
+    static final byte BLOCK_HASHES = 3;
+    /**Entry type for the extents that make up a file or snapshot in an extent store.**/
+    static final byte EXTENT_MAP = 4;
+    /**Entry type for the number a pack store's next new segment will be given.**/
+    static final byte PACK_SEGMENT = 5;
+    /**The number of bytes in an entry's header (type, identifier, and payload length).**/
+    static final int ENTRY_HEADER_LENGTH = 17;
+
+    /**
+     * Creates a new manager for interacting with index files.
+     * @param abstractFile Reference to the actual file.
+     * @param key The key used to encrypt the file.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+     * @throws InvalidKeyException If the provided key isn't valid
+    **/
     IndexFileManager(AbstractFile abstractFile, byte[] key, byte[] iv) throws InvalidKeyException
     {
         super(abstractFile, key, iv);
     }
+
+    /**
+     * Creates a new manager for interacting with index files, using an already initialized encryption engine.
+     * @param abstractFile Reference to the actual file.
+     * @param engine An AES/ECB/NoPadding cipher initialized for encryption with the file's key (see Keyring). It must not be used by any other thread while this manager is in use.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+    **/
+    IndexFileManager(AbstractFile abstractFile, Cipher engine, byte[] iv)
+    {
+        super(abstractFile, engine, iv);
+    }
+
+    /**
+     * Gets the newest entry of a specific type for a file.
+     * @param type The type of entry to retrieve.
+     * @param identifier The identifier of the file to retrieve the entry of, only the first 12 bytes are used.
+     * @return The payload of the entry, or null if the file has no entry of that type.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized byte[] getEntry(byte type, byte[] identifier) throws IOException
+    {
+        //Seek to the start of the file.
+        seek(0);
+
+        //Allocate a buffer for reading entry headers.
+        byte[] header = new byte[ENTRY_HEADER_LENGTH];
+        byte[] payload = null;
+        int i;
+
+        while(readBytes(header) == ENTRY_HEADER_LENGTH)
+        {
+            int payloadLength = LogFileManager.getInt(header, 13);
+            if(header[0] == type)
+            {
+                //Compare the identifiers.
+                for(i = 0; i < 12; i++)
+                {
+                    if(header[i + 1] != identifier[i])
+                    {
+                        break;
+                    }
+                }
+                //If the identifiers matched, keep the entry in case there isn't a newer one.
+                if(i == 12)
+                {
+                    payload = new byte[payloadLength];
+                    if(readBytes(payload) != payloadLength)
+                    {
+                        throw new IOException("Failed to read in entry completely.");
+                    }
+                    continue;
+                }
+            }
+            //Skip the payload of entries that don't match.
+            seekRelative(payloadLength);
+        }
+
+        return (((payload == null) || (payload.length == 0))? null : payload);
+    }
+
+    /**
+     * Gets the newest entry of a specific type for every file that has one.
+     * @param type The type of entries to retrieve.
+     * @return Map of every file's entry payload, keyed by the file's identifier.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized HashMap<ByteBuffer, byte[]> getEntries(byte type) throws IOException
+    {
+        //Seek to the start of the file.
+        seek(0);
+
+        HashMap<ByteBuffer, byte[]> entries = new HashMap<>();
+        byte[] header = new byte[ENTRY_HEADER_LENGTH];
+        while(readBytes(header) == ENTRY_HEADER_LENGTH)
+        {
+            int payloadLength = LogFileManager.getInt(header, 13);
+            if(header[0] != type)
+            {
+                seekRelative(payloadLength);
+                continue;
+            }
+
+            byte[] identifier = new byte[12];
+            System.arraycopy(header, 1, identifier, 0, 12);
+            if(payloadLength == 0)
+            {
+                entries.remove(ByteBuffer.wrap(identifier));
+                continue;
+            }
+            byte[] payload = new byte[payloadLength];
+            if(readBytes(payload) != payloadLength)
+            {
+                throw new IOException("Failed to read in entry completely.");
+            }
+            entries.put(ByteBuffer.wrap(identifier), payload);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Appends a new entry for a file, replacing any earlier entry of the same type.
+     * @param type The type of the entry.
+     * @param identifier The identifier of the file the entry is for, only the first 12 bytes are used.
+     * @param payload The payload of the entry, or an empty array to remove the file's entry.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized void putEntry(byte type, byte[] identifier, byte[] payload) throws IOException
+    {
+        byte[] entry = new byte[ENTRY_HEADER_LENGTH + payload.length];
+        entry[0] = type;
+        System.arraycopy(identifier, 0, entry, 1, 12);
+        LogFileManager.putInt(entry, 13, payload.length);
+        System.arraycopy(payload, 0, entry, ENTRY_HEADER_LENGTH, payload.length);
+
+        //Append the entry at EOF.
+        seek(-1);
+        writeBytes(entry);
+    }
+
+    /**
+     * Overwrites the payload of a file's newest entry of a specific type in place, so entries that are updated over and over don't grow the file. Only payloads of the same length can be overwritten.
+     * @param type The type of the entry.
+     * @param identifier The identifier of the file the entry is for, only the first 12 bytes are used.
+     * @param payload The new payload of the entry, which isn't modified.
+     * @return True if the entry was overwritten, false if the file has no entry of that type or it's payload is a different length, in which case nothing is written.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized boolean replaceEntry(byte type, byte[] identifier, byte[] payload) throws IOException
+    {
+        //Seek to the start of the file.
+        seek(0);
+
+        //Find where the newest matching entry's payload is.
+        byte[] header = new byte[ENTRY_HEADER_LENGTH];
+        long payloadPosition = -1;
+        int payloadLength = -1;
+        while(readBytes(header) == ENTRY_HEADER_LENGTH)
+        {
+            int length = LogFileManager.getInt(header, 13);
+            if((header[0] == type) && Arrays.equals(header, 1, 13, identifier, 0, 12))
+            {
+                payloadPosition = getPosition();
+                payloadLength = length;
+            }
+            seekRelative(length);
+        }
+
+        if((payloadPosition < 0) || (payload.length == 0) || (payloadLength != payload.length))
+        {
+            return false;
+        }
+        //Payloads are encrypted in place as they're written, so write a copy.
+        seek(payloadPosition);
+        writeBytes(payload.clone());
+        return true;
+    }
+
+    /**
+     * Removes a file's entry of a specific type.
+     * @param type The type of the entry to remove.
+     * @param identifier The identifier of the file to remove the entry of, only the first 12 bytes are used.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final void removeEntry(byte type, byte[] identifier) throws IOException
+    {
+        putEntry(type, identifier, new byte[0]);
+    }
 }
@@ -0,0 +1,299 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class for scheduling I/O-bound file jobs separately from the CPU-bound work inside them. Every job runs on it's own virtual thread when the platform supports them, so tens of thousands of jobs can be waiting on the disk at once
+ * without each one costing a platform thread; on older platforms jobs fall back to a bounded pool of platform threads instead. Jobs wait on a semaphore for the file descriptors they need before they start, so the number of open files stays capped.
+ * Encryption and hashing are handed off to a small pool of platform threads (one per processor by default), so the CPU-heavy work never runs on more threads than there are cores to run it.
+**/
+final class IoScheduler
+{
+    /**The default limit on the number of files jobs can have open at once.**/
+    static final int DEFAULT_DESCRIPTORS = 1024;
+    /**The most platform threads jobs run on when virtual threads aren't supported.**/
+    private static final int FALLBACK_THREADS = 64;
+
+    /**Executor that runs each job, on a virtual thread if possible.**/
+    private final ExecutorService io;
+    /**Flag for whether jobs run on virtual threads.**/
+    private final boolean virtual;
+    /**Pool of platform threads that CPU-bound work is handed off to.**/
+    private final ExecutorService cpu;
+    /**Semaphore with a permit for every file descriptor jobs are allowed to hold.**/
+    private final Semaphore descriptors;
+    /**The total number of descriptor permits.**/
+    private final int descriptorCount;
+
+    /**
+     * Creates a new scheduler, with the default descriptor limit and one CPU thread per processor.
+    **/
+    IoScheduler()
+    {
+        this(DEFAULT_DESCRIPTORS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new scheduler.
+     * @param descriptorCount The limit on the number of files jobs can have open at once.
+     * @param cpuThreads The number of threads to run CPU-bound work on.
+    **/
+    IoScheduler(int descriptorCount, int cpuThreads)
+    {
+        if((descriptorCount < 1) || (cpuThreads < 1))
+        {
+            throw new IllegalArgumentException("Schedulers need at least one descriptor and one CPU thread.");
+        }
+        this.descriptorCount = descriptorCount;
+        //Fair, so jobs get their descriptors in the order they were submitted.
+        descriptors = new Semaphore(descriptorCount, true);
+
+        ExecutorService executor = createVirtualExecutor();
+        virtual = (executor != null);
+        if(executor == null)
+        {
+            //Without virtual threads every waiting job costs a platform thread, so only a bounded number are run at once.
+            int threads = Math.min(descriptorCount, FALLBACK_THREADS);
+            ThreadPoolExecutor fallback = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedFactory("Archive-IO", false));
+            fallback.allowCoreThreadTimeOut(true);
+            executor = fallback;
+        }
+        io = executor;
+        cpu = Executors.newFixedThreadPool(cpuThreads, new NamedFactory("Archive-CPU", true));
+    }
+
+    /**
+     * Looks up the platform's virtual thread executor. It's looked up reflectively so the archive still runs on platforms that don't have one.
+     * @return An executor that starts a new virtual thread for every task, or null if the platform doesn't support virtual threads.
+    **/
+    private static final ExecutorService createVirtualExecutor()
+    {
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(NoSuchMethodException|IllegalAccessException|InvocationTargetException lookupException)
+        {
+            //Either the method doesn't exist, or virtual threads are a preview feature that isn't enabled.
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether jobs are run on virtual threads.
+     * @return True if jobs run on virtual threads, false if they run on the fallback pool of platform threads.
+    **/
+    final boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * Submits a job, which waits for the file descriptors it needs before it starts, and gives them back once it's done.
+     * @param job The job to run.
+     * @param descriptorsNeeded The number of files the job opens at once.
+     * @return A future for the job's result.
+    **/
+    final <T> Future<T> submit(Callable<T> job, int descriptorsNeeded)
+    {
+        if((descriptorsNeeded < 0) || (descriptorsNeeded > descriptorCount))
+        {
+            throw new IllegalArgumentException("Jobs can't hold " + descriptorsNeeded + " of " + descriptorCount + " descriptors.");
+        }
+        return io.submit(() ->
+        {
+            descriptors.acquire(descriptorsNeeded);
+            try
+            {
+                return job.call();
+            } finally{
+                descriptors.release(descriptorsNeeded);
+            }
+        });
+    }
+
+    /**
+     * Runs CPU-bound work on the CPU pool, and waits for it to finish. Work started from a CPU thread is just run directly, so work can't deadlock waiting on itself.
+     * @param work The work to run.
+     * @return The work's result.
+     * @throws GeneralSecurityException If the work failed with a security exception.
+     * @throws IOException If the work failed with an I/O exception, or the calling thread was interrupted while waiting.
+    **/
+    final <T> T compute(Callable<T> work) throws GeneralSecurityException, IOException
+    {
+        return await(start(work));
+    }
+
+    /**
+     * Starts CPU-bound work on the CPU pool without waiting for it, so the calling thread can carry on reading or writing while it runs. Work started from a CPU thread is just run directly, so work can't deadlock waiting on itself.
+     * @param work The work to run.
+     * @return A future for the work's result, which should be waited on with await.
+    **/
+    final <T> Future<T> start(Callable<T> work)
+    {
+        if(Thread.currentThread() instanceof CpuThread)
+        {
+            FutureTask<T> task = new FutureTask<>(work);
+            task.run();
+            return task;
+        }
+        return cpu.submit(work);
+    }
+
+    /**
+     * Waits for work started with start to finish.
+     * @param work The future of the work to wait for.
+     * @return The work's result.
+     * @throws GeneralSecurityException If the work failed with a security exception.
+     * @throws IOException If the work failed with an I/O exception, or the calling thread was interrupted while waiting.
+    **/
+    static final <T> T await(Future<T> work) throws GeneralSecurityException, IOException
+    {
+        try
+        {
+            return work.get();
+        } catch(ExecutionException executionException)
+        {
+            return rethrow(executionException.getCause());
+        } catch(InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for CPU work.", interruptedException);
+        }
+    }
+
+    /**
+     * Waits for work started with start to finish, however it finishes. This is for cleaning up after a failure, since buffers handed to the work can't be released until it's done with them.
+     * The work isn't cancelled, since cancelling work that's already running doesn't stop it, and interrupts don't end the wait early, but they're restored once it's over.
+     * @param work The future of the work to wait for, or null if there isn't any.
+    **/
+    static final void settle(Future<?> work)
+    {
+        if(work == null)
+        {
+            return;
+        }
+        boolean interrupted = false;
+        while(true)
+        {
+            try
+            {
+                work.get();
+                break;
+            } catch(ExecutionException|CancellationException failure)
+            {
+                //The work failed, but it's finished with it's buffers either way.
+                break;
+            } catch(InterruptedException interruptedException)
+            {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rethrows the failure of a piece of work, wrapping any exception that can't be thrown directly.
+     * @param failure The failure to rethrow.
+     * @return Never returns.
+     * @throws GeneralSecurityException If the failure was a security exception.
+     * @throws IOException If the failure was an I/O exception, or any other checked exception.
+    **/
+    private static final <T> T rethrow(Throwable failure) throws GeneralSecurityException, IOException
+    {
+        if(failure instanceof GeneralSecurityException)
+        {
+            throw (GeneralSecurityException)failure;
+        } else if(failure instanceof IOException)
+        {
+            throw (IOException)failure;
+        } else if(failure instanceof RuntimeException)
+        {
+            throw (RuntimeException)failure;
+        } else if(failure instanceof Error)
+        {
+            throw (Error)failure;
+        }
+        throw new IOException("CPU work failed.", failure);
+    }
+
+    /**
+     * Shuts down the scheduler's threads. Jobs and work that were already submitted still run.
+    **/
+    final void shutdown()
+    {
+        io.shutdown();
+        cpu.shutdown();
+    }
+
+    /**
+     * Marker for the threads in the CPU pool.
+    **/
+    private static final class CpuThread extends Thread
+    {
+        /**
+         * Creates a new CPU thread.
+         * @param task The task the thread runs.
+         * @param name The name of the thread.
+        **/
+        CpuThread(Runnable task, String name)
+        {
+            super(task, name);
+        }
+    }
+
+    /**
+     * Factory for the scheduler's platform threads, which are numbered and don't keep the JVM alive.
+    **/
+    private static final class NamedFactory implements ThreadFactory
+    {
+        /**The prefix of each thread's name.**/
+        private final String prefix;
+        /**Flag for whether the threads are CPU threads.**/
+        private final boolean cpuThreads;
+        /**The number of threads created so far.**/
+        private final AtomicInteger count;
+
+        /**
+         * Creates a new thread factory.
+         * @param prefix The prefix of each thread's name.
+         * @param cpuThreads Flag for whether the threads are CPU threads.
+        **/
+        NamedFactory(String prefix, boolean cpuThreads)
+        {
+            this.prefix = prefix;
+            this.cpuThreads = cpuThreads;
+            count = new AtomicInteger();
+        }
+
+        /**
+         * Creates a new thread.
+         * @param task The task the thread runs.
+         * @return The new thread.
+        **/
+        public Thread newThread(Runnable task)
+        {
+            String name = prefix + '-' + count.incrementAndGet();
+            Thread thread = (cpuThreads? new CpuThread(task, name) : new Thread(task, name));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
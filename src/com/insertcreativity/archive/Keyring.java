@@ -0,0 +1,331 @@
+package com.insertcreativity.archive;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class for deriving subkeys from a master key, and caching ciphers initialized with them. Subkeys are derived with HKDF-SHA256 (RFC 5869): the master key is extracted into a pseudorandom key once,
+ * which every subkey is then expanded from using a context string, like the identifier of the archive or file it's for. Keyrings for a single archive can be derived from the master keyring, so each archive's keys are independent.
+ * Setting up a cipher (creating it and expanding it's key schedule) costs far more than encrypting a few blocks with it, so every thread keeps it's own bounded cache of initialized ciphers, and opening a file with an already cached subkey is nearly free.
+ * Subkeys are erased as soon as a cipher has been initialized with them, so only the pseudorandom key and the ciphers' internal key schedules are kept in memory.
+**/
+final class Keyring
+{
+    /**The default number of ciphers each thread caches.**/
+    static final int DEFAULT_CACHE_SIZE = 64;
+    /**The length of the subkeys that are derived, which are used as 256bit AES keys.**/
+    static final int SUBKEY_LENGTH = 32;
+    /**The length of the HMAC-SHA256 output.**/
+    private static final int HASH_LENGTH = 32;
+
+    /**The pseudorandom key that subkeys are expanded from.**/
+    private final byte[] pseudorandomKey;
+    /**The number of ciphers each thread caches.**/
+    private final int cacheSize;
+    /**The ciphers cached by each thread.**/
+    private final ThreadLocal<CipherCache> ciphers;
+    /**Every thread's cache, so they can all be cleared when the keyring is destroyed. Caches are only weakly referenced, so they're still dropped when their threads end.**/
+    private final Set<CipherCache> caches;
+    /**Flag for whether the keyring has been destroyed.**/
+    private volatile boolean destroyed;
+
+    /**
+     * Creates a new keyring from a master key.
+     * @param masterKey The master key to derive subkeys from. Note that it's erased once the keyring is created.
+     * @param salt Salt for extracting the master key, which should be random and stored alongside the archive. It can be empty, but not null.
+     * @throws InvalidKeyException If the salt can't be used as an HMAC key.
+    **/
+    Keyring(byte[] masterKey, byte[] salt) throws InvalidKeyException
+    {
+        try
+        {
+            //HKDF-Extract, an empty salt is replaced by a string of zeros.
+            byte[] extractKey = ((salt.length == 0)? new byte[HASH_LENGTH] : salt);
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(extractKey, "HmacSHA256"));
+            pseudorandomKey = mac.doFinal(masterKey);
+        } catch(NoSuchAlgorithmException noSuchAlgorithmException)
+        {
+            throw new IllegalStateException("Platform doesn't support HmacSHA256", noSuchAlgorithmException);
+        } finally{
+            Arrays.fill(masterKey, (byte)255);
+        }
+        cacheSize = DEFAULT_CACHE_SIZE;
+        caches = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<CipherCache, Boolean>()));
+        ciphers = createCache();
+    }
+
+    /**
+     * Creates a new keyring directly from a pseudorandom key.
+     * @param pseudorandomKey The pseudorandom key to expand subkeys from, which the keyring takes ownership of.
+     * @param cacheSize The number of ciphers each thread caches.
+    **/
+    private Keyring(byte[] pseudorandomKey, int cacheSize)
+    {
+        this.pseudorandomKey = pseudorandomKey;
+        this.cacheSize = cacheSize;
+        caches = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<CipherCache, Boolean>()));
+        ciphers = createCache();
+    }
+
+    /**
+     * Creates the thread-local cipher caches, registering each one so it can be cleared when the keyring is destroyed.
+     * @return The thread-local caches.
+    **/
+    private final ThreadLocal<CipherCache> createCache()
+    {
+        return new ThreadLocal<CipherCache>()
+        {
+            protected CipherCache initialValue()
+            {
+                CipherCache cache = new CipherCache(cacheSize);
+                caches.add(cache);
+                return cache;
+            }
+        };
+    }
+
+    /**
+     * Derives the keyring for a single archive. Keys derived from it are independent from the keys of every other archive.
+     * @param archive The identifier of the archive.
+     * @return The archive's keyring.
+     * @throws InvalidKeyException If the keyring has been destroyed.
+    **/
+    final Keyring deriveArchive(byte[] archive) throws InvalidKeyException
+    {
+        byte[] context = new byte[archive.length + 8];
+        System.arraycopy("archive:".getBytes(StandardCharsets.US_ASCII), 0, context, 0, 8);
+        System.arraycopy(archive, 0, context, 8, archive.length);
+        //An expanded key is uniformly random, so it can serve as the pseudorandom key of the archive's keyring.
+        return new Keyring(deriveKey(context, HASH_LENGTH), cacheSize);
+    }
+
+    /**
+     * Derives a subkey for a specific context with HKDF-Expand.
+     * @param context The context the key is for, like the identifier of the file it encrypts.
+     * @param length The length of the key to derive, at most 8160 bytes.
+     * @return The derived key, which the caller should erase once it's done with it.
+     * @throws InvalidKeyException If the keyring has been destroyed.
+    **/
+    final byte[] deriveKey(byte[] context, int length) throws InvalidKeyException
+    {
+        if(destroyed)
+        {
+            throw new InvalidKeyException("Keyring has been destroyed.");
+        }
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(pseudorandomKey, "HmacSHA256"));
+
+            byte[] key = new byte[length];
+            byte[] block = new byte[0];
+            for(int i = 0, offset = 0; offset < length; i++)
+            {
+                //T(i) = HMAC(PRK, T(i-1) | info | i)
+                mac.update(block);
+                mac.update(context);
+                mac.update((byte)(i + 1));
+                Arrays.fill(block, (byte)0);
+                block = mac.doFinal();
+                int count = Math.min(HASH_LENGTH, length - offset);
+                System.arraycopy(block, 0, key, offset, count);
+                offset += count;
+            }
+            Arrays.fill(block, (byte)0);
+            return key;
+        } catch(NoSuchAlgorithmException noSuchAlgorithmException)
+        {
+            throw new IllegalStateException("Platform doesn't support HmacSHA256", noSuchAlgorithmException);
+        }
+    }
+
+    /**
+     * Gets a cipher initialized with the subkey for a specific context, ready to be handed to a FileManager. Ciphers are cached per thread,
+     * so the cipher must only be used by the calling thread, and FileManagers created with it must stay on the calling thread too.
+     * @param context The context the key is for, like the identifier of the file it encrypts.
+     * @return An AES/ECB/NoPadding cipher, initialized for encryption with the context's subkey.
+     * @throws InvalidKeyException If the keyring has been destroyed.
+    **/
+    final Cipher getCipher(byte[] context) throws InvalidKeyException
+    {
+        CipherCache cache = ciphers.get();
+        //The cache is only contended when the keyring is being destroyed, which clears it from another thread.
+        synchronized(cache)
+        {
+            if(destroyed)
+            {
+                throw new InvalidKeyException("Keyring has been destroyed.");
+            }
+            Cipher cipher = cache.get(context);
+            if(cipher == null)
+            {
+                cipher = createCipher(context);
+                cache.put(context, cipher);
+            }
+            return cipher;
+        }
+    }
+
+    /**
+     * Creates a new cipher initialized with the subkey for a specific context, without caching it. This is for managers that outlive a single call and can be used from any thread, which can't share a thread's cached cipher.
+     * @param context The context the key is for, like the identifier of the file it encrypts.
+     * @return An AES/ECB/NoPadding cipher, initialized for encryption with the context's subkey.
+     * @throws InvalidKeyException If the keyring has been destroyed.
+    **/
+    final Cipher createCipher(byte[] context) throws InvalidKeyException
+    {
+        byte[] key = deriveKey(context, SUBKEY_LENGTH);
+        try
+        {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            return cipher;
+        } catch(NoSuchAlgorithmException|NoSuchPaddingException cipherException)
+        {
+            throw new IllegalStateException("Platform doesn't support AES/ECB/NoPadding", cipherException);
+        } finally{
+            Arrays.fill(key, (byte)255);
+        }
+    }
+
+    /**
+     * Gets a cipher initialized with the subkey for a named context.
+     * @param context The name of the context the key is for.
+     * @return An AES/ECB/NoPadding cipher, initialized for encryption with the context's subkey.
+     * @throws InvalidKeyException If the keyring has been destroyed.
+     * @see #getCipher(byte[])
+    **/
+    final Cipher getCipher(String context) throws InvalidKeyException
+    {
+        return getCipher(context.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Erases the keyring's pseudorandom key, and drops every thread's cached ciphers. Ciphers that were already handed out stay usable until their callers drop them.
+    **/
+    final void destroy()
+    {
+        destroyed = true;
+        Arrays.fill(pseudorandomKey, (byte)255);
+        CipherCache[] registered;
+        synchronized(caches)
+        {
+            registered = caches.toArray(new CipherCache[0]);
+        }
+        for(CipherCache cache : registered)
+        {
+            synchronized(cache)
+            {
+                cache.clear();
+            }
+        }
+        ciphers.remove();
+    }
+
+    /**
+     * A single thread's cache of ciphers, keyed by their context, which evicts it's least recently used cipher when full.
+     * Lookups compare contexts through a reusable probe, so finding a cached cipher doesn't allocate anything. Caches use identity equality, so they can be tracked in a weak set.
+    **/
+    private static final class CipherCache
+    {
+        /**The cached ciphers, in least recently used order.**/
+        private final LinkedHashMap<Context, Cipher> entries;
+        /**Reusable key for looking up contexts without copying them.**/
+        private final Context probe;
+
+        /**
+         * Creates a new empty cache.
+         * @param capacity The number of ciphers the cache holds before evicting any.
+        **/
+        CipherCache(int capacity)
+        {
+            entries = new LinkedHashMap<Context, Cipher>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(Map.Entry<Context, Cipher> eldest)
+                {
+                    return size() > capacity;
+                }
+            };
+            probe = new Context();
+        }
+
+        /**
+         * Gets the cipher cached for a context.
+         * @param context The context to look up.
+         * @return The cached cipher, or null if there isn't one.
+        **/
+        final Cipher get(byte[] context)
+        {
+            probe.set(context);
+            Cipher cipher = entries.get(probe);
+            probe.set(null);
+            return cipher;
+        }
+
+        /**
+         * Caches a cipher for a context.
+         * @param context The context the cipher is for, which is copied.
+         * @param cipher The cipher to cache.
+        **/
+        final void put(byte[] context, Cipher cipher)
+        {
+            Context key = new Context();
+            key.set(context.clone());
+            entries.put(key, cipher);
+        }
+
+        /**
+         * Drops every cached cipher.
+        **/
+        final void clear()
+        {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Map key wrapping a context's bytes, with it's hash computed once when it's set.
+    **/
+    private static final class Context
+    {
+        /**The bytes of the context.**/
+        private byte[] bytes;
+        /**The hash of the context's bytes.**/
+        private int hash;
+
+        /**
+         * Sets the context's bytes.
+         * @param bytes The bytes of the context, which aren't copied.
+        **/
+        final void set(byte[] bytes)
+        {
+            this.bytes = bytes;
+            hash = Arrays.hashCode(bytes);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object other)
+        {
+            return (other instanceof Context) && Arrays.equals(bytes, ((Context)other).bytes);
+        }
+    }
+
+}
@@ -4,16 +4,36 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * Class for interfacing with archives stored in a local file system.
+ * Class for interfacing with archives stored in a local file system. Files are opened through the shared FileHandlePool, so any number of local files can exist at once without running out of file descriptors;
+ * files that haven't been used recently have their descriptors closed, and are reopened where they left off the next time they're used.
+ * The file-pointer's position and the file's length and attributes are tracked locally, so checking them doesn't cost a system call; this assumes the file isn't changed by anything else while it's open.
 **/
 public class LocalFile extends AbstractFile
 {
     /**Reference to the underlying file.**/
     private final File file;
-    /**Object for accessing the file's contents.**/
-    private final RandomAccessFile raf;
+    /**The mode the file's opened in, which children listed from it are opened in too.**/
+    private final String mode;
+    /**Pooled handle for accessing the file's contents, or null if the file is a directory.**/
+    private final FileHandlePool.Handle handle;
+    /**Registration that closes the handle if the file is garbage collected without being closed.**/
+    private final Cleaner.Cleanable cleanable;
+    /**The directory containing the file, created the first time it's needed.**/
+    private LocalFile parent;
+    /**The file's cached attributes, or null if they haven't been read since the file was last written to.**/
+    private FileAttributes attributes;
+    /**The position of the file-pointer.**/
+    private long position;
+    /**The cached length of the file, or -1 if it hasn't been read yet.**/
+    private long length;
 
     /**
      * Resolves the file object at the specified address.
@@ -66,12 +86,43 @@ public class LocalFile extends AbstractFile
     public LocalFile(File address, String mode) throws FileNotFoundException
     {
         file = address;
+        this.mode = mode;
         if(file.isDirectory())
         {
-            raf = new RandomAccessFile(file, mode);
+            handle = null;
+            cleanable = null;
         } else{
-            raf = null;
+            handle = FileHandlePool.SHARED.open(file, mode);
+            cleanable = registerCleanup(handle::closeQuietly);
         }
+        parent = null;
+        attributes = null;
+        position = 0;
+        length = -1;
+    }
+
+    /**
+     * Creates a new file interface to a local file that was found by listing it's parent. The file isn't opened until it's first used.
+     * @param parent The directory the file was listed from.
+     * @param attributes The file's attributes, as they were read while listing.
+    **/
+    private LocalFile(LocalFile parent, FileAttributes attributes)
+    {
+        file = new File(parent.file, attributes.getName());
+        mode = parent.mode;
+        if(attributes.isDirectory())
+        {
+            handle = null;
+            cleanable = null;
+            length = -1;
+        } else{
+            handle = FileHandlePool.SHARED.register(file, mode);
+            cleanable = registerCleanup(handle::closeQuietly);
+            length = attributes.getSize();
+        }
+        this.parent = parent;
+        this.attributes = attributes;
+        position = 0;
     }
 
     /**
@@ -81,30 +132,39 @@ public class LocalFile extends AbstractFile
     **/
     public boolean hasNext() throws IOException
     {
-        if(file.isDirectory())
+        if(handle == null)
         {
             return false;
         }
-        return (raf.getFilePointer() != raf.length());
+        return (position < length());
     }
 
     /**
-     * Returns whether or not this file is a directory.
+     * Returns whether or not this file is a directory, as it was when the file was opened.
      * @return True if the file is a directory.
     **/
     public boolean isDirectory()
     {
-        return file.isDirectory();
+        return (handle == null);
     }
 
     /**
-     * Gets the directory that contains this file.
+     * Gets the directory that contains this file. The same object is returned every time.
      * @return The parent containing this file, if none exists (like if this is a root), returns null.
      * @throws IOException If the operation fails or is unsupported.
     **/
     public AbstractFile getParent() throws IOException
     {
-        return new LocalFile(file.getParentFile());
+        if(parent == null)
+        {
+            File parentFile = file.getAbsoluteFile().getParentFile();
+            if(parentFile == null)
+            {
+                return null;
+            }
+            parent = new LocalFile(parentFile);
+        }
+        return parent;
     }
 
     /**
@@ -118,6 +178,44 @@ public class LocalFile extends AbstractFile
         return new LocalFile(new File(file, name));
     }
 
+    /**
+     * Lists the files in this directory. The directory is enumerated with a single directory stream, and the listed files are handed back with their attributes already cached and without being opened.
+     * @return The files in this directory, or an empty list if this isn't a directory.
+     * @throws IOException If the directory couldn't be listed.
+    **/
+    public List<AbstractFile> listChildren() throws IOException
+    {
+        if(handle != null)
+        {
+            return Collections.emptyList();
+        }
+        List<FileAttributes> entries = FileAttributes.list(file);
+        ArrayList<AbstractFile> children = new ArrayList<>(entries.size());
+        for(FileAttributes entry : entries)
+        {
+            children.add(new LocalFile(this, entry));
+        }
+        return children;
+    }
+
+    /**
+     * Gets the file's name, type, size and modification time all at once. The attributes are cached until the file is next written to.
+     * @return The file's attributes.
+     * @throws IOException If the file's attributes couldn't be read.
+    **/
+    public FileAttributes getAttributes() throws IOException
+    {
+        if(attributes == null)
+        {
+            attributes = FileAttributes.read(file.toPath());
+            if((handle != null) && (length < 0))
+            {
+                length = attributes.getSize();
+            }
+        }
+        return attributes;
+    }
+
     /**
      * Returns the name of the file.
      * @return The name of the file.
@@ -143,7 +241,21 @@ public class LocalFile extends AbstractFile
     **/
     public long length() throws IOException
     {
-        return raf.length();
+        if(handle == null)
+        {
+            return getAttributes().getSize();
+        }
+        if(length < 0)
+        {
+            RandomAccessFile raf = acquire();
+            try
+            {
+                length = raf.length();
+            } finally{
+                handle.release();
+            }
+        }
+        return length;
     }
 
     /**
@@ -151,9 +263,9 @@ public class LocalFile extends AbstractFile
      * @return The current position of the file-pointer.
      * @throws IOException If the operation fails or is unsupported.
     **/
-    public long getPosition() throws IOException
+    public long getPosition()
     {
-        return raf.getFilePointer();
+        return position;
     }
 
     /**
@@ -163,7 +275,14 @@ public class LocalFile extends AbstractFile
     **/
     public void seek(long position) throws IOException
     {
-        raf.seek(position);
+        RandomAccessFile raf = acquire();
+        try
+        {
+            raf.seek(position);
+            this.position = position;
+        } finally{
+            handle.release();
+        }
     }
 
     /**
@@ -174,7 +293,15 @@ public class LocalFile extends AbstractFile
     **/
     public byte readByte() throws IOException
     {
-        return raf.readByte();
+        RandomAccessFile raf = acquire();
+        try
+        {
+            byte data = raf.readByte();
+            position++;
+            return data;
+        } finally{
+            handle.release();
+        }
     }
 
     /**
@@ -187,7 +314,18 @@ public class LocalFile extends AbstractFile
     **/
     public int readBytes(byte[] buffer, int offset, int length) throws IOException
     {
-        return raf.read(buffer, offset, length);
+        RandomAccessFile raf = acquire();
+        try
+        {
+            int count = raf.read(buffer, offset, length);
+            if(count > 0)
+            {
+                position += count;
+            }
+            return count;
+        } finally{
+            handle.release();
+        }
     }
 
     /**
@@ -198,8 +336,19 @@ public class LocalFile extends AbstractFile
     **/
     public int writeByte(byte data) throws IOException
     {
-        raf.write(data);
-        return 1;
+        RandomAccessFile raf = acquire();
+        try
+        {
+            raf.write(data);
+            written(1);
+            return 1;
+        } catch(IOException ioException)
+        {
+            resync(raf);
+            throw ioException;
+        } finally{
+            handle.release();
+        }
     }
 
     /**
@@ -212,8 +361,177 @@ public class LocalFile extends AbstractFile
     **/
     public int writeBytes(byte[] data, int offset, int length) throws IOException
     {
-        raf.write(data, offset, length);
-        return length;
+        RandomAccessFile raf = acquire();
+        try
+        {
+            raf.write(data, offset, length);
+            written(length);
+            return length;
+        } catch(IOException ioException)
+        {
+            resync(raf);
+            throw ioException;
+        } finally{
+            handle.release();
+        }
+    }
+
+    /**
+     * Reads a consecutive series of bytes from the file into the buffer through the file's channel, so direct buffers are filled without being copied.
+     * @param buffer The buffer to read bytes into, from it's position up to it's limit.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int readBytes(ByteBuffer buffer) throws IOException
+    {
+        RandomAccessFile raf = acquire();
+        try
+        {
+            int count = raf.getChannel().read(buffer);
+            if(count > 0)
+            {
+                position += count;
+            }
+            return count;
+        } finally{
+            handle.release();
+        }
+    }
+
+    /**
+     * Writes the bytes remaining in a buffer into the file through the file's channel, so direct buffers are written without being copied.
+     * @param data The buffer to write bytes from.
+     * @return The number of bytes successfully written into the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int writeBytes(ByteBuffer data) throws IOException
+    {
+        RandomAccessFile raf = acquire();
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            int count = 0;
+            while(data.hasRemaining())
+            {
+                count += channel.write(data);
+            }
+            written(count);
+            return count;
+        } catch(IOException ioException)
+        {
+            resync(raf);
+            throw ioException;
+        } finally{
+            handle.release();
+        }
+    }
+
+    /**
+     * Reads a region of the file with positional reads on the file's channel, so the file-pointer isn't moved.
+     * @param position The position in the file to start reading at.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes to read.
+     * @return The number of bytes read, which is only less than the length requested if EOF was reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    protected int readAt(long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        RandomAccessFile raf = acquire();
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+            while(target.hasRemaining())
+            {
+                if(channel.read(target, position + (target.position() - offset)) == -1)
+                {
+                    break;
+                }
+            }
+            return (target.position() - offset);
+        } finally{
+            handle.release();
+        }
+    }
+
+    /**
+     * Truncates or extends the file to the specified length. If the file is extended, the contents of the extended portion are undefined.
+     * @param length The new length of the file, in bytes.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public void setLength(long length) throws IOException
+    {
+        RandomAccessFile raf = acquire();
+        try
+        {
+            raf.setLength(length);
+            this.length = length;
+            position = Math.min(position, length);
+            attributes = null;
+        } finally{
+            handle.release();
+        }
+    }
+
+    /**
+     * Acquires the file's open RandomAccessFile from it's pooled handle, which must be released afterwards.
+     * @return The open file.
+     * @throws IOException If the file is a directory, or it's handle couldn't be acquired.
+    **/
+    private final RandomAccessFile acquire() throws IOException
+    {
+        if(handle == null)
+        {
+            throw new IOException("File " + file + " is a directory.");
+        }
+        return handle.acquire();
+    }
+
+    /**
+     * Updates the file's tracked state after bytes are written into it at the file-pointer.
+     * @param count The number of bytes written.
+    **/
+    private final void written(int count)
+    {
+        position += count;
+        if((length >= 0) && (position > length))
+        {
+            length = position;
+        }
+        attributes = null;
+    }
+
+    /**
+     * Re-reads the file's tracked state after a write failed part way through, since it's unknown how much of the write made it into the file.
+     * @param raf The file's open RandomAccessFile.
+    **/
+    private final void resync(RandomAccessFile raf)
+    {
+        length = -1;
+        attributes = null;
+        try
+        {
+            position = raf.getFilePointer();
+        } catch(IOException ioException)
+        {
+            //The file's unusable anyway, the original error is what gets reported.
+        }
+    }
+
+    /**
+     * Forces any data written into the file out onto the underlying storage device, blocking until it's durable.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public void sync() throws IOException
+    {
+        RandomAccessFile raf = acquire();
+        try
+        {
+            raf.getFD().sync();
+        } finally{
+            handle.release();
+        }
     }
 
     /**
@@ -222,6 +540,10 @@ public class LocalFile extends AbstractFile
     **/
     public void close() throws IOException
     {
-        raf.close();
+        if(handle != null)
+        {
+            handle.close();
+            cleanable.clean();
+        }
     }
 }
@@ -1,12 +1,1198 @@
-
 package com.insertcreativity.archive;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
 
+/**
+ * Class for managing the write-ahead log of an archive. Updates to hash and metadata files are appended to the log as records, and only applied to the files themselves lazily by a background thread.
+ * Concurrent writers have their records batched together and made durable with a single sync (group commit), so update throughput is bound by sequential log bandwidth instead of random writes.
+ * Periodic checkpoints record a consistent point across the hash, metadata and index files, so recovery only has to replay the records written after the last one, and the log is compacted down to those records afterwards.
+ * Log files start with a 16 byte header, containing 8 bytes for the position recovery starts reading records from (or 0 if there's no checkpoint), and 8 bytes for the sequence number of the last checkpoint record.
+ * The start position is that of the oldest record that hadn't been applied when the checkpoint was taken, which can come before the checkpoint record itself.
+ * The header is followed by a list of records, each with the following structure:
+ *      - 1 byte for the type of the record
+ *      - 8 bytes for the record's sequence number
+ *      - 4 bytes for the length of the payload
+ *      - The payload
+ *      - 4 bytes containing a CRC32 checksum of all the preceding bytes in the record
+ * Hash update payloads are the 12 byte file identifier, followed by the plain and cipher text hashes (of equal length).
+ * Metadata update payloads are 1 byte for the length of the key, followed by the key, and then the value.
+ * Event payloads are a list of serialized audit events (see EventLogger), and are never applied to any file.
+ * Checkpoint payloads are 8 bytes for the sequence number every update has been applied through, followed by 8 bytes each for the lengths of the hash, metadata and index files at that point.
+ * They end with 8 bytes for the index file's length at the previous checkpoint, and 8 bytes for a CRC32 checksum of the index file's (encrypted) bytes between the two lengths, since the index is only ever appended to.
+**/
 final class LogFileManager extends FileManager
 {
+    /**Record type for updates to a hash file.**/
+    static final byte HASH_UPDATE = 1;
+    /**Record type for updates to a metadata file.**/
+    static final byte METADATA_UPDATE = 2;
+    /**Record type for checkpoints.**/
+    static final byte CHECKPOINT = 3;
+    /**Record type for batches of audit events.**/
+    static final byte EVENTS = 4;
+    /**The number of bytes in the log file's header.**/
+    static final int LOG_HEADER_LENGTH = 16;
+    /**The number of bytes in a record's header (type, sequence number, and payload length).**/
+    static final int HEADER_LENGTH = 13;
+    /**The number of bytes in a record's trailing checksum.**/
+    static final int CHECKSUM_LENGTH = 4;
+    /**The number of bytes of live records copied at a time while compacting the log.**/
+    private static final int COMPACT_CHUNK_SIZE = 65536;
+
+    /**Records that have been appended but not yet written into the log. Also used as the lock for all of the log's in-memory state.**/
+    private final ArrayList<Record> pending;
+    /**Updates that are in the log but haven't been applied to their files yet, keyed by the file identifier.**/
+    private final HashMap<ByteBuffer, Record> pendingHashes;
+    /**Updates that are in the log but haven't been applied to their files yet, keyed by the metadata key.**/
+    private final HashMap<ByteBuffer, Record> pendingMetadata;
+    /**Reusable key that identifiers are copied into to look up their pending hashes, so lookups don't allocate. Only used while holding the pending lock.**/
+    private final ByteBuffer hashProbe;
+    /**Reusable key that metadata keys are copied into to look up their pending values, so lookups don't allocate. Only used while holding the pending lock.**/
+    private final ByteBuffer metadataProbe;
+    /**Durable updates that still need to be applied to their files, in sequence order. Records that don't update a file are never queued.**/
+    private final ArrayDeque<Record> unapplied;
+    /**Engine used for computing record checksums.**/
+    private final CRC32 checksum;
+    /**The sequence number that will be assigned to the next appended record.**/
+    private long nextSequence;
+    /**The highest sequence number that's been durably written into the log.**/
+    private long durableSequence;
+    /**The ranges of sequence numbers that were lost because writing them into the log failed, keyed by the first sequence number of each range.**/
+    private final TreeMap<Long, Long> failedSequences;
+    /**Flag for whether a thread is currently writing a group of records into the log.**/
+    private boolean flushing;
+    /**The position of the end of the log, or -1 if it hasn't been read from the file yet.**/
+    private long tailPosition;
+    /**The number of bytes compaction has removed from the front of the log. Records remember their position as if nothing had been removed, so it stays valid while the log is compacted.**/
+    private long compactedLength;
+    /**The highest sequence number that's been applied to its file, every update before it has also been applied.**/
+    private long appliedSequence;
+    /**The sequence number of the last checkpoint record.**/
+    private long checkpointSequence;
+    /**The length of the index file at the last checkpoint.**/
+    private long checkpointIndexLength;
+    /**The number of applied updates between automatic checkpoints, or 0 to disable automatic checkpoints.**/
+    private long checkpointInterval;
+    /**Lock held while applying updates or taking checkpoints, so only one thread can be doing either at a time.**/
+    private final Object applyLock;
+
+    /**The hash file that hash updates are applied to.**/
+    private HashFileManager hashFile;
+    /**The metadata file that metadata updates are applied to.**/
+    private MetadataFileManager metadataFile;
+    /**The index file that's included in checkpoints, or null if there isn't one.**/
+    private IndexFileManager indexFile;
+    /**Thread that lazily applies durable records to their files.**/
+    private Thread applier;
+    /**The number of unapplied records that cause the applier to run immediately.**/
+    private int applyThreshold;
+    /**The longest time (in milliseconds) a durable record can wait before being applied.**/
+    private long applyDelay;
+    /**The first exception thrown while applying records in the background, or null if none have occurred.**/
+    private IOException applyFailure;
+
+    /**
+     * Creates a new manager for interacting with log files.
+     * @param abstractFile Reference to the actual file.
+     * @param key The key used to encrypt the file.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+     * @throws InvalidKeyException If the provided key isn't valid
+    **/
     LogFileManager(AbstractFile abstractFile, byte[] key, byte[] iv) throws InvalidKeyException
     {
         super(abstractFile, key, iv);
+        pending = new ArrayList<>();
+        pendingHashes = new HashMap<>();
+        pendingMetadata = new HashMap<>();
+        hashProbe = ByteBuffer.allocate(12);
+        metadataProbe = ByteBuffer.allocate(255);
+        unapplied = new ArrayDeque<>();
+        checksum = new CRC32();
+        nextSequence = 1;
+        durableSequence = 0;
+        failedSequences = new TreeMap<>();
+        flushing = false;
+        tailPosition = -1;
+        compactedLength = 0;
+        appliedSequence = 0;
+        checkpointSequence = 0;
+        checkpointIndexLength = 0;
+        checkpointInterval = 65536;
+        applyLock = new Object();
+        applyThreshold = 1024;
+        applyDelay = 1000;
+    }
+
+    /**
+     * Appends a hash update into the log. The update isn't durable until it's been committed.
+     * @param identifier The identifier of the file the hashes belong to, only the first 12 bytes are used.
+     * @param hashes Array of the file's plain and cipher text hashes in that order.
+     * @return The sequence number assigned to the update.
+    **/
+    final long appendHash(byte[] identifier, byte[][] hashes)
+    {
+        byte[] payload = new byte[12 + hashes[0].length + hashes[1].length];
+        System.arraycopy(identifier, 0, payload, 0, 12);
+        System.arraycopy(hashes[0], 0, payload, 12, hashes[0].length);
+        System.arraycopy(hashes[1], 0, payload, 12 + hashes[0].length, hashes[1].length);
+        return append(HASH_UPDATE, payload, ByteBuffer.wrap(payload, 0, 12).slice()).sequence;
+    }
+
+    /**
+     * Appends a metadata update into the log. The update isn't durable until it's been committed.
+     * @param key The metadata key to update the value of.
+     * @param value The value of the metadata.
+     * @return The sequence number assigned to the update.
+    **/
+    final long appendMetadata(byte[] key, byte[] value)
+    {
+        byte[] payload = new byte[1 + key.length + value.length];
+        payload[0] = (byte)key.length;
+        System.arraycopy(key, 0, payload, 1, key.length);
+        System.arraycopy(value, 0, payload, 1 + key.length, value.length);
+        return append(METADATA_UPDATE, payload, ByteBuffer.wrap(payload, 1, key.length).slice()).sequence;
+    }
+
+    /**
+     * Appends a batch of serialized audit events into the log. The events aren't durable until they've been committed.
+     * @param events The serialized events.
+     * @return The sequence number assigned to the batch.
+    **/
+    final long appendEvents(byte[] events)
+    {
+        return append(EVENTS, events, null).sequence;
+    }
+
+    /**
+     * Appends a record into the log's pending group, and records it as the newest value for its key.
+     * @param type The type of record being appended.
+     * @param payload The payload of the record.
+     * @param key The key of the value the record updates, or null if it doesn't update a value.
+     * @return The appended record.
+    **/
+    private final Record append(byte type, byte[] payload, ByteBuffer key)
+    {
+        synchronized(pending)
+        {
+            Record record = new Record(type, nextSequence++, payload, key);
+            pending.add(record);
+            if(type == HASH_UPDATE)
+            {
+                pendingHashes.put(key, record);
+            } else if(type == METADATA_UPDATE)
+            {
+                pendingMetadata.put(key, record);
+            }
+            return record;
+        }
+    }
+
+    /**
+     * Gets the newest logged hashes for a file that haven't been applied to the hash file yet.
+     * @param identifier The identifier of the file to retrieve hashes for, only the first 12 bytes are used.
+     * @return The plain text hash and cipher text hash, stored together in a single array, or null if there's no unapplied update for the file.
+    **/
+    final byte[][] getPendingHash(byte[] identifier)
+    {
+        synchronized(pending)
+        {
+            Record record = findPendingHash(identifier);
+            if(record == null)
+            {
+                return null;
+            }
+            int hashLength = (record.payload.length - 12) / 2;
+            byte[] plainHash = new byte[hashLength];
+            byte[] cipherHash = new byte[hashLength];
+            System.arraycopy(record.payload, 12, plainHash, 0, hashLength);
+            System.arraycopy(record.payload, 12 + hashLength, cipherHash, 0, hashLength);
+            return new byte[][] {plainHash, cipherHash};
+        }
+    }
+
+    /**
+     * Copies the newest logged hashes for an archive file that haven't been applied to the hash file yet into the provided buffers, without allocating.
+     * @param identifier The identifier of the file to retrieve hashes for.
+     * @param plainHash Buffer to copy the plain text hash into, must be at least 16 bytes.
+     * @param cipherHash Buffer to copy the cipher text hash into, must be at least 16 bytes.
+     * @return True if there was an unapplied update for the file, false if the buffers were left untouched.
+    **/
+    final boolean getPendingHash(byte[] identifier, byte[] plainHash, byte[] cipherHash)
+    {
+        synchronized(pending)
+        {
+            Record record = findPendingHash(identifier);
+            if(record == null)
+            {
+                return false;
+            }
+            int hashLength = (record.payload.length - 12) / 2;
+            System.arraycopy(record.payload, 12, plainHash, 0, hashLength);
+            System.arraycopy(record.payload, 12 + hashLength, cipherHash, 0, hashLength);
+            return true;
+        }
+    }
+
+    /**
+     * Gets the newest logged value for a metadata key that hasn't been applied to the metadata file yet.
+     * @param key The metadata key to retrieve the value of.
+     * @return The logged metadata value, or null if there's no unapplied update for the key.
+    **/
+    final byte[] getPendingMetadata(byte[] key)
+    {
+        synchronized(pending)
+        {
+            Record record = findPendingMetadata(key);
+            if(record == null)
+            {
+                return null;
+            }
+            byte[] value = new byte[record.payload.length - 1 - key.length];
+            System.arraycopy(record.payload, 1 + key.length, value, 0, value.length);
+            return value;
+        }
+    }
+
+    /**
+     * Copies the newest logged value for a metadata key that hasn't been applied to the metadata file yet into the provided buffer, without allocating.
+     * @param key The metadata key to retrieve the value of.
+     * @param value Buffer to copy the value into.
+     * @param offset The offset to start copying the value into the buffer at.
+     * @return The length of the value, or -1 if there's no unapplied update for the key. If the value is longer than the space left in the buffer, nothing is copied and the value's length is still returned.
+    **/
+    final int getPendingMetadata(byte[] key, byte[] value, int offset)
+    {
+        synchronized(pending)
+        {
+            Record record = findPendingMetadata(key);
+            if(record == null)
+            {
+                return -1;
+            }
+            int valueLength = record.payload.length - 1 - key.length;
+            if(valueLength <= value.length - offset)
+            {
+                System.arraycopy(record.payload, 1 + key.length, value, offset, valueLength);
+            }
+            return valueLength;
+        }
+    }
+
+    /**
+     * Looks up the newest unapplied hash update for a file. The caller must hold the pending lock.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return The newest unapplied update, or null if there isn't one.
+    **/
+    private final Record findPendingHash(byte[] identifier)
+    {
+        hashProbe.clear();
+        hashProbe.put(identifier, 0, 12).flip();
+        return pendingHashes.get(hashProbe);
+    }
+
+    /**
+     * Looks up the newest unapplied update for a metadata key. The caller must hold the pending lock.
+     * @param key The metadata key.
+     * @return The newest unapplied update, or null if there isn't one.
+    **/
+    private final Record findPendingMetadata(byte[] key)
+    {
+        //Keys longer than 255 bytes can't be stored, so they're never logged.
+        if(key.length > metadataProbe.capacity())
+        {
+            return null;
+        }
+        metadataProbe.clear();
+        metadataProbe.put(key).flip();
+        return pendingMetadata.get(metadataProbe);
+    }
+
+    /**
+     * Blocks until the record with the specified sequence number (and every record before it) is durable.
+     * If no other thread is currently writing into the log, the calling thread writes every pending record as a single group, otherwise it waits for the current group to finish and tries again.
+     * @param sequence The sequence number of the record to wait for.
+     * @throws InterruptedIOException If the thread was interrupted while waiting, the record may still be written by another thread.
+     * @throws IOException If the record couldn't be written into the log.
+    **/
+    final void commit(long sequence) throws IOException
+    {
+        while(true)
+        {
+            ArrayList<Record> group;
+            synchronized(pending)
+            {
+                //Wait for any group that's currently being written.
+                while(flushing && (durableSequence < sequence))
+                {
+                    try
+                    {
+                        pending.wait();
+                    } catch(InterruptedException interruptedException)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for record " + sequence + " to be written into the log.");
+                    }
+                }
+                //Only the groups that failed were lost, records before and after them are still durable.
+                Map.Entry<Long, Long> failed = failedSequences.floorEntry(sequence);
+                if((failed != null) && (sequence <= failed.getValue()))
+                {
+                    throw new IOException("Failed to write record " + sequence + " into the log.");
+                }
+                if(sequence <= durableSequence)
+                {
+                    return;
+                }
+
+                //Take every pending record and write them as one group.
+                flushing = true;
+                group = new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            long firstSequence = group.get(0).sequence;
+            long lastSequence = group.get(group.size() - 1).sequence;
+            boolean written = false;
+            try
+            {
+                writeGroup(group);
+                written = true;
+            } finally{
+                synchronized(pending)
+                {
+                    flushing = false;
+                    if(written)
+                    {
+                        durableSequence = lastSequence;
+                        //Queue the updates while still holding the lock, so groups always reach the applier in sequence order.
+                        synchronized(unapplied)
+                        {
+                            for(Record record : group)
+                            {
+                                if((record.type == HASH_UPDATE) || (record.type == METADATA_UPDATE))
+                                {
+                                    unapplied.add(record);
+                                }
+                            }
+                            if(unapplied.size() >= applyThreshold)
+                            {
+                                unapplied.notifyAll();
+                            }
+                        }
+                    } else{
+                        failedSequences.put(firstSequence, lastSequence);
+                        //Discard the lost updates so they aren't read or applied.
+                        for(Record record : group)
+                        {
+                            discard(record);
+                        }
+                    }
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Serializes a group of records, writes them to the end of the log in a single write, and syncs the log.
+     * @param group The records to write into the log, in sequence order.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private final synchronized void writeGroup(ArrayList<Record> group) throws IOException
+    {
+        int size = 0;
+        for(Record record : group)
+        {
+            size += HEADER_LENGTH + record.payload.length + CHECKSUM_LENGTH;
+        }
+
+        byte[] buffer = new byte[size];
+        int offset = 0;
+        for(Record record : group)
+        {
+            offset = serialize(record, buffer, offset);
+        }
+
+        if(tailPosition < 0)
+        {
+            openTail();
+        }
+        seek(tailPosition);
+        writeBytes(buffer);
+        sync();
+
+        //Record where each record was written.
+        for(Record record : group)
+        {
+            record.position = tailPosition + compactedLength;
+            tailPosition += HEADER_LENGTH + record.payload.length + CHECKSUM_LENGTH;
+        }
+    }
+
+    /**
+     * Finds the end of the log, writing an empty header first if the log is new. Must be called while holding the file lock.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private final void openTail() throws IOException
+    {
+        tailPosition = length();
+        if(tailPosition < LOG_HEADER_LENGTH)
+        {
+            writeHeader(0, 0);
+            tailPosition = LOG_HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Writes the log's header, and syncs it. Must be called while holding the file lock.
+     * @param position The position of the last checkpoint record, or 0 if there isn't one.
+     * @param sequence The sequence number of the last checkpoint record, or 0 if there isn't one.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private final void writeHeader(long position, long sequence) throws IOException
+    {
+        byte[] header = new byte[LOG_HEADER_LENGTH];
+        putLong(header, 0, position);
+        putLong(header, 8, sequence);
+        seek(0);
+        writeBytes(header);
+        sync();
+    }
+
+    /**
+     * Serializes a record into the provided buffer.
+     * @param record The record to serialize.
+     * @param buffer The buffer to write the record into.
+     * @param offset The offset to start writing the record at within the buffer.
+     * @return The offset in the buffer directly after the record.
+    **/
+    private final int serialize(Record record, byte[] buffer, int offset)
+    {
+        int start = offset;
+        buffer[offset++] = record.type;
+        putLong(buffer, offset, record.sequence);
+        offset += 8;
+        putInt(buffer, offset, record.payload.length);
+        offset += 4;
+        System.arraycopy(record.payload, 0, buffer, offset, record.payload.length);
+        offset += record.payload.length;
+
+        checksum.reset();
+        checksum.update(buffer, start, offset - start);
+        putInt(buffer, offset, (int)checksum.getValue());
+        return offset + CHECKSUM_LENGTH;
+    }
+
+    /**
+     * Sets the files that logged updates are applied to, and starts a background thread that lazily applies durable updates to them and periodically takes checkpoints.
+     * On restart, the log should be recovered before it's attached.
+     * @param hashes The hash file that hash updates are applied to.
+     * @param metadata The metadata file that metadata updates are applied to.
+     * @param index The index file that's included in checkpoints, or null if there isn't one.
+    **/
+    final void attach(HashFileManager hashes, MetadataFileManager metadata, IndexFileManager index)
+    {
+        synchronized(unapplied)
+        {
+            if(applier != null)
+            {
+                throw new IllegalStateException("The log is already attached to files.");
+            }
+            hashFile = hashes;
+            metadataFile = metadata;
+            indexFile = index;
+
+            applier = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    runApplier();
+                }
+            }, "archive-log-applier");
+            applier.setDaemon(true);
+            applier.start();
+        }
+    }
+
+    /**
+     * Sets when the background thread applies durable updates to their files.
+     * @param threshold The number of unapplied updates that cause them to be applied immediately.
+     * @param delay The longest time (in milliseconds) a durable update can wait before being applied.
+    **/
+    final void setApplyPolicy(int threshold, long delay)
+    {
+        synchronized(unapplied)
+        {
+            applyThreshold = threshold;
+            applyDelay = delay;
+            unapplied.notifyAll();
+        }
+    }
+
+    /**
+     * Sets how often the background thread automatically takes checkpoints.
+     * @param interval The number of applied updates between checkpoints, or 0 to disable automatic checkpoints.
+    **/
+    final void setCheckpointInterval(long interval)
+    {
+        synchronized(unapplied)
+        {
+            checkpointInterval = interval;
+        }
+    }
+
+    /**
+     * Body of the background applier thread. Waits for enough updates to accumulate (or for enough time to pass) and then applies them, taking a checkpoint whenever enough have been applied.
+     * The thread stops if it's interrupted, or once applying fails, since every later update would fail the same way. The failure is then reported by apply.
+    **/
+    private final void runApplier()
+    {
+        while(true)
+        {
+            boolean shouldCheckpoint;
+            synchronized(unapplied)
+            {
+                if(applier != Thread.currentThread())
+                {
+                    return;
+                }
+                if(unapplied.size() < applyThreshold)
+                {
+                    try
+                    {
+                        unapplied.wait(applyDelay);
+                    } catch(InterruptedException interruptedException)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            try
+            {
+                apply();
+                synchronized(unapplied)
+                {
+                    shouldCheckpoint = (checkpointInterval > 0) && (appliedSequence - checkpointSequence >= checkpointInterval);
+                }
+                if(shouldCheckpoint)
+                {
+                    checkpoint();
+                }
+            } catch(IOException ioException)
+            {
+                synchronized(unapplied)
+                {
+                    if(applyFailure == null)
+                    {
+                        applyFailure = ioException;
+                        ioException.printStackTrace();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies every durable update that's still waiting in the log to its file.
+     * @return The number of updates that were applied.
+     * @throws IOException If an update couldn't be applied, or a previous background apply failed.
+    **/
+    final int apply() throws IOException
+    {
+        synchronized(applyLock)
+        {
+            int count = 0;
+            while(true)
+            {
+                Record record;
+                synchronized(unapplied)
+                {
+                    if(applyFailure != null)
+                    {
+                        throw new IOException("Failed to apply logged updates.", applyFailure);
+                    }
+                    record = unapplied.peek();
+                    if(record == null)
+                    {
+                        return count;
+                    }
+                }
+
+                applyRecord(record);
+
+                synchronized(unapplied)
+                {
+                    unapplied.poll();
+                    appliedSequence = record.sequence;
+                }
+                synchronized(pending)
+                {
+                    discard(record);
+                }
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Writes a single logged update into its file.
+     * @param record The record containing the update.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private final void applyRecord(Record record) throws IOException
+    {
+        byte[] payload = record.payload;
+        if(record.type == HASH_UPDATE)
+        {
+            if(hashFile == null)
+            {
+                throw new IllegalStateException("The log isn't attached to a hash file.");
+            }
+            int hashLength = (payload.length - 12) / 2;
+            byte[] identifier = new byte[12];
+            byte[] plainHash = new byte[hashLength];
+            byte[] cipherHash = new byte[hashLength];
+            System.arraycopy(payload, 0, identifier, 0, 12);
+            System.arraycopy(payload, 12, plainHash, 0, hashLength);
+            System.arraycopy(payload, 12 + hashLength, cipherHash, 0, hashLength);
+            synchronized(hashFile)
+            {
+                hashFile.writeHash(identifier, new byte[][] {plainHash, cipherHash});
+            }
+        } else if(record.type == METADATA_UPDATE)
+        {
+            if(metadataFile == null)
+            {
+                throw new IllegalStateException("The log isn't attached to a metadata file.");
+            }
+            int keyLength = payload[0] & 0xff;
+            byte[] key = new byte[keyLength];
+            byte[] value = new byte[payload.length - 1 - keyLength];
+            System.arraycopy(payload, 1, key, 0, keyLength);
+            System.arraycopy(payload, 1 + keyLength, value, 0, value.length);
+            synchronized(metadataFile)
+            {
+                metadataFile.writeMetadata(key, value);
+            }
+        }
+    }
+
+    /**
+     * Takes a checkpoint. Every durable update is applied, the hash, metadata and index files are synced, and their lengths are logged along with the sequence number they're consistent with.
+     * The log's header is then updated to point at the oldest record recovery still needs, and the log is compacted down to the records from there on.
+     * @throws IOException If the checkpoint couldn't be written.
+    **/
+    final void checkpoint() throws IOException
+    {
+        synchronized(applyLock)
+        {
+            apply();
+
+            long consistentSequence;
+            synchronized(unapplied)
+            {
+                consistentSequence = appliedSequence;
+            }
+
+            long indexLength = syncLength(indexFile);
+            long indexStart = ((indexLength < checkpointIndexLength)? 0 : checkpointIndexLength);
+            byte[] payload = new byte[48];
+            putLong(payload, 0, consistentSequence);
+            putLong(payload, 8, syncLength(hashFile));
+            putLong(payload, 16, syncLength(metadataFile));
+            putLong(payload, 24, indexLength);
+            putLong(payload, 32, indexStart);
+            putLong(payload, 40, indexChecksum(indexFile, indexStart, indexLength));
+
+            Record record = append(CHECKPOINT, payload, null);
+            commit(record.sequence);
+
+            //Updates committed since they were applied can sit before the checkpoint record, recovery has to start from the oldest of them.
+            //Every group written before the checkpoint record was queued before it, so they're all in the queue already.
+            long startPosition;
+            synchronized(unapplied)
+            {
+                Record oldest = unapplied.peek();
+                startPosition = (((oldest == null) || (oldest.position > record.position))? record.position : oldest.position);
+                checkpointSequence = consistentSequence;
+            }
+
+            synchronized(this)
+            {
+                writeHeader(startPosition - compactedLength, record.sequence);
+                compact(startPosition - compactedLength, record.sequence);
+            }
+            checkpointIndexLength = indexLength;
+        }
+    }
+
+    /**
+     * Computes the CRC32 checksum of a section of an index file's encrypted bytes.
+     * @param index The index file, or null if there isn't one.
+     * @param start The position the section starts at.
+     * @param end The position the section ends at.
+     * @return The section's checksum, or 0 if there isn't an index file.
+     * @throws IOException If the section couldn't be read completely.
+    **/
+    private static final long indexChecksum(IndexFileManager index, long start, long end) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        if(index == null)
+        {
+            return 0;
+        }
+        AbstractFile file = index.getFile();
+        byte[] buffer = new byte[65536];
+        long position = start;
+        while(position < end)
+        {
+            int count = file.readAt(position, buffer, 0, (int)Math.min(buffer.length, end - position));
+            if(count <= 0)
+            {
+                throw new IOException("The index file is shorter than it was at the last checkpoint.");
+            }
+            crc.update(buffer, 0, count);
+            position += count;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Removes every record before a checkpoint's start position from the log, by copying the records after it to the front of the log and truncating it.
+     * The copy never overlaps the records it's copied from, so the log stays recoverable if it's interrupted at any point, and compaction is skipped if it would overlap (it's tried again at the next checkpoint).
+     * Records are copied forward through a pooled buffer a chunk at a time, so compacting never needs memory for the whole live region.
+     * Must be called while holding the file lock.
+     * @param startPosition The position of the oldest record recovery still needs.
+     * @param sequence The sequence number of the checkpoint record.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private final void compact(long startPosition, long sequence) throws IOException
+    {
+        long liveLength = tailPosition - startPosition;
+        if((startPosition <= LOG_HEADER_LENGTH) || (liveLength > startPosition - LOG_HEADER_LENGTH))
+        {
+            return;
+        }
+
+        //Copy the live records over the dead ones at the front of the log, they're re-encrypted for their new position.
+        try(BufferPool.Buffer pooled = BufferPool.SHARED.acquire(COMPACT_CHUNK_SIZE))
+        {
+            ByteBuffer buffer = pooled.get();
+            for(long copied = 0; copied < liveLength;)
+            {
+                buffer.clear().limit((int)Math.min(COMPACT_CHUNK_SIZE, liveLength - copied));
+                seek(startPosition + copied);
+                while(buffer.hasRemaining())
+                {
+                    if(readBytes(buffer) <= 0)
+                    {
+                        throw new IOException("Failed to read in the log's live records completely.");
+                    }
+                }
+                buffer.flip();
+                seek(LOG_HEADER_LENGTH + copied);
+                while(buffer.hasRemaining())
+                {
+                    writeBytes(buffer);
+                }
+                copied += buffer.limit();
+            }
+        }
+        sync();
+
+        //Recovery reads from the copy once the header points at it, the originals after it are just replayed twice.
+        writeHeader(LOG_HEADER_LENGTH, sequence);
+        truncate(LOG_HEADER_LENGTH + liveLength);
+        sync();
+        compactedLength += startPosition - LOG_HEADER_LENGTH;
+        tailPosition = LOG_HEADER_LENGTH + liveLength;
+    }
+
+    /**
+     * Syncs a file and gets it's length, while holding the file's lock so no update is half-applied.
+     * @param manager The file to sync.
+     * @return The length of the file, or 0 if there isn't a file.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private static final long syncLength(FileManager manager) throws IOException
+    {
+        if(manager == null)
+        {
+            return 0;
+        }
+        synchronized(manager)
+        {
+            manager.sync();
+            return manager.length();
+        }
+    }
+
+    /**
+     * Recovers the archive's state files after a restart. The log is read from the start position its last checkpoint recorded, and any torn record at the end of the log is discarded.
+     * The hash and metadata files are truncated back to their lengths at the checkpoint (dropping any half-written entries), and the newest value of every entry updated after the checkpoint is written back into them in a single pass over each file.
+     * Only the entries touched by the replayed updates are then verified, so recovery time is bound by recent activity instead of the size of the archive.
+     * @param hashes The hash file that hash updates are applied to.
+     * @param metadata The metadata file that metadata updates are applied to.
+     * @param index The index file that's included in checkpoints, or null if there isn't one.
+     * @return The number of updates that were replayed.
+     * @throws IOException If the files couldn't be recovered, or don't match the log after replaying it.
+    **/
+    final synchronized int recover(HashFileManager hashes, MetadataFileManager metadata, IndexFileManager index) throws IOException
+    {
+        hashFile = hashes;
+        metadataFile = metadata;
+        indexFile = index;
+
+        long logLength = length();
+        if(logLength < LOG_HEADER_LENGTH)
+        {
+            //The log was never written into, so there's nothing to recover.
+            openTail();
+            return 0;
+        }
+
+        //Read the position of the last checkpoint from the header.
+        byte[] header = new byte[LOG_HEADER_LENGTH];
+        seek(0);
+        if(readBytes(header) != LOG_HEADER_LENGTH)
+        {
+            throw new IOException("Failed to read in the log header completely.");
+        }
+        long position = getLong(header, 0);
+        long lastSequence = getLong(header, 8);
+        long checkpointSequence = lastSequence;
+        long consistentSequence = 0;
+        if(position == 0)
+        {
+            position = LOG_HEADER_LENGTH;
+        }
+
+        //Read every intact record from the start position, which is at or before the checkpoint.
+        ArrayList<Record> tail = new ArrayList<>();
+        Record checkpoint = null;
+        Record record;
+        seek(position);
+        while((record = readRecord(logLength)) != null)
+        {
+            tail.add(record);
+            position = getPosition();
+            lastSequence = Math.max(lastSequence, record.sequence);
+            if((record.type == CHECKPOINT) && (record.sequence == checkpointSequence))
+            {
+                checkpoint = record;
+            }
+        }
+        //Discard any torn record at the end of the log.
+        if(position < logLength)
+        {
+            truncate(position);
+        }
+        tailPosition = position;
+        compactedLength = 0;
+
+        if(checkpointSequence != 0)
+        {
+            //Roll the state files back to the checkpoint.
+            if(checkpoint == null)
+            {
+                throw new IOException("The log header doesn't point at a valid checkpoint.");
+            }
+            consistentSequence = getLong(checkpoint.payload, 0);
+            hashes.truncate(getLong(checkpoint.payload, 8));
+            metadata.truncate(getLong(checkpoint.payload, 16));
+            long indexLength = getLong(checkpoint.payload, 24);
+            if((index != null) && (index.length() < indexLength))
+            {
+                throw new IOException("The index file is shorter than it was at the last checkpoint.");
+            }
+            //Check the index's contents as well, only the bytes added since the previous checkpoint could have been lost.
+            if((index != null) && (checkpoint.payload.length >= 48) && (indexChecksum(index, getLong(checkpoint.payload, 32), indexLength) != getLong(checkpoint.payload, 40)))
+            {
+                throw new IOException("The index file doesn't match it's contents at the last checkpoint.");
+            }
+            checkpointIndexLength = indexLength;
+        }
+
+        //Only the newest value of every entry matters, so the updates are merged and then written with a single pass over each file.
+        HashMap<ByteBuffer, Record> touchedHashes = new HashMap<>();
+        HashMap<ByteBuffer, Record> touchedMetadata = new HashMap<>();
+        int count = 0;
+        for(Record update : tail)
+        {
+            if(update.sequence <= consistentSequence)
+            {
+                continue;
+            }
+            if(update.type == HASH_UPDATE)
+            {
+                touchedHashes.put(ByteBuffer.wrap(update.payload, 0, 12).slice(), update);
+            } else if(update.type == METADATA_UPDATE)
+            {
+                touchedMetadata.put(ByteBuffer.wrap(update.payload, 1, update.payload[0] & 0xff).slice(), update);
+            } else{
+                continue;
+            }
+            count++;
+        }
+
+        HashMap<ByteBuffer, byte[][]> hashUpdates = new HashMap<>();
+        for(Map.Entry<ByteBuffer, Record> entry : touchedHashes.entrySet())
+        {
+            byte[] payload = entry.getValue().payload;
+            int hashLength = (payload.length - 12) / 2;
+            hashUpdates.put(entry.getKey(), new byte[][] {Arrays.copyOfRange(payload, 12, 12 + hashLength), Arrays.copyOfRange(payload, 12 + hashLength, payload.length)});
+        }
+        HashMap<ByteBuffer, byte[]> metadataUpdates = new HashMap<>();
+        for(Map.Entry<ByteBuffer, Record> entry : touchedMetadata.entrySet())
+        {
+            byte[] payload = entry.getValue().payload;
+            metadataUpdates.put(entry.getKey(), Arrays.copyOfRange(payload, 1 + (payload[0] & 0xff), payload.length));
+        }
+        HashMap<ByteBuffer, Long> hashPositions = hashes.writeHashes(hashUpdates);
+        HashMap<ByteBuffer, Long> metadataPositions = metadata.writeMetadata(metadataUpdates);
+        hashes.sync();
+        metadata.sync();
+
+        //Verify the touched entries against the log, reading them straight from where they were written.
+        for(Map.Entry<ByteBuffer, Record> entry : touchedHashes.entrySet())
+        {
+            byte[] payload = entry.getValue().payload;
+            byte[] stored = new byte[payload.length - 12];
+            hashes.seek(hashPositions.get(entry.getKey()));
+            if((hashes.readBytes(stored) != stored.length) || !matches(stored, payload, 12, stored.length))
+            {
+                throw new IOException("Hash entry doesn't match the log after recovery.");
+            }
+        }
+        for(Map.Entry<ByteBuffer, Record> entry : touchedMetadata.entrySet())
+        {
+            byte[] payload = entry.getValue().payload;
+            int keyLength = payload[0] & 0xff;
+            byte[] stored = new byte[payload.length - 1 - keyLength];
+            metadata.seek(metadataPositions.get(entry.getKey()));
+            if((metadata.readBytes(stored) != stored.length) || !matches(stored, payload, 1 + keyLength, stored.length))
+            {
+                throw new IOException("Metadata entry doesn't match the log after recovery.");
+            }
+        }
+
+        synchronized(pending)
+        {
+            nextSequence = lastSequence + 1;
+            durableSequence = lastSequence;
+            failedSequences.clear();
+        }
+        synchronized(unapplied)
+        {
+            appliedSequence = lastSequence;
+            checkpointSequence = consistentSequence;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the record at the current position in the log, and verifies it's checksum.
+     * @param logLength The length of the log.
+     * @return The record, or null if the end of the log was reached or the record is torn or corrupt.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private final Record readRecord(long logLength) throws IOException
+    {
+        long position = getPosition();
+        if(logLength - position < HEADER_LENGTH + CHECKSUM_LENGTH)
+        {
+            return null;
+        }
+
+        byte[] header = new byte[HEADER_LENGTH];
+        if(readBytes(header) != HEADER_LENGTH)
+        {
+            return null;
+        }
+        int payloadLength = getInt(header, 9);
+        if((payloadLength < 0) || (payloadLength > logLength - position - HEADER_LENGTH - CHECKSUM_LENGTH))
+        {
+            return null;
+        }
+        byte[] payload = new byte[payloadLength];
+        byte[] trailer = new byte[CHECKSUM_LENGTH];
+        if((readBytes(payload) != payloadLength) || (readBytes(trailer) != CHECKSUM_LENGTH))
+        {
+            return null;
+        }
+
+        checksum.reset();
+        checksum.update(header);
+        checksum.update(payload);
+        if(getInt(trailer, 0) != (int)checksum.getValue())
+        {
+            return null;
+        }
+
+        Record record = new Record(header[0], getLong(header, 1), payload, null);
+        record.position = position;
+        return record;
+    }
+
+    /**
+     * Checks whether a value matches a section of a record's payload. Only the bytes present in both are compared.
+     * @param value The value to check.
+     * @param payload The payload to compare against.
+     * @param offset The offset the section starts at in the payload.
+     * @param length The length of the section.
+     * @return True if the value matches the section.
+    **/
+    private static final boolean matches(byte[] value, byte[] payload, int offset, int length)
+    {
+        int count = Math.min(value.length, length);
+        for(int i = 0; i < count; i++)
+        {
+            if(value[i] != payload[offset + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a record from the unapplied updates, unless a newer update has already replaced it. Must be called while holding the pending lock.
+     * @param record The record to remove.
+    **/
+    private final void discard(Record record)
+    {
+        if(record.type == HASH_UPDATE)
+        {
+            if(pendingHashes.get(record.key) == record)
+            {
+                pendingHashes.remove(record.key);
+            }
+        } else if(record.type == METADATA_UPDATE)
+        {
+            if(pendingMetadata.get(record.key) == record)
+            {
+                pendingMetadata.remove(record.key);
+            }
+        }
+    }
+
+    /**
+     * Stops the background applier thread, and applies every remaining durable update to its file.
+     * @throws IOException If an update couldn't be applied.
+    **/
+    final void shutdown() throws IOException
+    {
+        synchronized(unapplied)
+        {
+            applier = null;
+            unapplied.notifyAll();
+        }
+        apply();
+    }
+
+    /**
+     * Stores a long into a buffer as 8 big-endian bytes.
+     * @param buffer The buffer to store the value into.
+     * @param offset The offset to start storing the value at.
+     * @param value The value to store.
+    **/
+    static final void putLong(byte[] buffer, int offset, long value)
+    {
+        for(int i = 0; i < 8; i++)
+        {
+            buffer[offset + i] = (byte)(value >> (56 - (8 * i)));
+        }
+    }
+
+    /**
+     * Stores an int into a buffer as 4 big-endian bytes.
+     * @param buffer The buffer to store the value into.
+     * @param offset The offset to start storing the value at.
+     * @param value The value to store.
+    **/
+    static final void putInt(byte[] buffer, int offset, int value)
+    {
+        for(int i = 0; i < 4; i++)
+        {
+            buffer[offset + i] = (byte)(value >> (24 - (8 * i)));
+        }
+    }
+
+    /**
+     * Reads a long stored as 8 big-endian bytes from a buffer.
+     * @param buffer The buffer to read the value from.
+     * @param offset The offset the value starts at.
+     * @return The value stored in the buffer.
+    **/
+    static final long getLong(byte[] buffer, int offset)
+    {
+        long value = 0;
+        for(int i = 0; i < 8; i++)
+        {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Reads an int stored as 4 big-endian bytes from a buffer.
+     * @param buffer The buffer to read the value from.
+     * @param offset The offset the value starts at.
+     * @return The value stored in the buffer.
+    **/
+    static final int getInt(byte[] buffer, int offset)
+    {
+        int value = 0;
+        for(int i = 0; i < 4; i++)
+        {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * A single record in the log.
+    **/
+    private static final class Record
+    {
+        /**The type of the record.**/
+        final byte type;
+        /**The sequence number assigned to the record.**/
+        final long sequence;
+        /**The record's payload.**/
+        final byte[] payload;
+        /**The key of the value the record updates, or null if it doesn't update a value.**/
+        final ByteBuffer key;
+        /**The position the record was written at in the log (plus the number of bytes compacted out of the log before it was written), or -1 if it hasn't been written yet.**/
+        long position;
+
+        /**
+         * Creates a new log record.
+         * @param type The type of the record.
+         * @param sequence The sequence number assigned to the record.
+         * @param payload The record's payload.
+         * @param key The key of the value the record updates, or null if it doesn't update a value.
+        **/
+        Record(byte type, long sequence, byte[] payload, ByteBuffer key)
+        {
+            this.type = type;
+            this.sequence = sequence;
+            this.payload = payload;
+            this.key = key;
+            position = -1;
+        }
     }
 }
@@ -5,20 +5,26 @@ import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import javax.crypto.BadPaddingException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -28,16 +34,223 @@ public class Main
 {
     public static void main(String[] args)
     {
+        //Compression is enabled with a "--compress" or "--compress=<level>" option anywhere in the arguments, where the level is from -1 (Deflater's default) to 9, and 0 turns it off.
+        int compression = 0;
+        //File jobs are run on their own (virtual) threads with a "--io-scheduler" option, instead of on the work-stealing pool.
+        IoScheduler scheduler = null;
+        //Small files are packed into segments in the given folder with a "--pack=<folder>" option, the same folder has to be given again to restore them.
+        File packFolder = null;
+        ArrayList<String> arguments = new ArrayList<>(args.length);
+        for(String arg : args)
+        {
+            if(arg.equals("--io-scheduler"))
+            {
+                if(scheduler == null)
+                {
+                    scheduler = new IoScheduler();
+                }
+            } else if(arg.equals("--compress"))
+            {
+                compression = Deflater.BEST_SPEED;
+            } else if(arg.startsWith("--compress="))
+            {
+                try
+                {
+                    compression = Integer.parseInt(arg.substring(11));
+                } catch(NumberFormatException numberFormatException)
+                {
+                    compression = Integer.MIN_VALUE;
+                }
+                if((compression < Deflater.DEFAULT_COMPRESSION) || (compression > Deflater.BEST_COMPRESSION))
+                {
+                    System.err.println("Usage: --compress=<level>, where the level is from -1 (the default level) to 9, or 0 to not compress.");
+                    System.exit(1);
+                }
+            } else if(arg.startsWith("--pack="))
+            {
+                packFolder = new File(arg.substring(7));
+            } else{
+                arguments.add(arg);
+            }
+        }
+        args = arguments.toArray(new String[0]);
+
+        //The pack store's index and segments are encrypted under the archive's key.
+        LocalFile packIndexFile = null;
+        IndexFileManager packIndex = null;
+        Keyring packKeyring = null;
+        PackStore packs = null;
+        if(packFolder != null)
+        {
+            try
+            {
+                if(!packFolder.mkdirs() && !packFolder.isDirectory())
+                {
+                    throw new IOException("Failed to create pack folder.");
+                }
+                packIndexFile = new LocalFile(new File(packFolder, "index"), "rw");
+                packIndex = new IndexFileManager(packIndexFile, key.getEncoded(), getIvFromName(packIndexFile.getName(), hasher));
+                packKeyring = new Keyring(key.getEncoded(), new byte[0]);
+                packs = new PackStore(packFolder, packKeyring, packIndex);
+            } catch(IOException|GeneralSecurityException packException)
+            {
+                packException.printStackTrace();
+                System.exit(1);
+            }
+        }
+
         switch(args[0])
         {
             case("init"):
                 initializeArchive(args);
             break;
+            case("encrypt"):
+                try
+                {
+                    TreeEncryptor encryptor = new TreeEncryptor(key, Runtime.getRuntime().availableProcessors());
+                    encryptor.setCompression(compression);
+                    encryptor.setScheduler(scheduler);
+                    encryptor.setPackStore(packs);
+                    encryptor.encrypt(new File(args[1]), new File(args[2]));
+                } catch(IOException|GeneralSecurityException encryptException)
+                {
+                    encryptException.printStackTrace();
+                    System.exit(1);
+                }
+            break;
+            case("sync"):
+                try
+                {
+                    TreeEncryptor encryptor = new TreeEncryptor(key, Runtime.getRuntime().availableProcessors());
+                    encryptor.setScheduler(scheduler);
+                    encryptor.setPackStore(packs);
+                    encryptor.sync(new File(args[1]), new File(args[2]));
+                } catch(IOException|GeneralSecurityException syncException)
+                {
+                    syncException.printStackTrace();
+                    System.exit(1);
+                }
+            break;
+            case("patch"):
+                try
+                {
+                    TreeEncryptor encryptor = new TreeEncryptor(key, Runtime.getRuntime().availableProcessors());
+                    //Block hashes are recorded in the index if one's given, otherwise files are compared against their decrypted content.
+                    LocalFile indexFile = ((args.length > 3)? new LocalFile(new File(args[3]), "rw") : null);
+                    //Each file's plain and cipher text hashes are kept up to date in the hash file if one's given.
+                    LocalFile hashesFile = ((args.length > 4)? new LocalFile(new File(args[4]), "rw") : null);
+                    try
+                    {
+                        IndexFileManager index = ((indexFile == null)? null : new IndexFileManager(indexFile, key.getEncoded(), getIvFromName(indexFile.getName(), hasher)));
+                        HashFileManager hashFile = ((hashesFile == null)? null : new HashFileManager(hashesFile, key.getEncoded(), getIvFromName(hashesFile.getName(), hasher)));
+                        if(hashFile != null)
+                        {
+                            hashFile.initialize();
+                        }
+                        encryptor.setPatcher(new ContentPatcher(index, hashFile));
+                        encryptor.setScheduler(scheduler);
+                        encryptor.sync(new File(args[1]), new File(args[2]));
+                    } finally{
+                        if(indexFile != null)
+                        {
+                            indexFile.close();
+                        }
+                        if(hashesFile != null)
+                        {
+                            hashesFile.close();
+                        }
+                    }
+                } catch(IOException|GeneralSecurityException patchException)
+                {
+                    patchException.printStackTrace();
+                    System.exit(1);
+                }
+            break;
+            case("scrub"):
+                //Verifies an archive's files against the hashes the patch command recorded, for the given number of seconds (a minute by default). Progress is recorded in the metadata file, so the next scrub carries on where this one stopped.
+                long seconds = 60;
+                if(args.length > 4)
+                {
+                    try
+                    {
+                        seconds = Long.parseLong(args[4]);
+                    } catch(NumberFormatException numberFormatException)
+                    {
+                        seconds = -1;
+                    }
+                }
+                if((args.length < 4) || (seconds <= 0))
+                {
+                    System.err.println("Usage: scrub <archive> <hashes file> <metadata file> [seconds]");
+                    System.exit(1);
+                }
+                try
+                {
+                    if(!scrub(new File(args[1]), new File(args[2]), new File(args[3]), seconds))
+                    {
+                        System.exit(1);
+                    }
+                } catch(IOException|GeneralSecurityException|InterruptedException scrubException)
+                {
+                    scrubException.printStackTrace();
+                    System.exit(1);
+                }
+            break;
+            case("stream"):
+                try
+                {
+                    new StreamingEncryptor(key).encrypt(new File(args[1]), new File(args[2]), new File(args[3]));
+                } catch(IOException|GeneralSecurityException streamException)
+                {
+                    streamException.printStackTrace();
+                    System.exit(1);
+                }
+            break;
+            case("restore"):
+                try
+                {
+                    TreeRestorer restorer = new TreeRestorer(key, Runtime.getRuntime().availableProcessors());
+                    restorer.setCompressed(compression != 0);
+                    restorer.setScheduler(scheduler);
+                    restorer.setPackStore(packs);
+                    //Every file is restored if no targets are given.
+                    for(File skipped : restorer.restore(new File(args[1]), new File(args[2]), Arrays.asList(args).subList(3, args.length)))
+                    {
+                        System.err.println("Skipped " + skipped + ", it's name isn't an encrypted archive name.");
+                    }
+                } catch(IOException|GeneralSecurityException restoreException)
+                {
+                    restoreException.printStackTrace();
+                    System.exit(1);
+                }
+            break;
                 
         }
+        if(scheduler != null)
+        {
+            scheduler.shutdown();
+        }
+        if(packs != null)
+        {
+            try
+            {
+                try
+                {
+                    packs.close();
+                    packIndex.sync();
+                } finally{
+                    packIndexFile.close();
+                    packKeyring.destroy();
+                }
+            } catch(IOException packException)
+            {
+                packException.printStackTrace();
+                System.exit(1);
+            }
+        }
     }
     
-    private static final initializeArchive(String[] args)
+    private static final void initializeArchive(String[] args)
     {
         
     }
@@ -76,9 +289,10 @@ public class Main
     /**
      * Derives an initialization vector from a file length.
      * @param length The length of the file to compute an IV for.
+     * @param hasher The hash engine to use, this must be SHA-256 and not in use by any other thread.
      * @return A byte array representation of the file's IV.
     **/
-    private final byte[] getIvFromLength(long length)
+    static final byte[] getIvFromLength(long length, MessageDigest hasher)
     {
         //Allocate an array for storing the length as bytes
         byte[] lengthBytes = new byte[8];
@@ -102,11 +316,12 @@ public class Main
     }
     
     /**
-     * Derives an initialization vector from a file length.
+     * Derives an initialization vector from a file name.
      * @param name The name of the file to compute an IV for.
+     * @param hasher The hash engine to use, this must be SHA-256 and not in use by any other thread.
      * @return A byte array representation of the file's IV.
     **/
-    private final byte[] getIvFromName(String name)
+    static final byte[] getIvFromName(String name, MessageDigest hasher)
     {
         //Encode the filename and hash it's bytes
         byte[] hashBytes = hasher.digest(name.getBytes(UTF_8));
@@ -121,108 +336,489 @@ public class Main
         return iv;
     }
     
-    private static final void encrypt(File source, File dest) throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, IOException
+    /**
+     * Calculates the size a file's name is encrypted with. This is the size of the file after encryption, or a fixed size for folders.
+     * @param file The file (or folder) to calculate the size of.
+     * @return The size to derive the file name's IV from.
+    **/
+    static final long getNameSize(File file)
+    {
+        return ((file.isDirectory())? folderLength : getNameSize(file.length()));
+    }
+    
+    /**
+     * Calculates the size a file's name is encrypted with from the size of it's content.
+     * @param length The size of the file's content, in bytes.
+     * @return The size to derive the file name's IV from.
+    **/
+    static final long getNameSize(long length)
+    {
+        return ((length / 16) + 1) * 16;
+    }
+    
+    /**
+     * Calculates the size a file's name is encrypted with from attributes that were already read, so the file isn't stat'd again.
+     * @param attributes The attributes of the file (or folder) to calculate the size of.
+     * @return The size to derive the file name's IV from.
+    **/
+    static final long getNameSize(FileAttributes attributes)
+    {
+        return ((attributes.isDirectory())? folderLength : getNameSize(attributes.getSize()));
+    }
+    
+    /**
+     * Encrypts a file's name, padding it to a fixed length so names don't reveal their lengths.
+     * @param name The name of the file to encrypt.
+     * @param size The size to derive the name's IV from (see getNameSize).
+     * @param cipher The cipher to encrypt with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key to encrypt with.
+     * @param hasher The hash engine to derive the IV with, this must be SHA-256 and not in use by any other thread.
+     * @return The encrypted name, encoded so that it's a valid file name.
+     * @throws GeneralSecurityException If the name couldn't be encrypted.
+    **/
+    static final String encryptName(String name, long size, Cipher cipher, Key key, MessageDigest hasher) throws GeneralSecurityException
     {
-        //===Encrypt the file's name===//
-        //Calculate the size of the file after encryption
-        long size = ((source.isDirectory())? folderLength : ((source.length() / 16) + 1) * 16);
         //Initialize the cipher with a size-hash vector
-        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(getIvFromLength(size)));
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(getIvFromLength(size, hasher)));
         //Pad the filename with '?' characters
-        String paddedName = source.getName() + (new String(new char[filenamePaddingLength - source.getName().length()]).replaceAll("\0", "\\?"));
+        String paddedName = name + (new String(new char[filenamePaddingLength - name.length()]).replaceAll("\0", "\\?"));
         //Encrypt the filename and convert it to a base64 string
-        String name = Base64.getEncoder().encodeToString(cipher.doFinal(paddedName.getBytes(UTF_8))).replaceAll("/", "-");
-        File encrypted = new File(dest, name);
+        return Base64.getEncoder().encodeToString(cipher.doFinal(paddedName.getBytes(UTF_8))).replaceAll("/", "-");
+    }
+    
+    /**
+     * Creates an encrypted copy of a file's content. The file's content is encrypted with a vector derived from it's (unencrypted) name.
+     * @param source The file to encrypt.
+     * @param encrypted The file to write the encrypted content into, this must not already exist.
+     * @param cipher The cipher to encrypt with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key to encrypt with.
+     * @param hasher The hash engine to derive the IV with, this must be SHA-256 and not in use by any other thread.
+     * @throws GeneralSecurityException If the cipher couldn't be initialized.
+     * @throws IOException If the file couldn't be read or written.
+    **/
+    static final void encryptContent(File source, File encrypted, Cipher cipher, Key key, MessageDigest hasher) throws GeneralSecurityException, IOException
+    {
+        encryptContent(source, encrypted, cipher, key, hasher, null);
+    }
+    
+    /**
+     * Creates an encrypted copy of a file's content, handing the encryption off to a scheduler's CPU pool. The file's content is encrypted with a vector derived from it's (unencrypted) name.
+     * @param source The file to encrypt.
+     * @param encrypted The file to write the encrypted content into, this must not already exist.
+     * @param cipher The cipher to encrypt with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key to encrypt with.
+     * @param hasher The hash engine to derive the IV with, this must be SHA-256 and not in use by any other thread.
+     * @param scheduler The scheduler to run the encryption on, or null to encrypt on the calling thread.
+     * @throws GeneralSecurityException If the cipher couldn't be initialized.
+     * @throws IOException If the file couldn't be read or written.
+    **/
+    static final void encryptContent(File source, File encrypted, Cipher cipher, Key key, MessageDigest hasher, IoScheduler scheduler) throws GeneralSecurityException, IOException
+    {
+        //Create the encrypted file
+        if(!encrypted.createNewFile())
+        {
+            throw new IOException("Failed to create encrypted file.");
+        }
+        
+        //Initialize the cipher with a name-hash vector
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(getIvFromName(source.getName(), hasher)));
+        //Perform the encryption
+        transformContent(source, encrypted, cipher, scheduler);
+        //Mirror the source's modification time, so incremental syncs can tell if it's changed
+        encrypted.setLastModified(source.lastModified());
+    }
+    
+    /**
+     * Decrypts a file's name, and removes it's padding.
+     * @param name The encrypted name of the file.
+     * @param size The size to derive the name's IV from (see getNameSize).
+     * @param cipher The cipher to decrypt with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key to decrypt with.
+     * @param hasher The hash engine to derive the IV with, this must be SHA-256 and not in use by any other thread.
+     * @return The decrypted name.
+     * @throws GeneralSecurityException If the name couldn't be decrypted.
+    **/
+    static final String decryptName(String name, long size, Cipher cipher, Key key, MessageDigest hasher) throws GeneralSecurityException
+    {
+        //Initialize the cipher with a size-hash vector
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(getIvFromLength(size, hasher)));
+        //Decrypt the file name and remove any padding
+        String paddedName = new String(cipher.doFinal(Base64.getDecoder().decode(name.replaceAll("-", "/"))), UTF_8);
+        return paddedName.replaceAll("\\?", "");
+    }
+    
+    /**
+     * Creates a decrypted copy of an encrypted file's content.
+     * @param source The encrypted file to decrypt.
+     * @param decrypted The file to write the decrypted content into, this must not already exist.
+     * @param name The decrypted name of the file, which the content's vector is derived from.
+     * @param cipher The cipher to decrypt with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key to decrypt with.
+     * @param hasher The hash engine to derive the IV with, this must be SHA-256 and not in use by any other thread.
+     * @throws GeneralSecurityException If the cipher couldn't be initialized.
+     * @throws IOException If the file couldn't be read or written.
+    **/
+    static final void decryptContent(File source, File decrypted, String name, Cipher cipher, Key key, MessageDigest hasher) throws GeneralSecurityException, IOException
+    {
+        decryptContent(source, decrypted, name, cipher, key, hasher, null);
+    }
+    
+    /**
+     * Creates a decrypted copy of an encrypted file's content, handing the decryption off to a scheduler's CPU pool.
+     * @param source The encrypted file to decrypt.
+     * @param decrypted The file to write the decrypted content into, this must not already exist.
+     * @param name The decrypted name of the file, which the content's vector is derived from.
+     * @param cipher The cipher to decrypt with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key to decrypt with.
+     * @param hasher The hash engine to derive the IV with, this must be SHA-256 and not in use by any other thread.
+     * @param scheduler The scheduler to run the decryption on, or null to decrypt on the calling thread.
+     * @throws GeneralSecurityException If the cipher couldn't be initialized.
+     * @throws IOException If the file couldn't be read or written.
+    **/
+    static final void decryptContent(File source, File decrypted, String name, Cipher cipher, Key key, MessageDigest hasher, IoScheduler scheduler) throws GeneralSecurityException, IOException
+    {
+        //Create the decrypted file
+        if(!decrypted.createNewFile())
+        {
+            throw new IOException("Failed to create decrypted file.");
+        }
         
-        if(source.isDirectory())
+        //Initialize the cipher with a name-hash vector
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(getIvFromName(name, hasher)));
+        //Perform the decryption
+        transformContent(source, decrypted, cipher, scheduler);
+    }
+    
+    /**
+     * Encrypts or decrypts part of a tree archive file's content in place, starting at any position in the file. The counter for the data is the file's IV plus the number of the block it starts in, as a big-endian 128 bit number,
+     * the same as a standard AES/CTR cipher would have reached after processing everything before it.
+     * @param cipher The cipher to process with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key the file is encrypted with.
+     * @param iv The initialization vector the file is encrypted with.
+     * @param position The position of the data in the file.
+     * @param data The array holding the data.
+     * @param offset The index the data starts at in the array.
+     * @param length The number of bytes to process.
+     * @throws GeneralSecurityException If the cipher couldn't be initialized.
+    **/
+    static final void processAt(Cipher cipher, Key key, byte[] iv, long position, byte[] data, int offset, int length) throws GeneralSecurityException
+    {
+        //Add the block number to the IV.
+        byte[] counter = Arrays.copyOf(iv, 16);
+        long carry = position / 16;
+        for(int i = 15; (i >= 0) && (carry != 0); i--)
+        {
+            long sum = (counter[i] & 0xff) + (carry & 0xff);
+            counter[i] = (byte)sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+        //Skip the part of the key-stream before the data's position in it's block.
+        int skip = (int)(position % 16);
+        if(skip > 0)
         {
-            //Create the encrypted folder
-            if(!encrypted.mkdir())
+            cipher.update(new byte[skip]);
+        }
+        cipher.update(data, offset, length, data, offset);
+    }
+
+    /**
+     * Verifies a tree archive's files against the plain and cipher text hashes recorded in a hash file (see ContentPatcher), with a scrubber running in the background for a while.
+     * Files are identified the same way the patch command identifies them, so the archive has to be given by the same path it was patched with.
+     * @param archive The folder containing the archive's encrypted entries.
+     * @param hashesPath The hash file the files are verified against.
+     * @param metadataPath The metadata file the scrubber's progress is recorded in.
+     * @param seconds How long to scrub for.
+     * @return True if no file was found to be corrupt.
+     * @throws GeneralSecurityException If the files' names couldn't be decrypted, or the hash and metadata files' keys couldn't be set up.
+     * @throws IOException If the archive couldn't be listed, the hash and metadata files couldn't be opened, or the scrubber's progress couldn't be recorded.
+     * @throws InterruptedException If the thread was interrupted while waiting for the scrubber.
+    **/
+    private static final boolean scrub(File archive, File hashesPath, File metadataPath, long seconds) throws GeneralSecurityException, IOException, InterruptedException
+    {
+        //Find every file in the archive, by the identifier it's hashes are recorded under.
+        HashMap<ByteBuffer, File> files = new HashMap<>();
+        HashMap<ByteBuffer, File> paths = new HashMap<>();
+        findFiles(archive, null, files, paths);
+
+        Scrubber.Resolver resolver = identifier ->
+        {
+            ByteBuffer id = ByteBuffer.wrap(Arrays.copyOf(identifier, 12));
+            File encrypted = files.get(id);
+            if((encrypted == null) || !encrypted.isFile())
             {
-                throw new IOException("Failed to create encrypted folder.");
+                return null;
             }
-            
-            //===Encrypt the folder's content===//
-            for(File file : source.listFiles())
+            //The resolver's only used by the scrubbing thread, but each file gets a cipher of it's own so it's never shared with the main thread.
+            Cipher fileCipher = Cipher.getInstance("AES/CTR/NoPadding");
+            byte[] iv = getIvFromName(paths.get(id).getName(), MessageDigest.getInstance("SHA-256"));
+            return new Scrubber.Opened(new LocalFile(encrypted, "r"), 0, (position, data, offset, length) ->
             {
-                encrypt(file, encrypted);
+                try
+                {
+                    processAt(fileCipher, key, iv, position, data, offset, length);
+                } catch(GeneralSecurityException cipherException)
+                {
+                    throw new IOException("Failed to initialize the cipher.", cipherException);
+                }
+            });
+        };
+
+        LocalFile hashesFile = new LocalFile(hashesPath, "rw");
+        LocalFile metadataFile = new LocalFile(metadataPath, "rw");
+        try
+        {
+            HashFileManager hashes = new HashFileManager(hashesFile, key.getEncoded(), getIvFromName(hashesFile.getName(), hasher));
+            hashes.initialize();
+            MetadataFileManager metadata = new MetadataFileManager(metadataFile, key.getEncoded(), getIvFromName(metadataFile.getName(), hasher));
+            Scrubber scrubber = new Scrubber(hashes, metadata, resolver, null);
+            scrubber.start();
+            try
+            {
+                Thread.sleep(seconds * 1000);
+            } finally{
+                scrubber.stop();
             }
-        } else{
-            //Create the encrypted file
-            if(!encrypted.createNewFile())
+
+            List<byte[]> corrupted = scrubber.getCorrupted();
+            for(byte[] identifier : corrupted)
             {
-                throw new IOException("Failed to create encrypted file.");
+                System.out.println("Corrupt: " + paths.get(ByteBuffer.wrap(identifier)));
             }
-            
-            //===Encrypt the file's content===//
-            //Initialize the cipher with a name-hash vector
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(getIvFromName(source.getName())));
-            //Perform the encryption
-            byte[] buffer = new byte[fileBufferSize];
-            int count;
-            try(CipherOutputStream cipherOutputStream = new CipherOutputStream(new FileOutputStream(encrypted), cipher))
+            for(byte[] identifier : scrubber.getUnreadable())
+            {
+                System.out.println("Unreadable: " + paths.get(ByteBuffer.wrap(identifier)));
+            }
+            if(scrubber.getFailure() != null)
+            {
+                scrubber.getFailure().printStackTrace();
+            }
+            System.out.println("Verified " + scrubber.getVerifiedBytes() + " bytes.");
+            return corrupted.isEmpty();
+        } finally{
+            hashesFile.close();
+            metadataFile.close();
+        }
+    }
+
+    /**
+     * Finds every file in an archive folder, recording each one by the identifier the patch command records it's hashes under. Entries whose names aren't encrypted archive names are skipped.
+     * @param folder The encrypted folder to search.
+     * @param path The plain path of the folder relative to the archive, or null for the archive itself.
+     * @param files Map the encrypted files are recorded into.
+     * @param paths Map the files' plain paths relative to the archive are recorded into.
+     * @throws GeneralSecurityException If a name couldn't be decrypted.
+     * @throws IOException If the folder couldn't be listed.
+    **/
+    private static final void findFiles(File folder, File path, HashMap<ByteBuffer, File> files, HashMap<ByteBuffer, File> paths) throws GeneralSecurityException, IOException
+    {
+        for(FileAttributes entry : FileAttributes.list(folder))
+        {
+            String name;
+            try
+            {
+                name = decryptName(entry.getName(), getNameSize(entry), cipher, key, hasher);
+            } catch(IllegalArgumentException invalidNameException)
+            {
+                continue;
+            }
+            File encrypted = new File(folder, entry.getName());
+            File plain = ((path == null)? new File(name) : new File(path, name));
+            if(entry.isDirectory())
+            {
+                findFiles(encrypted, plain, files, paths);
+            } else{
+                ByteBuffer identifier = ByteBuffer.wrap(ContentPatcher.identify(new File(folder, name).getPath(), hasher));
+                files.put(identifier, encrypted);
+                paths.put(identifier, plain);
+            }
+        }
+    }
+
+    /**
+     * Runs a file's content through an initialized cipher into another file. Data is staged in pooled off-heap buffers, so it moves between the channels and the cipher without being copied onto the heap.
+     * @param source The file to read the content from.
+     * @param target The file to write the processed content into.
+     * @param cipher The initialized cipher to process the content with.
+     * @param scheduler The scheduler whose CPU pool processes each buffer while the calling thread reads the next one and writes the last one, or null to process them on the calling thread.
+     * @throws GeneralSecurityException If the content couldn't be processed.
+     * @throws IOException If the files couldn't be read or written.
+    **/
+    private static final void transformContent(File source, File target, Cipher cipher, IoScheduler scheduler) throws GeneralSecurityException, IOException
+    {
+        try(BufferPool.Buffer input = BufferPool.SHARED.acquire(fileBufferSize);
+            BufferPool.Buffer output = BufferPool.SHARED.acquire(fileBufferSize);
+            BufferPool.Buffer nextInput = BufferPool.SHARED.acquire(fileBufferSize);
+            BufferPool.Buffer nextOutput = BufferPool.SHARED.acquire(fileBufferSize);
+            FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE))
+        {
+            //Buffers are used in pairs, so one pair can be read and written while the other is being processed.
+            ByteBuffer[] inputBuffers = {input.get(), nextInput.get()};
+            ByteBuffer[] outputBuffers = {output.get(), nextOutput.get()};
+            Future<Integer> processing = null;
+            try
             {
-                try(FileInputStream fileInputStream = new FileInputStream(source))
+                int current = 0;
+                boolean eof = false;
+                while(!eof)
                 {
-                    while((count = fileInputStream.read(buffer)) > 0)
+                    ByteBuffer inputBuffer = inputBuffers[current];
+                    ByteBuffer outputBuffer = outputBuffers[current];
+                    //The cipher always consumes all of it's input, since the output buffers are as large as the input buffers.
+                    inputBuffer.clear();
+                    //Encrypting and decrypting compete with the scrubber for the disk.
+                    FileManager.reportActivity();
+                    eof = (sourceChannel.read(inputBuffer) == -1);
+                    inputBuffer.flip();
+                    outputBuffer.clear();
+                    boolean last = eof;
+                    if(scheduler == null)
                     {
-                        cipherOutputStream.write(buffer, 0, count);
+                        processBuffer(cipher, inputBuffer, outputBuffer, last);
+                        writeBuffer(targetChannel, outputBuffer);
+                    } else{
+                        //Only one buffer is handed off at a time, so the cipher is never used by two threads at once.
+                        if(processing != null)
+                        {
+                            IoScheduler.await(processing);
+                        }
+                        processing = scheduler.start(() -> processBuffer(cipher, inputBuffer, outputBuffer, last));
+                        //Write out the previous buffer while this one is being processed.
+                        writeBuffer(targetChannel, outputBuffers[current ^ 1]);
+                        current ^= 1;
                     }
                 }
+                if(processing != null)
+                {
+                    IoScheduler.await(processing);
+                    writeBuffer(targetChannel, outputBuffers[current ^ 1]);
+                }
+            } finally{
+                //The buffers go back to the pool once this block ends, so the CPU pool must be done with them even if reading or writing failed.
+                IoScheduler.settle(processing);
             }
         }
     }
     
-    private static final void decrypt(File source, File dest) throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, IOException
+    /**
+     * Writes out the content a buffer was filled with, from the start of the buffer up to it's position.
+     * @param channel The channel to write the content into.
+     * @param buffer The buffer to write out, which is left empty.
+     * @throws IOException If the content couldn't be written.
+    **/
+    private static final void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException
     {
-        //===Decrypt the file's name===//
-        //Calculate the size of the file
-        long size = ((source.isDirectory())? folderLength : source.length());
-        //Initialize the cipher with a size-hash vector
-        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(getIvFromLength(size)));
-        //Decrypt the file name and remove any padding
-        String name = new String(cipher.doFinal(Base64.getDecoder().decode(source.getName().replaceAll("-", "/"))), UTF_8);
-        File decrypted = new File(dest, name.replaceAll("\\?", ""));
-
-        if(source.isDirectory())
+        buffer.flip();
+        while(buffer.hasRemaining())
         {
-            //Create the decrypted folder
-            if(!decrypted.mkdir())
-            {
-                throw new IOException("Failed to create encrypted folder.");
-            }
-            
-            //===Decrypt the folder's content===//
-            for(File file : source.listFiles())
-            {
-                decrypt(file, decrypted);
-            }
-        } else{
-            //Create the decrypted file
-            if(!decrypted.createNewFile())
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    /**
+     * Runs a buffer of content through a cipher.
+     * @param cipher The initialized cipher to process the content with.
+     * @param input The buffer of content to process.
+     * @param output The buffer to write the processed content into.
+     * @param last Flag for whether this is the last of the content, which finishes the cipher.
+     * @return The number of bytes written into the output buffer.
+     * @throws GeneralSecurityException If the content couldn't be processed.
+    **/
+    private static final int processBuffer(Cipher cipher, ByteBuffer input, ByteBuffer output, boolean last) throws GeneralSecurityException
+    {
+        return (last? cipher.doFinal(input, output) : cipher.update(input, output));
+    }
+    
+    /**
+     * Creates a compressed and encrypted copy of a file's content. The content is compressed in independent frames (see CompressedFileManager) and encrypted with a vector derived from it's (unencrypted) name.
+     * Since the encrypted name is derived from the size of the encrypted file, the content is compressed into a temporary file first, which is then renamed once it's size is known.
+     * @param source The file to compress and encrypt.
+     * @param folder The folder to write the encrypted file into.
+     * @param cipher The cipher to encrypt the name with, this must be AES/CTR/NoPadding and not in use by any other thread.
+     * @param key The key to encrypt with.
+     * @param hasher The hash engine to derive the IVs with, this must be SHA-256 and not in use by any other thread.
+     * @param level The compression level to use, from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), or Deflater.DEFAULT_COMPRESSION (-1).
+     * @return The encrypted file.
+     * @throws GeneralSecurityException If the name or content couldn't be encrypted.
+     * @throws IOException If the file couldn't be read or written, or the encrypted file already exists.
+    **/
+    static final File compressContent(File source, File folder, Cipher cipher, Key key, MessageDigest hasher, int level) throws GeneralSecurityException, IOException
+    {
+        File temporary = File.createTempFile("compress", ".tmp", folder);
+        try
+        {
+            //Compress and encrypt the content with a name-hash vector
+            LocalFile file = new LocalFile(temporary, "rw");
+            try(FileInputStream fileInputStream = new FileInputStream(source))
             {
-                throw new IOException("Failed to create encrypted file.");
+                CompressedFileManager manager = new CompressedFileManager(file, key.getEncoded(), getIvFromName(source.getName(), hasher));
+                manager.write(fileInputStream, CompressedFileManager.DEFAULT_FRAME_SIZE, level);
+            } finally{
+                file.close();
             }
             
-            //===Decrypt the file's content===//
-            //Initialize the cipher with a name-hash vector
-            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(getIvFromName(name)));
-            //Perform the decryption
-            byte[] buffer = new byte[fileBufferSize];
-            int count;
-            try(CipherOutputStream cipherOutputStream = new CipherOutputStream(new FileOutputStream(decrypted), cipher))
+            //Move it into place under it's encrypted name
+            File encrypted = new File(folder, encryptName(source.getName(), ((temporary.length() / 16) + 1) * 16, cipher, key, hasher));
+            Files.move(temporary.toPath(), encrypted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            //Mirror the source's modification time, so incremental syncs can tell if it's changed
+            encrypted.setLastModified(source.lastModified());
+            return encrypted;
+        } finally{
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+    
+    /**
+     * Creates a decompressed and decrypted copy of a compressed file's content.
+     * @param source The compressed file to decompress.
+     * @param decrypted The file to write the decompressed content into, this must not already exist.
+     * @param name The decrypted name of the file, which the content's vector is derived from.
+     * @param key The key to decrypt with.
+     * @param hasher The hash engine to derive the IV with, this must be SHA-256 and not in use by any other thread.
+     * @throws GeneralSecurityException If the key isn't valid.
+     * @throws IOException If the file couldn't be read or written, or isn't a compressed file.
+    **/
+    static final void decompressContent(File source, File decrypted, String name, Key key, MessageDigest hasher) throws GeneralSecurityException, IOException
+    {
+        //Create the decrypted file
+        if(!decrypted.createNewFile())
+        {
+            throw new IOException("Failed to create decrypted file.");
+        }
+        
+        //Perform the decompression
+        LocalFile file = new LocalFile(source, "r");
+        try(BufferPool.Buffer pooled = BufferPool.SHARED.acquire(fileBufferSize);
+            FileChannel targetChannel = FileChannel.open(decrypted.toPath(), StandardOpenOption.WRITE))
+        {
+            CompressedFileManager manager = new CompressedFileManager(file, key.getEncoded(), getIvFromName(name, hasher));
+            try
             {
-                try(FileInputStream fileInputStream = new FileInputStream(source))
+                //Frames are read in order, so read the next ones while this one's being written out.
+                manager.setPrefetching(true);
+                ByteBuffer buffer = pooled.get();
+                long position = 0;
+                int count;
+                while((count = manager.read(position, buffer)) > 0)
                 {
-                    while((count = fileInputStream.read(buffer)) > 0)
+                    buffer.flip();
+                    while(buffer.hasRemaining())
                     {
-                        cipherOutputStream.write(buffer, 0, count);
+                        targetChannel.write(buffer);
                     }
+                    buffer.clear();
+                    position += count;
                 }
+            } finally{
+                manager.close();
             }
+        } finally{
+            file.close();
         }
     }
-
+    
     private static void createGraphics()
     {
         Toolkit toolkit = Toolkit.getDefaultToolkit();
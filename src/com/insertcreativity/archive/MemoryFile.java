@@ -0,0 +1,432 @@
+package com.insertcreativity.archive;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Class for archive files held entirely in memory. The file's bytes are stored in fixed size off-heap segments, which are added as the file grows, so growing a file never copies what's already in it
+ * and large files don't weigh on the garbage collector. Memory files never touch the disk on their own; they can be loaded from a file, and snapshotted back into one at checkpoints,
+ * which makes them suitable both for pinning small, hot files (like hash and metadata files) in memory, and as a backend with no I/O cost at all for benchmarks.
+**/
+public class MemoryFile extends AbstractFile
+{
+    /**The prefix of a memory file's address.**/
+    public static final String ADDRESS_PREFIX = "memory:";
+    /**Log2 of the size of each segment.**/
+    private static final int SEGMENT_SHIFT = 16;
+    /**The size of each segment.**/
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    /**The name of the file.**/
+    private final String name;
+    /**The segments holding the file's bytes, in order.**/
+    private final ArrayList<ByteBuffer> segments;
+    /**The length of the file.**/
+    private long length;
+    /**The position of the file-pointer.**/
+    private long position;
+    /**Flag for whether the file has changed since it was loaded or last snapshotted.**/
+    private boolean dirty;
+
+    /**
+     * Creates a new, empty memory file.
+     * @param name The name of the file.
+    **/
+    public MemoryFile(String name)
+    {
+        this.name = name;
+        segments = new ArrayList<>();
+        length = 0;
+        position = 0;
+        dirty = false;
+    }
+
+    /**
+     * Loads a file from disk into memory. The memory file is named after it.
+     * @param file The file to load.
+     * @return The loaded memory file.
+     * @throws IOException If the file couldn't be read.
+    **/
+    public static MemoryFile load(File file) throws IOException
+    {
+        MemoryFile memoryFile = new MemoryFile(file.getName());
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            memoryFile.ensureCapacity(size);
+            for(ByteBuffer segment : memoryFile.segments)
+            {
+                ByteBuffer view = segment.duplicate();
+                view.limit((int)Math.min(SEGMENT_SIZE, size - memoryFile.length));
+                while(view.hasRemaining())
+                {
+                    if(channel.read(view) == -1)
+                    {
+                        throw new EOFException("File " + file + " shrank while it was being loaded.");
+                    }
+                }
+                memoryFile.length += view.position();
+            }
+        }
+        return memoryFile;
+    }
+
+    /**
+     * Writes the file's contents to disk. The contents are written into a temporary file beside the target and synced before being moved into place, so the target always holds either the previous snapshot or the new one.
+     * @param file The file to write the snapshot into.
+     * @throws IOException If the snapshot couldn't be written.
+    **/
+    public void snapshot(File file) throws IOException
+    {
+        File folder = file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", folder);
+        try
+        {
+            try(FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                long remaining = length;
+                for(ByteBuffer segment : segments)
+                {
+                    if(remaining == 0)
+                    {
+                        break;
+                    }
+                    ByteBuffer view = segment.duplicate();
+                    view.limit((int)Math.min(SEGMENT_SIZE, remaining));
+                    while(view.hasRemaining())
+                    {
+                        channel.write(view);
+                    }
+                    remaining -= view.limit();
+                }
+                channel.force(true);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally{
+            Files.deleteIfExists(temporary.toPath());
+        }
+        dirty = false;
+    }
+
+    /**
+     * Checks whether the file has changed since it was loaded or last snapshotted, so checkpoints can skip files that haven't.
+     * @return True if the file has unsnapshotted changes.
+    **/
+    public boolean isDirty()
+    {
+        return dirty;
+    }
+
+    /**
+     * Adds segments until the file can hold the specified number of bytes. New segments are zero filled.
+     * @param capacity The number of bytes the file needs to hold.
+    **/
+    private final void ensureCapacity(long capacity)
+    {
+        long needed = (capacity + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT;
+        if(needed > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Memory files can't be " + capacity + " bytes long.");
+        }
+        segments.ensureCapacity((int)needed);
+        while(segments.size() < needed)
+        {
+            segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE));
+        }
+    }
+
+    /**
+     * Returns whether or not there is more data to read from the file.
+     * @return False if the file-pointer is at the end of the file, true otherwise.
+    **/
+    public boolean hasNext()
+    {
+        return (position < length);
+    }
+
+    /**
+     * Memory files are never directories.
+     * @return False.
+    **/
+    public boolean isDirectory()
+    {
+        return false;
+    }
+
+    /**
+     * Memory files aren't stored in any directory.
+     * @return Null.
+    **/
+    public AbstractFile getParent()
+    {
+        return null;
+    }
+
+    /**
+     * Memory files aren't directories, so they have no children.
+     * @param name The name of the file to find in this directory.
+     * @return Null.
+    **/
+    public AbstractFile getChild(String name)
+    {
+        return null;
+    }
+
+    /**
+     * Returns the name of the file.
+     * @return The name of the file.
+    **/
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the address of the file, which is just it's name prefixed with "memory:".
+     * @return The address of the file.
+    **/
+    public String getAddress()
+    {
+        return ADDRESS_PREFIX + name;
+    }
+
+    /**
+     * Gets the current size of the file, in bytes.
+     * @return The total number of bytes currently in the file.
+    **/
+    public long length()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the current position of the file-pointer.
+     * @return The current position of the file-pointer.
+    **/
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Moves the file-pointer to the specified position.
+     * @param position The position to move the file-pointer to in the file, measured from the start of the file.
+    **/
+    public void seek(long position)
+    {
+        if(position < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        this.position = position;
+    }
+
+    /**
+     * Reads a single byte from the file at the file-pointer's current position (and shifts the pointer forward by 1).
+     * @return The value of the byte read from the file.
+     * @throws EOFException If EOF has been reached.
+    **/
+    public byte readByte() throws EOFException
+    {
+        if(position >= length)
+        {
+            throw new EOFException();
+        }
+        byte data = segments.get((int)(position >>> SEGMENT_SHIFT)).get((int)(position & (SEGMENT_SIZE - 1)));
+        position++;
+        return data;
+    }
+
+    /**
+     * Reads a consecutive series of bytes from the file into the buffer starting from the current file-pointer position.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes that should be read into the buffer.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+    **/
+    public int readBytes(byte[] buffer, int offset, int length)
+    {
+        if(length == 0)
+        {
+            return 0;
+        }
+        if(position >= this.length)
+        {
+            return -1;
+        }
+        int count = (int)Math.min(length, this.length - position);
+        for(int done = 0; done < count;)
+        {
+            int segmentOffset = (int)(position & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(count - done, SEGMENT_SIZE - segmentOffset);
+            segments.get((int)(position >>> SEGMENT_SHIFT)).get(segmentOffset, buffer, offset + done, chunk);
+            done += chunk;
+            position += chunk;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a consecutive series of bytes from the file into the buffer starting from the current file-pointer position.
+     * @param buffer The buffer to read bytes into, from it's position up to it's limit.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+    **/
+    public int readBytes(ByteBuffer buffer)
+    {
+        if(!buffer.hasRemaining())
+        {
+            return 0;
+        }
+        if(position >= length)
+        {
+            return -1;
+        }
+        int count = (int)Math.min(buffer.remaining(), length - position);
+        for(int done = 0; done < count;)
+        {
+            int segmentOffset = (int)(position & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(count - done, SEGMENT_SIZE - segmentOffset);
+            buffer.put(segments.get((int)(position >>> SEGMENT_SHIFT)).slice(segmentOffset, chunk));
+            done += chunk;
+            position += chunk;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a region of the file without moving the file-pointer, for vectored reads.
+     * @param position The position in the file to start reading at.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes to read.
+     * @return The number of bytes read, which is only less than the length requested if EOF was reached.
+    **/
+    protected int readAt(long position, byte[] buffer, int offset, int length)
+    {
+        long saved = this.position;
+        this.position = position;
+        int count = readBytes(buffer, offset, length);
+        this.position = saved;
+        return Math.max(count, 0);
+    }
+
+    /**
+     * Writes a single byte into the file at the file-pointer's current position (and shifts the pointer forward by 1). If the file-pointer is at EOF, the byte is appended to the end of the file, otherwise the byte currently at that position is overwritten.
+     * @param data The byte to write into the file.
+     * @return The number of bytes successfully written to the file.
+    **/
+    public int writeByte(byte data)
+    {
+        ensureCapacity(position + 1);
+        segments.get((int)(position >>> SEGMENT_SHIFT)).put((int)(position & (SEGMENT_SIZE - 1)), data);
+        position++;
+        length = Math.max(length, position);
+        dirty = true;
+        return 1;
+    }
+
+    /**
+     * Writes an array of bytes into the file in order starting at the file-pointer's current position. Writing past EOF leaves the gap zero filled.
+     * @param data The array to write bytes from.
+     * @param offset The index offset to starting writing bytes from the buffer at.
+     * @param length The number of bytes that should be written into the file.
+     * @return The number of bytes successfully written into the file.
+    **/
+    public int writeBytes(byte[] data, int offset, int length)
+    {
+        if(length == 0)
+        {
+            return 0;
+        }
+        ensureCapacity(position + length);
+        for(int done = 0; done < length;)
+        {
+            int segmentOffset = (int)(position & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(length - done, SEGMENT_SIZE - segmentOffset);
+            segments.get((int)(position >>> SEGMENT_SHIFT)).put(segmentOffset, data, offset + done, chunk);
+            done += chunk;
+            position += chunk;
+        }
+        this.length = Math.max(this.length, position);
+        dirty = true;
+        return length;
+    }
+
+    /**
+     * Writes the bytes remaining in a buffer into the file in order starting at the file-pointer's current position, and advances the buffer's position past them.
+     * @param data The buffer to write bytes from.
+     * @return The number of bytes successfully written into the file.
+    **/
+    public int writeBytes(ByteBuffer data)
+    {
+        int count = data.remaining();
+        if(count == 0)
+        {
+            return 0;
+        }
+        ensureCapacity(position + count);
+        for(int done = 0; done < count;)
+        {
+            int segmentOffset = (int)(position & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(count - done, SEGMENT_SIZE - segmentOffset);
+            segments.get((int)(position >>> SEGMENT_SHIFT)).put(segmentOffset, data, data.position(), chunk);
+            data.position(data.position() + chunk);
+            done += chunk;
+            position += chunk;
+        }
+        length = Math.max(length, position);
+        dirty = true;
+        return count;
+    }
+
+    /**
+     * Truncates or extends the file to the specified length. Truncated segments are released, and anything the file is extended by is zero filled.
+     * @param length The new length of the file, in bytes.
+    **/
+    public void setLength(long length)
+    {
+        if(length < this.length)
+        {
+            //Release the segments past the new end, and zero the rest of the last one so extending the file later reads zeros.
+            int kept = (int)((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            segments.subList(kept, segments.size()).clear();
+            int tail = (int)(length & (SEGMENT_SIZE - 1));
+            if(tail != 0)
+            {
+                ByteBuffer last = segments.get(kept - 1);
+                for(int i = tail; i < SEGMENT_SIZE; i++)
+                {
+                    last.put(i, (byte)0);
+                }
+            }
+        } else{
+            ensureCapacity(length);
+        }
+        this.length = length;
+        dirty = true;
+    }
+
+    /**
+     * Memory files are only made durable by snapshotting them, so there's nothing to sync.
+    **/
+    public void sync()
+    {
+    }
+
+    /**
+     * Releases the file's segments. Any changes that weren't snapshotted are lost.
+    **/
+    public void close()
+    {
+        segments.clear();
+        length = 0;
+        position = 0;
+    }
+}
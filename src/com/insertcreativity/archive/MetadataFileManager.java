@@ -3,13 +3,18 @@ package com.insertcreativity.archive;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
 
 /**
  * Class for reading and updating metadata of various archive files. Metadata files are formatted as a list of key value pairs.
  * Each pair has the following structure:
  *      - 1 byte for the length of the key
- *      - 2 bytes for the length of the value
+ *      - 2 bytes for the length of the value (least significant byte first)
  *      - The key, stored as a UTF-16 string
  *      - The value
  * Metadata files store no data about themselves.
@@ -22,6 +27,10 @@ final class MetadataFileManager extends FileManager
     private int keyLength;
     /**The length of the entry's value. Values can be anywhere between 0 and 65535 bytes long.**/
     private int valueLength;
+    /**The write-ahead log that updates are routed through, or null if updates are written directly.**/
+    private LogFileManager log;
+    /**Scratch buffer keys are read into while searching, so lookups don't allocate.**/
+    private final byte[] keyBuffer;
 
     /**
      * Creates a new manager for interacting with metadata files.
@@ -33,6 +42,19 @@ final class MetadataFileManager extends FileManager
     MetadataFileManager(AbstractFile abstractFile, byte[] key, byte[] iv) throws InvalidKeyException
     {
         super(abstractFile, key, iv);
+        keyBuffer = new byte[256];
+    }
+
+    /**
+     * Creates a new manager for interacting with metadata files, using an already initialized encryption engine.
+     * @param abstractFile Reference to the actual file.
+     * @param engine An AES/ECB/NoPadding cipher initialized for encryption with the file's key (see Keyring). It must not be used by any other thread while this manager is in use.
+     * @param iv The initialization vector to start the counter at. Must be at least 16 bytes long, any iv's longer than 16 bytes will only have the first 16 bytes used.
+    **/
+    MetadataFileManager(AbstractFile abstractFile, Cipher engine, byte[] iv)
+    {
+        super(abstractFile, engine, iv);
+        keyBuffer = new byte[256];
     }
 
     /**
@@ -46,8 +68,8 @@ final class MetadataFileManager extends FileManager
         //Seek to the start of the file.
         seek(0);
 
-        //Allocate a buffer for reading keys.
-        byte[] buffer = new byte[256];
+        //Reuse the manager's buffer for reading keys.
+        byte[] buffer = keyBuffer;
         int i;
 
         try
@@ -55,14 +77,19 @@ final class MetadataFileManager extends FileManager
             while(true)
             {
                 entryOffset = getPosition();
-                //Read the entry lengths.
-                keyLength = readByte() & 0xff;
-                valueLength = ((readByte() & 0xff) << 8) | (readByte() & 0xff);
+                //Read the entry lengths in a single read.
+                if(readBytes(buffer, 0, 3) != 3)
+                {
+                    break;
+                }
+                keyLength = buffer[0] & 0xff;
+                valueLength = (buffer[1] & 0xff) | ((buffer[2] & 0xff) << 8);
 
                 //If the length of the keys don't match, skip the entry.
                 if(keyLength != key.length)
                 {
                     seekRelative(keyLength + valueLength);
+                    continue;
                 }
 
                 //If the whole key couldn't be read in, terminate the search.
@@ -82,7 +109,7 @@ final class MetadataFileManager extends FileManager
                     }
                 }
                 //If the keys matched.
-                if(i == 12)
+                if(i == keyLength)
                 {
                     return true;
                 }
@@ -93,12 +120,119 @@ final class MetadataFileManager extends FileManager
     }
 
     /**
-     * Gets the metadata value for a specified key.
+     * Routes all future metadata updates through a write-ahead log instead of writing them directly into the file. The log applies the updates to this file lazily.
+     * @param logFile The log to append metadata updates into.
+    **/
+    final synchronized void attachLog(LogFileManager logFile)
+    {
+        log = logFile;
+    }
+
+    /**
+     * Gets the metadata value for a specified key, including any updates that are still waiting in the log.
+     * @param key The key for the metadata to retrieve.
+     * @return The corresponding metadata value, or null if the key couldn't be found.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized byte[] getMetadata(byte[] key) throws IOException
+    {
+        if(log != null)
+        {
+            byte[] pendingValue = log.getPendingMetadata(key);
+            if(pendingValue != null)
+            {
+                return pendingValue;
+            }
+        }
+        return readMetadata(key);
+    }
+
+    /**
+     * Gets the metadata value for a specified key without allocating, including any updates that are still waiting in the log.
+     * @param key The key for the metadata to retrieve.
+     * @param value Buffer to read the value into.
+     * @param offset The offset to start reading the value into the buffer at.
+     * @return The length of the value, or -1 if the key couldn't be found. If the value is longer than the space left in the buffer, nothing is read and the value's length is still returned, so the caller can retry with a larger buffer.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized int getMetadata(byte[] key, byte[] value, int offset) throws IOException
+    {
+        if(log != null)
+        {
+            int pendingLength = log.getPendingMetadata(key, value, offset);
+            if(pendingLength != -1)
+            {
+                return pendingLength;
+            }
+        }
+        if(!seekKey(key))
+        {
+            return -1;
+        }
+        if((valueLength <= value.length - offset) && (readBytes(value, offset, valueLength) != valueLength))
+        {
+            throw new IOException("Failed to read in value completely.");
+        }
+        return valueLength;
+    }
+
+    /**
+     * Gets the metadata values for many keys at once, including any updates that are still waiting in the log. Keys without a pending update are found with a single pass over the file.
+     * @param keys The keys for the metadata to retrieve.
+     * @return Map of the values that were found, keyed by the metadata key. Keys that couldn't be found are left out.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized HashMap<ByteBuffer, byte[]> getMetadata(Collection<ByteBuffer> keys) throws IOException
+    {
+        HashMap<ByteBuffer, byte[]> values = new HashMap<>();
+        HashMap<ByteBuffer, Boolean> unlogged = new HashMap<>();
+        for(ByteBuffer key : keys)
+        {
+            byte[] pendingValue = null;
+            if(log != null)
+            {
+                byte[] keyBytes = new byte[key.remaining()];
+                key.duplicate().get(keyBytes);
+                pendingValue = log.getPendingMetadata(keyBytes);
+            }
+            if(pendingValue == null)
+            {
+                unlogged.put(key, Boolean.TRUE);
+            } else{
+                values.put(key, pendingValue);
+            }
+        }
+        if(unlogged.isEmpty())
+        {
+            return values;
+        }
+
+        for(Map.Entry<ByteBuffer, Long> entry : locateKeys(unlogged).entrySet())
+        {
+            seek(entry.getValue());
+            if(readBytes(keyBuffer, 0, 3) != 3)
+            {
+                throw new IOException("Failed to read in entry header completely.");
+            }
+            int entryValueLength = (keyBuffer[1] & 0xff) | ((keyBuffer[2] & 0xff) << 8);
+            seekRelative(keyBuffer[0] & 0xff);
+            byte[] value = new byte[entryValueLength];
+            if(readBytes(value) != entryValueLength)
+            {
+                throw new IOException("Failed to read in value completely.");
+            }
+            values.put(entry.getKey(), value);
+        }
+        return values;
+    }
+
+    /**
+     * Gets the metadata value for a specified key that's currently written in the file.
      * @param key The key for the metadata to retrieve.
      * @return The corresponding metadata value, or null if the key couldn't be found.
      * @throws IOException If the operation fails unexpectedly or is unsupported.
     **/
-    final byte[] getMetadata(byte[] key) throws IOException
+    private final byte[] readMetadata(byte[] key) throws IOException
     {
         if(seekKey(key))
         {
@@ -116,6 +250,7 @@ final class MetadataFileManager extends FileManager
 
     /**
      * Updates the metadata value for a specified key, or appends a new entry into the file if it isn't listed already.
+     * If a log is attached, the update is committed into the log and applied to the file later.
      * @param key The metadata key to update the value of.
      * @param value The value of the metadata.
      * @return The previous value of the metadata, or null if there wasn't previously an entry.
@@ -132,8 +267,72 @@ final class MetadataFileManager extends FileManager
             throw new IllegalArgumentException("Metadata values cannot be larger than 65535 bytes in length!");
         }
 
+        byte[] previousValue;
+        long sequence;
+        synchronized(this)
+        {
+            if(log == null)
+            {
+                return writeMetadata(key, value);
+            }
+            previousValue = getMetadata(key);
+            sequence = log.appendMetadata(key, value);
+        }
+        //Wait for the update to be durable outside the lock, so concurrent updates can be committed together.
+        log.commit(sequence);
+
+        return previousValue;
+    }
+
+    /**
+     * Updates the metadata values for many keys at once. If a log is attached, every update is appended into it and they're committed as a single group, otherwise they're written directly with a single pass over the file.
+     * @param values Map of the metadata values, keyed by the metadata key. The value arrays may be encrypted in place as they're written.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final void updateMetadata(Map<ByteBuffer, byte[]> values) throws IOException
+    {
+        //Everything's checked up front, so a batch is never left half appended.
+        for(Map.Entry<ByteBuffer, byte[]> entry : values.entrySet())
+        {
+            if((entry.getKey().remaining() > 255) || (entry.getValue().length > 65535))
+            {
+                throw new IllegalArgumentException("Metadata keys cannot be larger than 255 bytes, and values 65535 bytes in length!");
+            }
+        }
+
+        long sequence = -1;
+        synchronized(this)
+        {
+            if(log == null)
+            {
+                writeMetadata(values);
+                return;
+            }
+            for(Map.Entry<ByteBuffer, byte[]> entry : values.entrySet())
+            {
+                byte[] key = new byte[entry.getKey().remaining()];
+                entry.getKey().duplicate().get(key);
+                sequence = log.appendMetadata(key, entry.getValue());
+            }
+        }
+        //Every record up to the last one is committed together.
+        if(sequence != -1)
+        {
+            log.commit(sequence);
+        }
+    }
+
+    /**
+     * Writes the metadata value for a specified key directly into the file, or appends a new entry if it isn't listed already.
+     * @param key The metadata key to update the value of.
+     * @param value The value of the metadata.
+     * @return The previous value of the metadata, or null if there wasn't previously an entry.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final byte[] writeMetadata(byte[] key, byte[] value) throws IOException
+    {
         //Get the previous value for the key.
-        byte[] previousValue = getMetadata(key);
+        byte[] previousValue = readMetadata(key);
         if(previousValue == null)
         {
             //Append the entry at EOF if there isn't an entry for it already.
@@ -155,6 +354,85 @@ final class MetadataFileManager extends FileManager
         return previousValue;
     }
 
+    /**
+     * Finds where the values for many metadata keys are written in the file, with a single pass over it.
+     * @param keys The keys to find. Only their presence in the map matters.
+     * @return Map of the position of each key's entry that was found, keyed by the metadata key.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    private final HashMap<ByteBuffer, Long> locateKeys(Map<ByteBuffer, ?> keys) throws IOException
+    {
+        HashMap<ByteBuffer, Long> offsets = new HashMap<>();
+        seek(0);
+        byte[] buffer = keyBuffer;
+        while(true)
+        {
+            long offset = getPosition();
+            if(readBytes(buffer, 0, 3) != 3)
+            {
+                break;
+            }
+            int entryKeyLength = buffer[0] & 0xff;
+            int entryValueLength = (buffer[1] & 0xff) | ((buffer[2] & 0xff) << 8);
+            if(readBytes(buffer, 0, entryKeyLength) != entryKeyLength)
+            {
+                break;
+            }
+            ByteBuffer key = ByteBuffer.wrap(buffer, 0, entryKeyLength);
+            //Only the first entry for a key is ever read, so later duplicates are ignored like they are by seekKey.
+            if(keys.containsKey(key) && !offsets.containsKey(key))
+            {
+                offsets.put(ByteBuffer.wrap(buffer.clone(), 0, entryKeyLength).slice(), offset);
+            }
+            seekRelative(entryValueLength);
+        }
+        return offsets;
+    }
+
+    /**
+     * Writes the values for many metadata keys directly into the file at once. Existing entries are found with a single pass over the file and overwritten in place, and the rest are appended.
+     * @param values Map of the metadata values, keyed by the metadata key. The value arrays are encrypted in place as they're written.
+     * @return Map of the position each value was written at, keyed by the metadata key.
+     * @throws IOException If the operation fails unexpectedly or is unsupported.
+    **/
+    final synchronized HashMap<ByteBuffer, Long> writeMetadata(Map<ByteBuffer, byte[]> values) throws IOException
+    {
+        HashMap<ByteBuffer, Long> offsets = locateKeys(values);
+        HashMap<ByteBuffer, Long> positions = new HashMap<>();
+        for(Map.Entry<ByteBuffer, byte[]> entry : values.entrySet())
+        {
+            byte[] key = new byte[entry.getKey().remaining()];
+            entry.getKey().duplicate().get(key);
+            byte[] value = entry.getValue();
+            if((key.length > 255) || (value.length > 65535))
+            {
+                throw new IllegalArgumentException("Metadata keys cannot be larger than 255 bytes, and values 65535 bytes in length!");
+            }
+
+            Long offset = offsets.get(entry.getKey());
+            if(offset == null)
+            {
+                //Append the entry at EOF if there isn't an entry for it already.
+                seek(-1);
+                writeByte((byte)key.length);
+            } else{
+                //Overwrite the value and it's length in the entry.
+                seek(offset + 1);
+            }
+            writeByte((byte)value.length);
+            writeByte((byte)(value.length >> 8));
+            if(offset == null)
+            {
+                writeBytes(key);
+            } else{
+                seekRelative(key.length);
+            }
+            positions.put(entry.getKey(), getPosition());
+            writeBytes(value);
+        }
+        return positions;
+    }
+
     /**
      * Metadata contains no unhashable data, so returns the start of the file.
      * @return The position to start hashing the metadata file at.
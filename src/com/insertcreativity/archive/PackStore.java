@@ -0,0 +1,520 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class for packing many small files into a few large segment files. Creating, naming and encrypting a separate archive file for every small file is dominated by file system overhead,
+ * so instead small files are appended one after another into the current segment, and the index records where in which segment each file ended up.
+ * Each segment is encrypted with it's own vector, derived from it's number. Segment numbers are never reused, so no two segments share a keystream: the number the next segment will get is recorded in the index whenever a segment is started,
+ * so numbers stay used even after compaction deletes the newest segments.
+ * Removing a file only removes it's index entry, so the space it took up is reclaimed later by compacting segments that are mostly dead.
+**/
+final class PackStore
+{
+    /**The default size below which files are packed.**/
+    static final int DEFAULT_PACK_THRESHOLD = 65536;
+    /**The default size a segment can grow to before a new one is started.**/
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    /**The number of bytes in a pack extent payload (segment, offset and length).**/
+    private static final int EXTENT_LENGTH = 16;
+    /**The number of files that can be packed before their extents are flushed to the index.**/
+    private static final int FLUSH_INTERVAL = 1024;
+    /**The context segments' key is derived with.**/
+    private static final byte[] KEY_CONTEXT = "pack".getBytes(StandardCharsets.US_ASCII);
+    /**The extension segment files are named with.**/
+    private static final String SEGMENT_EXTENSION = ".pack";
+    /**The identifier the number of the next segment is recorded under in the index.**/
+    private static final byte[] SEGMENT_IDENTIFIER = new byte[12];
+
+    /**The folder that segments are stored in.**/
+    private final File directory;
+    /**The keyring segments' keys are derived from.**/
+    private final Keyring keyring;
+    /**The index that files' extents are recorded in.**/
+    private final IndexFileManager index;
+    /**Files smaller than this many bytes are packed.**/
+    private final int threshold;
+    /**The size a segment can grow to before a new one is started.**/
+    private final long segmentSize;
+    /**Where every packed file is stored, keyed by the file's identifier.**/
+    private final Map<ByteBuffer, Extent> extents;
+    /**The number the next new segment will be given.**/
+    private int nextSegment;
+    /**The number of the segment files are currently appended to, or -1 if there isn't one open.**/
+    private int currentSegment;
+    /**The segment files are currently appended to.**/
+    private LocalFile currentFile;
+    /**Manager for encrypting into the current segment.**/
+    private FileManager currentManager;
+    /**Identifiers of files packed since the last flush, whose extents haven't been recorded in the index yet.**/
+    private final ArrayList<byte[]> unflushed;
+
+    /**
+     * Creates a new pack store, with the default threshold and segment size.
+     * @param directory The folder that segments are stored in.
+     * @param keyring The keyring segments' keys are derived from.
+     * @param index The index that files' extents are recorded in.
+     * @throws IOException If the index couldn't be read.
+    **/
+    PackStore(File directory, Keyring keyring, IndexFileManager index) throws IOException
+    {
+        this(directory, keyring, index, DEFAULT_PACK_THRESHOLD, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new pack store.
+     * @param directory The folder that segments are stored in.
+     * @param keyring The keyring segments' keys are derived from.
+     * @param index The index that files' extents are recorded in.
+     * @param threshold Files smaller than this many bytes are packed.
+     * @param segmentSize The size a segment can grow to before a new one is started.
+     * @throws IOException If the index couldn't be read.
+    **/
+    PackStore(File directory, Keyring keyring, IndexFileManager index, int threshold, long segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.keyring = keyring;
+        this.index = index;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+        unflushed = new ArrayList<>();
+
+        //Load the extents of every packed file.
+        extents = new ConcurrentHashMap<>();
+        for(Map.Entry<ByteBuffer, byte[]> entry : index.getEntries(IndexFileManager.PACK_EXTENT).entrySet())
+        {
+            extents.put(entry.getKey(), new Extent(entry.getValue()));
+        }
+
+        //Segments started after the index was last synced can still be on disk, so numbers aren't reused whichever is newer.
+        byte[] recorded = index.getEntry(IndexFileManager.PACK_SEGMENT, SEGMENT_IDENTIFIER);
+        int newest = (((recorded == null) || (recorded.length != 4))? -1 : LogFileManager.getInt(recorded, 0) - 1);
+        for(int segment : listSegments())
+        {
+            newest = Math.max(newest, segment);
+        }
+        nextSegment = newest + 1;
+        currentSegment = -1;
+    }
+
+    /**
+     * Checks whether a file should be packed, or stored in it's own archive file.
+     * @param size The size of the file, in bytes.
+     * @return True if the file is small enough to pack.
+    **/
+    final boolean shouldPack(long size)
+    {
+        return size < threshold;
+    }
+
+    /**
+     * Checks whether a file is packed in this store.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return True if the file is packed.
+    **/
+    final boolean contains(byte[] identifier)
+    {
+        return extents.containsKey(wrap(identifier));
+    }
+
+    /**
+     * Gets the length of a packed file.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return The length of the file, or -1 if the file isn't packed.
+    **/
+    final long length(byte[] identifier)
+    {
+        Extent extent = extents.get(wrap(identifier));
+        return ((extent == null)? -1 : extent.length);
+    }
+
+    /**
+     * Packs a file into the current segment, replacing any earlier copy of it. The file can be read straight away, but it's extent is only recorded in the index when the store is next flushed.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @param data The array containing the file's content. Note that the content is encrypted in place.
+     * @param offset The offset the content starts at in the array.
+     * @param length The length of the content.
+     * @throws IOException If the content couldn't be written, or the extent couldn't be recorded.
+    **/
+    final synchronized void store(byte[] identifier, byte[] data, int offset, int length) throws IOException
+    {
+        long position = append(data, offset, length);
+        extents.put(wrap(identifier), new Extent(currentSegment, position, length));
+        unflushed.add(Arrays.copyOf(identifier, 12));
+        if(unflushed.size() >= FLUSH_INTERVAL)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Flushes the current segment, and then records the extents of every file packed since the last flush in the index. Segments are always on disk before the index points into them.
+     * @throws IOException If the segment couldn't be flushed, or the extents couldn't be recorded.
+    **/
+    final synchronized void flush() throws IOException
+    {
+        if(currentManager != null)
+        {
+            currentManager.sync();
+        }
+        for(byte[] identifier : unflushed)
+        {
+            Extent extent = extents.get(ByteBuffer.wrap(identifier));
+            //Files removed since they were packed have already had their removal recorded.
+            if(extent != null)
+            {
+                byte[] payload = new byte[EXTENT_LENGTH];
+                LogFileManager.putInt(payload, 0, extent.segment);
+                LogFileManager.putLong(payload, 4, extent.offset);
+                LogFileManager.putInt(payload, 12, extent.length);
+                index.putEntry(IndexFileManager.PACK_EXTENT, identifier, payload);
+            }
+        }
+        unflushed.clear();
+    }
+
+    /**
+     * Appends data to the end of the current segment, starting a new segment if the current one is full.
+     * @param data The array containing the data. Note that the data is encrypted in place.
+     * @param offset The offset the data starts at in the array.
+     * @param length The length of the data.
+     * @return The position the data was written at in the current segment.
+     * @throws IOException If the data couldn't be written.
+    **/
+    private final long append(byte[] data, int offset, int length) throws IOException
+    {
+        if((currentManager == null) || (currentManager.length() + length > segmentSize))
+        {
+            openSegment();
+        }
+        currentManager.seek(-1);
+        long position = currentManager.getPosition();
+        currentManager.writeBytes(data, offset, length);
+        return position;
+    }
+
+    /**
+     * Closes the current segment, and starts a new one.
+     * @throws IOException If the new segment couldn't be created.
+    **/
+    private final void openSegment() throws IOException
+    {
+        flush();
+        closeSegment();
+        int segment = nextSegment++;
+        //The number is recorded before anything's written under it. Compaction syncs the index before deleting any segment, so the newest number is always durable by then.
+        byte[] payload = new byte[4];
+        LogFileManager.putInt(payload, 0, nextSegment);
+        if(!index.replaceEntry(IndexFileManager.PACK_SEGMENT, SEGMENT_IDENTIFIER, payload))
+        {
+            index.putEntry(IndexFileManager.PACK_SEGMENT, SEGMENT_IDENTIFIER, payload);
+        }
+        LocalFile file = new LocalFile(getSegmentFile(segment), "rw");
+        try
+        {
+            //The current segment can be written from any thread, so it can't share a thread's cached cipher.
+            currentManager = new FileManager(file, keyring.createCipher(KEY_CONTEXT), getSegmentIv(segment));
+        } catch(InvalidKeyException invalidKeyException)
+        {
+            file.close();
+            throw new IOException("Invalid segment key.", invalidKeyException);
+        }
+        currentFile = file;
+        currentSegment = segment;
+    }
+
+    /**
+     * Flushes and closes the current segment, if there is one.
+     * @throws IOException If the segment couldn't be flushed.
+    **/
+    private final void closeSegment() throws IOException
+    {
+        if(currentFile != null)
+        {
+            try
+            {
+                currentManager.sync();
+            } finally{
+                currentFile.close();
+                currentFile = null;
+                currentManager = null;
+                currentSegment = -1;
+            }
+        }
+    }
+
+    /**
+     * Reads a packed file's entire content.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return The file's content, or null if the file isn't packed.
+     * @throws IOException If the file's segment couldn't be read.
+    **/
+    final byte[] read(byte[] identifier) throws IOException
+    {
+        long length = length(identifier);
+        if(length == -1)
+        {
+            return null;
+        }
+        byte[] content = new byte[(int)length];
+        if((content.length > 0) && (read(identifier, 0, content, 0, content.length) != content.length))
+        {
+            throw new IOException("Failed to read in packed file completely.");
+        }
+        return content;
+    }
+
+    /**
+     * Reads part of a packed file's content, without reading anything else in it's segment.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @param position The position in the file to start reading from.
+     * @param buffer The buffer to read the content into.
+     * @param offset The offset to start storing bytes in the buffer at.
+     * @param length The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 if the position is at or past the end of the file.
+     * @throws FileNotFoundException If the file isn't packed.
+     * @throws IOException If the file's segment couldn't be read.
+    **/
+    final int read(byte[] identifier, long position, byte[] buffer, int offset, int length) throws IOException
+    {
+        ByteBuffer id = wrap(identifier);
+        while(true)
+        {
+            Extent extent = extents.get(id);
+            if(extent == null)
+            {
+                throw new FileNotFoundException("File isn't packed.");
+            }
+            if(position >= extent.length)
+            {
+                return -1;
+            }
+            int count = (int)Math.min(length, extent.length - position);
+
+            //The file can be moved by a compaction while it's being read, in which case it's read again from it's new segment.
+            File segmentFile = getSegmentFile(extent.segment);
+            LocalFile file;
+            try
+            {
+                file = new LocalFile(segmentFile, "r");
+            } catch(FileNotFoundException fileNotFoundException)
+            {
+                if(extents.get(id) != extent)
+                {
+                    continue;
+                }
+                throw fileNotFoundException;
+            }
+            try
+            {
+                FileManager manager = new FileManager(file, keyring.getCipher(KEY_CONTEXT), getSegmentIv(extent.segment));
+                manager.seek(extent.offset + position);
+                if(manager.readBytes(buffer, offset, count) != count)
+                {
+                    throw new IOException("Failed to read in packed file completely.");
+                }
+                return count;
+            } catch(InvalidKeyException invalidKeyException)
+            {
+                throw new IOException("Invalid segment key.", invalidKeyException);
+            } finally{
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Removes a packed file. The space it takes up in it's segment isn't reclaimed until the segment is compacted.
+     * @param identifier The identifier of the file, only the first 12 bytes are used.
+     * @return True if the file was packed.
+     * @throws IOException If the removal couldn't be recorded.
+    **/
+    final synchronized boolean remove(byte[] identifier) throws IOException
+    {
+        if(extents.remove(wrap(identifier)) == null)
+        {
+            return false;
+        }
+        index.removeEntry(IndexFileManager.PACK_EXTENT, identifier);
+        return true;
+    }
+
+    /**
+     * Reclaims the space taken up by removed files. Every segment (except the current one) whose live files take up less than the given fraction of it has it's live files repacked into the current segment, and is then deleted.
+     * @param minimumLiveRatio The fraction of a segment that must still be live for it to be kept, from 0 to 1.
+     * @return The number of bytes reclaimed.
+     * @throws IOException If a file couldn't be repacked, or a segment couldn't be deleted.
+    **/
+    final synchronized long compact(double minimumLiveRatio) throws IOException
+    {
+        //Total up the live bytes, and group the live files by segment.
+        HashMap<Integer, Long> live = new HashMap<>();
+        HashMap<Integer, ArrayList<ByteBuffer>> residents = new HashMap<>();
+        for(Map.Entry<ByteBuffer, Extent> entry : extents.entrySet())
+        {
+            Extent extent = entry.getValue();
+            live.merge(extent.segment, (long)extent.length, Long::sum);
+            residents.computeIfAbsent(extent.segment, segment -> new ArrayList<>()).add(entry.getKey());
+        }
+
+        //Repacked files can fill up the current segment and start new ones, so the current segment and every segment after it hold files that weren't counted above and must be kept.
+        int firstKept = ((currentSegment == -1)? nextSegment : currentSegment);
+        long reclaimed = 0;
+        ArrayList<File> condemned = new ArrayList<>();
+        for(int segment : listSegments())
+        {
+            if(segment >= firstKept)
+            {
+                continue;
+            }
+            File segmentFile = getSegmentFile(segment);
+            long segmentLength = segmentFile.length();
+            long liveLength = live.getOrDefault(segment, 0L);
+            if(liveLength >= minimumLiveRatio * segmentLength)
+            {
+                continue;
+            }
+
+            //Move the segment's live files into the current segment.
+            for(ByteBuffer id : residents.getOrDefault(segment, new ArrayList<>()))
+            {
+                byte[] identifier = id.array();
+                byte[] content = read(identifier);
+                store(identifier, content, 0, content.length);
+            }
+            condemned.add(segmentFile);
+            reclaimed += segmentLength - liveLength;
+        }
+
+        //Only delete the old segments once the index pointing away from them is on disk.
+        if(!condemned.isEmpty())
+        {
+            flush();
+            index.sync();
+            for(File segmentFile : condemned)
+            {
+                if(!segmentFile.delete())
+                {
+                    throw new IOException("Failed to delete segment " + segmentFile);
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Flushes the store, and closes the current segment. The store can still be used afterwards, and will start a new segment when it's next written to.
+     * @throws IOException If the segment couldn't be flushed.
+    **/
+    final synchronized void close() throws IOException
+    {
+        flush();
+        closeSegment();
+    }
+
+    /**
+     * Lists the numbers of every segment in the store's folder.
+     * @return The numbers of the segments.
+     * @throws IOException If the folder couldn't be listed.
+    **/
+    private final int[] listSegments() throws IOException
+    {
+        String[] names = directory.list();
+        if(names == null)
+        {
+            throw new IOException("Failed to list pack folder " + directory);
+        }
+        int[] segments = new int[names.length];
+        int count = 0;
+        for(String name : names)
+        {
+            if(name.endsWith(SEGMENT_EXTENSION) && (name.length() == 8 + SEGMENT_EXTENSION.length()))
+            {
+                try
+                {
+                    segments[count] = Integer.parseUnsignedInt(name.substring(0, 8), 16);
+                    count++;
+                } catch(NumberFormatException numberFormatException){}
+            }
+        }
+        return Arrays.copyOf(segments, count);
+    }
+
+    /**
+     * Gets the file a segment is stored in.
+     * @param segment The number of the segment.
+     * @return The segment's file.
+    **/
+    private final File getSegmentFile(int segment)
+    {
+        return new File(directory, String.format("%08x", segment) + SEGMENT_EXTENSION);
+    }
+
+    /**
+     * Derives the initialization vector a segment is encrypted with, by hashing it's number.
+     * @param segment The number of the segment.
+     * @return The segment's 16 byte vector.
+    **/
+    private static final byte[] getSegmentIv(int segment)
+    {
+        byte[] seed = new byte[8];
+        LogFileManager.putInt(seed, 0, 0x7061636b);
+        LogFileManager.putInt(seed, 4, segment);
+        return Arrays.copyOf(HashEnginePool.digest(seed), 16);
+    }
+
+    /**
+     * Wraps an identifier for use as a map key.
+     * @param identifier The identifier, only the first 12 bytes are used.
+     * @return Buffer wrapping a copy of the first 12 bytes of the identifier.
+    **/
+    private static final ByteBuffer wrap(byte[] identifier)
+    {
+        return ByteBuffer.wrap(Arrays.copyOf(identifier, 12));
+    }
+
+    /**
+     * Where a packed file is stored.
+    **/
+    private static final class Extent
+    {
+        /**The number of the segment the file is packed into.**/
+        final int segment;
+        /**The offset of the file in it's segment.**/
+        final long offset;
+        /**The length of the file.**/
+        final int length;
+
+        /**
+         * Creates a new extent.
+         * @param segment The number of the segment the file is packed into.
+         * @param offset The offset of the file in it's segment.
+         * @param length The length of the file.
+        **/
+        Extent(int segment, long offset, int length)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Creates a new extent from an index entry's payload.
+         * @param payload The payload of the file's pack extent entry.
+        **/
+        Extent(byte[] payload)
+        {
+            this(LogFileManager.getInt(payload, 0), LogFileManager.getLong(payload, 4), LogFileManager.getInt(payload, 12));
+        }
+    }
+}
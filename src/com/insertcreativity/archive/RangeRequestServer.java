@@ -0,0 +1,186 @@
+package com.insertcreativity.archive;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class for serving a local folder over HTTP with range request support, as a stand-in for the object stores RemoteFiles normally read from. It only listens on the loopback address.
+ * Requests are counted, so the number of round trips a RemoteFile makes can be checked. Only single ranges are supported ("bytes=a-b", "bytes=a-" and "bytes=-n"), which is all RemoteFiles ever ask for.
+**/
+final class RangeRequestServer
+{
+    /**The folder that's served.**/
+    private final File root;
+    /**The underlying HTTP server.**/
+    private final HttpServer server;
+    /**The number of GET requests served.**/
+    private final AtomicInteger requests;
+
+    /**
+     * Creates a new server for a folder, and starts it on a free port.
+     * @param root The folder to serve.
+     * @throws IOException If the server couldn't be started.
+    **/
+    RangeRequestServer(File root) throws IOException
+    {
+        this.root = root.getCanonicalFile();
+        requests = new AtomicInteger();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Gets the address a file in the served folder is available at.
+     * @param path The path of the file, relative to the served folder and separated with '/'.
+     * @return The file's address.
+     * @throws IOException If the address couldn't be formed.
+    **/
+    final URL getUrl(String path) throws IOException
+    {
+        InetSocketAddress address = server.getAddress();
+        return new URL("http", address.getHostString(), address.getPort(), "/" + path);
+    }
+
+    /**
+     * Gets the number of GET requests served so far.
+     * @return The number of GET requests.
+    **/
+    final int getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Stops the server, without waiting for requests in progress.
+    **/
+    final void close()
+    {
+        server.stop(0);
+    }
+
+    /**
+     * Serves a single request.
+     * @param exchange The request and it's response.
+     * @throws IOException If the response couldn't be sent.
+    **/
+    private final void handle(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            String method = exchange.getRequestMethod();
+            if(!method.equals("GET") && !method.equals("HEAD"))
+            {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            //Refuse anything outside the served folder.
+            File file = new File(root, exchange.getRequestURI().getPath()).getCanonicalFile();
+            if(!file.toPath().startsWith(root.toPath()) || !file.isFile())
+            {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            long length = file.length();
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("ETag", "\"" + Long.toHexString(length) + "-" + Long.toHexString(file.lastModified()) + "\"");
+            if(method.equals("HEAD"))
+            {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            requests.incrementAndGet();
+
+            long first = 0;
+            long last = length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if(range != null)
+            {
+                long[] bounds = parseRange(range, length);
+                if(bounds == null)
+                {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                first = bounds[0];
+                last = bounds[1];
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + length);
+            }
+
+            long count = last - first + 1;
+            exchange.sendResponseHeaders(status, (count == 0)? -1 : count);
+            try(RandomAccessFile raf = new RandomAccessFile(file, "r"); OutputStream output = exchange.getResponseBody())
+            {
+                raf.seek(first);
+                byte[] buffer = new byte[65536];
+                while(count > 0)
+                {
+                    int read = raf.read(buffer, 0, (int)Math.min(buffer.length, count));
+                    if(read == -1)
+                    {
+                        break;
+                    }
+                    output.write(buffer, 0, read);
+                    count -= read;
+                }
+            }
+        } finally{
+            exchange.close();
+        }
+    }
+
+    /**
+     * Parses a single byte range.
+     * @param range The value of the Range header.
+     * @param length The length of the file being requested.
+     * @return The first and last byte of the range, or null if it can't be satisfied.
+    **/
+    private static final long[] parseRange(String range, long length)
+    {
+        if(!range.startsWith("bytes=") || (range.indexOf(',') != -1))
+        {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if(dash == -1)
+        {
+            return null;
+        }
+        try
+        {
+            long first;
+            long last;
+            if(dash == 0)
+            {
+                //A suffix range, for the last n bytes.
+                first = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                last = length - 1;
+            } else{
+                first = Long.parseLong(spec.substring(0, dash));
+                last = ((dash == spec.length() - 1)? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1))));
+            }
+            if((first >= length) || (first > last))
+            {
+                return null;
+            }
+            return new long[] {first, last};
+        } catch(NumberFormatException numberFormatException)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.insertcreativity.archive;
+
+/**
+ * Class describing one region of a file to read as part of a vectored read (see AbstractFile.readRanges). After the read, the range records how many bytes were actually read into it, which is only less than it's length if the range runs past EOF.
+**/
+public final class ReadRange
+{
+    /**The position in the file the range starts at.**/
+    private final long position;
+    /**The array to read the range into.**/
+    private final byte[] buffer;
+    /**The index to start storing bytes at in the buffer.**/
+    private final int offset;
+    /**The number of bytes in the range.**/
+    private final int length;
+    /**The number of bytes that were read into the range.**/
+    private int count;
+
+    /**
+     * Creates a new range.
+     * @param position The position in the file the range starts at.
+     * @param buffer The array to read the range into.
+     * @param offset The index to start storing bytes at in the buffer.
+     * @param length The number of bytes in the range.
+    **/
+    public ReadRange(long position, byte[] buffer, int offset, int length)
+    {
+        if(position < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        if((offset < 0) || (length < 0) || (length > buffer.length - offset))
+        {
+            throw new IndexOutOfBoundsException("Range doesn't fit in it's buffer.");
+        }
+        this.position = position;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        count = 0;
+    }
+
+    /**
+     * Creates a new range that fills an entire array.
+     * @param position The position in the file the range starts at.
+     * @param buffer The array to read the range into.
+    **/
+    public ReadRange(long position, byte[] buffer)
+    {
+        this(position, buffer, 0, buffer.length);
+    }
+
+    /**
+     * Gets the position in the file the range starts at.
+     * @return The range's position.
+    **/
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Gets the array the range is read into.
+     * @return The range's buffer.
+    **/
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Gets the index the range starts at in it's buffer.
+     * @return The range's offset in it's buffer.
+    **/
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Gets the number of bytes in the range.
+     * @return The range's length.
+    **/
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Gets the number of bytes that were read into the range.
+     * @return The number of bytes read, which is only less than the range's length if it runs past EOF.
+    **/
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Records the number of bytes that were read into the range.
+     * @param count The number of bytes read.
+    **/
+    final void setCount(int count)
+    {
+        this.count = count;
+    }
+}
@@ -0,0 +1,561 @@
+package com.insertcreativity.archive;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class for reading archives stored on an HTTP server or object store, through HTTP range requests. Remote files are read in fixed size blocks, which are kept in a local BlockCache,
+ * so small random reads (like a FileManager searching an index) only cost a round trip the first time their block is needed. The most recently read block is also kept in memory, so reads within it don't touch the disk either.
+ * Blocks that are missing from a single read are fetched together in one request, and once reads turn sequential, blocks ahead of them are fetched by a background request while the reader carries on, with the read-ahead doubling (up to a limit) for as long as reading stays sequential.
+ * Cached blocks are keyed by the file's address, length and entity tag, so they're never mixed up with blocks of a different version of the file. Remote files are read-only.
+**/
+public class RemoteFile extends AbstractFile
+{
+    /**The default limit on the size of the shared block cache.**/
+    public static final long DEFAULT_CACHE_CAPACITY = 256L * 1024 * 1024;
+    /**The most blocks that are read ahead of a sequential read.**/
+    private static final int MAX_READ_AHEAD = 16;
+    /**How long to wait for the server to connect and respond, in milliseconds.**/
+    private static final int TIMEOUT = 30000;
+    /**The block cache used by remote files that are resolved from their address.**/
+    private static BlockCache defaultCache;
+    /**Pool of threads that fetch read-ahead blocks in the background, shared by every remote file.**/
+    private static final ExecutorService readAheads = Executors.newCachedThreadPool(task ->
+    {
+        Thread thread = new Thread(task, "Archive-ReadAhead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**The address of the remote file.**/
+    private final URL url;
+    /**The cache that blocks are kept in.**/
+    private final BlockCache cache;
+    /**The size of each block.**/
+    private final int blockSize;
+    /**The key of the file's blocks in the cache, or null if it hasn't been looked up yet.**/
+    private String key;
+    /**The length of the remote file, or -1 if it hasn't been looked up yet.**/
+    private long length;
+    /**The position of the file-pointer.**/
+    private long position;
+    /**The data of the block that was read most recently.**/
+    private final byte[] block;
+    /**The index of the block that was read most recently, or -1 if there isn't one.**/
+    private long blockIndex;
+    /**The length of the block that was read most recently.**/
+    private int blockLength;
+    /**The number of blocks to read ahead the next time a block is fetched.**/
+    private int readAhead;
+    /**The most blocks fetched in a single request, so a request never evicts it's own blocks.**/
+    private final int maxFetch;
+    /**The background fetch of the blocks ahead of the reader, or null if nothing is being read ahead.**/
+    private Future<Integer> readingAhead;
+    /**The index of the first block being read ahead.**/
+    private long readingAheadStart;
+    /**The index after the last block being read ahead.**/
+    private long readingAheadEnd;
+
+    /**
+     * Resolves the remote file at the specified address, caching it's blocks in the default cache (a folder in the system's temporary folder).
+     * @param address The HTTP or HTTPS address of the file.
+     * @return The file at the specified address.
+     * @throws IOException If the address is invalid, or the default cache couldn't be created.
+    **/
+    public static AbstractFile resolve(String address) throws IOException
+    {
+        return new RemoteFile(new URL(address), getDefaultCache());
+    }
+
+    /**
+     * Gets the block cache shared by remote files that are resolved from their address, creating it if needed.
+     * @return The default block cache.
+     * @throws IOException If the cache couldn't be created.
+    **/
+    private static synchronized BlockCache getDefaultCache() throws IOException
+    {
+        if(defaultCache == null)
+        {
+            defaultCache = new BlockCache(new File(System.getProperty("java.io.tmpdir"), "archive-blocks"), BlockCache.DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_CAPACITY);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Creates a new interface to a remote file. Nothing is requested from the server until the file is first used.
+     * @param url The HTTP or HTTPS address of the file. Addresses ending in '/' are treated as directories.
+     * @param cache The cache to keep the file's blocks in, which can be shared with other remote files.
+    **/
+    public RemoteFile(URL url, BlockCache cache)
+    {
+        this.url = url;
+        this.cache = cache;
+        blockSize = cache.getBlockSize();
+        key = null;
+        length = -1;
+        position = 0;
+        block = new byte[blockSize];
+        blockIndex = -1;
+        blockLength = 0;
+        readAhead = 0;
+        maxFetch = (int)Math.max(1, Math.min(Integer.MAX_VALUE, cache.getCapacity() / blockSize / 2));
+        readingAhead = null;
+        readingAheadStart = 0;
+        readingAheadEnd = 0;
+    }
+
+    /**
+     * Looks up the file's length and entity tag with a HEAD request, if they haven't been already.
+     * @throws IOException If the request failed.
+    **/
+    private final void describe() throws IOException
+    {
+        if(length != -1)
+        {
+            return;
+        }
+        //Connections are only disconnected when they fail, so the next request can reuse them.
+        HttpURLConnection connection = open();
+        connection.setRequestMethod("HEAD");
+        int status = connection.getResponseCode();
+        if(status != HttpURLConnection.HTTP_OK)
+        {
+            connection.disconnect();
+            throw new IOException("Failed to describe " + url + ": HTTP " + status);
+        }
+        long contentLength = connection.getContentLengthLong();
+        if(contentLength < 0)
+        {
+            throw new IOException("Server didn't report the length of " + url);
+        }
+        String version = connection.getHeaderField("ETag");
+        if(version == null)
+        {
+            version = String.valueOf(connection.getLastModified());
+        }
+        key = hashKey(url + "\n" + contentLength + "\n" + version);
+        length = contentLength;
+    }
+
+    /**
+     * Hashes a description of a file version into a key that's safe to use in file names.
+     * @param description The description of the file version.
+     * @return The key, as 32 hex digits.
+    **/
+    private static final String hashKey(String description)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(32);
+            for(int i = 0; i < 16; i++)
+            {
+                key.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return key.toString();
+        } catch(NoSuchAlgorithmException noSuchAlgorithmException)
+        {
+            throw new IllegalStateException("256bit SHA not supported on this platform", noSuchAlgorithmException);
+        }
+    }
+
+    /**
+     * Opens a connection to the file.
+     * @return The unconnected connection.
+     * @throws IOException If the address isn't an HTTP address.
+    **/
+    private final HttpURLConnection open() throws IOException
+    {
+        URLConnection opened = url.openConnection();
+        if(!(opened instanceof HttpURLConnection))
+        {
+            throw new IOException("Not an HTTP address: " + url);
+        }
+        HttpURLConnection connection = (HttpURLConnection)opened;
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    /**
+     * Makes a block the current block, fetching it (and any other missing blocks up to the end of the read) if it isn't cached, and starting the read-ahead in the background.
+     * @param index The index of the block.
+     * @param lastNeeded The index of the last block the current read needs.
+     * @throws IOException If the block couldn't be fetched.
+    **/
+    private final void load(long index, long lastNeeded) throws IOException
+    {
+        if(index == blockIndex)
+        {
+            return;
+        }
+        //Reading on from the previous block is sequential, anything else resets the read-ahead.
+        if((blockIndex != -1) && (index == blockIndex + 1))
+        {
+            readAhead = Math.min(MAX_READ_AHEAD, Math.max(1, readAhead * 2));
+        } else{
+            readAhead = 0;
+        }
+        blockIndex = -1;
+
+        int count = cache.get(key, index, block);
+        //The block may already be on it's way from the read-ahead.
+        if((count == -1) && awaitReadAhead(index))
+        {
+            count = cache.get(key, index, block);
+        }
+        long lastBlock = (length - 1) / blockSize;
+        if(count == -1)
+        {
+            //Fetch every missing block in a row, from this one up to the end of the read.
+            long last = Math.min(lastBlock, Math.min(index + maxFetch - 1, lastNeeded));
+            long end = index + 1;
+            while((end <= last) && !cache.contains(key, end))
+            {
+                end++;
+            }
+            count = fetch(index, end, block);
+        }
+        blockIndex = index;
+        blockLength = count;
+
+        if(readAhead > 0)
+        {
+            startReadAhead(Math.max(index, lastNeeded) + 1, Math.min(lastBlock, Math.min(index + maxFetch - 1, Math.max(lastNeeded, index + readAhead))));
+        }
+    }
+
+    /**
+     * Waits for the read-ahead to finish if it's fetching a block.
+     * @param index The index of the block that's needed.
+     * @return True if the read-ahead was fetching the block, and has finished.
+     * @throws InterruptedIOException If the thread was interrupted while waiting.
+    **/
+    private final boolean awaitReadAhead(long index) throws InterruptedIOException
+    {
+        if((readingAhead == null) || (index < readingAheadStart) || (index >= readingAheadEnd))
+        {
+            return false;
+        }
+        try
+        {
+            readingAhead.get();
+        } catch(ExecutionException executionException)
+        {
+            //The block is just fetched directly instead.
+        } catch(InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead of " + url);
+        }
+        readingAhead = null;
+        return true;
+    }
+
+    /**
+     * Starts fetching the first run of missing blocks in a range on a background thread, unless a read-ahead is already running.
+     * @param first The index of the first block to read ahead.
+     * @param last The index of the last block to read ahead.
+    **/
+    private final void startReadAhead(long first, long last)
+    {
+        if((readingAhead != null) && !readingAhead.isDone())
+        {
+            return;
+        }
+        while((first <= last) && cache.contains(key, first))
+        {
+            first++;
+        }
+        if(first > last)
+        {
+            return;
+        }
+        long end = first + 1;
+        while((end <= last) && !cache.contains(key, end))
+        {
+            end++;
+        }
+        long start = first;
+        long stop = end;
+        readingAheadStart = start;
+        readingAheadEnd = stop;
+        readingAhead = readAheads.submit(() -> fetch(start, stop, null));
+    }
+
+    /**
+     * Fetches a run of blocks in a single range request, and stores them in the cache.
+     * @param start The index of the first block to fetch.
+     * @param end The index after the last block to fetch.
+     * @param first Buffer to keep the first block in, or null if it's only stored in the cache.
+     * @return The length of the first block.
+     * @throws IOException If the request failed, or the server sent less than was asked for.
+    **/
+    private final int fetch(long start, long end, byte[] first) throws IOException
+    {
+        long firstPosition = start * blockSize;
+        long last = Math.min(length, end * blockSize) - 1;
+        HttpURLConnection connection = open();
+        connection.setRequestProperty("Range", "bytes=" + firstPosition + "-" + last);
+        int status = connection.getResponseCode();
+        if((status != HttpURLConnection.HTTP_PARTIAL) && (status != HttpURLConnection.HTTP_OK))
+        {
+            connection.disconnect();
+            throw new IOException("Failed to fetch " + url + ": HTTP " + status);
+        }
+        try(InputStream input = connection.getInputStream())
+        {
+            //Servers that don't support ranges send the whole file.
+            if(status == HttpURLConnection.HTTP_OK)
+            {
+                input.skipNBytes(firstPosition);
+            }
+            byte[] data = ((first == null)? new byte[blockSize] : first);
+            int firstLength = 0;
+            for(long index = start; index < end; index++)
+            {
+                int blockLength = (int)(Math.min(length, (index + 1) * blockSize) - (index * blockSize));
+                if(input.readNBytes(data, 0, blockLength) != blockLength)
+                {
+                    throw new EOFException("Server sent less of " + url + " than it reported.");
+                }
+                cache.put(key, index, data, 0, blockLength);
+                if(index == start)
+                {
+                    firstLength = blockLength;
+                    if(first != null)
+                    {
+                        data = new byte[blockSize];
+                    }
+                }
+            }
+            return firstLength;
+        }
+    }
+
+    /**
+     * Returns whether or not there is more data to read from the file.
+     * @return False if the file-pointer is at the end of the file, true otherwise.
+     * @throws IOException If the file's length couldn't be looked up.
+    **/
+    public boolean hasNext() throws IOException
+    {
+        return (position < length());
+    }
+
+    /**
+     * Returns whether or not this file is a directory, which is the case if it's address ends with '/'.
+     * @return True if the file is a directory.
+    **/
+    public boolean isDirectory()
+    {
+        return url.getPath().endsWith("/");
+    }
+
+    /**
+     * Gets the directory that contains this file.
+     * @return The parent containing this file, or null if this is the server's root.
+     * @throws IOException If the parent's address couldn't be formed.
+    **/
+    public AbstractFile getParent() throws IOException
+    {
+        String path = url.getPath();
+        if(path.isEmpty() || path.equals("/"))
+        {
+            return null;
+        }
+        return new RemoteFile(new URL(url, isDirectory()? ".." : "."), cache);
+    }
+
+    /**
+     * Gets the file in this directory matching the provided name. Remote servers can't be listed, so the child isn't checked to exist until it's used.
+     * @param name The name of the file to find in this directory.
+     * @return The requested child file.
+     * @throws IOException If the child's address couldn't be formed.
+    **/
+    public AbstractFile getChild(String name) throws IOException
+    {
+        try
+        {
+            String base = url.toString();
+            URL folder = new URL(base.endsWith("/")? base : base + '/');
+            return new RemoteFile(new URL(folder, name), cache);
+        } catch(MalformedURLException malformedURLException)
+        {
+            throw new IOException("Invalid child name " + name, malformedURLException);
+        }
+    }
+
+    /**
+     * Returns the name of the file, which is the last segment of it's address.
+     * @return The name of the file.
+    **/
+    public String getName()
+    {
+        String path = url.getPath();
+        if(path.endsWith("/"))
+        {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Returns the absolute address of the file.
+     * @return The absolute address of the file.
+    **/
+    public String getAddress()
+    {
+        return url.toString();
+    }
+
+    /**
+     * Gets the size of the remote file, in bytes. It's looked up from the server the first time it's needed.
+     * @return The total number of bytes in the file.
+     * @throws IOException If the file's length couldn't be looked up.
+    **/
+    public long length() throws IOException
+    {
+        describe();
+        return length;
+    }
+
+    /**
+     * Returns the current position of the file-pointer.
+     * @return The current position of the file-pointer.
+    **/
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Moves the file-pointer to the specified position. Nothing is requested until data is read.
+     * @param position The position to move the file-pointer to in the file, measured from the start of the file.
+    **/
+    public void seek(long position)
+    {
+        if(position < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        this.position = position;
+    }
+
+    /**
+     * Reads a single byte from the file at the file-pointer's current position (and shifts the pointer forward by 1).
+     * @return The value of the byte read from the file.
+     * @throws EOFException If EOF has been reached.
+     * @throws IOException If the block couldn't be fetched.
+    **/
+    public byte readByte() throws IOException
+    {
+        if(position >= length())
+        {
+            throw new EOFException();
+        }
+        long index = position / blockSize;
+        load(index, index);
+        return block[(int)(position++ - (index * blockSize))];
+    }
+
+    /**
+     * Reads a consecutive series of bytes from the file into the buffer starting from the current file-pointer position. Any blocks the read needs that aren't cached are fetched in a single request.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes that should be read into the buffer.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+     * @throws IOException If a block couldn't be fetched.
+    **/
+    public int readBytes(byte[] buffer, int offset, int length) throws IOException
+    {
+        if(length == 0)
+        {
+            return 0;
+        }
+        long fileLength = length();
+        if(position >= fileLength)
+        {
+            return -1;
+        }
+        int count = (int)Math.min(length, fileLength - position);
+        long lastNeeded = (position + count - 1) / blockSize;
+        int done = 0;
+        while(done < count)
+        {
+            long index = position / blockSize;
+            load(index, lastNeeded);
+            int blockOffset = (int)(position - (index * blockSize));
+            int chunk = Math.min(count - done, blockLength - blockOffset);
+            System.arraycopy(block, blockOffset, buffer, offset + done, chunk);
+            done += chunk;
+            position += chunk;
+        }
+        return count;
+    }
+
+    /**
+     * Remote files are read-only.
+     * @param data The byte to write into the file.
+     * @return Never returns.
+     * @throws IOException Always.
+    **/
+    public int writeByte(byte data) throws IOException
+    {
+        throw new IOException("Remote files are read-only.");
+    }
+
+    /**
+     * Remote files are read-only.
+     * @param data The array to write bytes from.
+     * @param offset The index offset to starting writing bytes from the buffer at.
+     * @param length The number of bytes that should be written into the file.
+     * @return Never returns.
+     * @throws IOException Always.
+    **/
+    public int writeBytes(byte[] data, int offset, int length) throws IOException
+    {
+        throw new IOException("Remote files are read-only.");
+    }
+
+    /**
+     * Remote files are read-only.
+     * @param length The new length of the file, in bytes.
+     * @throws IOException Always.
+    **/
+    public void setLength(long length) throws IOException
+    {
+        throw new IOException("Remote files are read-only.");
+    }
+
+    /**
+     * Remote files are read-only, so there's never anything to sync.
+    **/
+    public void sync()
+    {
+    }
+
+    /**
+     * Drops the file's in-memory block. Cached blocks are kept for the next time the file is opened, so any read-ahead is left to finish storing it's blocks.
+    **/
+    public void close()
+    {
+        blockIndex = -1;
+        readingAhead = null;
+    }
+}
@@ -0,0 +1,779 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background service that continuously verifies archive files against their stored hashes, so corruption is found long before the file is needed. Files are verified in order of how long it's been since they were last verified,
+ * with files that have never been verified first, and the time each file was verified is recorded in the metadata file, along with a cursor for the file being verified, so progress survives restarts.
+ * Progress is kept in memory and recorded in batches, so the metadata file is only updated once every so many files.
+ * The scrubber never competes with foreground work for more than it's budget: reads are paced by a token bucket of bytes per second, and hashing and decryption by a token bucket of CPU time.
+ * The read rate is adjusted additive-increase/multiplicative-decrease style: it's halved whenever reads slow down (a sign the disk is busy with foreground work) or foreground work is reported, and crept back up while reads stay fast.
+ * Files that fail to match their hashes are reported as corrupt, while files that couldn't be opened or read are reported as unreadable, since the failure may only be transient, and they're tried again on the next pass.
+**/
+final class Scrubber
+{
+    /**The default largest number of bytes read per second.**/
+    static final long DEFAULT_IO_RATE = 8L * 1024 * 1024;
+    /**The default share of a single core's time spent hashing and decrypting.**/
+    static final double DEFAULT_CPU_SHARE = 0.1;
+    /**The number of bytes verified at a time.**/
+    private static final int CHUNK_SIZE = 65536;
+    /**The read rate is never backed off below this fraction of the largest rate.**/
+    private static final int MIN_RATE_DIVISOR = 64;
+    /**The fraction of the largest rate the read rate grows by after every uncongested read.**/
+    private static final int INCREASE_DIVISOR = 32;
+    /**How many times slower than usual a read has to be for the disk to count as congested.**/
+    private static final double CONGESTION_RATIO = 2.0;
+    /**The number of reads the recent average read time is taken over, which is also how many reads the rate's left alone for after it's been backed off.**/
+    private static final int LATENCY_WINDOW = 8;
+    /**How long reported foreground work keeps the scrubber backed off, in nanoseconds.**/
+    private static final long FOREGROUND_WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+    /**The number of files verified between recording progress in the metadata file.**/
+    private static final int PROGRESS_BATCH = 64;
+    /**How long to wait before trying again after a pass fails, or when there's nothing to verify, in milliseconds.**/
+    private static final long RETRY_DELAY = 10000;
+    /**Metadata key of the identifier of the file being verified.**/
+    private static final ByteBuffer CURSOR_KEY = ByteBuffer.wrap("scrub-cursor".getBytes(StandardCharsets.UTF_16LE));
+    /**Value of the cursor while no file is being verified.**/
+    private static final byte[] IDLE_CURSOR = new byte[12];
+    /**Prefix of the metadata keys each file's last verification time is stored under, followed by the file's identifier in hex.**/
+    private static final String VERIFIED_KEY_PREFIX = "scrub-verified-";
+    /**The time foreground work was last reported, in nanoseconds. Every scrubber shares it, since they all compete with the same foreground work.**/
+    private static volatile long foregroundTime = System.nanoTime() - FOREGROUND_WINDOW;
+    /**The number of scrubbers that are running, the activity listener is registered with FileManager while there are any.**/
+    private static int runningScrubbers = 0;
+
+    /**
+     * Opens archive files for the scrubber to verify.
+    **/
+    static interface Resolver
+    {
+        /**
+         * Opens an archive file. The scrubber closes the opened file once it's done with it.
+         * @param identifier The identifier of the file to open.
+         * @return The opened file, or null if the file doesn't exist.
+         * @throws GeneralSecurityException If the file's key couldn't be set up.
+         * @throws IOException If the file couldn't be opened.
+        **/
+        Opened open(byte[] identifier) throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * Decrypts content read from an arbitrary position in an archive file.
+    **/
+    static interface Decryptor
+    {
+        /**
+         * Decrypts data in place.
+         * @param position The position in the file the data was read from.
+         * @param data The array holding the data.
+         * @param offset The index the data starts at in the array.
+         * @param length The number of bytes to decrypt.
+         * @throws IOException If the data couldn't be decrypted.
+        **/
+        void decryptAt(long position, byte[] data, int offset, int length) throws IOException;
+    }
+
+    /**
+     * An archive file opened for the scrubber to verify, along with how to decrypt it. Files managed by a FileManager are decrypted with the manager's key-stream, but anything that can decrypt at a position can be verified,
+     * like tree archive files encrypted with a standard AES/CTR cipher.
+    **/
+    static final class Opened
+    {
+        /**The opened file.**/
+        final AbstractFile file;
+        /**The position to start hashing the file from.**/
+        final long start;
+        /**Decrypts the file's content.**/
+        final Decryptor decryptor;
+
+        /**
+         * Creates a new opened file.
+         * @param file The opened file.
+         * @param start The position to start hashing the file from.
+         * @param decryptor Decrypts the file's content.
+        **/
+        Opened(AbstractFile file, long start, Decryptor decryptor)
+        {
+            this.file = file;
+            this.start = start;
+            this.decryptor = decryptor;
+        }
+
+        /**
+         * Creates a new opened file for a file managed by a FileManager. It's content is decrypted with the manager's key-stream for each position, so the manager's own position is never moved.
+         * @param manager The file's manager, positioned anywhere.
+        **/
+        Opened(FileManager manager)
+        {
+            this(manager.getFile(), manager.hashStart(), manager::processAt);
+        }
+    }
+
+    /**The hash file that files are verified against.**/
+    private final HashFileManager hashes;
+    /**The metadata file that progress is recorded in.**/
+    private final MetadataFileManager metadata;
+    /**Opens the files to verify.**/
+    private final Resolver resolver;
+    /**Logger that verifications and corruption are reported to, or null if they aren't logged.**/
+    private final EventLogger events;
+    /**Bucket of bytes the scrubber is allowed to read.**/
+    private final TokenBucket io;
+    /**Bucket of CPU time (in nanoseconds) the scrubber is allowed to spend.**/
+    private final TokenBucket cpu;
+    /**The largest number of bytes read per second.**/
+    private final double maxRate;
+    /**The time each file was last verified, loaded from the metadata file and kept up to date as files are verified.**/
+    private final HashMap<ByteBuffer, Long> verified;
+    /**The identifiers of files that failed verification.**/
+    private final Set<ByteBuffer> corrupted;
+    /**The identifiers of files that couldn't be opened or read when they were last verified.**/
+    private final Set<ByteBuffer> unreadable;
+    /**Progress that hasn't been recorded in the metadata file yet (recent verification times, and the cursor), keyed by metadata key. It's only used by the scrubbing thread, or by stop once that thread's finished.**/
+    private final HashMap<ByteBuffer, byte[]> progress;
+    /**Engine for hashing files' cipher text.**/
+    private final MessageDigest cipherHasher;
+    /**Engine for hashing files' plain text.**/
+    private final MessageDigest plainHasher;
+    /**Bean for measuring the scrubbing thread's CPU time.**/
+    private final ThreadMXBean threads;
+    /**The long run average time it's taken to read a byte, in nanoseconds, or 0 if nothing's been read yet.**/
+    private double baseline;
+    /**The recent average time it's taken to read a byte, in nanoseconds.**/
+    private double latency;
+    /**The number of reads left before the rate can be backed off again.**/
+    private int holdoff;
+    /**The thread scrubbing the archive, or null if the scrubber isn't running.**/
+    private Thread thread;
+    /**Flag for whether the scrubber should keep running.**/
+    private volatile boolean running;
+    /**The total number of bytes verified.**/
+    private volatile long verifiedBytes;
+    /**The most recent exception that stopped a pass, or null if none have.**/
+    private volatile IOException failure;
+
+    /**
+     * Creates a new scrubber, with the default budget.
+     * @param hashes The hash file that files are verified against.
+     * @param metadata The metadata file to record progress in.
+     * @param resolver Opens the files to verify.
+     * @param events Logger to report verifications and corruption to, or null to not log them.
+    **/
+    Scrubber(HashFileManager hashes, MetadataFileManager metadata, Resolver resolver, EventLogger events)
+    {
+        this(hashes, metadata, resolver, events, DEFAULT_IO_RATE, DEFAULT_CPU_SHARE);
+    }
+
+    /**
+     * Creates a new scrubber.
+     * @param hashes The hash file that files are verified against.
+     * @param metadata The metadata file to record progress in.
+     * @param resolver Opens the files to verify.
+     * @param events Logger to report verifications and corruption to, or null to not log them.
+     * @param ioRate The largest number of bytes to read per second.
+     * @param cpuShare The share of a single core's time to spend hashing and decrypting, between 0 (exclusive) and 1.
+    **/
+    Scrubber(HashFileManager hashes, MetadataFileManager metadata, Resolver resolver, EventLogger events, long ioRate, double cpuShare)
+    {
+        if((ioRate <= 0) || (cpuShare <= 0) || (cpuShare > 1))
+        {
+            throw new IllegalArgumentException("Invalid scrub budget.");
+        }
+        this.hashes = hashes;
+        this.metadata = metadata;
+        this.resolver = resolver;
+        this.events = events;
+        maxRate = ioRate;
+        //Bursts are capped at a second's worth of budget.
+        io = new TokenBucket(ioRate, ioRate);
+        cpu = new TokenBucket(cpuShare * TimeUnit.SECONDS.toNanos(1), cpuShare * TimeUnit.SECONDS.toNanos(1));
+        verified = new HashMap<>();
+        corrupted = ConcurrentHashMap.newKeySet();
+        unreadable = ConcurrentHashMap.newKeySet();
+        progress = new HashMap<>();
+        try
+        {
+            cipherHasher = MessageDigest.getInstance("SHA-256");
+            plainHasher = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException noSuchAlgorithmException)
+        {
+            throw new IllegalStateException("256bit SHA not supported on this platform", noSuchAlgorithmException);
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threads = ((bean.isCurrentThreadCpuTimeSupported())? bean : null);
+        baseline = 0;
+        latency = 0;
+        holdoff = 0;
+        thread = null;
+        running = false;
+        verifiedBytes = 0;
+        failure = null;
+    }
+
+    /**
+     * Starts scrubbing the archive on a background thread. Starting a scrubber that's already running does nothing.
+    **/
+    final synchronized void start()
+    {
+        if(thread != null)
+        {
+            return;
+        }
+        running = true;
+        registerListener(true);
+        thread = new ScrubThread(this::run);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops scrubbing, waits for the scrubbing thread to finish, and records any progress it hadn't recorded yet. The file being verified is left in the cursor, so it's verified first when the scrubber is started again.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     * @throws IOException If the progress couldn't be recorded in the metadata file.
+    **/
+    final void stop() throws InterruptedException, IOException
+    {
+        Thread stopping;
+        synchronized(this)
+        {
+            stopping = thread;
+            thread = null;
+            running = false;
+        }
+        if(stopping != null)
+        {
+            registerListener(false);
+            stopping.interrupt();
+            stopping.join();
+        }
+        //Progress is recorded here rather than by the stopped thread, since I/O on an interrupted thread can fail. A scrubber that's already been started again records it itself.
+        synchronized(this)
+        {
+            if(thread == null)
+            {
+                saveProgress();
+            }
+        }
+    }
+
+    /**
+     * Counts a scrubber starting or stopping, registering the activity listener with FileManager when the first one starts and removing it once the last one stops.
+     * @param starting True if a scrubber is starting, false if one is stopping.
+    **/
+    private static synchronized void registerListener(boolean starting)
+    {
+        runningScrubbers += (starting? 1 : -1);
+        if(starting && (runningScrubbers == 1))
+        {
+            FileManager.setActivityListener(Scrubber::reportForegroundActivity);
+        } else if(!starting && (runningScrubbers == 0))
+        {
+            FileManager.setActivityListener(null);
+        }
+    }
+
+    /**
+     * Reports that foreground work is happening, so every scrubber backs off. It's the activity listener every read and write through a FileManager is reported to while a scrubber is running, so this has to be cheap:
+     * reports from scrubbing threads are ignored, and the time is only updated once it's getting stale, so busy foreground threads don't all keep writing it.
+    **/
+    static final void reportForegroundActivity()
+    {
+        if(Thread.currentThread() instanceof ScrubThread)
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        if(now - foregroundTime > FOREGROUND_WINDOW / 8)
+        {
+            foregroundTime = now;
+        }
+    }
+
+    /**
+     * Gets the number of bytes read per second the scrubber is currently allowed.
+     * @return The current read rate.
+    **/
+    final double getRate()
+    {
+        return io.getRate();
+    }
+
+    /**
+     * Gets the total number of bytes the scrubber has verified.
+     * @return The number of bytes verified.
+    **/
+    final long getVerifiedBytes()
+    {
+        return verifiedBytes;
+    }
+
+    /**
+     * Gets the identifiers of the files that failed verification since the scrubber was created.
+     * @return The corrupted files' identifiers.
+    **/
+    final List<byte[]> getCorrupted()
+    {
+        ArrayList<byte[]> identifiers = new ArrayList<>(corrupted.size());
+        for(ByteBuffer identifier : corrupted)
+        {
+            identifiers.add(identifier.array().clone());
+        }
+        return identifiers;
+    }
+
+    /**
+     * Gets the identifiers of the files that couldn't be opened or read when they were last verified. Unlike corrupt files, they haven't been shown to be damaged, and they're tried again on the next pass.
+     * @return The unreadable files' identifiers.
+    **/
+    final List<byte[]> getUnreadable()
+    {
+        ArrayList<byte[]> identifiers = new ArrayList<>(unreadable.size());
+        for(ByteBuffer identifier : unreadable)
+        {
+            identifiers.add(identifier.array().clone());
+        }
+        return identifiers;
+    }
+
+    /**
+     * Gets the exception that most recently stopped a pass over the archive.
+     * @return The most recent failure, or null if there hasn't been one.
+    **/
+    final IOException getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * Scrubs the archive until the scrubber's stopped, one pass after another.
+    **/
+    private void run()
+    {
+        while(running)
+        {
+            try
+            {
+                if(!scrub())
+                {
+                    Thread.sleep(RETRY_DELAY);
+                }
+            } catch(InterruptedException interruptedException)
+            {
+                //Stopping interrupts the thread, the loop condition decides whether to carry on.
+            } catch(IOException ioException)
+            {
+                failure = ioException;
+                try
+                {
+                    Thread.sleep(RETRY_DELAY);
+                } catch(InterruptedException interruptedException)
+                {
+                    //As above.
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a pass over the archive, verifying every file in order of how long it's been since it was last verified. A file that was being verified when the scrubber last stopped goes first.
+     * @return True if there were any files to verify.
+     * @throws InterruptedException If the scrubber was stopped.
+     * @throws IOException If the hash or metadata files couldn't be read or updated.
+    **/
+    private boolean scrub() throws InterruptedException, IOException
+    {
+        List<byte[]> identifiers = hashes.getIdentifiers();
+        if(identifiers.isEmpty())
+        {
+            return false;
+        }
+        //Times that haven't been loaded yet, and the cursor, are all read with a single pass over the metadata file.
+        ArrayList<ByteBuffer> keys = new ArrayList<>();
+        keys.add(CURSOR_KEY);
+        for(byte[] identifier : identifiers)
+        {
+            if(!verified.containsKey(ByteBuffer.wrap(identifier)))
+            {
+                keys.add(verifiedKey(identifier));
+            }
+        }
+        HashMap<ByteBuffer, byte[]> stored = metadata.getMetadata(keys);
+        for(byte[] identifier : identifiers)
+        {
+            ByteBuffer id = ByteBuffer.wrap(identifier);
+            if(!verified.containsKey(id))
+            {
+                byte[] time = stored.get(verifiedKey(identifier));
+                verified.put(id, (((time == null) || (time.length < 8))? 0L : LogFileManager.getLong(time, 0)));
+            }
+        }
+        byte[] cursor = stored.get(CURSOR_KEY);
+        //The cursor is cleared to zeros rather than removed, since metadata values are overwritten in place.
+        ByteBuffer resumed = (((cursor == null) || (cursor.length != 12) || Arrays.equals(cursor, IDLE_CURSOR))? null : ByteBuffer.wrap(cursor));
+        //Oldest first, with an interrupted verification ahead of everything.
+        Collections.sort(identifiers, (first, second) ->
+        {
+            ByteBuffer a = ByteBuffer.wrap(first);
+            ByteBuffer b = ByteBuffer.wrap(second);
+            if(a.equals(resumed) != b.equals(resumed))
+            {
+                return (a.equals(resumed)? -1 : 1);
+            }
+            return Long.compare(verified.get(a), verified.get(b));
+        });
+
+        int unsaved = 0;
+        for(byte[] identifier : identifiers)
+        {
+            if(!running)
+            {
+                throw new InterruptedException();
+            }
+            progress.put(CURSOR_KEY, Arrays.copyOf(identifier, 12));
+            //Recording a batch before verifying the next file means the recorded cursor is always a file that still needs verifying.
+            if(unsaved >= PROGRESS_BATCH)
+            {
+                saveProgress();
+                unsaved = 0;
+            }
+            if(verify(identifier))
+            {
+                long now = System.currentTimeMillis();
+                byte[] time = new byte[8];
+                LogFileManager.putLong(time, 0, now);
+                progress.put(verifiedKey(identifier), time);
+                verified.put(ByteBuffer.wrap(identifier), now);
+                unsaved++;
+            }
+        }
+        progress.put(CURSOR_KEY, IDLE_CURSOR.clone());
+        saveProgress();
+        return true;
+    }
+
+    /**
+     * Records the progress that hasn't been recorded yet in the metadata file, as a single batch. Progress that fails to be recorded is kept, and recorded with the next batch.
+     * @throws IOException If the metadata file couldn't be updated.
+    **/
+    private void saveProgress() throws IOException
+    {
+        if(progress.isEmpty())
+        {
+            return;
+        }
+        //Writes may encrypt the values in place, so the metadata file is only handed copies.
+        HashMap<ByteBuffer, byte[]> batch = new HashMap<>(progress.size() * 2);
+        for(Map.Entry<ByteBuffer, byte[]> entry : progress.entrySet())
+        {
+            batch.put(entry.getKey(), entry.getValue().clone());
+        }
+        metadata.updateMetadata(batch);
+        progress.clear();
+    }
+
+    /**
+     * Gets the metadata key a file's last verification time is stored under.
+     * @param identifier The file's identifier.
+     * @return The metadata key.
+    **/
+    private static final ByteBuffer verifiedKey(byte[] identifier)
+    {
+        return ByteBuffer.wrap((VERIFIED_KEY_PREFIX + HexFormat.of().formatHex(identifier, 0, 12)).getBytes(StandardCharsets.UTF_16LE));
+    }
+
+    /**
+     * Verifies a single file against it's stored hashes, within the scrubber's budget. The hash file stores the leading 16 bytes of each SHA-256 digest.
+     * @param identifier The identifier of the file to verify.
+     * @return True if the verification was conclusive (whether or not the file was corrupt), false if the file couldn't be verified, like if it was updated while it was being verified, or couldn't be opened or read.
+     * @throws InterruptedException If the scrubber was stopped.
+     * @throws IOException If the hash file couldn't be read.
+    **/
+    private boolean verify(byte[] identifier) throws InterruptedException, IOException
+    {
+        byte[][] expected = hashes.getHash(identifier);
+        if(expected == null)
+        {
+            return false;
+        }
+
+        Opened opened = null;
+        boolean readable = true;
+        try
+        {
+            opened = resolver.open(identifier);
+        } catch(GeneralSecurityException|IOException openException)
+        {
+            readable = false;
+        }
+        //Files that have hashes but don't exist are as good as corrupt.
+        long length = -1;
+        boolean intact = false;
+        if(opened != null)
+        {
+            AbstractFile file = opened.file;
+            try
+            {
+                length = hash(opened);
+                byte[] plain = plainHasher.digest();
+                byte[] cipher = cipherHasher.digest();
+                intact = matches(expected[0], plain) && matches(expected[1], cipher);
+            } catch(IOException readException)
+            {
+                readable = false;
+            } finally{
+                cipherHasher.reset();
+                plainHasher.reset();
+                try
+                {
+                    file.close();
+                } catch(IOException closeException)
+                {
+                    //Closing a file that was only read can't lose anything.
+                }
+            }
+        }
+
+        //A file that was updated while it was being verified can't be judged either way.
+        byte[][] current = hashes.getHash(identifier);
+        if((current == null) || !Arrays.equals(current[0], expected[0]) || !Arrays.equals(current[1], expected[1]))
+        {
+            return false;
+        }
+        if(!readable)
+        {
+            //Failing to open or read a file may be transient, so it's reported without being judged, and tried again on the next pass.
+            unreadable.add(ByteBuffer.wrap(Arrays.copyOf(identifier, 12)));
+            if(events != null)
+            {
+                events.log(EventLogger.UNREADABLE, identifier, length);
+            }
+            return false;
+        }
+        unreadable.remove(ByteBuffer.wrap(Arrays.copyOf(identifier, 12)));
+        if(intact)
+        {
+            corrupted.remove(ByteBuffer.wrap(Arrays.copyOf(identifier, 12)));
+        } else{
+            corrupted.add(ByteBuffer.wrap(Arrays.copyOf(identifier, 12)));
+        }
+        if(events != null)
+        {
+            events.log((intact? EventLogger.VERIFY : EventLogger.CORRUPT), identifier, length);
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a file's cipher and plain text chunk by chunk, paced by the scrubber's budget. The file's raw content is read at explicit positions and decrypted for those positions.
+     * @param opened The opened file.
+     * @return The number of bytes hashed.
+     * @throws InterruptedException If the scrubber was stopped.
+     * @throws IOException If the file couldn't be read or decrypted.
+    **/
+    private long hash(Opened opened) throws InterruptedException, IOException
+    {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        AbstractFile file = opened.file;
+        long start = opened.start;
+        long length = file.length();
+        long position = start;
+        while(position < length)
+        {
+            if(!running)
+            {
+                throw new InterruptedException();
+            }
+            int count = (int)Math.min(CHUNK_SIZE, length - position);
+            io.take(count);
+
+            long readStart = System.nanoTime();
+            int read = file.readAt(position, buffer, 0, count);
+            adapt(System.nanoTime() - readStart, read);
+            if(read <= 0)
+            {
+                break;
+            }
+
+            long cpuStart = cpuTime();
+            cipherHasher.update(buffer, 0, read);
+            opened.decryptor.decryptAt(position, buffer, 0, read);
+            plainHasher.update(buffer, 0, read);
+            cpu.take(cpuTime() - cpuStart);
+
+            position += read;
+            verifiedBytes += read;
+        }
+        return position - start;
+    }
+
+    /**
+     * Adjusts the read rate after a read. Reads that have recently been taking much longer than they do in the long run mean the disk is busy, so the rate is halved; otherwise it grows by a fixed step, up to the scrubber's budget.
+     * @param elapsed How long the read took, in nanoseconds.
+     * @param count The number of bytes read.
+    **/
+    private void adapt(long elapsed, int count)
+    {
+        if(count <= 0)
+        {
+            return;
+        }
+        double perByte = (double)elapsed / count;
+        if(baseline == 0)
+        {
+            baseline = perByte;
+            latency = perByte;
+        } else{
+            //Reads are averaged so a single slow read doesn't count as congestion.
+            latency += (perByte - latency) / LATENCY_WINDOW;
+            //The baseline is averaged over a much longer window, so it only drifts with sustained changes in how fast the disk is.
+            baseline += (perByte - baseline) / (LATENCY_WINDOW * 8);
+        }
+        if(holdoff > 0)
+        {
+            //Give the average time to reflect the last back off before judging it.
+            holdoff--;
+            return;
+        }
+        double rate = io.getRate();
+        if((System.nanoTime() - foregroundTime < FOREGROUND_WINDOW) || (latency > baseline * CONGESTION_RATIO))
+        {
+            io.setRate(Math.max(maxRate / MIN_RATE_DIVISOR, rate / 2));
+            holdoff = LATENCY_WINDOW;
+        } else{
+            io.setRate(Math.min(maxRate, rate + (maxRate / INCREASE_DIVISOR)));
+        }
+    }
+
+    /**
+     * Gets the CPU time the calling thread has used, falling back to the wall clock if it can't be measured.
+     * @return The thread's CPU time, in nanoseconds.
+    **/
+    private long cpuTime()
+    {
+        return ((threads == null)? System.nanoTime() : threads.getCurrentThreadCpuTime());
+    }
+
+    /**
+     * Compares a stored hash against the leading bytes of a computed one.
+     * @param stored The stored hash.
+     * @param computed The computed hash.
+     * @return True if the stored hash matches.
+    **/
+    private static final boolean matches(byte[] stored, byte[] computed)
+    {
+        int length = Math.min(stored.length, computed.length);
+        return Arrays.equals(stored, 0, length, computed, 0, length);
+    }
+
+    /**
+     * The thread scrubbing the archive, which has it's own class so foreground reports from it can be told apart cheaply.
+    **/
+    private static final class ScrubThread extends Thread
+    {
+        /**
+         * Creates a new scrubbing thread.
+         * @param task The scrubbing loop to run.
+        **/
+        ScrubThread(Runnable task)
+        {
+            super(task, "Archive-Scrub");
+        }
+    }
+
+    /**
+     * Token bucket that paces how fast a resource is used. Tokens refill continuously at the bucket's rate, up to it's capacity, and taking more tokens than are available puts the bucket into debt,
+     * which the taker sleeps off, so requests larger than the capacity still work and the long run rate is never exceeded.
+    **/
+    static final class TokenBucket
+    {
+        /**The largest number of tokens the bucket can hold.**/
+        private final double capacity;
+        /**The number of tokens added per second.**/
+        private double rate;
+        /**The number of tokens in the bucket, negative if it's in debt.**/
+        private double tokens;
+        /**The time the bucket was last refilled, in nanoseconds.**/
+        private long refilled;
+
+        /**
+         * Creates a new, full, token bucket.
+         * @param rate The number of tokens added per second.
+         * @param capacity The largest number of tokens the bucket can hold.
+        **/
+        TokenBucket(double rate, double capacity)
+        {
+            this.rate = rate;
+            this.capacity = capacity;
+            tokens = capacity;
+            refilled = System.nanoTime();
+        }
+
+        /**
+         * Adds the tokens that have accumulated since the bucket was last refilled.
+        **/
+        private void refill()
+        {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + ((now - refilled) * rate / TimeUnit.SECONDS.toNanos(1)));
+            refilled = now;
+        }
+
+        /**
+         * Gets the number of tokens added per second.
+         * @return The bucket's rate.
+        **/
+        final synchronized double getRate()
+        {
+            return rate;
+        }
+
+        /**
+         * Changes the number of tokens added per second. Tokens that already accumulated are kept.
+         * @param rate The new rate.
+        **/
+        final synchronized void setRate(double rate)
+        {
+            refill();
+            this.rate = rate;
+        }
+
+        /**
+         * Takes tokens from the bucket, sleeping until the bucket's out of debt if there weren't enough.
+         * @param amount The number of tokens to take.
+         * @throws InterruptedException If the thread was interrupted while sleeping.
+        **/
+        final void take(double amount) throws InterruptedException
+        {
+            long wait;
+            synchronized(this)
+            {
+                refill();
+                tokens -= amount;
+                wait = ((tokens < 0)? (long)(-tokens * TimeUnit.SECONDS.toNanos(1) / rate) : 0);
+            }
+            if(wait > 0)
+            {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
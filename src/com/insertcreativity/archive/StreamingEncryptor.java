@@ -0,0 +1,638 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Class for encrypting a tree of files into an archive as a pipeline. Scanning the tree, reading files, encrypting them, hashing them and writing them out each run on their own thread,
+ * connected by bounded queues, so every stage stays busy while the others wait on the disk. Data is passed between stages in a fixed set of direct buffers leased from the shared BufferPool, so memory use stays capped no matter how large the tree is,
+ * and files are read and written through channels without being copied onto the heap.
+ * Every file that's completely written is recorded in a progress journal, so an interrupted run can be resumed without encrypting those files again. The journal is deleted once the whole tree is encrypted.
+ * Files are encrypted exactly like Main.encryptContent encrypts them, so archives can be restored with a TreeRestorer.
+**/
+final class StreamingEncryptor
+{
+    /**The default size of each buffer, which can be at most 1MB.**/
+    static final int DEFAULT_BUFFER_SIZE = 65536;
+    /**The default number of buffers in the pool.**/
+    static final int DEFAULT_BUFFER_COUNT = 64;
+    /**The number of files that can be completed before they and the journal are flushed to disk, which is also the most files held open waiting to be flushed.**/
+    private static final int JOURNAL_SYNC_INTERVAL = 256;
+    /**The longest time the journal can go without being flushed to disk, in milliseconds.**/
+    private static final long JOURNAL_SYNC_MILLIS = 5000;
+
+    /**The key to encrypt files with.**/
+    private final Key key;
+    /**The size of each buffer.**/
+    private final int bufferSize;
+    /**The number of buffers in the pool.**/
+    private final int bufferCount;
+
+    /**
+     * Creates a new streaming encryptor, with the default buffer pool.
+     * @param key The key to encrypt files with.
+    **/
+    StreamingEncryptor(Key key)
+    {
+        this(key, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new streaming encryptor. The pipeline never holds more than bufferSize * bufferCount bytes of file data at once.
+     * @param key The key to encrypt files with.
+     * @param bufferSize The size of each buffer, at most 1MB.
+     * @param bufferCount The number of buffers in the pool.
+    **/
+    StreamingEncryptor(Key key, int bufferSize, int bufferCount)
+    {
+        this.key = key;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Encrypts a file or folder (and all of it's contents) into the destination folder, resuming from the journal if an earlier run was interrupted.
+     * @param source The file or folder to encrypt.
+     * @param dest The folder to store the encrypted copy in.
+     * @param journal The file to record progress in. If it exists, every file recorded in it is assumed to already be encrypted.
+     * @throws GeneralSecurityException If a file couldn't be encrypted.
+     * @throws IOException If a file couldn't be read or written, or the journal couldn't be updated.
+    **/
+    final void encrypt(File source, File dest, File journal) throws GeneralSecurityException, IOException
+    {
+        ProgressJournal progress = new ProgressJournal(journal);
+        try
+        {
+            new Pipeline(progress).run(source, dest);
+        } finally{
+            progress.close();
+        }
+        Files.delete(journal.toPath());
+    }
+
+    /**
+     * A single run of the pipeline.
+    **/
+    private final class Pipeline
+    {
+        /**The buffers leased from the shared pool for this run.**/
+        private final BufferPool.Buffer[] leases;
+        /**Pool of buffers that aren't being used by any stage.**/
+        private final ArrayBlockingQueue<ByteBuffer> buffers;
+        /**Queue of files to read, filled by the scan stage.**/
+        private final ArrayBlockingQueue<FileTask> files;
+        /**Queue of blocks to encrypt, filled by the read stage.**/
+        private final ArrayBlockingQueue<Block> plain;
+        /**Queue of blocks to hash, filled by the encrypt stage.**/
+        private final ArrayBlockingQueue<Block> encrypted;
+        /**Queue of blocks to write, filled by the hash stage.**/
+        private final ArrayBlockingQueue<Block> hashed;
+        /**The journal completed files are recorded in.**/
+        private final ProgressJournal progress;
+        /**The first failure in any stage.**/
+        private final AtomicReference<Exception> failure;
+        /**The threads running each stage.**/
+        private final Thread[] stages;
+
+        /**
+         * Creates a new pipeline, and leases it's buffers. They're released once the pipeline has run.
+         * @param progress The journal completed files are recorded in.
+        **/
+        Pipeline(ProgressJournal progress)
+        {
+            leases = new BufferPool.Buffer[bufferCount];
+            buffers = new ArrayBlockingQueue<>(bufferCount);
+            for(int i = 0; i < bufferCount; i++)
+            {
+                leases[i] = BufferPool.SHARED.acquire(bufferSize);
+                buffers.add(leases[i].get());
+            }
+            files = new ArrayBlockingQueue<>(bufferCount);
+            plain = new ArrayBlockingQueue<>(bufferCount);
+            encrypted = new ArrayBlockingQueue<>(bufferCount);
+            hashed = new ArrayBlockingQueue<>(bufferCount);
+            this.progress = progress;
+            failure = new AtomicReference<>();
+            stages = new Thread[5];
+        }
+
+        /**
+         * Runs every stage, and waits for them to finish.
+         * @param source The file or folder to encrypt.
+         * @param dest The folder to store the encrypted copy in.
+         * @throws GeneralSecurityException If a file couldn't be encrypted.
+         * @throws IOException If a file couldn't be read or written, or the journal couldn't be updated.
+        **/
+        final void run(File source, File dest) throws GeneralSecurityException, IOException
+        {
+            stages[0] = new Thread(() -> stage(() -> scan(source, dest)), "Archive-Scan");
+            stages[1] = new Thread(() -> stage(this::read), "Archive-Read");
+            stages[2] = new Thread(() -> stage(this::encrypt), "Archive-Encrypt");
+            stages[3] = new Thread(() -> stage(this::hash), "Archive-Hash");
+            stages[4] = new Thread(() -> stage(this::write), "Archive-Write");
+            for(Thread stage : stages)
+            {
+                stage.start();
+            }
+
+            try
+            {
+                for(Thread stage : stages)
+                {
+                    stage.join();
+                }
+            } catch(InterruptedException interruptedException)
+            {
+                abort();
+                throw new IOException("Interrupted while encrypting files.", interruptedException);
+            } finally{
+                //Stages still running after an interrupt might still be using the buffers, so those are left for the pool's cleaner to reclaim instead.
+                boolean stopped = true;
+                for(Thread stage : stages)
+                {
+                    stopped &= !stage.isAlive();
+                }
+                if(stopped)
+                {
+                    for(BufferPool.Buffer lease : leases)
+                    {
+                        lease.close();
+                    }
+                }
+            }
+
+            Exception exception = failure.get();
+            if(exception instanceof IOException)
+            {
+                throw (IOException)exception;
+            } else if(exception instanceof GeneralSecurityException)
+            {
+                throw (GeneralSecurityException)exception;
+            } else if(exception != null)
+            {
+                throw new IOException("Failed to encrypt files.", exception);
+            }
+        }
+
+        /**
+         * Runs a stage, stopping every other stage if it fails.
+         * @param body The work the stage does.
+        **/
+        private final void stage(StageBody body)
+        {
+            try
+            {
+                body.run();
+            } catch(InterruptedException interruptedException)
+            {
+                //Only interrupted when another stage has already failed.
+            } catch(Exception exception)
+            {
+                if(failure.compareAndSet(null, exception))
+                {
+                    abort();
+                }
+            }
+        }
+
+        /**
+         * Stops every stage.
+        **/
+        private final void abort()
+        {
+            for(Thread stage : stages)
+            {
+                stage.interrupt();
+            }
+        }
+
+        /**
+         * Scan stage, which walks the tree creating the encrypted folders, and queues every file that isn't already in the journal.
+         * @param source The file or folder to encrypt.
+         * @param dest The folder to store the encrypted copy in.
+         * @throws GeneralSecurityException If a name couldn't be encrypted.
+         * @throws IOException If a folder couldn't be listed or created.
+         * @throws InterruptedException If the pipeline was stopped.
+        **/
+        private final void scan(File source, File dest) throws GeneralSecurityException, IOException, InterruptedException
+        {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            MessageDigest hasher = MessageDigest.getInstance("SHA-256");
+            String name = Main.encryptName(source.getName(), Main.getNameSize(source), cipher, key, hasher);
+            scan(source, new File(dest, name), name, cipher, hasher);
+            files.put(FileTask.END);
+        }
+
+        /**
+         * Scans a single file or folder.
+         * @param source The file or folder to scan.
+         * @param target The encrypted copy of the file or folder.
+         * @param entry The path of the encrypted copy, relative to the destination folder.
+         * @param cipher The cipher to encrypt names with.
+         * @param hasher The hash engine to derive vectors with.
+         * @throws GeneralSecurityException If a name couldn't be encrypted.
+         * @throws IOException If a folder couldn't be listed or created.
+         * @throws InterruptedException If the pipeline was stopped.
+        **/
+        private final void scan(File source, File target, String entry, Cipher cipher, MessageDigest hasher) throws GeneralSecurityException, IOException, InterruptedException
+        {
+            if(source.isDirectory())
+            {
+                //Folders from an interrupted run are kept.
+                if(!target.mkdir() && !target.isDirectory())
+                {
+                    throw new IOException("Failed to create encrypted folder.");
+                }
+                File[] children = source.listFiles();
+                if(children == null)
+                {
+                    throw new IOException("Failed to list folder " + source);
+                }
+                for(File child : children)
+                {
+                    String name = Main.encryptName(child.getName(), Main.getNameSize(child), cipher, key, hasher);
+                    scan(child, new File(target, name), entry + '/' + name, cipher, hasher);
+                }
+            } else if(!progress.isComplete(entry))
+            {
+                files.put(new FileTask(source, target, entry));
+            }
+        }
+
+        /**
+         * Read stage, which splits each file into blocks.
+         * @throws IOException If a file couldn't be read.
+         * @throws InterruptedException If the pipeline was stopped.
+        **/
+        private final void read() throws IOException, InterruptedException
+        {
+            FileTask file;
+            while((file = files.take()) != FileTask.END)
+            {
+                try(FileChannel input = FileChannel.open(file.source.toPath(), StandardOpenOption.READ))
+                {
+                    boolean last;
+                    do
+                    {
+                        ByteBuffer buffer = buffers.take();
+                        buffer.clear().limit(bufferSize);
+                        last = !readFully(input, buffer);
+                        buffer.flip();
+                        plain.put(new Block(file, buffer, last));
+                    } while(!last);
+                }
+            }
+            plain.put(Block.END);
+        }
+
+        /**
+         * Encrypt stage, which encrypts each block in place with it's file's cipher stream.
+         * @throws GeneralSecurityException If a block couldn't be encrypted.
+         * @throws InterruptedException If the pipeline was stopped.
+        **/
+        private final void encrypt() throws GeneralSecurityException, InterruptedException
+        {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            MessageDigest hasher = MessageDigest.getInstance("SHA-256");
+            FileTask current = null;
+            Block block;
+            while((block = plain.take()) != Block.END)
+            {
+                //Start each file's stream at it's name-hash vector.
+                if(block.file != current)
+                {
+                    current = block.file;
+                    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(Main.getIvFromName(current.source.getName(), hasher)));
+                }
+                //The cipher processes overlapping buffers safely, as long as the output doesn't start ahead of the input.
+                cipher.update(block.data.duplicate(), block.data.duplicate());
+                encrypted.put(block);
+            }
+            encrypted.put(Block.END);
+        }
+
+        /**
+         * Hash stage, which computes the hash of each file's encrypted content.
+         * @throws GeneralSecurityException If the hash engine isn't available.
+         * @throws InterruptedException If the pipeline was stopped.
+        **/
+        private final void hash() throws GeneralSecurityException, InterruptedException
+        {
+            MessageDigest hasher = MessageDigest.getInstance("SHA-256");
+            Block block;
+            while((block = encrypted.take()) != Block.END)
+            {
+                hasher.update(block.data.duplicate());
+                if(block.last)
+                {
+                    block.hash = hasher.digest();
+                }
+                hashed.put(block);
+            }
+            hashed.put(Block.END);
+        }
+
+        /**
+         * Write stage, which writes each file's blocks out, and records the file in the journal once it's complete.
+         * @throws IOException If a file couldn't be written, or the journal couldn't be updated.
+         * @throws InterruptedException If the pipeline was stopped.
+        **/
+        private final void write() throws IOException, InterruptedException
+        {
+            FileChannel output = null;
+            try
+            {
+                Block block;
+                while((block = hashed.take()) != Block.END)
+                {
+                    if(output == null)
+                    {
+                        //Anything already there was left half-written by an interrupted run.
+                        Files.deleteIfExists(block.file.encrypted.toPath());
+                        output = FileChannel.open(block.file.encrypted.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    }
+                    while(block.data.hasRemaining())
+                    {
+                        output.write(block.data);
+                    }
+                    buffers.put(block.data);
+
+                    if(block.last)
+                    {
+                        //Mirror the source's modification time, so incremental syncs can tell if it's changed
+                        block.file.encrypted.setLastModified(block.file.source.lastModified());
+                        //The journal takes the file's channel, and only closes it once the file has been flushed to disk along with the rest of it's batch.
+                        FileChannel completed = output;
+                        output = null;
+                        progress.complete(block.file.entry, block.hash, completed);
+                    }
+                }
+            } finally{
+                if(output != null)
+                {
+                    output.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads from a channel until the buffer is full or EOF is reached.
+     * @param input The channel to read from.
+     * @param buffer The buffer to read into.
+     * @return True if the buffer was filled, false if EOF was reached first.
+     * @throws IOException If the channel couldn't be read.
+    **/
+    private static final boolean readFully(FileChannel input, ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            if(input.read(buffer) == -1)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The work done by a single stage.
+    **/
+    private static interface StageBody
+    {
+        /**
+         * Runs the stage until it's input is exhausted.
+         * @throws Exception If the stage fails.
+        **/
+        void run() throws Exception;
+    }
+
+    /**
+     * A file waiting to be encrypted.
+    **/
+    private static final class FileTask
+    {
+        /**Marker queued after the last file.**/
+        static final FileTask END = new FileTask(null, null, null);
+
+        /**The file to encrypt.**/
+        final File source;
+        /**The file to write the encrypted content into.**/
+        final File encrypted;
+        /**The path of the encrypted file, relative to the destination folder.**/
+        final String entry;
+
+        /**
+         * Creates a new file task.
+         * @param source The file to encrypt.
+         * @param encrypted The file to write the encrypted content into.
+         * @param entry The path of the encrypted file, relative to the destination folder.
+        **/
+        FileTask(File source, File encrypted, String entry)
+        {
+            this.source = source;
+            this.encrypted = encrypted;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * A block of a file's content, passing through the pipeline.
+    **/
+    private static final class Block
+    {
+        /**Marker queued after the last block.**/
+        static final Block END = new Block(null, null, true);
+
+        /**The file the block is part of.**/
+        final FileTask file;
+        /**The buffer holding the block's data, between it's position and limit.**/
+        final ByteBuffer data;
+        /**Flag for whether this is the file's last block.**/
+        final boolean last;
+        /**The hash of the file's encrypted content, set by the hash stage on the file's last block.**/
+        byte[] hash;
+
+        /**
+         * Creates a new block.
+         * @param file The file the block is part of.
+         * @param data The buffer holding the block's data, between it's position and limit.
+         * @param last Flag for whether this is the file's last block.
+        **/
+        Block(FileTask file, ByteBuffer data, boolean last)
+        {
+            this.file = file;
+            this.data = data;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Journal of the files that have been completely encrypted. Each line holds the hex encoded hash of a file's encrypted content, followed by a space and the file's encrypted path.
+     * Only encrypted paths are recorded, so the journal doesn't reveal anything the archive itself doesn't. Lines are flushed to disk periodically, and a torn last line is ignored.
+    **/
+    private static final class ProgressJournal
+    {
+        /**The paths of every file recorded as complete.**/
+        private final HashSet<String> completed;
+        /**Stream for appending to the journal.**/
+        private final FileOutputStream output;
+        /**The lines of the files completed since the journal was last flushed, which aren't written until the files themselves are on disk.**/
+        private final StringBuilder unsynced;
+        /**The open channels of the files completed since the journal was last flushed.**/
+        private final ArrayList<FileChannel> unsyncedFiles;
+        /**The time the journal was last flushed, in milliseconds.**/
+        private long lastSync;
+
+        /**
+         * Opens a journal, loading any progress already recorded in it.
+         * @param journal The journal file, which is created if it doesn't exist.
+         * @throws IOException If the journal couldn't be read or opened.
+        **/
+        ProgressJournal(File journal) throws IOException
+        {
+            completed = new HashSet<>();
+            if(journal.isFile())
+            {
+                String content = new String(Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8);
+                int start = 0;
+                int end;
+                while((end = content.indexOf('\n', start)) != -1)
+                {
+                    int split = content.indexOf(' ', start);
+                    if((split != -1) && (split < end))
+                    {
+                        completed.add(content.substring(split + 1, end));
+                    }
+                    start = end + 1;
+                }
+                //Drop a torn last line, so it's not mistaken for part of the next one.
+                if(start != content.length())
+                {
+                    try(FileOutputStream truncate = new FileOutputStream(journal, true))
+                    {
+                        truncate.getChannel().truncate(content.substring(0, start).getBytes(StandardCharsets.UTF_8).length);
+                    }
+                }
+            }
+            output = new FileOutputStream(journal, true);
+            unsynced = new StringBuilder();
+            unsyncedFiles = new ArrayList<>(JOURNAL_SYNC_INTERVAL);
+            lastSync = System.currentTimeMillis();
+        }
+
+        /**
+         * Checks whether a file was recorded as complete.
+         * @param entry The encrypted path of the file.
+         * @return True if the file has already been encrypted.
+        **/
+        final boolean isComplete(String entry)
+        {
+            return completed.contains(entry);
+        }
+
+        /**
+         * Records a file as complete, flushing the journal to disk if enough files or time have passed since it was last flushed.
+         * The file isn't claimed as complete until the journal is next flushed, so files are flushed to disk in batches instead of one at a time.
+         * @param entry The encrypted path of the file.
+         * @param hash The hash of the file's encrypted content.
+         * @param file The open channel the file was written with, which the journal closes once the file has been flushed to disk.
+         * @throws IOException If the journal couldn't be written.
+        **/
+        final void complete(String entry, byte[] hash, FileChannel file) throws IOException
+        {
+            unsyncedFiles.add(file);
+            for(byte b : hash)
+            {
+                unsynced.append(Character.forDigit((b >> 4) & 0xf, 16));
+                unsynced.append(Character.forDigit(b & 0xf, 16));
+            }
+            unsynced.append(' ').append(entry).append('\n');
+
+            long now = System.currentTimeMillis();
+            if((unsyncedFiles.size() >= JOURNAL_SYNC_INTERVAL) || (now - lastSync >= JOURNAL_SYNC_MILLIS))
+            {
+                sync();
+                lastSync = now;
+            }
+        }
+
+        /**
+         * Flushes every file completed since the last flush to disk, and then records them in the journal and flushes it too. Files always reach the disk before the journal claims they're complete.
+         * @throws IOException If a file or the journal couldn't be flushed.
+        **/
+        private final void sync() throws IOException
+        {
+            try
+            {
+                for(FileChannel file : unsyncedFiles)
+                {
+                    file.force(true);
+                }
+            } finally{
+                closeFiles();
+            }
+            output.write(unsynced.toString().getBytes(StandardCharsets.UTF_8));
+            unsynced.setLength(0);
+            output.getFD().sync();
+        }
+
+        /**
+         * Closes the channels of every file completed since the last flush.
+         * @throws IOException If a channel couldn't be closed.
+        **/
+        private final void closeFiles() throws IOException
+        {
+            IOException failure = null;
+            for(FileChannel file : unsyncedFiles)
+            {
+                try
+                {
+                    file.close();
+                } catch(IOException ioException)
+                {
+                    failure = ioException;
+                }
+            }
+            unsyncedFiles.clear();
+            if(failure != null)
+            {
+                throw failure;
+            }
+        }
+
+        /**
+         * Flushes the files completed since the last flush and the journal to disk, and closes it.
+         * @throws IOException If a file or the journal couldn't be flushed.
+        **/
+        final void close() throws IOException
+        {
+            try
+            {
+                sync();
+            } finally{
+                try
+                {
+                    closeFiles();
+                } finally{
+                    output.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,630 @@
+package com.insertcreativity.archive;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Class for interfacing with archives striped across several volumes, RAID-0 style. The logical file is split into fixed size stripes, which are dealt out to the volumes in turn,
+ * so stripe i is stored on volume (i % N) at offset (i / N) * stripeSize. Reads and writes that span several stripes are split up by volume, and every volume's share is transferred in parallel,
+ * so large sequential transfers get the combined bandwidth of every volume. Volumes should be on different disks for this to help.
+ * Every volume is kept exactly as long as it's share of the logical file, so the logical length can always be recovered from the volumes' lengths.
+**/
+public class StripedFile extends AbstractFile
+{
+    /**The prefix of a striped file's address.**/
+    public static final String ADDRESS_PREFIX = "stripe:";
+    /**The default size of each stripe.**/
+    public static final int DEFAULT_STRIPE_SIZE = 65536;
+    /**Pool of threads that transfer each volume's share of a request, shared by every striped file.**/
+    private static final ExecutorService transfers = Executors.newCachedThreadPool(task ->
+    {
+        Thread thread = new Thread(task, "Archive-Stripe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**The underlying files each volume is stored in.**/
+    private final AbstractFile[] volumes;
+    /**The size of each stripe, in bytes.**/
+    private final int stripeSize;
+    /**The current length of each volume.**/
+    private final long[] volumeLengths;
+    /**The length of the logical file.**/
+    private long length;
+    /**The position of the logical file-pointer.**/
+    private long position;
+
+    /**
+     * Resolves the striped file at the specified address.
+     * @param address String encoding of the file's address, which is the stripe size followed by the address of every volume, all prefixed by "stripe:" and separated by the platform's path separator.
+     * @return The file at the specified address.
+     * @throws IOException If the address is invalid, or any of the volumes couldn't be found.
+    **/
+    public static AbstractFile resolve(String address) throws IOException
+    {
+        if(!address.startsWith(ADDRESS_PREFIX))
+        {
+            throw new IOException("Invalid striped file address " + address);
+        }
+        String[] parts = address.substring(ADDRESS_PREFIX.length()).split(Pattern.quote(File.pathSeparator));
+        if(parts.length < 2)
+        {
+            throw new IOException("Invalid striped file address " + address);
+        }
+        AbstractFile[] volumes = new AbstractFile[parts.length - 1];
+        for(int i = 0; i < volumes.length; i++)
+        {
+            volumes[i] = LocalFile.resolve(parts[i + 1]);
+        }
+        try
+        {
+            return new StripedFile(volumes, Integer.parseInt(parts[0]));
+        } catch(NumberFormatException numberFormatException)
+        {
+            throw new IOException("Invalid stripe size in address " + address, numberFormatException);
+        }
+    }
+
+    /**
+     * Creates a new striped file across local files, with the default stripe size.
+     * @param volumes The local files to store each volume in, which should be on different disks.
+     * @param mode The mode to open the volumes in. (see https://docs.oracle.com/javase/7/docs/api/java/io/RandomAccessFile.html#mode)
+     * @throws IOException If any of the volumes couldn't be opened.
+    **/
+    public StripedFile(File[] volumes, String mode) throws IOException
+    {
+        this(openVolumes(volumes, mode), DEFAULT_STRIPE_SIZE);
+    }
+
+    /**
+     * Creates a new striped file.
+     * @param volumes The files to store each volume in. The striped file takes ownership of them, and closes them when it's closed.
+     * @param stripeSize The size of each stripe, in bytes. It must be the same every time the volumes are opened.
+     * @throws IOException If the volumes' lengths couldn't be read.
+    **/
+    public StripedFile(AbstractFile[] volumes, int stripeSize) throws IOException
+    {
+        if((volumes.length == 0) || (stripeSize < 1))
+        {
+            throw new IllegalArgumentException("Striped files need at least one volume, and a positive stripe size.");
+        }
+        this.volumes = volumes.clone();
+        this.stripeSize = stripeSize;
+        volumeLengths = new long[volumes.length];
+        //The logical file ends wherever the volume holding it's last byte ends.
+        length = 0;
+        for(int i = 0; i < volumes.length; i++)
+        {
+            volumeLengths[i] = volumes[i].length();
+            if(volumeLengths[i] > 0)
+            {
+                long last = volumeLengths[i] - 1;
+                long end = ((((last / stripeSize) * volumes.length) + i) * stripeSize) + (last % stripeSize) + 1;
+                length = Math.max(length, end);
+            }
+        }
+        position = 0;
+    }
+
+    /**
+     * Opens local files as volumes.
+     * @param files The local files to open.
+     * @param mode The mode to open the files in.
+     * @return The opened volumes.
+     * @throws FileNotFoundException If any of the files couldn't be opened, in which case none of them are left open.
+    **/
+    private static final AbstractFile[] openVolumes(File[] files, String mode) throws FileNotFoundException
+    {
+        AbstractFile[] volumes = new AbstractFile[files.length];
+        try
+        {
+            for(int i = 0; i < files.length; i++)
+            {
+                volumes[i] = new LocalFile(files[i], mode);
+            }
+        } catch(FileNotFoundException fileNotFoundException)
+        {
+            for(AbstractFile volume : volumes)
+            {
+                try
+                {
+                    if(volume != null)
+                    {
+                        volume.close();
+                    }
+                } catch(IOException closeException)
+                {
+                    fileNotFoundException.addSuppressed(closeException);
+                }
+            }
+            throw fileNotFoundException;
+        }
+        return volumes;
+    }
+
+    /**
+     * Calculates how much of a logical file of the specified length is stored on a volume.
+     * @param volume The index of the volume.
+     * @param logicalLength The length of the logical file.
+     * @return The length the volume has to be.
+    **/
+    private final long volumeLength(int volume, long logicalLength)
+    {
+        long row = (long)stripeSize * volumes.length;
+        long remainder = (logicalLength % row) - ((long)volume * stripeSize);
+        return ((logicalLength / row) * stripeSize) + Math.max(0, Math.min(stripeSize, remainder));
+    }
+
+    /**
+     * Returns whether or not there is more data to read from the file.
+     * @return False if the file-pointer is at the end of the file, true otherwise.
+    **/
+    public boolean hasNext()
+    {
+        return (position < length);
+    }
+
+    /**
+     * Striped files are never directories.
+     * @return False.
+    **/
+    public boolean isDirectory()
+    {
+        return false;
+    }
+
+    /**
+     * Striped files span several folders, so they have no single parent.
+     * @return Null.
+    **/
+    public AbstractFile getParent()
+    {
+        return null;
+    }
+
+    /**
+     * Striped files aren't directories, so they have no children.
+     * @param name The name of the file to find in this directory.
+     * @return Null.
+    **/
+    public AbstractFile getChild(String name)
+    {
+        return null;
+    }
+
+    /**
+     * Returns the name of the file, which is the name of it's first volume.
+     * @return The name of the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public String getName() throws IOException
+    {
+        return volumes[0].getName();
+    }
+
+    /**
+     * Returns the absolute address of the file, which can be resolved back into a striped file (see resolve).
+     * @return The absolute address of the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public String getAddress() throws IOException
+    {
+        StringBuilder address = new StringBuilder(ADDRESS_PREFIX).append(stripeSize);
+        for(AbstractFile volume : volumes)
+        {
+            address.append(File.pathSeparator).append(volume.getAddress());
+        }
+        return address.toString();
+    }
+
+    /**
+     * Gets the current size of the logical file, in bytes.
+     * @return The total number of bytes currently in the file.
+    **/
+    public long length()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the current position of the file-pointer.
+     * @return The current position of the file-pointer.
+    **/
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Moves the file-pointer to the specified position.
+     * @param position The position to move the file-pointer to in the file, measured from the start of the file.
+    **/
+    public void seek(long position)
+    {
+        if(position < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        this.position = position;
+    }
+
+    /**
+     * Reads a single byte from the file at the file-pointer's current position (and shifts the pointer forward by 1).
+     * @return The value of the byte read from the file.
+     * @throws EOFException If EOF has been reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public byte readByte() throws IOException
+    {
+        if(position >= length)
+        {
+            throw new EOFException();
+        }
+        long stripe = position / stripeSize;
+        AbstractFile volume = volumes[(int)(stripe % volumes.length)];
+        volume.seek(((stripe / volumes.length) * stripeSize) + (position % stripeSize));
+        byte data = volume.readByte();
+        position++;
+        return data;
+    }
+
+    /**
+     * Reads a consecutive series of bytes from the file into the buffer starting from the current file-pointer position. Requests spanning several stripes are read from every volume in parallel.
+     * @param buffer The array to read bytes into.
+     * @param offset The index offset to start storing bytes in the buffer at.
+     * @param length The number of bytes that should be read into the buffer.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int readBytes(byte[] buffer, int offset, int length) throws IOException
+    {
+        if(length == 0)
+        {
+            return 0;
+        }
+        if(position >= this.length)
+        {
+            return -1;
+        }
+        int count = (int)Math.min(length, this.length - position);
+        transfer(count, (volume, bufferOffset, segmentLength) -> volume.readBytes(buffer, offset + bufferOffset, segmentLength));
+        position += count;
+        return count;
+    }
+
+    /**
+     * Reads a consecutive series of bytes from the file into the buffer, handing each volume a slice of the buffer so direct buffers are read into without being copied.
+     * @param buffer The buffer to read bytes into, from it's position up to it's limit.
+     * @return The actual number of bytes successfully read from the file, or -1 if EOF has been reached.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int readBytes(ByteBuffer buffer) throws IOException
+    {
+        if(!buffer.hasRemaining())
+        {
+            return 0;
+        }
+        if(position >= length)
+        {
+            return -1;
+        }
+        int count = (int)Math.min(buffer.remaining(), length - position);
+        int start = buffer.position();
+        transfer(count, (volume, bufferOffset, segmentLength) -> volume.readBytes(slice(buffer, start + bufferOffset, segmentLength)));
+        buffer.position(start + count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Writes a single byte into the file at the file-pointer's current position (and shifts the pointer forward by 1). If the file-pointer is at EOF, the byte is appended to the end of the file, otherwise the byte currently at that position is overwritten.
+     * @param data The byte to write into the file.
+     * @return The number of bytes successfully written to the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int writeByte(byte data) throws IOException
+    {
+        long stripe = position / stripeSize;
+        int index = (int)(stripe % volumes.length);
+        long volumePosition = ((stripe / volumes.length) * stripeSize) + (position % stripeSize);
+        volumes[index].seek(volumePosition);
+        volumes[index].writeByte(data);
+        volumeLengths[index] = Math.max(volumeLengths[index], volumePosition + 1);
+        position++;
+        extendTo(position);
+        return 1;
+    }
+
+    /**
+     * Writes an array of bytes into the file in order starting at the file-pointer's current position. Requests spanning several stripes are written to every volume in parallel.
+     * @param data The array to write bytes from.
+     * @param offset The index offset to starting writing bytes from the buffer at.
+     * @param length The number of bytes that should be written into the file.
+     * @return The number of bytes successfully written into the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int writeBytes(byte[] data, int offset, int length) throws IOException
+    {
+        if(length == 0)
+        {
+            return 0;
+        }
+        transfer(length, (volume, bufferOffset, segmentLength) -> volume.writeBytes(data, offset + bufferOffset, segmentLength));
+        position += length;
+        extendTo(position);
+        return length;
+    }
+
+    /**
+     * Writes the bytes remaining in a buffer into the file, handing each volume a slice of the buffer so direct buffers are written without being copied.
+     * @param data The buffer to write bytes from.
+     * @return The number of bytes successfully written into the file.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public int writeBytes(ByteBuffer data) throws IOException
+    {
+        int count = data.remaining();
+        if(count == 0)
+        {
+            return 0;
+        }
+        int start = data.position();
+        transfer(count, (volume, bufferOffset, segmentLength) -> volume.writeBytes(slice(data, start + bufferOffset, segmentLength)));
+        data.position(start + count);
+        position += count;
+        extendTo(position);
+        return count;
+    }
+
+    /**
+     * Creates an independent view of part of a buffer.
+     * @param buffer The buffer to view.
+     * @param offset The index the view starts at.
+     * @param length The number of bytes in the view.
+     * @return The view, positioned at it's start.
+    **/
+    private static final ByteBuffer slice(ByteBuffer buffer, int offset, int length)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice;
+    }
+
+    /**
+     * Splits a request starting at the file-pointer up by volume, and transfers every volume's share in parallel. The calling thread transfers the first volume's share itself.
+     * Each volume is only ever used by one thread during a request.
+     * @param count The number of bytes in the request, which must be positive.
+     * @param segment The transfer for a single stripe's worth of the request.
+     * @throws IOException If any of the volumes failed.
+    **/
+    private final void transfer(int count, Segment segment) throws IOException
+    {
+        long firstStripe = position / stripeSize;
+        long lastStripe = (position + count - 1) / stripeSize;
+        int volumeCount = (int)Math.min(volumes.length, (lastStripe - firstStripe) + 1);
+        if(volumeCount == 1)
+        {
+            transferVolume(firstStripe, count, segment);
+            return;
+        }
+
+        ArrayList<Future<Void>> shares = new ArrayList<>(volumeCount - 1);
+        for(int i = 1; i < volumeCount; i++)
+        {
+            long stripe = firstStripe + i;
+            shares.add(transfers.submit(() ->
+            {
+                transferVolume(stripe, count, segment);
+                return null;
+            }));
+        }
+
+        //Transfer the first share here, then wait for all the others even if something failed, so no volume is left in use.
+        IOException failure = null;
+        try
+        {
+            transferVolume(firstStripe, count, segment);
+        } catch(IOException ioException)
+        {
+            failure = ioException;
+        }
+        for(Future<Void> share : shares)
+        {
+            try
+            {
+                share.get();
+            } catch(ExecutionException executionException)
+            {
+                Throwable cause = executionException.getCause();
+                IOException shareFailure = ((cause instanceof IOException)? (IOException)cause : new IOException("Failed to transfer stripe.", cause));
+                if(failure == null)
+                {
+                    failure = shareFailure;
+                } else{
+                    failure.addSuppressed(shareFailure);
+                }
+            } catch(InterruptedException interruptedException)
+            {
+                Thread.currentThread().interrupt();
+                if(failure == null)
+                {
+                    failure = new IOException("Interrupted while transferring stripes.", interruptedException);
+                }
+            }
+        }
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Transfers one volume's share of a request, which is every stripe of the request stored on that volume.
+     * @param stripe The first stripe of the request that's on the volume.
+     * @param count The number of bytes in the whole request.
+     * @param segment The transfer for a single stripe's worth of the request.
+     * @throws IOException If the volume failed, or ended before the logical file does.
+    **/
+    private final void transferVolume(long stripe, int count, Segment segment) throws IOException
+    {
+        int index = (int)(stripe % volumes.length);
+        AbstractFile volume = volumes[index];
+        long end = position + count;
+        //A volume's stripes are stored back to back, so it only has to be seeked once.
+        long logical = Math.max(position, stripe * stripeSize);
+        long volumePosition = ((stripe / volumes.length) * stripeSize) + (logical - (stripe * stripeSize));
+        volume.seek(volumePosition);
+        for(; logical < end; stripe += volumes.length, logical = stripe * stripeSize)
+        {
+            int bufferOffset = (int)(logical - position);
+            int segmentLength = (int)(Math.min(end, (stripe + 1) * stripeSize) - logical);
+            while(segmentLength > 0)
+            {
+                int transferred = segment.transfer(volume, bufferOffset, segmentLength);
+                if(transferred < 0)
+                {
+                    throw new EOFException("Volume " + index + " is shorter than the striped file.");
+                }
+                bufferOffset += transferred;
+                segmentLength -= transferred;
+                volumePosition += transferred;
+            }
+        }
+        volumeLengths[index] = Math.max(volumeLengths[index], volumePosition);
+    }
+
+    /**
+     * Grows the logical file to include everything up to the specified position, extending any volume that doesn't yet hold it's full share, so there are never holes at the end of a volume.
+     * @param end The position the logical file has to reach.
+     * @throws IOException If a volume couldn't be extended.
+    **/
+    private final void extendTo(long end) throws IOException
+    {
+        if(end <= length)
+        {
+            return;
+        }
+        for(int i = 0; i < volumes.length; i++)
+        {
+            long needed = volumeLength(i, end);
+            if(volumeLengths[i] < needed)
+            {
+                volumes[i].setLength(needed);
+                volumeLengths[i] = needed;
+            }
+        }
+        length = end;
+    }
+
+    /**
+     * Truncates or extends the file to the specified length, by truncating or extending each volume to it's share of it. If the file is extended, the contents of the extended portion are undefined.
+     * @param length The new length of the file, in bytes.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public void setLength(long length) throws IOException
+    {
+        for(int i = 0; i < volumes.length; i++)
+        {
+            long needed = volumeLength(i, length);
+            volumes[i].setLength(needed);
+            volumeLengths[i] = needed;
+        }
+        this.length = length;
+    }
+
+    /**
+     * Forces any data written into the file out onto every volume's storage medium in parallel, blocking until it's all durable.
+     * @throws IOException If the operation fails or is unsupported.
+    **/
+    public void sync() throws IOException
+    {
+        ArrayList<Future<Void>> syncs = new ArrayList<>(volumes.length);
+        for(AbstractFile volume : volumes)
+        {
+            syncs.add(transfers.submit(() ->
+            {
+                volume.sync();
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for(Future<Void> sync : syncs)
+        {
+            try
+            {
+                sync.get();
+            } catch(ExecutionException|InterruptedException syncException)
+            {
+                if(syncException instanceof InterruptedException)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                Throwable cause = ((syncException instanceof ExecutionException)? syncException.getCause() : syncException);
+                IOException volumeFailure = ((cause instanceof IOException)? (IOException)cause : new IOException("Failed to sync volume.", cause));
+                if(failure == null)
+                {
+                    failure = volumeFailure;
+                } else{
+                    failure.addSuppressed(volumeFailure);
+                }
+            }
+        }
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes every volume, flushing and saving any changes made to them. Every volume is closed even if closing one of them fails.
+     * @throws IOException If any of the volumes encountered an error while closing.
+    **/
+    public void close() throws IOException
+    {
+        IOException failure = null;
+        for(AbstractFile volume : volumes)
+        {
+            try
+            {
+                volume.close();
+            } catch(IOException closeException)
+            {
+                if(failure == null)
+                {
+                    failure = closeException;
+                } else{
+                    failure.addSuppressed(closeException);
+                }
+            }
+        }
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * A transfer between a volume and part of the request's buffer.
+    **/
+    private static interface Segment
+    {
+        /**
+         * Transfers part of a stripe, at the volume's current position.
+         * @param volume The volume to transfer with.
+         * @param bufferOffset The offset into the request's data to transfer at.
+         * @param length The number of bytes left to transfer in the stripe.
+         * @return The number of bytes transferred, or -1 if the volume has ended.
+         * @throws IOException If the transfer failed.
+        **/
+        int transfer(AbstractFile volume, int bufferOffset, int length) throws IOException;
+    }
+}
@@ -0,0 +1,504 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Deflater;
+
+/**
+ * Class for encrypting a tree of files into an archive in parallel. Each encrypted folder is created before any of it's contents, and then the files are encrypted largest first.
+ * Trees can also be synchronized incrementally, so only the files that changed since the last run are read and written.
+ * Files can optionally be compressed before they're encrypted, in which case the archive has to be restored with compression enabled too.
+ * Synchronized trees can also be patched, in which case changed files are updated in place and only the parts of them that changed are re-encrypted and written.
+ * Small files can be packed into a PackStore instead of being encrypted into files of their own, in which case only an empty placeholder is written under their encrypted name, and the archive has to be restored with the same pack store.
+**/
+final class TreeEncryptor extends TreeProcessor
+{
+    /**The level files are compressed at before being encrypted, or 0 if they aren't compressed.**/
+    private int compression;
+    /**The patcher that changed files are updated in place with during syncs, or null if they're re-encrypted from scratch.**/
+    private ContentPatcher patcher;
+    /**The store small files are packed into, or null if every file is encrypted into it's own file.**/
+    private PackStore packs;
+    /**The folder the archive being encrypted is stored in, which packed files are identified relative to.**/
+    private File archive;
+
+    /**
+     * Creates a new tree encryptor.
+     * @param key The key to encrypt files with.
+     * @param parallelism The number of threads to encrypt with.
+    **/
+    TreeEncryptor(Key key, int parallelism)
+    {
+        super(key, parallelism);
+        compression = 0;
+        patcher = null;
+        packs = null;
+        archive = null;
+    }
+
+    /**
+     * Sets whether files are compressed before being encrypted. Each file is compressed in independent frames, so they can still be read from any position.
+     * Favor Deflater.BEST_SPEED for fast backups, and Deflater.BEST_COMPRESSION for cold storage.
+     * @param level The compression level to use, from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9) or Deflater.DEFAULT_COMPRESSION (-1), or 0 to not compress files.
+    **/
+    final void setCompression(int level)
+    {
+        if((level < Deflater.DEFAULT_COMPRESSION) || (level > Deflater.BEST_COMPRESSION))
+        {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        compression = level;
+    }
+
+    /**
+     * Sets whether changed files are patched in place during syncs, instead of being re-encrypted from scratch. Patching only writes the 16 byte blocks that changed, which makes appending to logs or editing large files cheap,
+     * and files whose size changed are renamed rather than deleted, since their encrypted names depend on their size.
+     * Files are identified by their path in the destination, so the destination shouldn't be moved between syncs or every file's block hashes are lost, and the files have to be compared against their decrypted content instead.
+     * @param patcher The patcher to update files with, or null to re-encrypt changed files from scratch.
+    **/
+    final void setPatcher(ContentPatcher patcher)
+    {
+        this.patcher = patcher;
+    }
+
+    /**
+     * Sets the store small files are packed into. Files below the store's threshold are packed instead of being encrypted into their own file (or compressed or patched), and an empty placeholder is written under their encrypted name,
+     * which is derived as if the file were empty. Packed files are identified by their path in the destination, so the destination shouldn't be moved, and the store has to be flushed once the tree's been encrypted.
+     * @param packs The store to pack small files into, or null to encrypt every file into it's own file.
+    **/
+    final void setPackStore(PackStore packs)
+    {
+        this.packs = packs;
+    }
+
+    /**
+     * Derives the identifier a packed file is stored under in a pack store, from it's path relative to the archive's folder.
+     * @param archive The folder the archive is stored in.
+     * @param folder The encrypted folder the file's placeholder is in.
+     * @param name The plain name of the file.
+     * @param hasher The hash engine to use, this must be SHA-256 and not in use by any other thread.
+     * @return The file's 12 byte identifier.
+    **/
+    static final byte[] identifyPacked(File archive, File folder, String name, MessageDigest hasher)
+    {
+        return ContentPatcher.identify(archive.toPath().relativize(new File(folder, name).toPath()).toString(), hasher);
+    }
+
+    /**
+     * Checks whether a file is packed into the pack store rather than encrypted into it's own file.
+     * @param attributes The attributes of the file.
+     * @return True if the file is packed.
+    **/
+    private final boolean isPacked(FileAttributes attributes)
+    {
+        return (packs != null) && !attributes.isDirectory() && packs.shouldPack(attributes.getSize());
+    }
+
+    /**
+     * Calculates the size a file's name is encrypted with, which for packed files is the size of their empty placeholder.
+     * @param attributes The attributes of the file.
+     * @return The size to derive the file name's IV from.
+    **/
+    private final long getNameSize(FileAttributes attributes)
+    {
+        return (isPacked(attributes)? Main.getNameSize(0) : Main.getNameSize(attributes));
+    }
+
+    /**
+     * Encrypts a file or folder (and all of it's contents) into the destination folder.
+     * @param source The file or folder to encrypt.
+     * @param dest The folder to store the encrypted copy in.
+     * @throws GeneralSecurityException If a file couldn't be encrypted.
+     * @throws IOException If a file couldn't be read or written.
+    **/
+    final void encrypt(File source, File dest) throws GeneralSecurityException, IOException
+    {
+        process(source, dest, false);
+    }
+
+    /**
+     * Incrementally updates an encrypted copy of a file or folder in the destination folder. Only files that are new, or whose size or modification time changed since they were last encrypted, are encrypted again.
+     * Any encrypted entries that no longer correspond to a source file are removed. Since a file's encrypted name depends on it's size, files that changed size are re-encrypted under a new name and their old entry is removed,
+     * unless a patcher is set, in which case the old entry is renamed and patched (see setPatcher).
+     * @param source The file or folder to synchronize.
+     * @param dest The folder the encrypted copy is stored in.
+     * @throws GeneralSecurityException If a file couldn't be encrypted.
+     * Compressed files can't be synchronized, since their encrypted names depend on their compressed size, which isn't known until they've been compressed again.
+     * @throws IOException If a file couldn't be read, written or removed.
+    **/
+    final void sync(File source, File dest) throws GeneralSecurityException, IOException
+    {
+        if(compression != 0)
+        {
+            throw new IllegalStateException("Compressed archives can't be synchronized incrementally.");
+        }
+        process(source, dest, true);
+    }
+
+    /**
+     * Walks the source, creating the encrypted folders, and then encrypts the files that need it.
+     * @param source The file or folder to encrypt.
+     * @param dest The folder to store the encrypted copy in.
+     * @param incremental Flag for whether to keep up-to-date encrypted files and remove stale ones, instead of requiring the encrypted copy not exist yet.
+     * @throws GeneralSecurityException If a file couldn't be encrypted.
+     * @throws IOException If a file couldn't be read or written.
+    **/
+    private final void process(File source, File dest, boolean incremental) throws GeneralSecurityException, IOException
+    {
+        archive = dest;
+        FileAttributes attributes = FileAttributes.read(source.toPath());
+        File encrypted = new File(dest, Main.encryptName(source.getName(), getNameSize(attributes), ciphers.get(), key, hashers.get()));
+
+        //Create the encrypted folders, and collect the files to encrypt.
+        ConcurrentLinkedQueue<EncryptJob> queue = new ConcurrentLinkedQueue<>();
+        walk(new WalkTask(source, attributes, encrypted, incremental, queue));
+        runLargestFirst(queue);
+    }
+
+    /**
+     * Deletes a file, or a folder and everything in it.
+     * @param file The file or folder to delete.
+     * @throws IOException If the file couldn't be deleted.
+    **/
+    private static final void delete(File file) throws IOException
+    {
+        File[] files = file.listFiles();
+        if(files != null)
+        {
+            for(File child : files)
+            {
+                delete(child);
+            }
+        }
+        if(!file.delete())
+        {
+            throw new IOException("Failed to delete stale entry " + file);
+        }
+    }
+
+    /**
+     * Checks whether an encrypted file is up-to-date with it's source, which it is if it has the same size and modification time.
+     * @param encrypted The encrypted file.
+     * @param source The attributes of the source file.
+     * @return True if the encrypted file exists and is up-to-date.
+     * @throws IOException If the encrypted file's attributes couldn't be read.
+    **/
+    private static final boolean isCurrent(File encrypted, FileAttributes source) throws IOException
+    {
+        FileAttributes attributes;
+        try
+        {
+            attributes = FileAttributes.read(encrypted.toPath());
+        } catch(NoSuchFileException noSuchFileException)
+        {
+            return false;
+        }
+        return !attributes.isDirectory() && (attributes.getSize() == source.getSize()) && (attributes.getLastModified() == source.getLastModified());
+    }
+
+    /**
+     * Checks whether a packed file is up-to-date with it's source, which it is if it's placeholder has the source's modification time, and the packed copy has the source's size.
+     * @param placeholder The packed file's placeholder.
+     * @param source The attributes of the source file.
+     * @return True if the packed file exists and is up-to-date.
+     * @throws IOException If the placeholder's attributes couldn't be read.
+    **/
+    private final boolean isPackedCurrent(File placeholder, FileAttributes source) throws IOException
+    {
+        FileAttributes attributes;
+        try
+        {
+            attributes = FileAttributes.read(placeholder.toPath());
+        } catch(NoSuchFileException noSuchFileException)
+        {
+            return false;
+        }
+        byte[] identifier = identifyPacked(archive, placeholder.getParentFile(), source.getName(), hashers.get());
+        return !attributes.isDirectory() && (attributes.getSize() == 0) && (attributes.getLastModified() == source.getLastModified()) && (packs.length(identifier) == source.getSize());
+    }
+
+    /**
+     * Removes the packed copy of a stale entry, if it's a packed file's placeholder, so it's space can be reclaimed when the pack store is compacted.
+     * @param entry The stale encrypted entry.
+     * @throws GeneralSecurityException If the entry's name couldn't be decrypted.
+     * @throws IOException If the removal couldn't be recorded.
+    **/
+    private final void unpack(File entry) throws GeneralSecurityException, IOException
+    {
+        if((packs == null) || !entry.isFile() || (entry.length() != 0))
+        {
+            return;
+        }
+        try
+        {
+            String name = Main.decryptName(entry.getName(), Main.getNameSize(0), ciphers.get(), key, hashers.get());
+            packs.remove(identifyPacked(archive, entry.getParentFile(), name, hashers.get()));
+        } catch(IllegalArgumentException invalidNameException)
+        {
+            //Names that aren't valid base64 weren't written by the archive.
+        }
+    }
+
+    /**
+     * Task for walking a single file or folder. Folders are created (encrypted) before their contents are walked, and files are collected to be encrypted later.
+    **/
+    private final class WalkTask extends RecursiveAction
+    {
+        /**Version of the task's serialized form, tasks are never actually serialized.**/
+        private static final long serialVersionUID = 1L;
+        /**The file or folder to walk.**/
+        private final File source;
+        /**The attributes of the file or folder, read while listing it's parent.**/
+        private final FileAttributes attributes;
+        /**The encrypted copy of the file or folder.**/
+        private final File encrypted;
+        /**Flag for whether to keep up-to-date encrypted files and remove stale ones.**/
+        private final boolean incremental;
+        /**Queue that files to encrypt are collected into.**/
+        private final ConcurrentLinkedQueue<EncryptJob> queue;
+
+        /**
+         * Creates a new walk task.
+         * @param source The file or folder to walk.
+         * @param attributes The attributes of the file or folder.
+         * @param encrypted The encrypted copy of the file or folder.
+         * @param incremental Flag for whether to keep up-to-date encrypted files and remove stale ones.
+         * @param queue Queue that files to encrypt are collected into.
+        **/
+        WalkTask(File source, FileAttributes attributes, File encrypted, boolean incremental, ConcurrentLinkedQueue<EncryptJob> queue)
+        {
+            this.source = source;
+            this.attributes = attributes;
+            this.encrypted = encrypted;
+            this.incremental = incremental;
+            this.queue = queue;
+        }
+
+        /**
+         * Walks the file or folder.
+        **/
+        protected void compute()
+        {
+            try
+            {
+                if(attributes.isDirectory())
+                {
+                    //Create the encrypted folder before anything is put in it.
+                    if(incremental && encrypted.isFile())
+                    {
+                        delete(encrypted);
+                    }
+                    if(!encrypted.mkdir() && !(incremental && encrypted.isDirectory()))
+                    {
+                        throw new IOException("Failed to create encrypted folder.");
+                    }
+
+                    //Listing the folder reads every entry's attributes at once, so entries aren't stat'd again while they're walked.
+                    List<FileAttributes> files = FileAttributes.list(source);
+                    ArrayList<WalkTask> subtasks = new ArrayList<>(files.size());
+                    HashSet<String> names = new HashSet<>();
+                    HashMap<String, String> renames = new HashMap<>();
+                    for(FileAttributes file : files)
+                    {
+                        String name = Main.encryptName(file.getName(), getNameSize(file), ciphers.get(), key, hashers.get());
+                        names.add(name);
+                        if(!file.isDirectory())
+                        {
+                            renames.put(file.getName(), name);
+                        }
+                        subtasks.add(new WalkTask(new File(source, file.getName()), file, new File(encrypted, name), incremental, queue));
+                    }
+
+                    //Remove entries for files that were deleted (or changed size) since the last run.
+                    if(incremental)
+                    {
+                        File[] entries = encrypted.listFiles();
+                        if(entries == null)
+                        {
+                            throw new IOException("Failed to list folder " + encrypted);
+                        }
+                        for(File entry : entries)
+                        {
+                            if(!names.contains(entry.getName()) && !((patcher != null) && rename(entry, renames)))
+                            {
+                                unpack(entry);
+                                delete(entry);
+                            }
+                        }
+                    }
+
+                    //Walk the folder's content in parallel.
+                    invokeAll(subtasks);
+                } else if(isPacked(attributes))
+                {
+                    if(!incremental || !isPackedCurrent(encrypted, attributes))
+                    {
+                        queue.add(new EncryptJob(source, encrypted, incremental, true, attributes.getSize()));
+                    }
+                } else if(!incremental || !isCurrent(encrypted, attributes))
+                {
+                    queue.add(new EncryptJob(source, encrypted, incremental, false, attributes.getSize()));
+                }
+            } catch(IOException ioException)
+            {
+                throw new UncheckedIOException(ioException);
+            } catch(GeneralSecurityException securityException)
+            {
+                throw new SecurityWrapper(securityException);
+            }
+        }
+    }
+
+    /**
+     * Renames an encrypted file whose source changed size, so it can be patched under it's new name instead of being encrypted again from scratch.
+     * @param entry The stale encrypted entry.
+     * @param renames The new encrypted names of the files in the entry's source folder, keyed by their plain names.
+     * @return True if the entry was renamed, false if it doesn't belong to any source file and should be deleted.
+     * @throws GeneralSecurityException If the entry's name couldn't be decrypted.
+     * @throws IOException If the entry's attributes couldn't be read.
+    **/
+    private final boolean rename(File entry, HashMap<String, String> renames) throws GeneralSecurityException, IOException
+    {
+        FileAttributes attributes = FileAttributes.read(entry.toPath());
+        if(attributes.isDirectory())
+        {
+            return false;
+        }
+        String name;
+        try
+        {
+            name = Main.decryptName(entry.getName(), Main.getNameSize(attributes), ciphers.get(), key, hashers.get());
+        } catch(IllegalArgumentException invalidNameException)
+        {
+            //Names that aren't valid base64 weren't written by the archive.
+            return false;
+        }
+        String target = renames.get(name);
+        if(target == null)
+        {
+            return false;
+        }
+        File renamed = new File(entry.getParentFile(), target);
+        return !renamed.exists() && entry.renameTo(renamed);
+    }
+
+    /**
+     * Job for encrypting the content of a single file.
+    **/
+    private final class EncryptJob extends FileJob
+    {
+        /**The file to encrypt.**/
+        private final File source;
+        /**The file to write the encrypted content into.**/
+        private final File encrypted;
+        /**Flag for whether an existing encrypted file should be replaced.**/
+        private final boolean replace;
+        /**Flag for whether the file is packed into the pack store.**/
+        private final boolean packed;
+
+        /**
+         * Creates a new encrypt job.
+         * @param source The file to encrypt.
+         * @param encrypted The file to write the encrypted content into.
+         * @param replace Flag for whether an existing encrypted file should be replaced.
+         * @param packed Flag for whether the file is packed into the pack store.
+         * @param size The size of the file to encrypt.
+        **/
+        EncryptJob(File source, File encrypted, boolean replace, boolean packed, long size)
+        {
+            super(size);
+            this.source = source;
+            this.encrypted = encrypted;
+            this.replace = replace;
+            this.packed = packed;
+        }
+
+        /**
+         * Encrypts the file using the calling thread's cipher and hash engine. Compressed files are named after their compressed size, so they're written into the encrypted file's folder under the name that size gives them.
+         * @return Nothing.
+         * @throws GeneralSecurityException If the file couldn't be encrypted.
+         * @throws IOException If the file couldn't be read or written.
+        **/
+        public Void call() throws GeneralSecurityException, IOException
+        {
+            if(packed)
+            {
+                pack();
+                return null;
+            }
+            if(replace && (patcher != null))
+            {
+                patch();
+                return null;
+            }
+            if(replace && encrypted.exists())
+            {
+                delete(encrypted);
+            }
+            if((compression != 0) && (scheduler != null))
+            {
+                //Compressing interleaves too finely with reading to hand off, so the whole file is compressed on a CPU thread.
+                scheduler.compute(() -> Main.compressContent(source, encrypted.getParentFile(), ciphers.get(), key, hashers.get(), compression));
+            } else if(compression != 0)
+            {
+                Main.compressContent(source, encrypted.getParentFile(), ciphers.get(), key, hashers.get(), compression);
+            } else{
+                Main.encryptContent(source, encrypted, ciphers.get(), key, hashers.get(), scheduler);
+            }
+            return null;
+        }
+
+        /**
+         * Packs the file into the pack store, and writes it's empty placeholder.
+         * @throws IOException If the file couldn't be read or packed, or the placeholder couldn't be written.
+        **/
+        private void pack() throws IOException
+        {
+            byte[] content = Files.readAllBytes(source.toPath());
+            packs.store(identifyPacked(archive, encrypted.getParentFile(), source.getName(), hashers.get()), content, 0, content.length);
+            if(encrypted.exists())
+            {
+                delete(encrypted);
+            }
+            if(!encrypted.createNewFile())
+            {
+                throw new IOException("Failed to create packed file placeholder.");
+            }
+            //Mirror the source's modification time, so incremental syncs can tell if it's changed
+            encrypted.setLastModified(source.lastModified());
+        }
+
+        /**
+         * Updates the encrypted file in place, only writing the parts of it that changed. New files are patched into an empty file, which encrypts all of them and records their block hashes for later patches.
+         * @throws IOException If the file couldn't be read or written.
+        **/
+        private void patch() throws IOException
+        {
+            if(encrypted.isDirectory())
+            {
+                delete(encrypted);
+            }
+            if(!encrypted.exists() && !encrypted.createNewFile())
+            {
+                throw new IOException("Failed to create encrypted file.");
+            }
+            //Files are identified by their plain name in their encrypted folder, since their encrypted name changes with their size.
+            byte[] identifier = ContentPatcher.identify(new File(encrypted.getParentFile(), source.getName()).getPath(), hashers.get());
+            patcher.patch(source, encrypted, ciphers.get(), key, Main.getIvFromName(source.getName(), hashers.get()), identifier, hashers.get());
+            //Mirror the source's modification time, so incremental syncs can tell if it's changed
+            encrypted.setLastModified(source.lastModified());
+        }
+    }
+}
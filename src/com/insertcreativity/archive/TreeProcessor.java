@@ -0,0 +1,214 @@
+package com.insertcreativity.archive;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Base class for processing trees of archive files in parallel. Trees are walked by a work-stealing pool, and the files found are then processed by the same pool, largest first,
+ * so the longest jobs don't end up running alone at the end. Every thread uses it's own cipher and hash engine, and stages data in buffers from the shared BufferPool.
+ * Processors can instead run their file jobs on an IoScheduler, so each job gets it's own (virtual) thread to block on the disk with, and only the encryption is run on a thread per core.
+**/
+abstract class TreeProcessor
+{
+    /**The key to encrypt and decrypt files with.**/
+    final Key key;
+    /**Work-stealing pool that walks the tree and processes the files.**/
+    final ForkJoinPool pool;
+    /**The cipher used by each thread.**/
+    final ThreadLocal<Cipher> ciphers;
+    /**The hash engine used by each thread.**/
+    final ThreadLocal<MessageDigest> hashers;
+    /**The scheduler file jobs are run on, or null if they're run on the work-stealing pool.**/
+    IoScheduler scheduler;
+
+    /**
+     * Creates a new tree processor.
+     * @param key The key to encrypt and decrypt files with.
+     * @param parallelism The number of threads to process files with.
+    **/
+    TreeProcessor(Key key, int parallelism)
+    {
+        this.key = key;
+        pool = new ForkJoinPool(parallelism);
+        ciphers = new ThreadLocal<Cipher>()
+        {
+            protected Cipher initialValue()
+            {
+                try
+                {
+                    return Cipher.getInstance("AES/CTR/NoPadding");
+                } catch(NoSuchAlgorithmException|NoSuchPaddingException cipherException)
+                {
+                    throw new IllegalStateException("Platform doesn't support AES/CTR/NoPadding", cipherException);
+                }
+            }
+        };
+        hashers = new ThreadLocal<MessageDigest>()
+        {
+            protected MessageDigest initialValue()
+            {
+                try
+                {
+                    return MessageDigest.getInstance("SHA-256");
+                } catch(NoSuchAlgorithmException noSuchAlgorithmException)
+                {
+                    throw new IllegalStateException("256bit SHA not supported on this platform", noSuchAlgorithmException);
+                }
+            }
+        };
+    }
+
+    /**
+     * Sets the scheduler file jobs are run on. Trees are still walked on the work-stealing pool, since walking is mostly decrypting names.
+     * @param scheduler The scheduler to run file jobs on, or null to run them on the work-stealing pool. The processor doesn't shut it down.
+    **/
+    final void setScheduler(IoScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Walks a tree on the pool, and waits for the walk to finish.
+     * @param walker The task that walks the root of the tree.
+     * @throws GeneralSecurityException If a file's name couldn't be processed.
+     * @throws IOException If a file couldn't be read or written.
+    **/
+    final void walk(RecursiveAction walker) throws GeneralSecurityException, IOException
+    {
+        try
+        {
+            pool.invoke(walker);
+        } catch(UncheckedIOException ioException)
+        {
+            throw ioException.getCause();
+        } catch(SecurityWrapper securityWrapper)
+        {
+            throw securityWrapper.getCause();
+        }
+    }
+
+    /**
+     * Processes a collection of files on the pool (or the scheduler, if one is set), largest first, and waits for them all to finish.
+     * @param jobs The jobs for processing each file.
+     * @throws GeneralSecurityException If a file couldn't be processed.
+     * @throws IOException If a file couldn't be read or written.
+    **/
+    final void runLargestFirst(Collection<? extends FileJob> jobs) throws GeneralSecurityException, IOException
+    {
+        //Submit the files largest first. External submissions are taken in order, so idle threads always pick up the largest remaining file.
+        ArrayList<FileJob> sorted = new ArrayList<>(jobs);
+        Collections.sort(sorted, new Comparator<FileJob>()
+        {
+            public int compare(FileJob job1, FileJob job2)
+            {
+                return Long.compare(job2.size, job1.size);
+            }
+        });
+        ArrayList<Future<Void>> tasks = new ArrayList<>(sorted.size());
+        for(FileJob job : sorted)
+        {
+            //Scheduled jobs get their descriptors in submission order too.
+            tasks.add((scheduler == null)? pool.submit(job) : scheduler.submit(job, FileJob.DESCRIPTORS));
+        }
+
+        //Wait for every file to finish, and report the first failure.
+        Exception failure = null;
+        for(Future<Void> task : tasks)
+        {
+            try
+            {
+                task.get();
+            } catch(ExecutionException executionException)
+            {
+                if(failure == null)
+                {
+                    failure = (Exception)executionException.getCause();
+                }
+            } catch(InterruptedException interruptedException)
+            {
+                throw new IOException("Interrupted while processing files.", interruptedException);
+            }
+        }
+        if(failure instanceof IOException)
+        {
+            throw (IOException)failure;
+        } else if(failure instanceof GeneralSecurityException)
+        {
+            throw (GeneralSecurityException)failure;
+        } else if(failure != null)
+        {
+            throw new IOException("Failed to process file.", failure);
+        }
+    }
+
+    /**
+     * Shuts down the processor's threads.
+    **/
+    final void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Job for processing a single file.
+    **/
+    abstract static class FileJob implements Callable<Void>
+    {
+        /**The number of files a job has open at once, one to read from and one to write into.**/
+        static final int DESCRIPTORS = 2;
+
+        /**The size of the file, in bytes.**/
+        final long size;
+
+        /**
+         * Creates a new file job.
+         * @param size The size of the file, in bytes.
+        **/
+        FileJob(long size)
+        {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Unchecked wrapper for carrying security exceptions out of tasks that can't throw them.
+    **/
+    static final class SecurityWrapper extends RuntimeException
+    {
+        /**Version of the wrapper's serialized form.**/
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Wraps a security exception.
+         * @param cause The exception to wrap.
+        **/
+        SecurityWrapper(GeneralSecurityException cause)
+        {
+            super(cause);
+        }
+
+        /**
+         * Returns the wrapped security exception.
+         * @return The wrapped exception.
+        **/
+        public GeneralSecurityException getCause()
+        {
+            return (GeneralSecurityException)super.getCause();
+        }
+    }
+}
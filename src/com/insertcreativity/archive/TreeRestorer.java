@@ -0,0 +1,372 @@
+package com.insertcreativity.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class for selectively restoring files out of an archive in parallel. Targets are given as paths or glob patterns relative to the archive's root, like "photos/2019" or "documents/**.pdf".
+ * Only the names of entries are decrypted while searching, and folders that can't contain any target are skipped entirely, so unrelated files are never read.
+ * Targets that match a folder restore everything inside it, and giving no targets at all restores the whole archive.
+ * Entries whose names aren't encrypted archive names (like leftover temporary files) are skipped, and handed back to the caller to report.
+ * Archives that small files were packed into a PackStore for have to be restored with the same pack store, which packed files are read back out of in place of their empty placeholders.
+**/
+final class TreeRestorer extends TreeProcessor
+{
+    /**Flag for whether the archive's files were compressed before being encrypted.**/
+    private boolean compressed;
+    /**The store small files were packed into, or null if every file was encrypted into it's own file.**/
+    private PackStore packs;
+    /**The folder the archive being restored is stored in, which packed files are identified relative to.**/
+    private File archive;
+
+    /**
+     * Creates a new tree restorer.
+     * @param key The key to decrypt files with.
+     * @param parallelism The number of threads to decrypt with.
+    **/
+    TreeRestorer(Key key, int parallelism)
+    {
+        super(key, parallelism);
+        compressed = false;
+        packs = null;
+        archive = null;
+    }
+
+    /**
+     * Sets whether the archive's files were compressed before being encrypted.
+     * @param compressed True if the archive was encrypted with compression enabled.
+    **/
+    final void setCompressed(boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Sets the store small files were packed into when the archive was encrypted.
+     * @param packs The store small files were packed into, or null if every file was encrypted into it's own file.
+    **/
+    final void setPackStore(PackStore packs)
+    {
+        this.packs = packs;
+    }
+
+    /**
+     * Restores every file matching the targets from an archive into the destination folder, recreating the folders leading to them.
+     * @param archive The folder containing the archive's encrypted entries.
+     * @param dest The folder to restore files into.
+     * @param targets Paths or glob patterns of the files to restore, relative to the archive's root and separated with '/'. If it's empty, every file is restored.
+     * @return The entries that were skipped because their names aren't encrypted archive names.
+     * @throws GeneralSecurityException If a file couldn't be decrypted.
+     * @throws IOException If a file couldn't be read or written.
+    **/
+    final List<File> restore(File archive, File dest, List<String> targets) throws GeneralSecurityException, IOException
+    {
+        this.archive = archive;
+        FileSystem fileSystem = FileSystems.getDefault();
+        ArrayList<Target> compiled = new ArrayList<>(targets.size());
+        for(String target : targets)
+        {
+            compiled.add(new Target(target, fileSystem.getPathMatcher("glob:" + target)));
+        }
+
+        List<FileAttributes> entries = FileAttributes.list(archive);
+
+        //Find the matching files, everything matches if there aren't any targets.
+        ConcurrentLinkedQueue<RestoreJob> queue = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<File> skipped = new ConcurrentLinkedQueue<>();
+        ArrayList<WalkTask> walkers = new ArrayList<>(entries.size());
+        for(FileAttributes entry : entries)
+        {
+            walkers.add(new WalkTask(new File(archive, entry.getName()), entry, new String[0], dest, compiled, targets.isEmpty(), queue, skipped));
+        }
+        walk(new RecursiveAction()
+        {
+            protected void compute()
+            {
+                invokeAll(walkers);
+            }
+        });
+
+        //Decrypt them.
+        runLargestFirst(queue);
+        return new ArrayList<>(skipped);
+    }
+
+    /**
+     * A single file or folder to restore.
+    **/
+    private static final class Target
+    {
+        /**The segments of the target's path.**/
+        final String[] segments;
+        /**The number of leading segments that don't contain any glob syntax.**/
+        final int literalSegments;
+        /**Matcher for the target's full path.**/
+        final PathMatcher matcher;
+
+        /**
+         * Creates a new target.
+         * @param target The path or glob pattern of the target.
+         * @param matcher Matcher for the target's full path.
+        **/
+        Target(String target, PathMatcher matcher)
+        {
+            segments = target.split("/");
+            int count = 0;
+            while((count < segments.length) && !isGlob(segments[count]))
+            {
+                count++;
+            }
+            literalSegments = count;
+            this.matcher = matcher;
+        }
+
+        /**
+         * Checks whether a folder could contain anything matching this target.
+         * @param path The segments of the folder's path.
+         * @return False if nothing in the folder can match the target.
+        **/
+        final boolean couldContain(String[] path)
+        {
+            int count = Math.min(path.length, literalSegments);
+            for(int i = 0; i < count; i++)
+            {
+                if(!segments[i].equals(path[i]))
+                {
+                    return false;
+                }
+            }
+            //A literal target can't match anything deeper than itself.
+            return (literalSegments < segments.length) || (path.length < segments.length);
+        }
+
+        /**
+         * Checks whether a path contains glob syntax.
+         * @param segment The path segment to check.
+         * @return True if the segment contains any glob syntax.
+        **/
+        private static final boolean isGlob(String segment)
+        {
+            for(int i = 0; i < segment.length(); i++)
+            {
+                switch(segment.charAt(i))
+                {
+                    case('*'):
+                    case('?'):
+                    case('['):
+                    case('{'):
+                    case('\\'):
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Task for searching a single archive entry. Only the entry's name is decrypted, and folders are only descended into if they could contain a target.
+    **/
+    private final class WalkTask extends RecursiveAction
+    {
+        /**Version of the task's serialized form, tasks are never actually serialized.**/
+        private static final long serialVersionUID = 1L;
+        /**The encrypted entry to search.**/
+        private final File source;
+        /**The attributes of the entry, read while listing it's parent.**/
+        private final FileAttributes attributes;
+        /**The decrypted path segments of the folder containing the entry.**/
+        private final String[] parent;
+        /**The folder the entry would be restored into.**/
+        private final File dest;
+        /**The targets being restored.**/
+        private final List<Target> targets;
+        /**Flag for whether a folder containing this entry was matched, so everything in it is restored.**/
+        private final boolean matched;
+        /**Queue that files to decrypt are collected into.**/
+        private final ConcurrentLinkedQueue<RestoreJob> queue;
+        /**Queue that skipped entries are collected into.**/
+        private final ConcurrentLinkedQueue<File> skipped;
+
+        /**
+         * Creates a new walk task.
+         * @param source The encrypted entry to search.
+         * @param attributes The attributes of the entry.
+         * @param parent The decrypted path segments of the folder containing the entry.
+         * @param dest The folder the entry would be restored into.
+         * @param targets The targets being restored.
+         * @param matched Flag for whether a folder containing this entry was matched.
+         * @param queue Queue that files to decrypt are collected into.
+         * @param skipped Queue that skipped entries are collected into.
+        **/
+        WalkTask(File source, FileAttributes attributes, String[] parent, File dest, List<Target> targets, boolean matched, ConcurrentLinkedQueue<RestoreJob> queue, ConcurrentLinkedQueue<File> skipped)
+        {
+            this.source = source;
+            this.attributes = attributes;
+            this.parent = parent;
+            this.dest = dest;
+            this.targets = targets;
+            this.matched = matched;
+            this.queue = queue;
+            this.skipped = skipped;
+        }
+
+        /**
+         * Searches the entry.
+        **/
+        protected void compute()
+        {
+            try
+            {
+                String name;
+                try
+                {
+                    name = Main.decryptName(source.getName(), Main.getNameSize(attributes), ciphers.get(), key, hashers.get());
+                } catch(IllegalArgumentException invalidNameException)
+                {
+                    //Skip stray files that were never encrypted into the archive (like leftover temporary files).
+                    skipped.add(source);
+                    return;
+                }
+                String[] path = new String[parent.length + 1];
+                System.arraycopy(parent, 0, path, 0, parent.length);
+                path[parent.length] = name;
+                File decrypted = new File(dest, name);
+
+                boolean isMatch = matched || matches(path);
+                if(attributes.isDirectory())
+                {
+                    //Skip folders that can't contain any target.
+                    if(!isMatch && !couldContain(path))
+                    {
+                        return;
+                    }
+                    //Listing the folder reads every entry's attributes at once, so entries aren't stat'd again while they're searched.
+                    List<FileAttributes> entries = FileAttributes.list(source);
+                    ArrayList<WalkTask> subtasks = new ArrayList<>(entries.size());
+                    for(FileAttributes entry : entries)
+                    {
+                        subtasks.add(new WalkTask(new File(source, entry.getName()), entry, path, decrypted, targets, isMatch, queue, skipped));
+                    }
+                    invokeAll(subtasks);
+                } else if(isMatch)
+                {
+                    queue.add(new RestoreJob(source, decrypted, name, attributes.getSize()));
+                }
+            } catch(IOException ioException)
+            {
+                throw new UncheckedIOException(ioException);
+            } catch(GeneralSecurityException securityException)
+            {
+                throw new SecurityWrapper(securityException);
+            }
+        }
+
+        /**
+         * Checks whether a path matches any target.
+         * @param path The segments of the path to check.
+         * @return True if the path matches a target.
+        **/
+        private final boolean matches(String[] path)
+        {
+            Path joined = FileSystems.getDefault().getPath(path[0], Arrays.copyOfRange(path, 1, path.length));
+            for(Target target : targets)
+            {
+                if(target.matcher.matches(joined))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Checks whether a folder could contain anything matching a target.
+         * @param path The segments of the folder's path.
+         * @return True if any target could be inside the folder.
+        **/
+        private final boolean couldContain(String[] path)
+        {
+            for(Target target : targets)
+            {
+                if(target.couldContain(path))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Job for decrypting the content of a single file.
+    **/
+    private final class RestoreJob extends FileJob
+    {
+        /**The encrypted file to decrypt.**/
+        private final File source;
+        /**The file to write the decrypted content into.**/
+        private final File decrypted;
+        /**The decrypted name of the file.**/
+        private final String name;
+
+        /**
+         * Creates a new restore job.
+         * @param source The encrypted file to decrypt.
+         * @param decrypted The file to write the decrypted content into.
+         * @param name The decrypted name of the file.
+         * @param size The size of the encrypted file.
+        **/
+        RestoreJob(File source, File decrypted, String name, long size)
+        {
+            super(size);
+            this.source = source;
+            this.decrypted = decrypted;
+            this.name = name;
+        }
+
+        /**
+         * Recreates the folders leading to the file, and decrypts it using the calling thread's cipher and hash engine.
+         * @return Nothing.
+         * @throws GeneralSecurityException If the file couldn't be decrypted.
+         * @throws IOException If the file couldn't be read or written.
+        **/
+        public Void call() throws GeneralSecurityException, IOException
+        {
+            File folder = decrypted.getParentFile();
+            //Another thread may create the folders at the same time, so only fail if they still don't exist.
+            if(!folder.mkdirs() && !folder.isDirectory())
+            {
+                throw new IOException("Failed to create decrypted folder.");
+            }
+            if((packs != null) && (size == 0))
+            {
+                byte[] identifier = TreeEncryptor.identifyPacked(archive, source.getParentFile(), name, hashers.get());
+                if(packs.contains(identifier))
+                {
+                    Files.write(decrypted.toPath(), packs.read(identifier));
+                    return null;
+                }
+            }
+            if(compressed)
+            {
+                Main.decompressContent(source, decrypted, name, key, hashers.get());
+            } else{
+                Main.decryptContent(source, decrypted, name, ciphers.get(), key, hashers.get(), scheduler);
+            }
+            return null;
+        }
+    }
+}